@@ -34,6 +34,7 @@ import org.scalatest.junit.JUnitRunner
 import org.scalatest.{Entry, FlatSpec, GivenWhenThen, Matchers}
 
 import org.midonet.management.{FlowStats, MeteringMXBean}
+import org.midonet.midolman.FlowController
 import org.midonet.midolman.monitoring.MeterRegistry
 import org.midonet.sdn.flows.FlowTagger.{FlowTag, MeterTag}
 
@@ -55,7 +56,7 @@ class MeteringTest extends FlatSpec with GivenWhenThen with Matchers {
         var i = 0
         var tags = Lists.newArrayList[FlowTag](new StringTag(tag))
         while (i < packets) {
-            registry.recordPacket(packetSize, tags)
+            registry.recordPacket(packetSize, tags, FlowController.NoRules)
             i += 1
         }
     }
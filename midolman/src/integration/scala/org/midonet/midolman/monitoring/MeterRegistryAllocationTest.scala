@@ -26,6 +26,7 @@ import org.scalatest.{FeatureSpec, Matchers}
 import org.scalatest.junit.JUnitRunner
 import org.junit.Assert
 import org.junit.runner.RunWith
+import org.midonet.midolman.FlowController
 import org.midonet.midolman.management.Metering
 import org.midonet.odp.flows.FlowStats
 import org.midonet.odp.FlowMatches
@@ -127,11 +128,11 @@ class MeterRegistryAllocationTest extends FeatureSpec with Matchers {
                 val matchPacket = FlowMatches.fromEthernetPacket(packet)
                 val meters: List[MeterTag] = List(device, commonDevice)
                 val tagsA = new ArrayList((nonMeterRandomTag :: meters).asJava)
-                registry.trackFlow(matchPacket, tagsA)
+                registry.trackFlow(i, matchPacket, tagsA, FlowController.NoRules)
                 val stats = new FlowStats()
                 stats.packets = i * 10
                 stats.bytes = i * 1000
-                registry.updateFlow(matchPacket, stats)
+                registry.updateFlow(i, matchPacket, stats)
             }
 
             Metering.registerAsMXBean(registry)
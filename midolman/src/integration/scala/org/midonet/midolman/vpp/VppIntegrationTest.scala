@@ -16,13 +16,14 @@
 
 package org.midonet.midolman.vpp
 
-import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.concurrent.{CountDownLatch, Executors, TimeUnit}
 import java.util.{ArrayList, UUID}
 
 import scala.concurrent.ExecutionContext.Implicits.global
 import scala.concurrent.duration._
 import scala.concurrent.{Await, Future}
 
+import com.codahale.metrics.MetricRegistry
 import com.google.inject.Guice
 import com.typesafe.config.{Config, ConfigFactory}
 
@@ -405,6 +406,10 @@ class VppIntegrationTest extends FeatureSpec with TopologyBuilder
             val proc = startVpp()
             Thread.sleep(1000) // only needed while first testcase is failing
             val api = new VppApi("test")
+            val scheduler = Executors.newSingleThreadScheduledExecutor()
+            val batch = new VppBatchExecutor(api, 10 millis, 1000, 64,
+                                             scheduler, new MetricRegistry,
+                                             log)
             val datapath = createDatapath("foobar")
             val ovs = new VppOvs(datapath, fip64config)
 
@@ -420,7 +425,7 @@ class VppIntegrationTest extends FeatureSpec with TopologyBuilder
                                                 uplinkDp.getPortNo,
                                                 fip64config,
                                                 VppController.VppFlowStateCfg,
-                                                api, ovs, log))
+                                                api, batch, ovs, log))
                 assertCmdInNs(uplinkns, s"ip a add 2001::2/64 dev ${uplinkns}ns")
 
                 setup foreach { s => Await.result(s.execute(), 1 minute) }
@@ -430,6 +435,7 @@ class VppIntegrationTest extends FeatureSpec with TopologyBuilder
                 deleteNamespace(uplinkns)
                 deleteDatapath(datapath, log)
                 api.close()
+                scheduler.shutdown()
                 proc.destroy()
             }
         }
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.insights;
+
+import java.util.Arrays;
+
+/**
+ * A count-min sketch over 128-bit keys, which estimates the count of a key
+ * with an error that only overestimates the real count. The row indices are
+ * derived from a single 64-bit hash of the key, using double hashing.
+ *
+ * The sketch is not thread-safe: it must be updated by a single thread, and
+ * merged by the same thread or after the updates have stopped.
+ */
+public final class CountMinSketch {
+
+    private final int depth;
+    private final int width;
+    private final int mask;
+    private final long[] counts;
+
+    /**
+     * Creates a sketch with the specified number of rows, and the specified
+     * number of counters per row, rounded up to a power of two.
+     */
+    public CountMinSketch(int depth, int width) {
+        if (depth < 1 || width < 1) {
+            throw new IllegalArgumentException(
+                "Invalid sketch dimensions: " + depth + "x" + width);
+        }
+        this.depth = depth;
+        this.width = width == 1 ? 1 : Integer.highestOneBit(width - 1) << 1;
+        this.mask = this.width - 1;
+        this.counts = new long[depth * this.width];
+    }
+
+    /**
+     * Returns the hash of the specified 128-bit key.
+     */
+    public static long hash(long hi, long lo) {
+        long h = hi * 0x9E3779B97F4A7C15L + lo;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Adds the specified count to the key with the given hash, and returns the
+     * new estimate for the key.
+     */
+    public long add(long hash, long count) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0, offset = 0; row < depth; row++, offset += width) {
+            int index = offset + ((h1 + row * h2) & mask);
+            long value = counts[index] + count;
+            counts[index] = value;
+            if (value < estimate) {
+                estimate = value;
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * Returns the estimated count for the key with the given hash.
+     */
+    public long estimate(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0, offset = 0; row < depth; row++, offset += width) {
+            long value = counts[offset + ((h1 + row * h2) & mask)];
+            if (value < estimate) {
+                estimate = value;
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * Adds the counters of the specified sketch, which must have the same
+     * dimensions, to this sketch.
+     */
+    public void merge(CountMinSketch other) {
+        if (other.depth != depth || other.width != width) {
+            throw new IllegalArgumentException(
+                "Cannot merge sketches with different dimensions");
+        }
+        for (int index = 0; index < counts.length; index++) {
+            counts[index] += other.counts[index];
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0L);
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    public int width() {
+        return width;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.insights;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.AbstractService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.midolman.PacketWorkflow;
+import org.midonet.midolman.config.HeavyHittersConfig;
+import org.midonet.midolman.config.MidolmanConfig;
+import org.midonet.midolman.management.HeavyHitter;
+import org.midonet.midolman.management.HeavyHitters;
+import org.midonet.midolman.simulation.PacketContext;
+import org.midonet.odp.FlowMatch;
+import org.midonet.odp.FlowMetadata;
+import org.midonet.packets.IPAddr;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.sdn.flows.FlowTagger;
+
+/**
+ * An Insights listener that finds the top talkers driving the simulation
+ * load of this agent, by ingress port, by tenant device (bridges and routers)
+ * and by 5-tuple.
+ *
+ * Every packet worker thread records the simulated packets into its own
+ * count-min sketches and top-K sets, such that {@link #flowSimulation} is
+ * lock-free and does not allocate once a worker has recorded its first
+ * packet. A background thread periodically merges the per-worker structures
+ * off the hot path, and publishes the top talkers of the last interval to
+ * {@link HeavyHitters}, which exposes them through JMX and the statistics
+ * HTTP server.
+ *
+ * Each worker owns two sets of structures, and the merge thread swaps the
+ * active set before merging the inactive one. A worker that is recording a
+ * packet at the time of the swap may still update the set being merged,
+ * which can only lose a few counts: the results are estimates anyway.
+ */
+public final class HeavyHittersListener extends AbstractService
+    implements Insights.Listener {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(HeavyHittersListener.class);
+
+    private static final long IPV6_FLAG = 1L << 40;
+
+    /**
+     * The count-min sketch and top-K set for one dimension.
+     */
+    static final class Dimension {
+        final CountMinSketch sketch;
+        final TopK topK;
+
+        Dimension(int depth, int width, int k) {
+            sketch = new CountMinSketch(depth, width);
+            topK = new TopK(k);
+        }
+
+        void record(long hi, long lo) {
+            topK.offer(hi, lo, sketch.add(CountMinSketch.hash(hi, lo), 1L));
+        }
+
+        void clear() {
+            sketch.clear();
+            topK.clear();
+        }
+    }
+
+    /**
+     * The structures recorded by a worker during a merge interval.
+     */
+    static final class Recording {
+        final Dimension ports;
+        final Dimension devices;
+        final Dimension flows;
+
+        Recording(int depth, int width, int k) {
+            ports = new Dimension(depth, width, k);
+            devices = new Dimension(depth, width, k);
+            flows = new Dimension(depth, width, k);
+        }
+
+        void clear() {
+            ports.clear();
+            devices.clear();
+            flows.clear();
+        }
+    }
+
+    /**
+     * The recordings of a single worker thread.
+     */
+    static final class Recorder {
+        final Recording[] recordings;
+        volatile int active = 0;
+
+        Recorder(int depth, int width, int k) {
+            recordings = new Recording[] {
+                new Recording(depth, width, k),
+                new Recording(depth, width, k)
+            };
+        }
+    }
+
+    private final int depth;
+    private final int width;
+    private final int k;
+    private final long mergeIntervalMillis;
+
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Recorder> recorder = new ThreadLocal<Recorder>() {
+        @Override
+        protected Recorder initialValue() {
+            Recorder r = new Recorder(depth, width, k);
+            recorders.add(r);
+            return r;
+        }
+    };
+
+    // Accessed only by the merge thread.
+    private final Recording merged;
+    private ScheduledExecutorService executor;
+
+    public HeavyHittersListener(MidolmanConfig config,
+                                CuratorFramework curator,
+                                MetricRegistry metrics) {
+        this(config.insights().heavyHitters());
+    }
+
+    @VisibleForTesting
+    HeavyHittersListener(HeavyHittersConfig config) {
+        this(config.sketchDepth(), config.sketchWidth(), config.topK(),
+             config.mergeInterval().toMillis());
+    }
+
+    @VisibleForTesting
+    HeavyHittersListener(int depth, int width, int k,
+                         long mergeIntervalMillis) {
+        this.depth = depth;
+        this.width = width;
+        this.k = k;
+        this.mergeIntervalMillis = mergeIntervalMillis;
+        this.merged = new Recording(depth, width, k);
+    }
+
+    @Override
+    public void flowAdded(FlowMatch flowMatch,
+                          List<FlowTagger.FlowTag> flowTags,
+                          long expiration) { }
+
+    @Override
+    public void flowSimulation(PacketContext context,
+                               PacketWorkflow.SimulationResult result) {
+        Recorder r = recorder.get();
+        Recording recording = r.recordings[r.active];
+
+        UUID inPort = context.inputPort();
+        if (inPort != null) {
+            recording.ports.record(inPort.getMostSignificantBits(),
+                                   inPort.getLeastSignificantBits());
+        }
+
+        List<FlowTagger.FlowTag> tags = context.flowTags();
+        for (int index = 0; index < tags.size(); index++) {
+            FlowTagger.FlowTag tag = tags.get(index);
+            if (tag instanceof FlowTagger.BridgeDeviceTag ||
+                tag instanceof FlowTagger.RouterDeviceTag) {
+                UUID device = ((FlowTagger.DeviceTag) tag).deviceId();
+                recording.devices.record(device.getMostSignificantBits(),
+                                         device.getLeastSignificantBits());
+            }
+        }
+
+        FlowMatch match = context.origMatch();
+        IPAddr src = match.getNetworkSrcIP();
+        IPAddr dst = match.getNetworkDstIP();
+        if (src != null && dst != null) {
+            long lo = ((long) (match.getNetworkProto() & 0xff) << 32) |
+                      ((long) (match.getSrcPort() & 0xffff) << 16) |
+                      (match.getDstPort() & 0xffff);
+            int srcInt, dstInt;
+            if (src instanceof IPv4Addr && dst instanceof IPv4Addr) {
+                srcInt = ((IPv4Addr) src).toInt();
+                dstInt = ((IPv4Addr) dst).toInt();
+            } else {
+                // IPv6 flows are keyed by the address hashes.
+                srcInt = src.hashCode();
+                dstInt = dst.hashCode();
+                lo |= IPV6_FLAG;
+            }
+            recording.flows.record(((long) srcInt << 32) |
+                                   (dstInt & 0xffffffffL), lo);
+        }
+    }
+
+    @Override
+    public void flowDeleted(FlowMatch flowMatch, FlowMetadata metadata) { }
+
+    @Override
+    protected void doStart() {
+        HeavyHitters.registerAsMXBean();
+        executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("insights-heavy-hitters").build());
+        executor.scheduleWithFixedDelay(this::mergeSafe, mergeIntervalMillis,
+                                        mergeIntervalMillis,
+                                        TimeUnit.MILLISECONDS);
+        LOG.info("Heavy hitters listener started: {} top talkers, {}x{} " +
+                 "sketches merged every {} ms", k, depth, width,
+                 mergeIntervalMillis);
+        notifyStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        executor.shutdownNow();
+        HeavyHitters.reset();
+        notifyStopped();
+    }
+
+    private void mergeSafe() {
+        try {
+            merge();
+        } catch (Throwable e) {
+            LOG.warn("Failed to merge the heavy hitters", e);
+        }
+    }
+
+    /**
+     * Merges the recordings of all workers for the last interval, and
+     * publishes the top talkers.
+     */
+    @VisibleForTesting
+    void merge() {
+        merged.clear();
+        List<Recording> retired = new ArrayList<>(recorders.size());
+        for (Recorder r : recorders) {
+            int active = r.active;
+            r.active = 1 - active;
+            retired.add(r.recordings[active]);
+        }
+        for (Recording recording : retired) {
+            merged.ports.sketch.merge(recording.ports.sketch);
+            merged.devices.sketch.merge(recording.devices.sketch);
+            merged.flows.sketch.merge(recording.flows.sketch);
+        }
+        // Re-estimate the candidates of every worker against the merged
+        // sketches, since a talker may be spread across several workers.
+        for (Recording recording : retired) {
+            offer(merged.ports, recording.ports.topK);
+            offer(merged.devices, recording.devices.topK);
+            offer(merged.flows, recording.flows.topK);
+            recording.clear();
+        }
+        HeavyHitters.publish(toHeavyHitters(merged.ports.topK, false),
+                             toHeavyHitters(merged.devices.topK, false),
+                             toHeavyHitters(merged.flows.topK, true));
+    }
+
+    private static void offer(Dimension to, TopK candidates) {
+        for (int index = 0; index < candidates.size(); index++) {
+            long hi = candidates.hi(index);
+            long lo = candidates.lo(index);
+            to.topK.offer(hi, lo,
+                          to.sketch.estimate(CountMinSketch.hash(hi, lo)));
+        }
+    }
+
+    private static HeavyHitter[] toHeavyHitters(TopK topK, boolean flows) {
+        HeavyHitter[] hitters = new HeavyHitter[topK.size()];
+        for (int index = 0; index < hitters.length; index++) {
+            String key = flows
+                ? flowToString(topK.hi(index), topK.lo(index))
+                : new UUID(topK.hi(index), topK.lo(index)).toString();
+            hitters[index] = new HeavyHitter(key, topK.count(index));
+        }
+        Arrays.sort(hitters,
+                    (a, b) -> Long.compare(b.getPackets(), a.getPackets()));
+        return hitters;
+    }
+
+    private static String flowToString(long hi, long lo) {
+        int proto = (int) (lo >>> 32) & 0xff;
+        int srcPort = (int) (lo >>> 16) & 0xffff;
+        int dstPort = (int) lo & 0xffff;
+        String src, dst;
+        if ((lo & IPV6_FLAG) == 0) {
+            src = IPv4Addr.intToString((int) (hi >>> 32));
+            dst = IPv4Addr.intToString((int) hi);
+        } else {
+            src = "ipv6#" + Integer.toHexString((int) (hi >>> 32));
+            dst = "ipv6#" + Integer.toHexString((int) hi);
+        }
+        return "proto " + proto + " " + src + ":" + srcPort + " -> " +
+               dst + ":" + dstPort;
+    }
+}
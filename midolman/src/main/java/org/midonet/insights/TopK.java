@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.insights;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the K keys with the largest counts offered so far, where each key is
+ * a 128-bit value stored in primitive arrays. Offering a key is O(K) and does
+ * not allocate: for the small values of K used by the heavy hitters listener
+ * a linear scan over contiguous arrays is faster than maintaining a heap
+ * together with a key index.
+ *
+ * The class is not thread-safe.
+ */
+public final class TopK {
+
+    private final long[] his;
+    private final long[] los;
+    private final long[] counts;
+    private int size = 0;
+
+    public TopK(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                "Invalid top-K capacity: " + capacity);
+        }
+        his = new long[capacity];
+        los = new long[capacity];
+        counts = new long[capacity];
+    }
+
+    /**
+     * Offers a key with its current count. If the key is already present its
+     * count is updated, otherwise the key replaces the key with the smallest
+     * count when the set is full and the new count is larger.
+     */
+    public void offer(long hi, long lo, long count) {
+        int min = -1;
+        long minCount = Long.MAX_VALUE;
+        for (int index = 0; index < size; index++) {
+            if (his[index] == hi && los[index] == lo) {
+                counts[index] = count;
+                return;
+            }
+            if (counts[index] < minCount) {
+                minCount = counts[index];
+                min = index;
+            }
+        }
+        if (size < counts.length) {
+            min = size++;
+        } else if (count <= minCount) {
+            return;
+        }
+        his[min] = hi;
+        los[min] = lo;
+        counts[min] = count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return counts.length;
+    }
+
+    public long hi(int index) {
+        return his[index];
+    }
+
+    public long lo(int index) {
+        return los[index];
+    }
+
+    public long count(int index) {
+        return counts[index];
+    }
+
+    public void clear() {
+        size = 0;
+        Arrays.fill(counts, 0L);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.management;
+
+import java.beans.ConstructorProperties;
+import java.util.Objects;
+
+/**
+ * A top talker reported by the heavy hitters Insights listener: the key
+ * identifies an ingress port, a tenant device or a 5-tuple, and the packets
+ * are the estimated number of simulated packets during the last interval.
+ */
+public class HeavyHitter {
+
+    private final String key;
+    private final long packets;
+
+    @ConstructorProperties({"key", "packets"})
+    public HeavyHitter(String key, long packets) {
+        this.key = key;
+        this.packets = packets;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getPackets() {
+        return packets;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        HeavyHitter that = (HeavyHitter) o;
+
+        return this.packets == that.packets
+            && Objects.equals(this.key, that.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hashCode(key) + Long.hashCode(packets);
+    }
+
+    @Override
+    public String toString() {
+        return "HeavyHitter{" +
+            "key=" + key +
+            ", packets=" + packets +
+            '}';
+    }
+}
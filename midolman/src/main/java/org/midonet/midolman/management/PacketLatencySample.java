@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.management;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A packet sampled by the packet latency trace, with the time in nanoseconds
+ * the packet spent in each stage of the packet pipeline. The total time
+ * spans from the upcall until the datapath flow was written, and the
+ * postponed device is the reason of the last postponement, if any.
+ */
+public class PacketLatencySample {
+
+    private final long cookie;
+    private final String flowMatch;
+    private final int runs;
+    private final long totalNanos;
+    private final long ringWaitNanos;
+    private final long simulationNanos;
+    private final long postponedNanos;
+    private final String postponedOn;
+    private final long translationNanos;
+    private final long handoffNanos;
+    private final long flowWriteNanos;
+
+    @ConstructorProperties({"cookie", "flowMatch", "runs", "totalNanos",
+                            "ringWaitNanos", "simulationNanos",
+                            "postponedNanos", "postponedOn",
+                            "translationNanos", "handoffNanos",
+                            "flowWriteNanos"})
+    public PacketLatencySample(long cookie, String flowMatch, int runs,
+                               long totalNanos, long ringWaitNanos,
+                               long simulationNanos, long postponedNanos,
+                               String postponedOn, long translationNanos,
+                               long handoffNanos, long flowWriteNanos) {
+        this.cookie = cookie;
+        this.flowMatch = flowMatch;
+        this.runs = runs;
+        this.totalNanos = totalNanos;
+        this.ringWaitNanos = ringWaitNanos;
+        this.simulationNanos = simulationNanos;
+        this.postponedNanos = postponedNanos;
+        this.postponedOn = postponedOn;
+        this.translationNanos = translationNanos;
+        this.handoffNanos = handoffNanos;
+        this.flowWriteNanos = flowWriteNanos;
+    }
+
+    public long getCookie() {
+        return cookie;
+    }
+
+    public String getFlowMatch() {
+        return flowMatch;
+    }
+
+    public int getRuns() {
+        return runs;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getRingWaitNanos() {
+        return ringWaitNanos;
+    }
+
+    public long getSimulationNanos() {
+        return simulationNanos;
+    }
+
+    public long getPostponedNanos() {
+        return postponedNanos;
+    }
+
+    public String getPostponedOn() {
+        return postponedOn;
+    }
+
+    public long getTranslationNanos() {
+        return translationNanos;
+    }
+
+    public long getHandoffNanos() {
+        return handoffNanos;
+    }
+
+    public long getFlowWriteNanos() {
+        return flowWriteNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "PacketLatencySample{" +
+            "cookie=" + cookie +
+            ", flowMatch=" + flowMatch +
+            ", runs=" + runs +
+            ", totalNanos=" + totalNanos +
+            ", ringWaitNanos=" + ringWaitNanos +
+            ", simulationNanos=" + simulationNanos +
+            ", postponedNanos=" + postponedNanos +
+            ", postponedOn=" + postponedOn +
+            ", translationNanos=" + translationNanos +
+            ", handoffNanos=" + handoffNanos +
+            ", flowWriteNanos=" + flowWriteNanos +
+            '}';
+    }
+}
@@ -38,6 +38,7 @@ import org.midonet.midolman.host.services.HostService;
 import org.midonet.midolman.host.services.TcRequestHandler;
 import org.midonet.midolman.management.JmxConnectorServer;
 import org.midonet.midolman.management.SimpleHTTPServerService;
+import org.midonet.midolman.monitoring.RuleCountersPublisher;
 import org.midonet.midolman.state.PeerResolver;
 import org.midonet.midolman.topology.VirtualToPhysicalMapper;
 import org.midonet.midolman.topology.VirtualTopology;
@@ -96,6 +97,9 @@ public class MidolmanService extends AbstractService {
     @Inject(optional = true)
     Insights insights;
 
+    @Inject(optional = true)
+    RuleCountersPublisher ruleCountersPublisher;
+
     @Inject(optional = true)
     JmxConnectorServer jmxConnectorService;
 
@@ -208,6 +212,8 @@ public class MidolmanService extends AbstractService {
             services.add(statsHttpService);
         if (insights != null)
             services.add(insights);
+        if (ruleCountersPublisher != null)
+            services.add(ruleCountersPublisher);
         if (jmxConnectorService != null)
             services.add(jmxConnectorService);
         return services;
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.state
+
+import java.util.UUID
+
+import scala.util.control.NonFatal
+
+import com.google.protobuf.TextFormat
+
+import rx.Observable
+
+import org.midonet.cluster.data.storage.{SingleValueKey, StateKey, StateResult, StateStorage}
+import org.midonet.cluster.models.State
+import org.midonet.cluster.models.Topology.Rule
+import org.midonet.cluster.services.MidonetBackend.CountersKey
+import org.midonet.util.functors._
+
+object RuleCountersStorage {
+
+    final val NoCounters = State.RuleCounters.getDefaultInstance
+
+    implicit def asRuleCounters(store: StateStorage): RuleCountersStorage = {
+        new RuleCountersStorage(store)
+    }
+
+    /**
+      * Returns the rule counters stored in the given state key, or empty
+      * counters if the key has no value.
+      */
+    def countersOf(key: StateKey): State.RuleCounters = key match {
+        case SingleValueKey(_, Some(value), _) =>
+            try {
+                val builder = State.RuleCounters.newBuilder()
+                TextFormat.merge(value, builder)
+                builder.build()
+            } catch {
+                case NonFatal(_) => NoCounters
+            }
+        case _ => NoCounters
+    }
+
+}
+
+/**
+ * A wrapper class around the [[StateStorage]] with utility methods for the
+ * packet and byte counters of the rules, which each agent publishes for the
+ * flows it has installed.
+ */
+class RuleCountersStorage(val store: StateStorage) extends AnyVal {
+
+    /**
+      * Sets the counters of the given rule at the current host.
+      */
+    def setRuleCounters(ruleId: UUID, packets: Long, bytes: Long)
+    : Observable[StateResult] = {
+        val counters = State.RuleCounters.newBuilder()
+                                         .setPackets(packets)
+                                         .setBytes(bytes)
+                                         .build()
+        store.addValue(classOf[Rule], ruleId, CountersKey, counters.toString)
+    }
+
+    /**
+      * Gets the counters of the specified rule at the given host.
+      */
+    def ruleCounters(ruleId: UUID, hostId: UUID)
+    : Observable[State.RuleCounters] = {
+        store.getKey(hostId.toString, classOf[Rule], ruleId, CountersKey)
+             .map[State.RuleCounters](makeFunc1(RuleCountersStorage.countersOf))
+    }
+
+}
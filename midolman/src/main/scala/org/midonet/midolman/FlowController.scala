@@ -16,7 +16,7 @@
 
 package org.midonet.midolman
 
-import java.util.ArrayList
+import java.util.{ArrayDeque, ArrayList, UUID}
 
 import org.jctools.queues.SpscArrayQueue
 
@@ -40,6 +40,7 @@ import org.midonet.util.concurrent.{DisruptorBackChannel, NanoClock}
 object FlowController {
     val NoCallbacks = new ArrayList[CallbackSpec]()
     val NoTags = new ArrayList[FlowTag]()
+    val NoRules = new ArrayList[UUID]()
     private[midolman] val IndexShift = 28 // Leave 4 bits for the work ID
     private[midolman] val IndexMask = (1 << IndexShift) - 1
     private[midolman] val MaxTableSize = IndexMask + 1
@@ -159,21 +160,40 @@ class FlowTablePreallocationImpl(config: MidolmanConfig)
 
 trait FlowController extends DisruptorBackChannel {
     def addFlow(fmatch: FlowMatch, flowTags: ArrayList[FlowTag],
+                flowRules: ArrayList[UUID],
                 removeCallbacks: ArrayList[CallbackSpec],
                 expiration: Expiration): ManagedFlow
     def addRecircFlow(fmatch: FlowMatch,
                       recircMatch: FlowMatch,
                       flowTags: ArrayList[FlowTag],
+                      flowRules: ArrayList[UUID],
                       removeCallbacks: ArrayList[CallbackSpec],
                       expiration: Expiration): ManagedFlow
     def removeDuplicateFlow(mark: Int): Unit
     def flowExists(mark: Int): Boolean
 
     def invalidateFlowsFor(tag: FlowTag): Unit
+
+    /**
+     * Schedules the invalidation of the flows tagged with the given tag. The
+     * scheduled tags are coalesced and invalidated incrementally by
+     * `processInvalidations`, such that a large invalidation does not stall
+     * the packet processing.
+     */
+    def scheduleInvalidation(tag: FlowTag): Unit
+
+    /**
+     * Invalidates the scheduled tags and deletes the invalidated flows from
+     * the datapath, for at most the configured flow invalidation budget.
+     */
+    def processInvalidations(): Unit
 }
 
 trait FlowControllerDeleter {
-    def removeFlowFromDatapath(flowMatch: FlowMatch, sequence: Long): Unit
+    def removeFlowFromDatapath(flowId: Long, flowMatch: FlowMatch,
+                               sequence: Long): Unit
+    def tryRemoveFlowFromDatapath(flowId: Long, flowMatch: FlowMatch,
+                                  sequence: Long): Boolean
     def processCompletedFlowOperations(): Unit
     def shouldProcess: Boolean
 }
@@ -198,7 +218,17 @@ class FlowControllerImpl(config: MidolmanConfig,
     private var mask = indexToFlow.length - 1
 
     private val managedFlowPool = preallocation.takeManagedFlowPool()
-    private val tagIndexer = new FlowTagIndexer
+    private val tagIndexer: FlowTagIndex =
+        if (config.primitiveFlowTagIndex) {
+            new PrimitiveFlowTagIndexer(new PrimitiveFlowTagIndexer.FlowLookup {
+                override def flowOf(id: ManagedFlow.FlowId): ManagedFlowImpl = {
+                    val flow = indexToFlow((id & mask).toInt)
+                    if ((flow ne null) && flow.id == id) flow else null
+                }
+            })
+        } else {
+            new FlowTagIndexer
+        }
     private val expirationIndexer = new FlowExpirationIndexer(preallocation)
     private val deleter = new FlowControllerDeleterImpl(flowProcessor,
                                                         datapathId,
@@ -208,11 +238,20 @@ class FlowControllerImpl(config: MidolmanConfig,
     private val oversubscriptionFlowPool = new NoOpPool[ManagedFlowImpl](
         new ManagedFlowImpl(_))
 
+    private val invalidationBudget = config.flowInvalidationBudget
+    private val expirationBatchSize = config.expirationBatchSize
+    private val invalidations = new FlowInvalidationQueue
+    // The invalidated flows that are no longer indexed, but still have to be
+    // deleted from the datapath. The flows are referenced until their
+    // deletion is published to the flow processor.
+    private val pendingDeletions = new ArrayDeque[ManagedFlowImpl]()
+
     override def addFlow(fmatch: FlowMatch, flowTags: ArrayList[FlowTag],
+                         flowRules: ArrayList[UUID],
                          removeCallbacks: ArrayList[CallbackSpec],
                          expiration: Expiration): ManagedFlow = {
         val flow = takeFlow()
-        flow.reset(fmatch, flowTags, removeCallbacks,
+        flow.reset(fmatch, flowTags, flowRules, removeCallbacks,
                    0L, expiration, clock.tick)
         registerFlow(flow)
         flow
@@ -221,15 +260,16 @@ class FlowControllerImpl(config: MidolmanConfig,
     override def addRecircFlow(fmatch: FlowMatch,
                                recircMatch: FlowMatch,
                                flowTags: ArrayList[FlowTag],
+                               flowRules: ArrayList[UUID],
                                removeCallbacks: ArrayList[CallbackSpec],
                                expiration: Expiration): ManagedFlow = {
         val flow = takeFlow()
         // Since linked flows are deleted later, and we have to delete
         // the inner packets flow first, make that the main ManagedFlow
         val outerFlow = takeFlow()
-        outerFlow.reset(fmatch, NoTags, NoCallbacks,
+        outerFlow.reset(fmatch, NoTags, NoRules, NoCallbacks,
                         0L, expiration, clock.tick, flow)
-        flow.reset(recircMatch, flowTags, removeCallbacks,
+        flow.reset(recircMatch, flowTags, flowRules, removeCallbacks,
                    0L, expiration, clock.tick, outerFlow)
         registerFlow(flow)
         flow
@@ -254,7 +294,8 @@ class FlowControllerImpl(config: MidolmanConfig,
             forgetFlow(flow)
             var flowsRemoved = 1
             if (flow.linkedFlow ne null) {
-                deleter.removeFlowFromDatapath(flow.linkedFlow.flowMatch,
+                deleter.removeFlowFromDatapath(flow.linkedFlow.id,
+                                               flow.linkedFlow.flowMatch,
                                                flow.linkedFlow.sequence)
                 forgetFlow(flow.linkedFlow)
                 flowsRemoved += 1
@@ -268,18 +309,28 @@ class FlowControllerImpl(config: MidolmanConfig,
         (flow ne null) && flow.mark == mark
     }
 
-    override def shouldProcess = deleter.shouldProcess()
+    override def shouldProcess =
+        deleter.shouldProcess() || !invalidations.isEmpty ||
+        !pendingDeletions.isEmpty
 
     override def process(): Unit = {
         deleter.processCompletedFlowOperations()
         val tick = clock.tick
+        // Expire a bounded number of flows, leaving the rest for the next
+        // rounds, such that a burst of expirations does not stall the upcalls.
+        var expired = 0
         var flowId = expirationIndexer.pollForExpired(tick)
         while (flowId != ManagedFlow.NoFlow) {
             val flow = indexToFlow((flowId & mask).toInt)
             if (flow != null && flow.id == flowId) {
                 removeFlow(flow)
             }
-            flowId = expirationIndexer.pollForExpired(tick)
+            expired += 1
+            flowId = if (expired < expirationBatchSize) {
+                expirationIndexer.pollForExpired(tick)
+            } else {
+                ManagedFlow.NoFlow
+            }
         }
     }
 
@@ -290,6 +341,66 @@ class FlowControllerImpl(config: MidolmanConfig,
         }
     }
 
+    override def scheduleInvalidation(tag: FlowTag): Unit = {
+        if (invalidations.add(tag)) {
+            metrics.flowInvalidationBacklog(invalidations.size,
+                                            pendingDeletions.size)
+        }
+    }
+
+    override def processInvalidations(): Unit = {
+        if (invalidations.isEmpty && pendingDeletions.isEmpty) {
+            return
+        }
+        val start = clock.tick
+        val deadline = start + invalidationBudget
+        var blocked = false
+        do {
+            if (!pendingDeletions.isEmpty) {
+                val flow = pendingDeletions.peek()
+                // Stop when the flow processor is full or the flow has not
+                // been created yet, and retry on the next round.
+                if (deleter.tryRemoveFlowFromDatapath(flow.id, flow.flowMatch,
+                                                      flow.sequence)) {
+                    pendingDeletions.poll()
+                    flow.unref()
+                } else {
+                    blocked = true
+                }
+            } else {
+                forgetFlowsFor(invalidations.poll())
+            }
+        } while (!blocked &&
+                 (!pendingDeletions.isEmpty || !invalidations.isEmpty) &&
+                 clock.tick < deadline)
+        metrics.flowInvalidationBacklog(invalidations.size,
+                                        pendingDeletions.size)
+        metrics.flowInvalidationTime(clock.tick - start)
+    }
+
+    /**
+     * Forgets the flows tagged with the given tag, and queues them for their
+     * deletion from the datapath, deleting the inner flow of a recirculated
+     * flow first.
+     */
+    private def forgetFlowsFor(tag: FlowTag): Unit = {
+        val iter = tagIndexer.invalidateFlowsFor(tag)
+        while (iter.hasNext()) {
+            val flow = iter.next()
+            flow.ref()
+            pendingDeletions.add(flow)
+            forgetFlow(flow)
+            var flowsRemoved = 1
+            if (flow.linkedFlow ne null) {
+                flow.linkedFlow.ref()
+                pendingDeletions.add(flow.linkedFlow)
+                forgetFlow(flow.linkedFlow)
+                flowsRemoved += 1
+            }
+            metrics.dpFlowsRemovedMetric.mark(flowsRemoved)
+        }
+    }
+
     private def registerFlow(flow: ManagedFlowImpl): Unit = {
         indexFlow(flow)
         expirationIndexer.enqueueFlowExpiration(flow.id,
@@ -297,7 +408,7 @@ class FlowControllerImpl(config: MidolmanConfig,
                                                 flow.expirationType)
         tagIndexer.indexFlowTags(flow)
 
-        meters.trackFlow(flow.flowMatch, flow.tags)
+        meters.trackFlow(flow.id, flow.flowMatch, flow.tags, flow.rules)
         insights.flowAdded(flow.flowMatch, flow.tags,
                            flow.absoluteExpirationNanos)
         var flowsAdded = 1
@@ -309,11 +420,12 @@ class FlowControllerImpl(config: MidolmanConfig,
     }
 
     private def removeFlow(flow: ManagedFlowImpl): Unit = {
-        deleter.removeFlowFromDatapath(flow.flowMatch, flow.sequence)
+        deleter.removeFlowFromDatapath(flow.id, flow.flowMatch, flow.sequence)
         forgetFlow(flow)
         var flowsRemoved = 1
         if (flow.linkedFlow ne null) {
-            deleter.removeFlowFromDatapath(flow.linkedFlow.flowMatch,
+            deleter.removeFlowFromDatapath(flow.linkedFlow.id,
+                                           flow.linkedFlow.flowMatch,
                                            flow.linkedFlow.sequence)
             forgetFlow(flow.linkedFlow)
             flowsRemoved += 1
@@ -368,10 +480,11 @@ class FlowControllerDeleterImpl(flowProcessor: FlowProcessor,
     private val flowRemoveCommandsToRetry = new ArrayList[FlowOperation](
         flowProcessor.capacity)
 
-    override def removeFlowFromDatapath(flowMatch: FlowMatch,
+    override def removeFlowFromDatapath(flowId: Long,
+                                        flowMatch: FlowMatch,
                                         sequence: Long): Unit = {
         log.debug(s"Removing flow $flowMatch($sequence) from datapath")
-        val flowOp = takeFlowOperation(flowMatch, sequence)
+        val flowOp = takeFlowOperation(flowId, flowMatch, sequence)
         // Spin while we try to eject the flow. This can happen if we invalidated
         // a flow so close to its creation that it has not been created yet.
         while (!flowProcessor.tryEject(sequence, datapathId,
@@ -381,6 +494,27 @@ class FlowControllerDeleterImpl(flowProcessor: FlowProcessor,
         }
     }
 
+    override def tryRemoveFlowFromDatapath(flowId: Long,
+                                           flowMatch: FlowMatch,
+                                           sequence: Long): Boolean = {
+        var flowOp = pooledFlowOperations.take
+        if (flowOp eq null) {
+            processCompletedFlowOperations()
+            flowOp = pooledFlowOperations.take
+            if (flowOp eq null) {
+                return false
+            }
+        }
+        log.debug(s"Removing flow $flowMatch($sequence) from datapath")
+        flowOp.reset(flowMatch, sequence, retries = 10, flowId)
+        if (flowProcessor.tryEject(sequence, datapathId, flowMatch, flowOp)) {
+            true
+        } else {
+            flowOp.clear()
+            false
+        }
+    }
+
     override def processCompletedFlowOperations(): Unit = {
         var req: FlowOperation = null
         while ({ req = completedFlowOperations.poll(); req } ne null) {
@@ -420,7 +554,7 @@ class FlowControllerDeleterImpl(flowProcessor: FlowProcessor,
                 log.error(s"Failed to delete ${req.flowMatch}", req.failure)
         }
         insights.flowDeleted(req.flowMatch, null)
-        meters.forgetFlow(req.flowMatch)
+        meters.forgetFlow(req.flowId, req.flowMatch)
         req.clear()
     }
 
@@ -435,8 +569,8 @@ class FlowControllerDeleterImpl(flowProcessor: FlowProcessor,
         val flowMetadata = req.flowMetadata
         val flowMatch = req.flowMatch
         log.debug(s"DP confirmed removal of ${req.flowMatch}")
-        meters.updateFlow(flowMatch, flowMetadata.getStats)
-        meters.forgetFlow(flowMatch)
+        meters.updateFlow(req.flowId, flowMatch, flowMetadata.getStats)
+        meters.forgetFlow(req.flowId, flowMatch)
         insights.flowDeleted(flowMatch, flowMetadata)
         req.clear()
     }
@@ -445,7 +579,8 @@ class FlowControllerDeleterImpl(flowProcessor: FlowProcessor,
         override def shouldWakeUp() = completedFlowOperations.size > 0
     }
 
-    private def takeFlowOperation(flowMatch: FlowMatch,
+    private def takeFlowOperation(flowId: Long,
+                                  flowMatch: FlowMatch,
                                   sequence: Long): FlowOperation = {
         var flowOp: FlowOperation = null
         while ({ flowOp = pooledFlowOperations.take; flowOp } eq null) {
@@ -455,7 +590,7 @@ class FlowControllerDeleterImpl(flowProcessor: FlowProcessor,
                 flowOperationParkable.park()
             }
         }
-        flowOp.reset(flowMatch, sequence, retries = 10)
+        flowOp.reset(flowMatch, sequence, retries = 10, flowId)
         flowOp
     }
 }
@@ -30,6 +30,7 @@ import org.midonet.odp.flows._
 import org.midonet.packets._
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.sdn.flows.VirtualAction.{Decap, Encap}
+import org.midonet.util.concurrent.NanoClock
 
 object FlowTranslator {
     val NotADpPort: JInteger = -1
@@ -59,6 +60,15 @@ trait FlowTranslator {
      * FlowActions expressed in physical references.
      */
     def translateActions(context: PacketContext): Unit = {
+        val startNanos = NanoClock.DEFAULT.tick
+        try {
+            translate(context)
+        } finally {
+            context.translationNanos += NanoClock.DEFAULT.tick - startNanos
+        }
+    }
+
+    private def translate(context: PacketContext): Unit = {
         context.outPorts.clear()
         var i = 0
         val virtualActions = context.virtualFlowActions
@@ -53,7 +53,7 @@ object HostRequestProxy {
 
         def merge(other: FlowStateBatch): FlowStateBatch = {
             strongConnTrack.addAll(other.strongConnTrack)
-            weakConnTrack.addAll(other.strongConnTrack)
+            weakConnTrack.addAll(other.weakConnTrack)
             strongNat.putAll(other.strongNat)
             weakNat.putAll(other.weakNat)
             this
@@ -139,25 +139,28 @@ class HostRequestProxy(hostId: UUID,
             }
         }
 
-    private def requestStateForPort(portInfo: (UUID, UUID)): Future[FlowStateBatch] = {
+    /* Imports the flow state for a port in chunks as it is received from
+       the minion, and returns the number of imported flow state entries. */
+    private def requestStateForPort(portInfo: (UUID, UUID)): Future[Long] = {
         val (port, previousOwnerId) = portInfo
+        val importChunk = (batch: FlowStateBatch) => backChannel tell batch
 
         Future {
             if (previousOwnerId == null || previousOwnerId == hostId) {
                 log debug s"Requesting local flow state for port: $port"
-                tcpClient.internalFlowStateFrom(port)
+                tcpClient.streamInternalFlowState(port)(importChunk)
             } else {
                 log debug s"Requesting remote flow state for port: $port"
                 val ip = resolveHostIp(previousOwnerId)
 
                 ip match {
                     case Some(hostIp) =>
-                        tcpClient.remoteFlowStateFrom(hostIp, port)
+                        tcpClient.streamRemoteFlowState(hostIp, port)(importChunk)
                     case None =>
                         log.debug(
                             s"Host $previousOwnerId is not registered in" +
                             " any tunnel zone when trying to fetch flow state from it.")
-                        EmptyFlowStateBatch
+                        0L
                 }
             }
         }(tcpClientExecutionContext)
@@ -177,6 +180,18 @@ class HostRequestProxy(hostId: UUID,
                     log.warn(s"Failed to fetch state from $source: ${e.getMessage}")
             }(singleThreadExecutionContext)
 
+    private def streamStateForPorts(bindings: Map[UUID, UUID]): Future[Long] =
+        Future.sequence(bindings map requestStateForPort)
+            .map(_.sum)(singleThreadExecutionContext)
+            .andThen {
+                case Success(size) =>
+                    log.debug(s"Imported $size pieces of flow state for " +
+                              s"ports ${bindings.keySet} from local storage")
+                case Failure(e) =>
+                    log.warn("Failed to fetch state from local storage: " +
+                             s"${e.getMessage}")
+            }(singleThreadExecutionContext)
+
     private def mergedBatches(batches: Iterable[Future[FlowStateBatch]]) =
         Future.fold(batches)(EmptyFlowStateBatch) {
             (left: FlowStateBatch, right: FlowStateBatch) => left.merge(right)
@@ -221,8 +236,7 @@ class HostRequestProxy(hostId: UUID,
                 Future.sequence(Seq(
                     stateForPorts(ports, requestLegacyStateForPort,
                                   "legacy storage (Cassandra)"),
-                    stateForPorts(ports, requestStateForPort,
-                                  "local storage")))
+                    streamStateForPorts(ports)))
             })
 
         case OnCompleted =>
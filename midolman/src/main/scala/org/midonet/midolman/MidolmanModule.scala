@@ -47,7 +47,8 @@ import org.midonet.midolman.host.services.{HostService, QosService, TcRequestHan
 import org.midonet.midolman.io._
 import org.midonet.midolman.logging.rule.{DisruptorRuleLogEventChannel, RuleLogEventChannel}
 import org.midonet.midolman.logging.{FlowTracingAppender, FlowTracingSchema}
-import org.midonet.midolman.management.{JmxConnectorServer, MeteringHTTPHandler, SimpleHTTPServerService}
+import org.midonet.midolman.management.{HeavyHittersHTTPHandler, JmxConnectorServer, MeteringHTTPHandler, PacketLatencyHTTPHandler, SimpleHTTPServer, SimpleHTTPServerService}
+import org.midonet.midolman.monitoring.RuleCountersPublisher
 import org.midonet.midolman.monitoring.metrics.{DatapathMetrics, PacketExecutorMetrics}
 import org.midonet.midolman.openstack.metadata.{DatapathInterface, Plumber}
 import org.midonet.midolman.services._
@@ -160,6 +161,8 @@ class MidolmanModule(config: MidolmanConfig,
         val jmxServer = new JmxConnectorServer(config)
         bind(classOf[JmxConnectorServer]).toInstance(jmxServer)
 
+        bind(classOf[RuleCountersPublisher]).toInstance(ruleCountersPublisher())
+
         bind(classOf[FlowTracingAppender]).toInstance(flowTracingAppender())
 
         val allocator = natAllocator()
@@ -402,10 +405,17 @@ class MidolmanModule(config: MidolmanConfig,
                              tcRequestHandler: TcRequestHandler): QosService =
         QosService(scanner, hostId, tcRequestHandler)
 
+    protected def ruleCountersPublisher(): RuleCountersPublisher = {
+        new RuleCountersPublisher(backend.stateStore,
+                                  config.ruleCountersInterval)
+    }
+
     protected def statsHttpService(): SimpleHTTPServerService = {
         new SimpleHTTPServerService(
             config.statsHttpServerPort,
-                Lists.newArrayList(new MeteringHTTPHandler))
+                Lists.newArrayList[SimpleHTTPServer.Handler](
+                    new MeteringHTTPHandler, new HeavyHittersHTTPHandler,
+                    new PacketLatencyHTTPHandler))
     }
 
     protected def bindHostService(): Unit =
@@ -18,15 +18,22 @@ package org.midonet.midolman
 
 import java.util.concurrent.TimeUnit
 
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry.name
 import com.lmax.disruptor._
 
 import org.midonet.midolman.logging.MidolmanLogging
-import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.midolman.monitoring.metrics.{PacketPipelineGauge, PacketPipelineMetrics}
 import org.midonet.odp.Packet
 import org.midonet.Util
 
 trait PacketWorker {
     def submit(packet: Packet): Boolean
+
+    /**
+      * The number of packets submitted to this worker and not yet processed.
+      */
+    def backlog: Long = 0L
 }
 
 object DisruptorPacketWorker {
@@ -55,6 +62,13 @@ class DisruptorPacketWorker(packetWorkflow: PacketWorkflow,
         ringBuffer, ringBuffer.newBarrier(), packetWorkflow)
     ringBuffer.addGatingSequences(eventProcessor.getSequence())
 
+    metrics.registry.register(
+        name(classOf[PacketPipelineGauge], metrics.workerTag, "packetQueue",
+             "backlog"),
+        new Gauge[Long] {
+            override def getValue: Long = backlog
+        })
+
     override def submit(packet: Packet): Boolean = {
         try {
             val seq = ringBuffer.tryNext()
@@ -73,6 +87,9 @@ class DisruptorPacketWorker(packetWorkflow: PacketWorkflow,
         }
     }
 
+    override def backlog: Long =
+        ringBuffer.getBufferSize - ringBuffer.remainingCapacity
+
     def isRunning() = eventProcessor.isRunning
 
     def shutdown(): Unit =
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.Arrays
+
+import scala.collection.IndexedSeq
+
+import com.codahale.metrics.Meter
+
+import org.midonet.midolman.config.WorkStealingConfig
+import org.midonet.midolman.logging.MidolmanLogging
+
+object PacketWorkerBalancer {
+    // The number of connection buckets, must be a power of two.
+    val Buckets = 1 << 16
+}
+
+/**
+ * Selects the packet worker for every upcall when work stealing is enabled.
+ *
+ * Connections are grouped into buckets by their connection hash, and every
+ * bucket sticks to a worker for as long as it keeps receiving packets. A
+ * bucket that has been idle for the affinity timeout has no packets left in
+ * the ring buffers nor postponed in the waiting room of its worker, so it may
+ * move to another worker without reordering the packets of its connections:
+ * the connections either start on the new worker or find their existing flow
+ * state through the sharded state tables, as the return flows do. For this
+ * reason, the affinity timeout is at least the time a postponed packet may
+ * wait for its simulation, `postponeNanos`. An idle bucket is assigned to its
+ * home worker among the active workers, unless the backlog of that worker
+ * exceeds the steal threshold, in which case it is stolen by the active
+ * worker with the smallest backlog.
+ *
+ * The number of active workers, which receive the idle buckets, scales
+ * between the configured minimum and the number of workers according to the
+ * mean backlog of the active workers.
+ *
+ * This class is not thread-safe: it must only be used by the thread that
+ * reads the upcalls.
+ */
+final class PacketWorkerBalancer(workers: IndexedSeq[PacketWorker],
+                                 config: WorkStealingConfig,
+                                 postponeNanos: Long,
+                                 steals: Meter,
+                                 startNanos: Long)
+    extends MidolmanLogging {
+
+    import PacketWorkerBalancer._
+
+    override def logSource = "org.midonet.packet-worker.balancer"
+
+    private val affinityNanos = Math.max(config.affinityTimeout, postponeNanos)
+    private val scaleNanos = config.scaleInterval
+    private val stealBacklog = config.stealBacklog
+    private val scaleUpBacklog = config.scaleUpBacklog
+    private val scaleDownBacklog = config.scaleDownBacklog
+    private val minWorkers =
+        Math.max(Math.min(config.minThreads, workers.length), 1)
+
+    private val bucketWorkers = new Array[Int](Buckets)
+    private val bucketExpirations = new Array[Long](Buckets)
+    Arrays.fill(bucketExpirations, startNanos)
+
+    private var active = minWorkers
+    private var nextScaleNanos = startNanos + scaleNanos
+
+    def activeWorkers: Int = active
+
+    /**
+     * Returns the worker for a packet with the given connection hash, that
+     * was received at the given time.
+     */
+    def select(hash: Int, nanos: Long): Int = {
+        if (nanos - nextScaleNanos >= 0) {
+            scale(nanos)
+        }
+        val bucket = (hash ^ (hash >>> 16)) & (Buckets - 1)
+        var worker = bucketWorkers(bucket)
+        if (nanos - bucketExpirations(bucket) >= 0) {
+            worker = (hash & Int.MaxValue) % active
+            val backlog = workers(worker).backlog
+            if (backlog > stealBacklog) {
+                val thief = leastLoaded()
+                if (workers(thief).backlog < backlog) {
+                    worker = thief
+                    steals.mark()
+                }
+            }
+            bucketWorkers(bucket) = worker
+        }
+        bucketExpirations(bucket) = nanos + affinityNanos
+        worker
+    }
+
+    private def leastLoaded(): Int = {
+        var worker = 0
+        var min = Long.MaxValue
+        var index = 0
+        while (index < active) {
+            val backlog = workers(index).backlog
+            if (backlog < min) {
+                min = backlog
+                worker = index
+            }
+            index += 1
+        }
+        worker
+    }
+
+    private def scale(nanos: Long): Unit = {
+        nextScaleNanos = nanos + scaleNanos
+        var total = 0L
+        var index = 0
+        while (index < active) {
+            total += workers(index).backlog
+            index += 1
+        }
+        val mean = total / active
+        if (mean > scaleUpBacklog && active < workers.length) {
+            active += 1
+            log.debug(s"Mean backlog $mean: scaling up to $active workers")
+        } else if (mean < scaleDownBacklog && active > minWorkers) {
+            active -= 1
+            log.debug(s"Mean backlog $mean: scaling down to $active workers")
+        }
+    }
+}
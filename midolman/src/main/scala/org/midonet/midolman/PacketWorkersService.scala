@@ -90,20 +90,24 @@ class PacketWorkersServiceImpl(config: MidolmanConfig,
         new OffHeapShardedFlowStateTable[ConnTrackKey, ConnTrackValue](
             clock, new ConnTrackKeySerializer, new ConnTrackValueSerializer)
     } else {
-        new OnHeapShardedFlowStateTable[ConnTrackKey, ConnTrackValue](clock)
+        new OnHeapShardedFlowStateTable[ConnTrackKey, ConnTrackValue](
+            clock, config.expirationBatchSize)
     }
     val natStateTable = if (config.offHeapTables) {
         new OffHeapShardedFlowStateTable[NatKey, NatBinding](
             clock, new NatKeySerializer, new NatBindingSerializer)
     } else {
-        new OnHeapShardedFlowStateTable[NatKey, NatBinding](clock)
+        new OnHeapShardedFlowStateTable[NatKey, NatBinding](
+            clock, config.expirationBatchSize)
     }
     val natLeaser: NatLeaser = new NatLeaser {
         val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
         val allocator = natBlockAllocator
         val clock = PacketWorkersServiceImpl.this.clock
+        override val spareBlocks = config.natSpareBlocks
     }
-    val traceStateTable = new OnHeapShardedFlowStateTable[TraceKey, TraceContext](clock)
+    val traceStateTable = new OnHeapShardedFlowStateTable[TraceKey, TraceContext](
+        clock, config.expirationBatchSize)
 
     val supervisorThread = new Thread(this, "packet-worker-supervisor")
     supervisorThread.setDaemon(true)
@@ -38,7 +38,7 @@ import org.midonet.midolman.datapath.{DatapathChannel, FlowProcessor}
 import org.midonet.midolman.flows.FlowExpirationIndexer.Expiration
 import org.midonet.midolman.flows.{FlowExpirationIndexer, NativeFlowController}
 import org.midonet.midolman.logging.{FlowTracingContext, MidolmanLogging}
-import org.midonet.midolman.management.{Metering, PacketTracing}
+import org.midonet.midolman.management.{Metering, PacketLatency, PacketTracing}
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.monitoring.{FlowRecorder, MeterRegistry}
 import org.midonet.midolman.openstack.metadata.MetadataServiceWorkflow
@@ -65,6 +65,9 @@ import org.midonet.util.concurrent._
 import org.midonet.util.logging.Logger
 
 object PacketWorkflow {
+    // The time a postponed packet waits for its simulation to complete.
+    val SimulationExpireMillis = 5000L
+
     sealed class PacketRef(var packet: Packet)
 
     object PacketRefFactory extends EventFactory[PacketRef] {
@@ -252,16 +255,17 @@ class PacketWorkflow(
     override def logSource = s"org.midonet.packet-worker.packet-workflow-$workerId"
     val resultLogger = Logger(LoggerFactory.getLogger("org.midonet.packets.results"))
 
-    protected val simulationExpireMillis = 5000L
+    protected val simulationExpireMillis = SimulationExpireMillis
     private val maxPooledContexts = config.maxPooledContexts
 
     protected val waitingRoom = new WaitingRoom[PacketContext](
-        (simulationExpireMillis millis).toNanos)
+        (simulationExpireMillis millis).toNanos, config.expirationBatchSize)
 
     private val contextPool = new ArrayDeque[PacketContext](maxPooledContexts)
     private val processingRoom = new ArrayDeque[PacketContext]()
 
     private var lastExpiration = System.nanoTime()
+    private var batchStartNanos = 0L
     private val maxWithoutExpiration = (5 seconds) toNanos
 
     protected val datapathId = dpState.datapath.getIndex
@@ -271,6 +275,7 @@ class PacketWorkflow(
         preallocation.takeMeterRegistry()
     }
     Metering.registerAsMXBean(meters)
+    PacketLatency.registerAsMXBean()
     protected val flowController: FlowController = if (config.offHeapTables) {
         new NativeFlowController(config, clock, flowProcessor,
                                  datapathId, workerId, metrics,
@@ -296,7 +301,11 @@ class PacketWorkflow(
             flowController,
             config, cbRegistry)
 
-    protected val arpBroker = new ArpRequestBroker(config, backChannel, clock)
+    protected val arpBroker = new ArpRequestBroker(config, backChannel, clock,
+                                                   metrics)
+
+    private val dhcpReplyCacheEnabled = config.dhcpReplyCache
+    private val dhcpReplies = new DhcpReplyCache
 
     private val invalidateExpiredConnTrackKeys =
         new Reducer[ConnTrackKey, ConnTrackValue, Unit]() {
@@ -315,9 +324,14 @@ class PacketWorkflow(
 
     override def onEvent(event: PacketRef, sequence: Long,
                          endOfBatch: Boolean): Unit = {
+        if (batchStartNanos == 0L) {
+            batchStartNanos = System.nanoTime()
+        }
         handlePacket(event.packet)
         if (endOfBatch) {
             process()
+            metrics.workerBusy(System.nanoTime() - batchStartNanos)
+            batchStartNanos = 0L
         }
     }
 
@@ -346,7 +360,7 @@ class PacketWorkflow(
         val InvalidateFlows(id, added, deleted) = msg
 
         for (route <- deleted) {
-            flowController.invalidateFlowsFor(FlowTagger.tagForRoute(route))
+            flowController.scheduleInvalidation(FlowTagger.tagForRoute(route))
         }
 
         for (route <- added) {
@@ -358,7 +372,7 @@ class PacketWorkflow(
             while (deletions.hasNext) {
                 val ip = IPv4Addr.fromInt(deletions.next)
                 log.debug(s"Got the following destination to invalidate $ip")
-                flowController.invalidateFlowsFor(
+                flowController.scheduleInvalidation(
                     FlowTagger.tagForDestinationIp(id, ip))
             }
         }
@@ -366,7 +380,10 @@ class PacketWorkflow(
 
     private def handle(msg: BackChannelMessage): Unit = msg match {
         case m: InvalidateFlows => invalidateRoutedFlows(m)
-        case tag: FlowTag => flowController.invalidateFlowsFor(tag)
+        case tag: FlowTag =>
+            flowController.scheduleInvalidation(tag)
+            if (dhcpReplyCacheEnabled)
+                dhcpReplies.invalidate(tag)
         case RestartWorkflow(cookie, pktCtx, error) => restart(cookie, pktCtx, error)
         case m: GeneratedPacket => startWorkflow(generatedPacketContext(m))
         case m: FlowStateBatch => replicator.importFromStorage(m)
@@ -378,6 +395,8 @@ class PacketWorkflow(
         flowController.process()
         while (backChannel.hasMessages)
             handle(backChannel.poll())
+        flowController.processInvalidations()
+        meters.ruleCounters.processRemovals()
         connTrackStateTable.expireIdleEntries((), invalidateExpiredConnTrackKeys)
         natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
         natLeaser.obliterateUnusedBlocks()
@@ -439,16 +458,36 @@ class PacketWorkflow(
         while (processingRoom.peek() != null &&
                    processingRoom.peek().isProcessed) {
             metrics.contextsBeingProcessed.dec()
-            returnContext(processingRoom.remove())
+            val context = processingRoom.remove()
+            if (context.ingressed && context.packet.startTimeNanos > 0)
+                recordStages(context)
+            returnContext(context)
         }
 
+    /**
+     * Records the time spent by a processed packet in each stage of the
+     * pipeline. This is done once the datapath flow is written, such that
+     * the flow write time set by the flow processor is visible.
+     */
+    private def recordStages(context: PacketContext): Unit = {
+        val ringWait = context.workflowStartNanos - context.packet.startTimeNanos
+        val simulation = context.simulationNanos - context.translationNanos
+        metrics.packetStages(ringWait, simulation, context.postponedNanos,
+                             context.translationNanos, context.handoffNanos,
+                             context.flowWriteNanos)
+        PacketLatency.record(context, ringWait, simulation)
+    }
+
     /**
      * Deal with an incomplete workflow that could not complete because it found
      * a NotYet on the way.
      */
-    private def postponeOn(pktCtx: PacketContext, f: Future[_]): Unit = {
+    private def postponeOn(pktCtx: PacketContext, f: Future[_],
+                           reason: String): Unit = {
         val cookie = pktCtx.cookie
         pktCtx.postpone()
+        pktCtx.postponedSinceNanos = NanoClock.DEFAULT.tick
+        pktCtx.postponedOn = reason
         f.onComplete { res =>
             val error = res match {
                 case Failure(ex) => ex
@@ -465,6 +504,7 @@ class PacketWorkflow(
     private def restart(cookie: Long, pktCtx: PacketContext, error: Throwable): Unit =
         if (pktCtx.cookie == cookie && pktCtx.idle) {
             metrics.packetsOnHold.dec()
+            resume(pktCtx)
             pktCtx.log.debug("Restarting workflow")
             MDC.put("cookie", pktCtx.cookieStr)
             if (error eq null) {
@@ -477,8 +517,17 @@ class PacketWorkflow(
         } // Else the packet may have already been expired and dropped
 
     private val giveUpWorkflow: PacketContext => Unit = context =>
-        if (context.idle)
+        if (context.idle) {
+            resume(context)
             drop(context)
+        }
+
+    private def resume(context: PacketContext): Unit =
+        if (context.postponedSinceNanos > 0) {
+            context.postponedNanos +=
+                NanoClock.DEFAULT.tick - context.postponedSinceNanos
+            context.postponedSinceNanos = 0L
+        }
 
     private def drop(context: PacketContext): Unit =
         try {
@@ -507,7 +556,7 @@ class PacketWorkflow(
         handoff(pktCtx)
 
         if (pktCtx.ingressed) {
-            val latency = NanoClock.DEFAULT.tick - pktCtx.packet.startTimeNanos
+            val latency = pktCtx.handedOffAtNanos - pktCtx.packet.startTimeNanos
             metrics.packetsProcessed.update(latency.toInt,
                                             TimeUnit.NANOSECONDS)
         }
@@ -516,13 +565,17 @@ class PacketWorkflow(
 
     protected def recordPacket(pktCtx: PacketContext, simRes: SimulationResult): Unit = {
         pktCtx.log.debug("Recording packet")
-        meters.recordPacket(pktCtx.packet.packetLen, pktCtx.flowTags)
+        meters.recordPacket(pktCtx.packet.packetLen, pktCtx.flowTags,
+                            pktCtx.matchedRules)
         insights.flowSimulation(pktCtx, simRes)
         flowRecorder.record(pktCtx, simRes)
     }
 
     private def handoff(context: PacketContext): Unit = {
+        val startNanos = NanoClock.DEFAULT.tick
         val seq = dpChannel.handoff(context)
+        context.handedOffAtNanos = NanoClock.DEFAULT.tick
+        context.handoffNanos = context.handedOffAtNanos - startNanos
         if (context.flow ne null) {
             context.flow.assignSequence(seq)
         }
@@ -551,6 +604,8 @@ class PacketWorkflow(
         try {
             MDC.put("cookie", context.cookieStr)
             context.log.debug(s"New cookie for new match ${context.origMatch}")
+            if (context.ingressed)
+                context.workflowStartNanos = NanoClock.DEFAULT.tick
             runWorkflow(context)
         } finally {
             if (context.ingressed)
@@ -561,7 +616,7 @@ class PacketWorkflow(
 
     protected def runWorkflow(pktCtx: PacketContext): Unit =
         try {
-            complete(pktCtx, start(pktCtx))
+            complete(pktCtx, simulate(pktCtx))
             flushTransactions()
         } catch {
             case TraceRequiredException =>
@@ -572,7 +627,7 @@ class PacketWorkflow(
                 runWorkflow(pktCtx)
             case NotYetException(f, msg) =>
                 pktCtx.log.debug(s"Postponing simulation because: $msg")
-                postponeOn(pktCtx, f)
+                postponeOn(pktCtx, f, msg)
             case NonFatal(ex) =>
                 handleErrorOn(pktCtx, ex, pktCtx.runs > 1)
         }
@@ -595,6 +650,15 @@ class PacketWorkflow(
         traceStateTx.flush()
     }
 
+    private def simulate(pktCtx: PacketContext): SimulationResult = {
+        val startNanos = NanoClock.DEFAULT.tick
+        try {
+            start(pktCtx)
+        } finally {
+            pktCtx.simulationNanos += NanoClock.DEFAULT.tick - startNanos
+        }
+    }
+
     protected[midolman] def start(context: PacketContext): SimulationResult = {
         context.prepareForSimulation()
         context.log.debug(s"Initiating processing, attempt: ${context.runs}")
@@ -622,11 +686,13 @@ class PacketWorkflow(
                     flowController.addRecircFlow(context.origMatch,
                                                  context.recircMatch,
                                                  context.flowTags,
+                                                 context.matchedRules,
                                                  context.flowRemovedCallbacks,
                                                  expiration)
                 } else {
                     flowController.addFlow(context.origMatch,
                                            context.flowTags,
+                                           context.matchedRules,
                                            context.flowRemovedCallbacks,
                                            expiration)
                 }
@@ -773,15 +839,53 @@ class PacketWorkflow(
     private def processDhcp(context: PacketContext, inPort: Port,
                             dhcp: DHCP): Boolean = {
         val srcMac = context.origMatch.getEthSrc
+        val underlayMtu = DatapathController.minMtu
+        if (dhcpReplyCacheEnabled) {
+            val cachedReply = dhcpReplies.get(inPort.id, srcMac, dhcp,
+                                              underlayMtu)
+            if (cachedReply ne null) {
+                context.log.debug("sending cached DHCP reply {} to port {}",
+                                  cachedReply, inPort.id)
+                context.addGeneratedPacket(inPort.id, cachedReply)
+                return true
+            }
+        }
         DhcpImpl(vt, inPort, dhcp, srcMac,
-                 DatapathController.minMtu, config.dhcpMtu, context.log) match {
+                 underlayMtu, config.dhcpMtu, context.log) match {
             case Some(dhcpReply) =>
                 context.log.debug(
                     "sending DHCP reply {} to port {}", dhcpReply, inPort.id)
+                if (dhcpReplyCacheEnabled) {
+                    cacheDhcpReply(inPort, srcMac, dhcp, underlayMtu, dhcpReply)
+                }
                 context.addGeneratedPacket(inPort.id, dhcpReply)
                 true
             case None =>
                 false
         }
     }
+
+    /**
+     * Caches a DHCP reply, tagged with the tags of the input port, of its
+     * bridge and of the bridge DHCP subnets, since any of them may change the
+     * reply. DHCP replies are only generated for bridge ports.
+     */
+    private def cacheDhcpReply(inPort: Port, srcMac: MAC, dhcp: DHCP,
+                               underlayMtu: Int, dhcpReply: Ethernet): Unit = {
+        inPort match {
+            case port: BridgePort =>
+                val bridge = vt.tryGet(classOf[Bridge], port.deviceId)
+                val tags = new Array[FlowTag](bridge.subnetIds.size + 2)
+                tags(0) = port.deviceTag
+                tags(1) = bridge.deviceTag
+                var index = 2
+                for (subnetId <- bridge.subnetIds) {
+                    tags(index) = FlowTagger.tagForDhcp(subnetId)
+                    index += 1
+                }
+                dhcpReplies.put(port.id, srcMac, dhcp, underlayMtu, dhcpReply,
+                                tags)
+            case _ =>
+        }
+    }
 }
@@ -15,9 +15,15 @@
  */
 package org.midonet.midolman
 
-import scala.collection.{immutable, mutable}
 import java.util.concurrent.TimeUnit
 
+import org.midonet.util.concurrent.HierarchicalTimingWheel
+
+object WaitingRoom {
+    private final val Resolution = TimeUnit.MICROSECONDS.toNanos(1)
+    private final val InitialCapacity = 256
+}
+
 /**
  * A WaitingRoom is an abstraction that allows holding Waiters for a limited
  * amount of time. Waiters are guaranteed to stay in the room for *at least*
@@ -25,15 +31,23 @@ import java.util.concurrent.TimeUnit
  * the room at any later time. Whenever this happens, users may get a
  * notification through the "leave" callback.
  *
+ * The waiters are indexed by their timeout in a timing wheel, such that
+ * entering, leaving and timing out take constant time, and at most
+ * `maxExpirations` waiters time out on every call to `doExpirations`.
+ *
  * This class is not thread safe, and all instances expected to be confined to
  * a thread.
  *
  * @param timeout timeout, in nanoseconds
  */
-class WaitingRoom[W](val timeout: Long = TimeUnit.SECONDS.toNanos(3)) {
+class WaitingRoom[W](val timeout: Long = TimeUnit.SECONDS.toNanos(3),
+                     maxExpirations: Int = Int.MaxValue) {
+
+    import WaitingRoom._
 
-    private[this] val waiters = new java.util.HashMap[W, Long]()
-    private[this] val timeouts = new mutable.ListBuffer[(W, Long)]()
+    private[this] val waiters = new java.util.HashMap[W, java.lang.Long]()
+    private[this] val timeouts =
+        new HierarchicalTimingWheel[W](InitialCapacity, Resolution)
 
     /**
      * Number of waiters currently in the room.
@@ -47,10 +61,9 @@ class WaitingRoom[W](val timeout: Long = TimeUnit.SECONDS.toNanos(3)) {
      * and the *old* waiting time remains unaltered.
      */
     def enter(w: W): Boolean = {
-        val waitFor = System.nanoTime() + timeout
         if (!waiters.containsKey(w)) {
-            waiters.put(w, waitFor)
-            timeouts += ((w, waitFor))
+            val waitFor = System.nanoTime() + timeout
+            waiters.put(w, timeouts.schedule(waitFor, 0L, w))
             true
         } else {
             false
@@ -58,19 +71,21 @@ class WaitingRoom[W](val timeout: Long = TimeUnit.SECONDS.toNanos(3)) {
     }
 
     def leave(w: W): Unit = {
-        waiters.remove(w)
+        val handle = waiters.remove(w)
+        if (handle ne null) {
+            timeouts.cancel(handle)
+        }
     }
 
     def doExpirations(f: W => Unit): Unit = {
-        val now = System.nanoTime()
-        while (timeouts.nonEmpty && (now - timeouts.head._2) > 0) {
-            val pair = timeouts remove 0
-            val waiter = pair._1
-            val timeout = pair._2
-            if (waiters.containsKey(waiter)
-                    && waiters.remove(waiter) == timeout) {
-                f(waiter)
-            }
+        timeouts.advance(System.nanoTime())
+        var expired = 0
+        while (expired < maxExpirations && timeouts.hasExpired) {
+            val waiter = timeouts.expiredRef
+            timeouts.removeExpired()
+            waiters.remove(waiter)
+            f(waiter)
+            expired += 1
         }
     }
 }
@@ -81,8 +81,14 @@ class MidolmanConfig(config: Config, val schema: Config = ConfigFactory.empty(),
     def bgpConnectRetry = getDuration(s"$PREFIX.midolman.bgp_connect_retry", TimeUnit.SECONDS).toInt
 
     def dhcpMtu = Math.min(getInt(s"$PREFIX.midolman.dhcp_mtu"), 0xffff)
+    def dhcpReplyCache = getBoolean(s"$PREFIX.midolman.dhcp_reply_cache")
     def simulationThreads = getInt(s"$PREFIX.midolman.simulation_threads")
     def offHeapTables = getBoolean(s"$PREFIX.midolman.off_heap_tables")
+    def primitiveFlowTagIndex = getBoolean(s"$PREFIX.midolman.primitive_flow_tag_index")
+    def flowInvalidationBudget =
+        getDuration(s"$PREFIX.midolman.flow_invalidation_budget", TimeUnit.NANOSECONDS)
+    def expirationBatchSize =
+        Math.max(getInt(s"$PREFIX.midolman.expiration_batch_size"), 1)
     def reclaimDatapath = getBoolean(s"$PREFIX.midolman.reclaim_datapath")
     def flowExpirationRate = getInt(s"$PREFIX.midolman.flow_expiration_rate_per_second")
     def maxPooledContexts = getInt(s"$PREFIX.midolman.max_pooled_contexts")
@@ -95,6 +101,11 @@ class MidolmanConfig(config: Config, val schema: Config = ConfigFactory.empty(),
     def statsHttpServerPort: Int =
         getInt(s"$PREFIX.midolman.stats_http_server_port")
 
+    def ruleCountersInterval: Long =
+        getDuration(s"$PREFIX.midolman.rule_counters_interval", TimeUnit.MILLISECONDS)
+
+    def natSpareBlocks = getInt(s"$PREFIX.midolman.nat_spare_blocks")
+
     val bridge = new BridgeConfig(conf, schema)
     val router = new RouterConfig(conf, schema)
     val zookeeper =
@@ -117,6 +128,22 @@ class MidolmanConfig(config: Config, val schema: Config = ConfigFactory.empty(),
     val fip64 = new Fip64Config(conf, schema)
     val initialStorageCache = new InitialStorageCacheConfig(conf, schema)
     val jmxConfig = new JMXServerConfig(conf, schema)
+    val workStealing = new WorkStealingConfig(conf, schema)
+}
+
+class WorkStealingConfig(val conf: Config, val schema: Config)
+    extends TypeFailureFallback {
+    val PREFIX = "agent.midolman.work_stealing"
+
+    def enabled = getBoolean(s"$PREFIX.enabled")
+    def minThreads = getInt(s"$PREFIX.min_threads")
+    def affinityTimeout = getDuration(s"$PREFIX.affinity_timeout",
+                                      TimeUnit.NANOSECONDS)
+    def stealBacklog = getInt(s"$PREFIX.steal_backlog")
+    def scaleUpBacklog = getInt(s"$PREFIX.scale_up_backlog")
+    def scaleDownBacklog = getInt(s"$PREFIX.scale_down_backlog")
+    def scaleInterval = getDuration(s"$PREFIX.scale_interval",
+                                    TimeUnit.NANOSECONDS)
 }
 
 class JMXServerConfig(val conf: Config, val schema: Config)
@@ -140,10 +167,13 @@ class InitialStorageCacheConfig(val conf: Config, val schema: Config)
 class HostConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
     def waitTimeForUniqueId: Long = Try(getDuration("agent.host.wait_time_gen_id", TimeUnit.MILLISECONDS)).getOrElse(1000L)
     def retriesForUniqueId = Try(getInt("agent.host.retries_gen_id")).getOrElse(300)
+    def interfacesQuietPeriod: Long = Try(getDuration("agent.host.interfaces_quiet_period", TimeUnit.MILLISECONDS)).getOrElse(200L)
+    def interfacesMaxDelay: Long = Try(getDuration("agent.host.interfaces_max_delay", TimeUnit.MILLISECONDS)).getOrElse(2000L)
 }
 
 class BridgeConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
     def macPortMappingExpiry = conf.getDuration("agent.bridge.mac_port_mapping_expire", TimeUnit.MILLISECONDS).toInt
+    def macTableMaxEntries = Math.max(conf.getInt("agent.bridge.mac_table_max_entries"), 1)
 }
 
 class RouterConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -174,6 +204,9 @@ class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def tunnelIncomingBurstCapacity = getInt(s"$PREFIX.tunnel_incoming_burst_capacity")
     def vtepIncomingBurstCapacity = getInt(s"$PREFIX.vtep_incoming_burst_capacity")
 
+    def upcallPortQueueSize = getInt(s"$PREFIX.upcall_port_queue_size")
+    def upcallQuantum = getInt(s"$PREFIX.upcall_quantum")
+
     def controlPacketTos: Byte = getInt(s"$PREFIX.control_packet_tos").toByte
     def setTosOnTunnelHeader: Boolean = getBoolean(s"$PREFIX.set_tos_on_tunnel_header")
 }
@@ -202,6 +235,9 @@ class ArpTableConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def timeout = getDuration(s"$PREFIX.arp_timeout", TimeUnit.MILLISECONDS)
     def stale = getDuration(s"$PREFIX.arp_stale", TimeUnit.MILLISECONDS)
     def expiration = getDuration(s"$PREFIX.arp_expiration", TimeUnit.MILLISECONDS)
+    def rateLimit = getInt(s"$PREFIX.arp_rate_limit")
+    def negativeCache = getDuration(s"$PREFIX.arp_negative_cache", TimeUnit.MILLISECONDS)
+    def negativeCacheMax = getDuration(s"$PREFIX.arp_negative_cache_max", TimeUnit.MILLISECONDS)
 }
 
 class HealthMonitorConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -229,6 +265,13 @@ class MetadataConfig(val conf: Config, val schema: Config)
     def novaMetadataUrl =
         getString("agent.openstack.metadata.nova_metadata_url")
     def sharedSecret = getString("agent.openstack.metadata.shared_secret")
+    def maxConnections = getInt("agent.openstack.metadata.max_connections")
+    def requestTimeout =
+        getDuration("agent.openstack.metadata.request_timeout",
+                    TimeUnit.MILLISECONDS)
+    def responseCacheTtl =
+        getDuration("agent.openstack.metadata.response_cache_ttl",
+                    TimeUnit.MILLISECONDS)
 }
 
 class FlowHistoryConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -243,6 +286,17 @@ class FlowHistoryConfig(val conf: Config, val schema: Config) extends TypeFailur
 class InsightsConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
     def enabled = getBoolean("agent.insights.enabled")
     def listenerClass = getString("agent.insights.listener_class")
+
+    val heavyHitters = new HeavyHittersConfig(conf, schema)
+}
+
+class HeavyHittersConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
+    val prefix = "agent.insights.heavy_hitters"
+    def topK = getInt(s"$prefix.top_k")
+    def sketchWidth = getInt(s"$prefix.sketch_width")
+    def sketchDepth = getInt(s"$prefix.sketch_depth")
+    def mergeInterval = getDuration(s"$prefix.merge_interval",
+                                    TimeUnit.MILLISECONDS) millis
 }
 
 class ContainerConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -300,6 +354,8 @@ class FlowStateConfig(val conf: Config, val schema: Config)
     def localPushState: Boolean = getBoolean(s"$prefix.local_push_state")
     def connectionTimeout: Int = getDuration(s"$prefix.connection_timeout",
                                         TimeUnit.MILLISECONDS).toInt
+    def transferChunkSize: Int =
+        Math.max(getInt(s"$prefix.transfer_chunk_size"), 1)
 }
 
 class BindingApiConfig(val conf: Config, val schema: Config)
@@ -330,4 +386,8 @@ class Fip64Config(val conf: Config, val schema: Config) {
     val portVppMac = MAC.fromString("de:ad:be:ef:00:03")
 
     val vppInternalGateway = IPv4Addr.fromString("172.16.0.1")
+
+    def vppBatchWindow: Long = Try(conf.getDuration("agent.fip64.vpp_batch_window", TimeUnit.MILLISECONDS)).getOrElse(10L)
+    def vppBatchMaxSize: Int = Try(conf.getInt("agent.fip64.vpp_batch_max_size")).getOrElse(1000)
+    def vppMaxOutstandingRequests: Int = Try(conf.getInt("agent.fip64.vpp_max_outstanding_requests")).getOrElse(64)
 }
@@ -131,6 +131,7 @@ class FlowProcessor(dpState: DatapathState,
             // We use the same index for linked flows: if there is a problem
             // with any of them, we remove both.
             val index = context.flow.mark
+            val startNanos = clock.tick
             try {
                 createFlow(context.origMatch, context.flowActions, context, index)
                 datapathMetrics.flowsCreated.mark()
@@ -144,6 +145,7 @@ class FlowProcessor(dpState: DatapathState,
             } catch { case t: Throwable =>
                 context.log.error("Failed to create datapath flow", t)
             }
+            context.flowWriteNanos = clock.tick - startNanos
 
             lastSequence = sequence
         }
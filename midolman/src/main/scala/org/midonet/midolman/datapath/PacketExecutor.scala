@@ -68,16 +68,63 @@ trait StatePacketExecutor {
 object PacketExecutor {
     private val MAX_BUF_CAPACITY = 4 * 1024 * 1024
 
-    private[datapath] def clampMss(ctx: PacketContext, log: Logger): Unit = {
+    private[datapath] def clampMss(ctx: PacketContext, log: Logger): Unit =
+        clampMss(ctx, new HeaderView, new HeaderView, log)
+
+    private[datapath] def clampMss(ctx: PacketContext, outer: HeaderView,
+                                   inner: HeaderView, log: Logger): Unit = {
         // Don't do MSS clamping on packet tunneled here from another Midolman
         // node, since the other node already did it if needed.
         if (ctx.inputPort != null) {
-            try clampMss(ctx.packet.getEthernet, 0, log) catch {
-                case ex: ArrayIndexOutOfBoundsException =>
-                    log.debug(
-                        "Could not parse TCP options for packet " + ctx.packet)
+            val packet = ctx.packet
+            if (packet.isMaterialized ||
+                !clampMss(packet.getData, outer, inner, log)) {
+                try clampMss(packet.getEthernet, 0, log) catch {
+                    case ex: ArrayIndexOutOfBoundsException =>
+                        log.debug(
+                            "Could not parse TCP options for packet " + packet)
+                }
+            }
+        }
+    }
+
+    /**
+      * Clamps the MSS of a packet that has not been materialized, by rewriting
+      * the frame in place. Returns false if the frame must be materialized,
+      * which is the case for IPv6, nested encapsulation and GRE with
+      * checksum.
+      */
+    private def clampMss(data: Array[Byte], outer: HeaderView,
+                         inner: HeaderView, log: Logger): Boolean = {
+        if (outer.wrap(data).etherType == IPv6.ETHERTYPE) {
+            return false
+        }
+        // The MSS of a packet that is not encapsulated already accounts for
+        // all its headers.
+        val innerOffset = outer.encapsulatedFrameOffset
+        if (innerOffset < 0) {
+            return true
+        }
+        if (outer.hasGreChecksum) {
+            return false
+        }
+        inner.wrap(data, innerOffset, data.length - innerOffset)
+        if (inner.etherType == IPv6.ETHERTYPE ||
+            inner.encapsulatedFrameOffset >= 0) {
+            return false
+        }
+        if (inner.isTcpSyn && inner.tcpMssOffset >= 0) {
+            // Reduce MSS by the size of all wrappers, which precede the inner
+            // Ethernet frame.
+            val mss = inner.tcpMss
+            val newMss = mss - innerOffset
+            log.debug(s"Reducing MSS from $mss to $newMss")
+            inner.setTcpMss(newMss)
+            if (outer.isUdp) {
+                outer.clearUdpChecksum()
             }
         }
+        true
     }
 
     @tailrec
@@ -177,6 +224,9 @@ sealed class PacketExecutor(dpState: DatapathState,
     private val writer = new NetlinkBlockingWriter(channel)
     private val reader = new NetlinkReader(channel)
 
+    private val outerView = new HeaderView
+    private val innerView = new HeaderView
+
     override def onEvent(event: PacketContextHolder, sequence: Long,
                          endOfBatch: Boolean): Unit = {
         val context = event.packetExecRef
@@ -186,7 +236,7 @@ sealed class PacketExecutor(dpState: DatapathState,
             val packet = context.packet
             if (actions.size > 0 && packet.getReason != Packet.Reason.FlowActionUserspace) {
                 try {
-                    clampMss(context, log)
+                    clampMss(context, outerView, innerView, log)
                     maybeExecuteStatePacket(datapathId, context)
                     executePacket(datapathId, packet, actions)
                     val latency = NanoClock.DEFAULT.tick - packet.startTimeNanos
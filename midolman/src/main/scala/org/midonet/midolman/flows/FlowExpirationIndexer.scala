@@ -16,13 +16,12 @@
 
 package org.midonet.midolman.flows
 
-import java.util.ArrayDeque
-
 import scala.concurrent.duration._
 
 import org.midonet.midolman.logging.MidolmanLogging
 import org.midonet.packets.{FlowStateStore => FlowState}
 import org.midonet.midolman.FlowTablePreallocation
+import org.midonet.util.concurrent.HierarchicalTimingWheel
 
 object FlowExpirationIndexer {
     sealed abstract class Expiration {
@@ -48,32 +47,24 @@ object FlowExpirationIndexer {
 
     private final val maxType = 4
 
-    class ExpirationQueue(size: Int) {
-        private val expiries = new ArrayDeque[Long](size)
-        private val ids = new ArrayDeque[Long](size)
-
-        def size(): Int = expiries.size()
-        def empty(): Boolean = expiries.size() == 0
-        def peekExpiry(): Long = expiries.peek()
+    // The precision of the flow expiration.
+    private final val ExpirationResolution = (1 millis).toNanos
 
-        def removeId(): ManagedFlow.FlowId = {
-            expiries.removeFirst()
-            ids.removeFirst()
-        }
-        def add(id: ManagedFlow.FlowId,
-                expiry: Long): Unit = {
-            expiries.add(expiry)
-            ids.add(id)
-        }
-    }
+    /**
+     * The flow identifiers indexed by their absolute expiration time,
+     * preallocated for the given number of flows.
+     */
+    class ExpirationQueue(size: Int)
+        extends HierarchicalTimingWheel[AnyRef](size, ExpirationResolution)
 }
 
 /**
  * This trait deals with flow expiration. It registers all new flows and removes
  * them when the specified expiration time has elapsed. Note that a flow may
  * be removed from the kernel via another mechanism (such as flow invalidation),
- * but it is still kept in these data structures until it expires. This is to
- * avoid linear remove operations or smarter, more expensive data structures.
+ * but it is still kept in these data structures until it expires. The flows
+ * of every expiration type are indexed in a timing wheel, such that adding
+ * and expiring a flow take constant time regardless of the number of flows.
  */
 class FlowExpirationIndexer(preallocation: FlowTablePreallocation)
         extends MidolmanLogging {
@@ -95,30 +86,30 @@ class FlowExpirationIndexer(preallocation: FlowTablePreallocation)
     def enqueueFlowExpiration(flowId: ManagedFlow.FlowId,
                             expiration: Long,
                             expirationType: Int): Unit = {
-        expirationQueues(expirationType).add(flowId, expiration)
+        expirationQueues(expirationType).schedule(expiration, flowId, null)
     }
 
     def pollForExpired(now: Long): ManagedFlow.FlowId = {
         var i = 0
-        while (i < maxType &&
-                   (expirationQueues(i).empty() ||
-                        now < expirationQueues(i).peekExpiry)) {
+        while (i < maxType) {
+            val queue = expirationQueues(i)
+            queue.advance(now)
+            if (queue.hasExpired) {
+                val flow = queue.expiredValue
+                queue.removeExpired()
+                log.debug(s"Removing flow $flow for hard expiration")
+                return flow
+            }
             i += 1
         }
-        if (i < maxType) {
-            val flow = expirationQueues(i).removeId()
-            log.debug(s"Removing flow $flow for hard expiration")
-            flow
-        } else {
-            maybeEvictExcessFlow()
-        }
+        maybeEvictExcessFlow()
     }
 
     private def maybeEvictExcessFlow(): ManagedFlow.FlowId = {
         var excessFlows = 0
         var i = 0
         while (i < maxType) {
-            excessFlows += expirationQueues(i).size()
+            excessFlows += expirationQueues(i).size
             i += 1
         }
         excessFlows -= preallocation.maxFlows
@@ -132,14 +123,15 @@ class FlowExpirationIndexer(preallocation: FlowTablePreallocation)
 
     private def removeOldestDpFlow(): ManagedFlow.FlowId = {
         var i = 0
-        while (i < maxType &&
-                   expirationQueues(i).empty) {
+        while (i < maxType) {
+            val queue = expirationQueues(i)
+            if (queue.expireEarliest()) {
+                val flow = queue.expiredValue
+                queue.removeExpired()
+                return flow
+            }
             i += 1
         }
-        if (i < maxType) {
-            expirationQueues(i).removeId()
-        } else {
-            ManagedFlow.NoFlow
-        }
+        ManagedFlow.NoFlow
     }
 }
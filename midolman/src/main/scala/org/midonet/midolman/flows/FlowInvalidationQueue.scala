@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.{ArrayDeque, HashSet}
+
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+/**
+ * The queue of the flow tags scheduled for invalidation by a flow controller.
+ * The tags are invalidated in the order they were scheduled, and a tag that
+ * is scheduled while already pending is coalesced with the pending one. This
+ * class is not thread-safe and must only be used from the thread of its
+ * packet workflow.
+ */
+final class FlowInvalidationQueue {
+
+    private val tags = new ArrayDeque[FlowTag]()
+    private val pending = new HashSet[FlowTag]()
+
+    /**
+     * Adds a tag to the queue, and returns false if the tag was coalesced
+     * with a pending tag.
+     */
+    def add(tag: FlowTag): Boolean = {
+        if (pending.add(tag)) {
+            tags.add(tag)
+            true
+        } else {
+            false
+        }
+    }
+
+    /**
+     * Removes and returns the oldest pending tag, or `null` if the queue is
+     * empty.
+     */
+    def poll(): FlowTag = {
+        val tag = tags.poll()
+        if (tag ne null) {
+            pending.remove(tag)
+        }
+        tag
+    }
+
+    def size: Int = tags.size()
+
+    def isEmpty: Boolean = tags.isEmpty
+}
@@ -37,6 +37,7 @@ final class FlowOperation(pool: ObjectPool[FlowOperation],
 
     var opId: Byte = _
     var flowMatch: FlowMatch = new FlowMatch
+    var flowId: Long = -1
     var sequence: Long = -1
     var retries: Byte = _
     var failure: Throwable = _
@@ -49,8 +50,10 @@ final class FlowOperation(pool: ObjectPool[FlowOperation],
         reset(flowMatch, sequence, retries)
     }
 
-    def reset(flowMatch: FlowMatch, sequence: Long, retries: Byte): Unit = {
+    def reset(flowMatch: FlowMatch, sequence: Long, retries: Byte,
+              flowId: Long = -1): Unit = {
         this.flowMatch.reset(flowMatch)
+        this.flowId = flowId
         this.sequence = sequence
         this.retries = retries
     }
@@ -64,6 +67,7 @@ final class FlowOperation(pool: ObjectPool[FlowOperation],
     def clear(): Unit = {
         failure = null
         sequence = -1
+        flowId = -1
         flowMatch.clear()
         flowMetadata.clear()
         pool.offer(this)
@@ -22,10 +22,27 @@ import org.midonet.midolman.logging.MidolmanLogging
 
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 
-class FlowTagIndexer extends MidolmanLogging {
+/**
+ * Indexes the flows of a flow controller by their tags, such that all flows
+ * tagged with a given tag can be invalidated at once.
+ */
+trait FlowTagIndex {
+    def indexFlowTags(flow: ManagedFlowImpl): Unit
+
+    def removeFlowTags(flow: ManagedFlowImpl): Unit
+
+    /**
+     * Removes the given tag from the index and returns the flows that were
+     * tagged with it. The caller must forget the returned flows, which
+     * removes their remaining tags, before indexing new flows.
+     */
+    def invalidateFlowsFor(tag: FlowTag): Iterator[ManagedFlowImpl]
+}
+
+class FlowTagIndexer extends FlowTagIndex with MidolmanLogging {
     private val tagToFlows = new HashMap[FlowTag, Set[ManagedFlowImpl]]()
 
-    def indexFlowTags(flow: ManagedFlowImpl): Unit = {
+    override def indexFlowTags(flow: ManagedFlowImpl): Unit = {
         val numTags = flow.tags.size()
         var i = 0
         while (i < numTags) {
@@ -34,7 +51,7 @@ class FlowTagIndexer extends MidolmanLogging {
         }
     }
 
-    def removeFlowTags(flow: ManagedFlowImpl): Unit = {
+    override def removeFlowTags(flow: ManagedFlowImpl): Unit = {
         val numTags = flow.tags.size()
         var i = 0
         while (i < numTags) {
@@ -49,7 +66,7 @@ class FlowTagIndexer extends MidolmanLogging {
         }
     }
 
-    def invalidateFlowsFor(tag: FlowTag): Iterator[ManagedFlowImpl] = {
+    override def invalidateFlowsFor(tag: FlowTag): Iterator[ManagedFlowImpl] = {
         val flows = tagToFlows.remove(tag)
         log.debug(s"Invalidating ${if (flows ne null) flows.size() else 0} flows for tag $tag")
         if (flows ne null) {
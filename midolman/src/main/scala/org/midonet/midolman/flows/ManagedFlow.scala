@@ -15,7 +15,7 @@
  */
 package org.midonet.midolman.flows
 
-import java.util.ArrayList
+import java.util.{ArrayList, UUID}
 
 import org.midonet.midolman.CallbackRegistry.CallbackSpec
 import org.midonet.midolman.flows.FlowExpirationIndexer.Expiration
@@ -76,6 +76,8 @@ final class ManagedFlowImpl(override val pool: ObjectPool[ManagedFlowImpl])
 
     val callbacks = new ArrayList[CallbackSpec]()
     val tags = new ArrayList[FlowTag]
+    // The rules matched by the flow, for the per-rule counters.
+    val rules = new ArrayList[UUID]
     override val flowMatch = new FlowMatch()
     var expirationType = 0
     var absoluteExpirationNanos = 0L
@@ -89,6 +91,7 @@ final class ManagedFlowImpl(override val pool: ObjectPool[ManagedFlowImpl])
     var linkedFlow: ManagedFlowImpl = null
 
     def reset(flowMatch: FlowMatch, flowTags: ArrayList[FlowTag],
+              flowRules: ArrayList[UUID],
               flowRemovedCallbacks: ArrayList[CallbackSpec], sequence: Long,
               expiration: Expiration, now: Long,
               linkedFlow: ManagedFlowImpl = null): Unit = {
@@ -96,6 +99,7 @@ final class ManagedFlowImpl(override val pool: ObjectPool[ManagedFlowImpl])
         expirationType = expiration.typeId
         absoluteExpirationNanos = now + expiration.value
         ArrayListUtil.addAll(flowTags, tags)
+        ArrayListUtil.addAll(flowRules, rules)
         ArrayListUtil.addAll(flowRemovedCallbacks, callbacks)
         this._sequence = sequence
         this.linkedFlow = linkedFlow
@@ -124,6 +128,7 @@ final class ManagedFlowImpl(override val pool: ObjectPool[ManagedFlowImpl])
         flowMatch.clear()
         callbacks.clear()
         tags.clear()
+        rules.clear()
     }
 
     override def toString: String =
@@ -16,7 +16,7 @@
 
 package org.midonet.midolman.flows
 
-import java.util.ArrayList
+import java.util.{ArrayList, UUID}
 
 import org.midonet.Util
 import org.midonet.insights.Insights
@@ -67,8 +67,11 @@ class NativeFlowController(config: MidolmanConfig,
                                                         datapathId,
                                                         meters,
                                                         insights)
+    private val invalidationBudget = config.flowInvalidationBudget
+    private val invalidations = new FlowInvalidationQueue
 
     override def addFlow(fmatch: FlowMatch, flowTags: ArrayList[FlowTag],
+                         flowRules: ArrayList[UUID],
                          removeCallbacks: ArrayList[CallbackSpec],
                          expiration: Expiration): ManagedFlow = {
         ensureSpace(1)
@@ -76,7 +79,7 @@ class NativeFlowController(config: MidolmanConfig,
         val flow = addFlow(fmatch, expiration)
         flow.addCallbacks(removeCallbacks)
         flow.addTags(flowTags)
-        registerFlow(flow, flowTags, expiration)
+        registerFlow(flow, flowTags, flowRules, expiration)
         metrics.dpFlowsMetric.mark(1)
         flow
     }
@@ -84,6 +87,7 @@ class NativeFlowController(config: MidolmanConfig,
     override def addRecircFlow(fmatch: FlowMatch,
                                recircMatch: FlowMatch,
                                flowTags: ArrayList[FlowTag],
+                               flowRules: ArrayList[UUID],
                                removeCallbacks: ArrayList[CallbackSpec],
                                expiration: Expiration): ManagedFlow = {
         ensureSpace(2)
@@ -93,16 +97,17 @@ class NativeFlowController(config: MidolmanConfig,
         flow.addCallbacks(removeCallbacks)
         flow.addTags(flowTags)
         outerFlow.setLinkedId(flow.id)
-        registerFlow(flow, flowTags, expiration)
+        registerFlow(flow, flowTags, flowRules, expiration)
         metrics.dpFlowsMetric.mark(2)
         flow
     }
 
-    private def registerFlow(flow: ManagedFlow,
+    private def registerFlow(flow: NativeManagedFlow,
                              tags: ArrayList[FlowTag],
+                             rules: ArrayList[UUID],
                              expiration: Expiration): Unit = {
         val absoluteExpirationNanos = clock.tick + expiration.value
-        meters.trackFlow(flow.flowMatch, tags)
+        meters.trackFlow(flow.id, flow.flowMatch, tags, rules)
         insights.flowAdded(flow.flowMatch, tags, absoluteExpirationNanos)
     }
 
@@ -139,7 +144,33 @@ class NativeFlowController(config: MidolmanConfig,
         }
     }
 
-    override def shouldProcess: Boolean = deleter.shouldProcess()
+    override def scheduleInvalidation(tag: FlowTag): Unit = {
+        if (invalidations.add(tag)) {
+            metrics.flowInvalidationBacklog(invalidations.size, 0)
+        }
+    }
+
+    /**
+     * Invalidates the scheduled tags within the invalidation budget. Since
+     * the flow table releases the match of a flow when the flow is forgotten,
+     * the flows of each tag are deleted from the datapath at once, and the
+     * budget is checked between tags.
+     */
+    override def processInvalidations(): Unit = {
+        if (invalidations.isEmpty) {
+            return
+        }
+        val start = clock.tick
+        val deadline = start + invalidationBudget
+        do {
+            invalidateFlowsFor(invalidations.poll())
+        } while (!invalidations.isEmpty && clock.tick < deadline)
+        metrics.flowInvalidationBacklog(invalidations.size, 0)
+        metrics.flowInvalidationTime(clock.tick - start)
+    }
+
+    override def shouldProcess: Boolean =
+        deleter.shouldProcess() || !invalidations.isEmpty
 
     override def process(): Unit = {
         deleter.processCompletedFlowOperations()
@@ -162,7 +193,7 @@ class NativeFlowController(config: MidolmanConfig,
     private def removeFlow(id: Long): Unit = {
         val flow = flowForId(id)
         if (flow != null) {
-            deleter.removeFlowFromDatapath(flow.flowMatch, flow.sequence)
+            deleter.removeFlowFromDatapath(id, flow.flowMatch, flow.sequence)
             val linkedId = flow.linkedId
             flow.forget()
 
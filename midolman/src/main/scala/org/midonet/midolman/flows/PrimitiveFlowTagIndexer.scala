@@ -0,0 +1,313 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.{ArrayList, Arrays, Iterator, NoSuchElementException}
+
+import org.midonet.midolman.logging.MidolmanLogging
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+object PrimitiveFlowTagIndexer {
+
+    /**
+     * Resolves a flow identifier to the flow currently registered with that
+     * identifier, or `null` if the flow has been removed.
+     */
+    trait FlowLookup {
+        def flowOf(id: ManagedFlow.FlowId): ManagedFlowImpl
+    }
+
+    private final val Empty = -1
+    private final val InitialFlowsCapacity = 4
+    // Flow arrays up to this size are kept for reuse when a tag is removed.
+    private final val MaxRecycledCapacity = 256
+
+    private def hash(tagId: Long): Int = {
+        val h = (tagId ^ (tagId >>> 32)).toInt
+        h ^ (h >>> 16)
+    }
+
+}
+
+/**
+ * A [[FlowTagIndex]] that does not allocate in the steady state.
+ *
+ * Each tag is identified by its 64-bit hash, like in the native flow
+ * controller, and the tags are kept in an open-addressing table from the tag
+ * identifier to an entry holding the identifiers of the tagged flows in a
+ * primitive array. Flow identifiers are never reused and are appended in
+ * increasing order, so that an array is not updated when a flow is removed:
+ * only a count of the flows still alive is decremented, and the identifiers of
+ * the removed flows are purged when the array becomes full. The flows are
+ * resolved from their identifiers with the given [[FlowLookup]], in the same
+ * way as the flows returned by the [[FlowExpirationIndexer]].
+ *
+ * A collision between two tag hashes only causes additional flows to be
+ * invalidated.
+ */
+final class PrimitiveFlowTagIndexer(lookup: PrimitiveFlowTagIndexer.FlowLookup,
+                                    initialCapacity: Int = 1024)
+        extends FlowTagIndex with MidolmanLogging {
+
+    import PrimitiveFlowTagIndexer._
+
+    // Open-addressing table from tag identifier to entry, with linear probing.
+    private var tagIds = new Array[Long](tableCapacity(initialCapacity))
+    private var slots = newSlots(tagIds.length)
+    private var mask = tagIds.length - 1
+    private var numTags = 0
+
+    // The entries, holding the flows of each tag.
+    private var flows = new Array[Array[Long]](initialCapacity)
+    private var sizes = new Array[Int](initialCapacity)
+    private var alive = new Array[Int](initialCapacity)
+    private var freeEntries = new Array[Int](initialCapacity)
+    private var numFreeEntries = 0
+    private var numEntries = 0
+
+    private val invalidated = new ArrayList[ManagedFlowImpl]()
+    private val invalidatedIterator = new InvalidatedIterator
+
+    override def indexFlowTags(flow: ManagedFlowImpl): Unit = {
+        val numTags = flow.tags.size()
+        var i = 0
+        while (i < numTags) {
+            append(getOrAdd(flow.tags.get(i).toLongHash()), flow.id)
+            i += 1
+        }
+    }
+
+    override def removeFlowTags(flow: ManagedFlowImpl): Unit = {
+        val numTags = flow.tags.size()
+        var i = 0
+        while (i < numTags) {
+            val slot = slotOf(flow.tags.get(i).toLongHash())
+            if (slot != Empty) {
+                val entry = slots(slot)
+                alive(entry) -= 1
+                if (alive(entry) <= 0) {
+                    removeSlot(slot)
+                    freeEntry(entry)
+                }
+            }
+            i += 1
+        }
+    }
+
+    /**
+     * Unlike the [[FlowTagIndexer]], this does not remove the other tags of
+     * the invalidated flows, which are removed when the caller forgets them.
+     * The returned iterator is reused by the next invalidation.
+     */
+    override def invalidateFlowsFor(tag: FlowTag): Iterator[ManagedFlowImpl] = {
+        invalidated.clear()
+        val slot = slotOf(tag.toLongHash())
+        if (slot != Empty) {
+            val entry = slots(slot)
+            removeSlot(slot)
+            val ids = flows(entry)
+            val size = sizes(entry)
+            var lastId = -1L
+            var i = 0
+            while (i < size) {
+                // Flows with a repeated tag are indexed twice in a row.
+                if (ids(i) != lastId) {
+                    val flow = lookup.flowOf(ids(i))
+                    if (flow ne null) {
+                        invalidated.add(flow)
+                    }
+                    lastId = ids(i)
+                }
+                i += 1
+            }
+            freeEntry(entry)
+        }
+        log.debug(s"Invalidating ${invalidated.size()} flows for tag $tag")
+        invalidatedIterator.reset()
+        invalidatedIterator
+    }
+
+    /** The number of tags with indexed flows. */
+    def tagCount: Int = numTags
+
+    /** The number of flows alive for the given tag. */
+    def flowCount(tag: FlowTag): Int = {
+        val slot = slotOf(tag.toLongHash())
+        if (slot == Empty) 0 else alive(slots(slot))
+    }
+
+    private def append(entry: Int, id: ManagedFlow.FlowId): Unit = {
+        var size = sizes(entry)
+        if (size == flows(entry).length) {
+            size = purge(entry)
+            if (size << 1 > flows(entry).length) {
+                flows(entry) = Arrays.copyOf(flows(entry), size << 1)
+            }
+        }
+        flows(entry)(size) = id
+        sizes(entry) = size + 1
+        alive(entry) += 1
+    }
+
+    /**
+     * Removes from an entry the identifiers of the flows that no longer
+     * exist, and returns the new size.
+     */
+    private def purge(entry: Int): Int = {
+        val ids = flows(entry)
+        val size = sizes(entry)
+        var newSize = 0
+        var i = 0
+        while (i < size) {
+            if (lookup.flowOf(ids(i)) ne null) {
+                ids(newSize) = ids(i)
+                newSize += 1
+            }
+            i += 1
+        }
+        sizes(entry) = newSize
+        alive(entry) = newSize
+        newSize
+    }
+
+    private def getOrAdd(tagId: Long): Int = {
+        var slot = hash(tagId) & mask
+        while (slots(slot) != Empty) {
+            if (tagIds(slot) == tagId) {
+                return slots(slot)
+            }
+            slot = (slot + 1) & mask
+        }
+        val entry = newEntry()
+        tagIds(slot) = tagId
+        slots(slot) = entry
+        numTags += 1
+        if (numTags << 1 > tagIds.length) {
+            growTable()
+        }
+        entry
+    }
+
+    private def slotOf(tagId: Long): Int = {
+        var slot = hash(tagId) & mask
+        while (slots(slot) != Empty) {
+            if (tagIds(slot) == tagId) {
+                return slot
+            }
+            slot = (slot + 1) & mask
+        }
+        Empty
+    }
+
+    /**
+     * Removes a slot from the table, shifting back the following slots of the
+     * probe sequence so that lookups do not need tombstones.
+     */
+    private def removeSlot(slot: Int): Unit = {
+        var hole = slot
+        var next = (slot + 1) & mask
+        while (slots(next) != Empty) {
+            val home = hash(tagIds(next)) & mask
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                tagIds(hole) = tagIds(next)
+                slots(hole) = slots(next)
+                hole = next
+            }
+            next = (next + 1) & mask
+        }
+        slots(hole) = Empty
+        numTags -= 1
+    }
+
+    private def growTable(): Unit = {
+        val oldTagIds = tagIds
+        val oldSlots = slots
+        tagIds = new Array[Long](oldTagIds.length << 1)
+        slots = newSlots(tagIds.length)
+        mask = tagIds.length - 1
+        var i = 0
+        while (i < oldSlots.length) {
+            if (oldSlots(i) != Empty) {
+                var slot = hash(oldTagIds(i)) & mask
+                while (slots(slot) != Empty) {
+                    slot = (slot + 1) & mask
+                }
+                tagIds(slot) = oldTagIds(i)
+                slots(slot) = oldSlots(i)
+            }
+            i += 1
+        }
+    }
+
+    private def newEntry(): Int = {
+        if (numFreeEntries > 0) {
+            numFreeEntries -= 1
+            val entry = freeEntries(numFreeEntries)
+            if (flows(entry) eq null) {
+                flows(entry) = new Array[Long](InitialFlowsCapacity)
+            }
+            return entry
+        }
+        if (numEntries == flows.length) {
+            val capacity = flows.length << 1
+            flows = Arrays.copyOf(flows, capacity)
+            sizes = Arrays.copyOf(sizes, capacity)
+            alive = Arrays.copyOf(alive, capacity)
+            freeEntries = Arrays.copyOf(freeEntries, capacity)
+        }
+        val entry = numEntries
+        numEntries += 1
+        flows(entry) = new Array[Long](InitialFlowsCapacity)
+        entry
+    }
+
+    private def freeEntry(entry: Int): Unit = {
+        if (flows(entry).length > MaxRecycledCapacity) {
+            flows(entry) = null
+        }
+        sizes(entry) = 0
+        alive(entry) = 0
+        freeEntries(numFreeEntries) = entry
+        numFreeEntries += 1
+    }
+
+    private def tableCapacity(capacity: Int): Int =
+        Integer.highestOneBit(Math.max(capacity, 8) - 1) << 2
+
+    private def newSlots(capacity: Int): Array[Int] = {
+        val slots = new Array[Int](capacity)
+        Arrays.fill(slots, Empty)
+        slots
+    }
+
+    private final class InvalidatedIterator extends Iterator[ManagedFlowImpl] {
+        private var index = 0
+
+        def reset(): Unit = index = 0
+
+        override def hasNext: Boolean = index < invalidated.size()
+
+        override def next(): ManagedFlowImpl = {
+            if (index >= invalidated.size())
+                throw new NoSuchElementException
+            index += 1
+            invalidated.get(index - 1)
+        }
+
+        override def remove(): Unit = throw new UnsupportedOperationException
+    }
+}
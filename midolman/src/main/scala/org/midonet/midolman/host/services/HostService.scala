@@ -18,7 +18,7 @@ package org.midonet.midolman.host.services
 
 import java.net.{InetAddress, UnknownHostException}
 import java.util.concurrent.atomic.AtomicReference
-import java.util.concurrent.{CountDownLatch, TimeUnit, TimeoutException}
+import java.util.concurrent.{CountDownLatch, ScheduledFuture, TimeUnit, TimeoutException}
 import java.util.{UUID, ConcurrentModificationException}
 import javax.annotation.Nullable
 
@@ -29,7 +29,6 @@ import scala.util.Success
 import scala.util.control.NonFatal
 
 import com.google.common.util.concurrent.AbstractService
-import com.google.protobuf.TextFormat
 import rx.{Observer, Subscription}
 
 import org.midonet.cluster.backend.zookeeper.StateAccessException
@@ -40,7 +39,7 @@ import org.midonet.cluster.models.Topology.Host
 import org.midonet.cluster.services.MidonetBackend
 import org.midonet.cluster.services.MidonetBackend._
 import org.midonet.cluster.storage.MidonetBackendConfig
-import org.midonet.cluster.util.UUIDUtil
+import org.midonet.cluster.util.{HostStateUtil, UUIDUtil}
 import org.midonet.cluster.util.UUIDUtil._
 import org.midonet.conf.HostIdGenerator.PropertiesFileNotWritableException
 import org.midonet.midolman.Midolman
@@ -61,6 +60,11 @@ object HostService {
 
     val InterfacesTimeoutInSecs = 3
 
+    /** The agent writes a new snapshot of the host interfaces instead of a
+      * delta when the delta contains more than this fraction of the
+      * interfaces in the current snapshot. */
+    val SnapshotDeltaRatio = 0.5
+
     class HostIdAlreadyInUseException(message: String)
         extends Exception(message)
 }
@@ -104,6 +108,32 @@ class HostService (config: MidolmanConfig,
     @volatile private var currentInterfaces: Set[InterfaceDescription] = null
     @volatile private var oldInterfaces: Set[InterfaceDescription] = null
 
+    private val quietPeriodNanos =
+        TimeUnit.MILLISECONDS.toNanos(config.host.interfacesQuietPeriod)
+    private val maxDelayNanos =
+        TimeUnit.MILLISECONDS.toNanos(config.host.interfacesMaxDelay)
+    // Guarded by `this`.
+    private var pendingSince = -1L
+    private var pendingUpdate: ScheduledFuture[_] = null
+    private val pendingUpdateTask = new Runnable {
+        override def run(): Unit = {
+            HostService.this.synchronized {
+                pendingSince = -1L
+                pendingUpdate = null
+            }
+            if (aliveState.get == OwnershipState.Acquired) {
+                updateInterfaces(snapshot = false)
+            }
+        }
+    }
+
+    // Guarded by `publishLock`: the last snapshot written to the host key,
+    // and whether a delta has been written to the host delta key since.
+    private val publishLock = new Object
+    private var publishedSnapshot: State.HostState = null
+    private var publishedDelta = false
+    private var publishVersion = System.currentTimeMillis()
+
     private val aliveState = new AtomicReference(OwnershipState.Released)
     @volatile private var aliveSubscription: Subscription = null
     private val aliveObserver = new Observer[StateKey] {
@@ -161,7 +191,7 @@ class HostService (config: MidolmanConfig,
                         (aliveState.get != OwnershipState.Acquired)) {
                         return
                     }
-                    updateInterfaces()
+                    scheduleUpdateInterfaces()
                 }
             })
             identifyHost()
@@ -185,6 +215,7 @@ class HostService (config: MidolmanConfig,
         log.info("Stopping MidoNet agent host service")
         aliveState.set(OwnershipState.Released)
         scanner.stop()
+        cancelUpdateInterfaces()
 
         // If the cluster storage is enabled, delete the ownership.
         if (aliveSubscription ne null) {
@@ -196,8 +227,11 @@ class HostService (config: MidolmanConfig,
                                             null).asFuture
             val f2 = stateStore.removeValue(classOf[Host], hostId,
                                             HostKey, null).asFuture
+            val f3 = stateStore.removeValue(classOf[Host], hostId,
+                                            HostDeltaKey, null).asFuture
             Await.ready(f1, timeout)
             Await.ready(f2, timeout)
+            Await.ready(f3, timeout)
         } catch {
             case NonFatal(e) =>
                 log.warn("MidoNet agent host service failed to cleanup " +
@@ -286,10 +320,12 @@ class HostService (config: MidolmanConfig,
                 store.create(host)
             }
 
-            // Set the alive state and update the interfaces.
+            // Set the alive state and update the interfaces: write a new
+            // snapshot since the previous state may have been lost with the
+            // ownership.
             stateStore.addValue(classOf[Host], hostId, AliveKey, AliveKey)
                 .await(timeout)
-            updateInterfaces()
+            updateInterfaces(snapshot = true)
 
             aliveState.set(OwnershipState.Acquired)
 
@@ -363,27 +399,94 @@ class HostService (config: MidolmanConfig,
             .subscribe(aliveObserver)
     }
 
+    /**
+     * Schedules the update of the host interfaces after the configured quiet
+     * period, such that the interface changes arriving in bursts are published
+     * together. The update is delayed at most the configured maximum delay
+     * since the first pending change.
+     */
+    private def scheduleUpdateInterfaces(): Unit = {
+        if (quietPeriodNanos <= 0) {
+            updateInterfaces(snapshot = false)
+            return
+        }
+        synchronized {
+            val now = System.nanoTime()
+            if (pendingSince < 0) {
+                pendingSince = now
+            }
+            if (pendingUpdate ne null) {
+                pendingUpdate.cancel(false)
+            }
+            val delay = Math.max(0L, Math.min(quietPeriodNanos,
+                                              pendingSince + maxDelayNanos - now))
+            pendingUpdate = reactor.schedule(pendingUpdateTask, delay,
+                                             TimeUnit.NANOSECONDS)
+        }
+    }
+
+    private def cancelUpdateInterfaces(): Unit = synchronized {
+        if (pendingUpdate ne null) {
+            pendingUpdate.cancel(false)
+            pendingUpdate = null
+        }
+        pendingSince = -1L
+    }
+
     /**
      * Updates the host with the current set of interfaces in V2.x storage.
+     * The method writes a snapshot of all interfaces to the host key if
+     * `snapshot` is true or if the interfaces changed significantly since the
+     * last snapshot. Otherwise, it only writes the interfaces changed since
+     * the last snapshot to the host delta key.
      */
-    private def updateInterfaces(): Unit = {
+    private def updateInterfaces(snapshot: Boolean): Unit = {
         def upOrDown(iface: InterfaceDescription) =
                 if (iface.isUp) "UP" else "DOWN"
         def pluggedOrNot(iface: InterfaceDescription) =
                 if (iface.isUp) "LINK" else "NO_LINK"
 
-        val ifdescs = currentInterfaces map { i =>
-            s"${i.getName}<${upOrDown(i)},${pluggedOrNot(i)},${i.getMtu}>"
+        val interfaces = currentInterfaces
+        if (log.underlying.isDebugEnabled) {
+            val ifdescs = interfaces map { i =>
+                s"${i.getName}<${upOrDown(i)},${pluggedOrNot(i)},${i.getMtu}>"
+            }
+            log.debug("Updating network interfaces: {}", ifdescs.mkString(", "))
         }
-        log.debug("Updating network interfaces: {}", ifdescs.mkString(", "))
 
-        try {
-            stateStore.addValue(classOf[Host], hostId, HostKey, getInterfaces)
-                .await(timeout)
-        } catch {
-            case NonFatal(e) =>
-                log.error("Failed to update network interfaces for host {}",
-                          hostId, e)
+        publishLock.synchronized {
+            publishVersion += 1
+            val current = getInterfaces(interfaces, publishVersion)
+            val delta =
+                if (snapshot || (publishedSnapshot eq null)) null
+                else HostStateUtil.delta(publishedSnapshot, current,
+                                         publishVersion)
+            try {
+                if ((delta eq null) ||
+                    delta.getInterfacesCount + delta.getRemovedInterfacesCount >
+                    publishedSnapshot.getInterfacesCount * SnapshotDeltaRatio) {
+                    // Write the snapshot before removing the delta: readers
+                    // ignore a delta that does not match the snapshot version.
+                    publishedSnapshot = null
+                    stateStore.addValue(classOf[Host], hostId, HostKey,
+                                        current.toString).await(timeout)
+                    publishedSnapshot = current
+                    if (publishedDelta) {
+                        stateStore.removeValue(classOf[Host], hostId,
+                                               HostDeltaKey, null)
+                                  .await(timeout)
+                        publishedDelta = false
+                    }
+                } else {
+                    stateStore.addValue(classOf[Host], hostId, HostDeltaKey,
+                                        delta.toString).await(timeout)
+                    publishedDelta = true
+                }
+            } catch {
+                case NonFatal(e) =>
+                    log.error("Failed to update network interfaces for host {}",
+                              hostId, e)
+            }
         }
     }
 
@@ -403,25 +506,30 @@ class HostService (config: MidolmanConfig,
     private def getCurrentState: State.HostState = {
         Await.ready(stateStore.getKey(classOf[Host], hostId, HostKey).asFuture,
                     timeout).value match {
-            case Some(Success(SingleValueKey(_,Some(value),_))) =>
-                val builder = State.HostState.newBuilder()
-                TextFormat.merge(value, builder)
-                builder.build()
+            case Some(Success(snapshot: SingleValueKey)) =>
+                val delta = Await.ready(
+                    stateStore.getKey(classOf[Host], hostId, HostDeltaKey)
+                              .asFuture, timeout).value match {
+                    case Some(Success(key)) => key
+                    case _ => null
+                }
+                HostStateUtil.fromKeys(snapshot, delta).orNull
             case _ => null
         }
     }
 
-    /** Returns the current set of interfaces for this host as a set of protocol
-      * buffers messages. */
-    private def getInterfaces: String = {
+    /** Returns the given set of interfaces for this host as a host state
+      * message with the given version. */
+    private def getInterfaces(interfaces: Set[InterfaceDescription],
+                              version: Long): State.HostState = {
         State.HostState.newBuilder()
             .setHostId(UUIDUtil.toProto(hostId))
+            .setVersion(version)
             .addAllInterfaces(
-                currentInterfaces.map(
+                interfaces.map(
                     ZoomConvert.toProto(_, classOf[State.HostState.Interface]))
                     .asJava)
             .build()
-            .toString
     }
 
     /** Verifies that the current host and state read from storage belong to
@@ -16,7 +16,7 @@
 package org.midonet.midolman.io
 
 import java.nio.ByteBuffer
-import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
 import java.util.concurrent.locks.ReentrantLock
 
 import scala.collection.IndexedSeq
@@ -27,11 +27,14 @@ import scala.util.{Failure, Success}
 import akka.actor.ActorSystem
 
 import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
 
 import org.midonet.ErrorCode
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.logging.MidolmanLogging
-import org.midonet.midolman.{NetlinkCallbackDispatcher, PacketWorker}
+import org.midonet.midolman.monitoring.metrics.{PacketPipelineMeter, UpcallPortMetrics}
+import org.midonet.midolman.PacketWorkflow.SimulationExpireMillis
+import org.midonet.midolman.{NetlinkCallbackDispatcher, PacketWorker, PacketWorkerBalancer}
 import org.midonet.netlink.BufferPool
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.odp._
@@ -66,7 +69,8 @@ trait UpcallDatapathConnectionManager {
  */
 abstract class UpcallDatapathConnectionManagerBase(
     val config: MidolmanConfig,
-    val tbPolicy: TokenBucketPolicy)
+    val tbPolicy: TokenBucketPolicy,
+    val metricRegistry: MetricRegistry)
     extends UpcallDatapathConnectionManager with MidolmanLogging {
 
     import org.midonet.odp.FlowMatchMessageType._
@@ -82,6 +86,8 @@ abstract class UpcallDatapathConnectionManagerBase(
     protected val portToChannel = new ConcurrentHashMap[(Datapath, Int),
                                                         ManagedDatapathConnection]()
 
+    protected val upcallPorts = new ConcurrentHashMap[Integer, UpcallPort]()
+
     protected def setUpcallHandler(conn: OvsDatapathConnection)
 
     protected def makeBufferPool() = new BufferPool(1, 8, 8*1024)
@@ -127,8 +133,10 @@ abstract class UpcallDatapathConnectionManagerBase(
         log.info("creating datapath connection for {}", port.getName)
 
         var conn: ManagedDatapathConnection = null
+        var bucket: Bucket = null
         try {
-            conn = makeConnection(connName, tbPolicy.link(port, t), t)
+            bucket = tbPolicy.link(port, t)
+            conn = makeConnection(connName, bucket, t)
         } catch {
             case e: Throwable =>
                 tbPolicy.unlink(port)
@@ -144,6 +152,7 @@ abstract class UpcallDatapathConnectionManagerBase(
             case Success((createdPort, _)) =>
                 log.debug(s"Successfully created or reclaimed port $createdPort")
                 portToChannel.put((datapath, createdPort.getPortNo.intValue), conn)
+                addUpcallPort(createdPort.getPortNo.intValue, t, bucket)
             case Failure(e) =>
                 log.error(s"Failed to create or reclaim datapath port ${port.getName}", e)
                 stopConnection(conn)
@@ -204,9 +213,41 @@ abstract class UpcallDatapathConnectionManagerBase(
                 } map { v =>
                     stopConnection(conn)
                     tbPolicy.unlink(port)
+                    removeUpcallPort(port.getPortNo.intValue)
                 }
         }
 
+    /**
+     * Registers a datapath port with the upcall schedulers. The port weight
+     * is the burst capacity of its HTB bucket relative to that of a VM port,
+     * such that tunnel ports get a larger share of the packet workers. The
+     * bucket is the one charged for the upcalls of the port, such that the
+     * schedulers can return the tokens of the packets they drop.
+     */
+    private def addUpcallPort(portNo: Int, t: ChannelType,
+                              bucket: Bucket): Unit = {
+        val dp = config.datapath
+        val capacity = t match {
+            case OverlayTunnel => dp.tunnelIncomingBurstCapacity
+            case VtepTunnel => dp.vtepIncomingBurstCapacity
+            case VirtualMachine => dp.vmIncomingBurstCapacity
+        }
+        val weight =
+            Math.max(capacity / Math.max(dp.vmIncomingBurstCapacity, 1), 1)
+        removeUpcallPort(portNo)
+        upcallPorts.put(portNo, new UpcallPort(
+            portNo, weight, new UpcallPortMetrics(metricRegistry, portNo),
+            bucket))
+    }
+
+    private def removeUpcallPort(portNo: Int): Unit = {
+        val port = upcallPorts.remove(portNo)
+        if (port ne null) {
+            port.removed = true
+            port.metrics.unregister()
+        }
+    }
+
     protected def makeUpcallHandler(workers: IndexedSeq[PacketWorker]) =
         new BatchCollector[Packet] {
 
@@ -218,8 +259,22 @@ abstract class UpcallDatapathConnectionManagerBase(
 
             val NUM_WORKERS = workers.length
 
+            private val scheduler = new UpcallScheduler(
+                workers, config.datapath.upcallPortQueueSize,
+                config.datapath.upcallQuantum, upcallPorts)
+
+            private val balancer =
+                if (config.workStealing.enabled) {
+                    new PacketWorkerBalancer(
+                        workers, config.workStealing,
+                        TimeUnit.MILLISECONDS.toNanos(SimulationExpireMillis),
+                        metricRegistry.meter(name(classOf[PacketPipelineMeter],
+                                                  "workStealing", "steals")),
+                        NanoClock.DEFAULT.tick)
+                } else null
+
             override def endBatch() {
-                // noop
+                scheduler.dispatch()
             }
 
             override def submit(data: Packet): Boolean = {
@@ -252,9 +307,11 @@ abstract class UpcallDatapathConnectionManagerBase(
                     submitted
                 } else {
                     val hash = getConnectionHash(data)
-                    val worker = Math.abs(hash) % NUM_WORKERS
+                    val worker =
+                        if (balancer eq null) Math.abs(hash) % NUM_WORKERS
+                        else balancer.select(hash, data.startTimeNanos)
                     log.debug(s"Connection hash: $hash -> going to worker $worker")
-                    workers(worker).submit(data)
+                    scheduler.submit(data, worker)
                 }
             }
 
@@ -322,7 +379,7 @@ class OneToOneDpConnManager(c: MidolmanConfig,
                             workers: IndexedSeq[PacketWorker],
                             tbPolicy: TokenBucketPolicy,
                             metrics: MetricRegistry)
-        extends UpcallDatapathConnectionManagerBase(c, tbPolicy) {
+        extends UpcallDatapathConnectionManagerBase(c, tbPolicy, metrics) {
 
     override def makeConnection(name: String, bucket: Bucket,
                                 channelType: ChannelType) =
@@ -346,7 +403,7 @@ class OneToManyDpConnManager(c: MidolmanConfig,
                              workers: IndexedSeq[PacketWorker],
                              tbPolicy: TokenBucketPolicy,
                              metrics: MetricRegistry)
-        extends UpcallDatapathConnectionManagerBase(c, tbPolicy) {
+        extends UpcallDatapathConnectionManagerBase(c, tbPolicy, metrics) {
 
     val threadPair = new SelectorThreadPair("upcall", config, false, metrics)
 
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.io
+
+import java.util.Arrays
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+import scala.collection.IndexedSeq
+
+import org.midonet.midolman.PacketWorker
+import org.midonet.midolman.monitoring.metrics.UpcallPortMetrics
+import org.midonet.odp.Packet
+import org.midonet.util.Bucket
+import org.midonet.util.concurrent.NanoClock
+
+/**
+ * A datapath port known to the upcall scheduler, with its scheduling weight,
+ * metrics and the HTB bucket charged for its upcalls.
+ */
+final class UpcallPort(val portNo: Int, val weight: Int,
+                       val metrics: UpcallPortMetrics,
+                       val bucket: Bucket = Bucket.BOTTOMLESS) {
+    @volatile var removed = false
+}
+
+object UpcallScheduler {
+    // The kernel datapath supports at most 64k ports.
+    private val PortMask = 0xffff
+
+    private final class PortQueue(val portNo: Int, capacity: Int) {
+        val packets = new Array[Packet](capacity)
+        val workers = new Array[Int](capacity)
+        var head = 0
+        var tail = 0
+        var deficit = 0
+        var port: UpcallPort = null
+
+        def weight = if (port eq null) 1 else port.weight
+    }
+}
+
+/**
+ * Admission stage in front of the packet workers, which shares the workers
+ * between the datapath ports using weighted deficit round robin.
+ *
+ * The upcall handler adds the packets read during a batch to a small queue
+ * per input port, together with the worker selected by the connection hash,
+ * and dispatches them at the end of the batch. Every round serves up to
+ * `quantum` packets times the port weight from each backlogged port, such
+ * that when the ring buffer of a worker fills up, the remaining slots are
+ * shared between the ports according to their weights rather than going to
+ * the port that was read first. Packets that overflow the queue of their
+ * port or the ring buffer of their worker are dropped, and accounted to their
+ * port.
+ *
+ * The token consumed to read a packet is returned to the HTB when the packet
+ * overflows the queue of its port, by the caller, or the ring buffer of its
+ * worker, by the scheduler. Since the packets are dispatched after the read
+ * batch has returned its unused tokens, the scheduler returns the token to
+ * the bucket of the port immediately.
+ *
+ * This class is not thread-safe: it must only be used by the thread that
+ * reads the upcalls.
+ */
+final class UpcallScheduler(workers: IndexedSeq[PacketWorker],
+                            queueCapacity: Int,
+                            quantum: Int,
+                            ports: ConcurrentHashMap[Integer, UpcallPort]) {
+
+    import UpcallScheduler._
+
+    private var queues = new Array[PortQueue](64)
+    private var active = new Array[PortQueue](16)
+    private var activeCount = 0
+
+    /**
+     * Queues a packet for the given worker. Returns false if the packet was
+     * dropped because the queue of its input port is full.
+     */
+    def submit(packet: Packet, worker: Int): Boolean = {
+        val queue = queueFor(packet.getMatch.getInputPortNumber & PortMask)
+        if (queue.tail == queueCapacity) {
+            if (queue.port ne null) {
+                queue.port.metrics.packetsDropped.mark()
+            }
+            return false
+        }
+        if (queue.tail == 0) {
+            activate(queue)
+        }
+        queue.packets(queue.tail) = packet
+        queue.workers(queue.tail) = worker
+        queue.tail += 1
+        true
+    }
+
+    /**
+     * Dispatches all the queued packets to their workers.
+     */
+    def dispatch(): Unit = {
+        while (activeCount > 0) {
+            var index = 0
+            var backlogged = 0
+            while (index < activeCount) {
+                val queue = active(index)
+                serve(queue)
+                if (queue.head < queue.tail) {
+                    active(backlogged) = queue
+                    backlogged += 1
+                } else {
+                    queue.head = 0
+                    queue.tail = 0
+                    queue.deficit = 0
+                }
+                index += 1
+            }
+            while (index > backlogged) {
+                index -= 1
+                active(index) = null
+            }
+            activeCount = backlogged
+        }
+    }
+
+    private def serve(queue: PortQueue): Unit = {
+        queue.deficit += quantum * queue.weight
+        while (queue.deficit > 0 && queue.head < queue.tail) {
+            val packet = queue.packets(queue.head)
+            val worker = queue.workers(queue.head)
+            queue.packets(queue.head) = null
+            queue.head += 1
+            queue.deficit -= 1
+
+            val submitted = workers(worker).submit(packet)
+            if (queue.port ne null) {
+                if (submitted) {
+                    queue.port.metrics.queueLatency.update(
+                        NanoClock.DEFAULT.tick - packet.startTimeNanos,
+                        TimeUnit.NANOSECONDS)
+                } else {
+                    queue.port.metrics.packetsDropped.mark()
+                    queue.port.bucket.giveBack()
+                    queue.port.bucket.done()
+                }
+            }
+        }
+    }
+
+    private def queueFor(portNo: Int): PortQueue = {
+        if (portNo >= queues.length) {
+            var length = queues.length
+            while (portNo >= length) length <<= 1
+            queues = Arrays.copyOf(queues, length)
+        }
+        var queue = queues(portNo)
+        if (queue eq null) {
+            queue = new PortQueue(portNo, queueCapacity)
+            queues(portNo) = queue
+        }
+        queue
+    }
+
+    private def activate(queue: PortQueue): Unit = {
+        // Refresh the port when it was not yet known or has been removed,
+        // since the port number may have been reused.
+        if ((queue.port eq null) || queue.port.removed) {
+            queue.port = ports.get(queue.portNo)
+        }
+        if (activeCount == active.length) {
+            active = Arrays.copyOf(active, activeCount << 1)
+        }
+        active(activeCount) = queue
+        activeCount += 1
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.management
+
+import java.io.BufferedWriter
+import java.lang.management.ManagementFactory
+
+import javax.management.ObjectName
+
+import org.slf4j.LoggerFactory
+
+import org.midonet.util.StringUtil
+import org.midonet.util.logging.Logger
+
+object HeavyHittersMXBean {
+    val Name = "org.midonet.midolman:type=HeavyHitters"
+}
+
+trait HeavyHittersMXBean {
+    def getTopPorts: Array[HeavyHitter]
+    def getTopDevices: Array[HeavyHitter]
+    def getTopFlows: Array[HeavyHitter]
+}
+
+/**
+  * Exposes the top talkers published by the heavy hitters Insights listener
+  * through JMX and the statistics HTTP server.
+  */
+object HeavyHitters extends HeavyHittersMXBean {
+    val log = Logger(LoggerFactory.getLogger("org.midonet.midolman.management"))
+
+    private val Empty = new Array[HeavyHitter](0)
+
+    @volatile private var ports = Empty
+    @volatile private var devices = Empty
+    @volatile private var flows = Empty
+
+    override def getTopPorts: Array[HeavyHitter] = ports
+
+    override def getTopDevices: Array[HeavyHitter] = devices
+
+    override def getTopFlows: Array[HeavyHitter] = flows
+
+    /**
+      * Publishes the top talkers computed for the last interval.
+      */
+    def publish(ports: Array[HeavyHitter], devices: Array[HeavyHitter],
+                flows: Array[HeavyHitter]): Unit = {
+        this.ports = ports
+        this.devices = devices
+        this.flows = flows
+    }
+
+    def reset(): Unit = publish(Empty, Empty, Empty)
+
+    // Flag to prevent multiple registrations on the same JVM. This Could
+    // happen in unit tests.
+    private var registered = false
+
+    def registerAsMXBean(): Unit = this.synchronized {
+        if (!registered) {
+            try {
+                val name = HeavyHittersMXBean.Name
+                ManagementFactory.getPlatformMBeanServer
+                    .registerMBean(this, new ObjectName(name))
+                registered = true
+                log.info(s"Registered HeavyHitters JMX bean as $name")
+            } catch {
+                case e: Exception =>
+                    log.error("Failed to register heavy hitters JMX bean", e)
+            }
+        }
+    }
+
+    def toTextTable(writer: BufferedWriter, delim: Char = '\t'): Unit = {
+        writeTable("port", ports, writer, delim)
+        writeTable("device", devices, writer, delim)
+        writeTable("flow", flows, writer, delim)
+    }
+
+    private def writeTable(kind: String, hitters: Array[HeavyHitter],
+                           writer: BufferedWriter, delim: Char): Unit = {
+        var index = 0
+        while (index < hitters.length) {
+            writer.append(kind).append(delim)
+                  .append(hitters(index).getKey).append(delim)
+            StringUtil.append(writer, hitters(index).getPackets).append('\n')
+            index += 1
+        }
+    }
+}
+
+class HeavyHittersHTTPHandler extends SimpleHTTPServer.Handler {
+    override def path: String = "/heavy_hitters"
+    def writeResponse(writer: BufferedWriter): Unit = {
+        HeavyHitters.toTextTable(writer)
+    }
+}
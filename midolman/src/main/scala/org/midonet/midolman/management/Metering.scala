@@ -19,6 +19,7 @@ import java.io.BufferedWriter
 import java.lang.management._
 import java.util
 import java.util.Map.Entry
+import java.util.UUID
 import java.util.function.Consumer
 import javax.management._
 
@@ -27,12 +28,33 @@ import com.typesafe.scalalogging.Logger
 import org.slf4j.LoggerFactory
 import org.midonet.management.{FlowMeters, FlowStats, MeteringMXBean}
 import org.midonet.midolman.monitoring.MeterRegistry
+import org.midonet.midolman.monitoring.MeterRegistry.MeterVisitor
 import org.midonet.util.StringUtil
 
 object Metering extends MeteringMXBean {
     private val Log =
         Logger(LoggerFactory.getLogger("org.midonet.midolman.management"))
 
+    /** Aggregates the meters visited into a map of snapshots. */
+    private class MeterAggregator(val meters: util.Map[String, FlowStats])
+        extends MeterVisitor {
+        override def visit(name: String, packets: Long, bytes: Long): Unit = {
+            val stats = meters.get(name)
+            if (stats eq null) {
+                meters.put(name, new FlowStats(packets, bytes))
+            } else {
+                stats.add(packets, bytes)
+            }
+        }
+    }
+
+    private class TextTableWriter(writer: BufferedWriter, delim: Char)
+        extends MeterVisitor {
+        override def visit(name: String, packets: Long, bytes: Long): Unit = {
+            serializeMeter(name, packets, bytes, writer, delim)
+        }
+    }
+
     private var registries = List[MeterRegistry]()
     @volatile private var flowMeters: Array[FlowMeters] = _
 
@@ -58,16 +80,10 @@ object Metering extends MeteringMXBean {
             meters = new Array[FlowMeters](r.length)
             var index = 0
             while (index < meters.length) {
-                val regMeters = new util.HashMap[String, FlowStats]
-                val keys = r(index).getMeterKeys.iterator
-                while (keys.hasNext) {
-                    val key = keys.next()
-                    val value = r(index).getMeter(key)
-                    if (value != null) {
-                        regMeters.put(key, value)
-                    }
-                }
-                meters(index) = new FlowMeters(index, regMeters)
+                val aggregator =
+                    new MeterAggregator(new util.HashMap[String, FlowStats])
+                r(index).foreachMeter(aggregator)
+                meters(index) = new FlowMeters(index, aggregator.meters)
                 index += 1
             }
             flowMeters = meters
@@ -77,23 +93,63 @@ object Metering extends MeteringMXBean {
 
     override def getConsolidatedMeters: FlowMeters = {
         val iterator = registries.iterator
-        val meters = new util.HashMap[String, FlowStats]()
+        val aggregator =
+            new MeterAggregator(new util.HashMap[String, FlowStats]())
         while (iterator.hasNext) {
-            val registry = iterator.next()
-            val keys = registry.getMeterKeys.iterator
-            while (keys.hasNext) {
-                val key = keys.next
-                val value = registry.getMeter(key)
-                val stats = meters.get(key)
+            iterator.next().foreachMeter(aggregator)
+        }
+        new FlowMeters(-1, aggregator.meters)
+    }
+
+    override def getRuleCounter(ruleId: String): FlowStats = {
+        val id = UUID.fromString(ruleId)
+        registries.foldLeft(new FlowStats()) { (acc, r) =>
+            val stats = r.ruleCounters.get(id)
+            if (stats ne null)
+                acc.add(stats)
+            acc
+        }
+    }
+
+    override def getRuleCounters: FlowMeters = {
+        val counters = new util.HashMap[String, FlowStats]()
+        val iterator = consolidatedRuleCounters().entrySet().iterator()
+        while (iterator.hasNext) {
+            val entry = iterator.next()
+            counters.put(entry.getKey.toString, entry.getValue)
+        }
+        new FlowMeters(-1, counters)
+    }
+
+    /**
+     * Returns the rule counters aggregated across the meter registries of
+     * all packet workers.
+     */
+    def consolidatedRuleCounters(): util.Map[UUID, FlowStats] = {
+        val counters = new util.HashMap[UUID, FlowStats]()
+        val iterator = registries.iterator
+        while (iterator.hasNext) {
+            iterator.next().ruleCounters.foreach { (rule, packets, bytes) =>
+                val stats = counters.get(rule)
                 if (stats eq null) {
-                    meters.put(key, new FlowStats(value.getPackets,
-                                                  value.getBytes))
+                    counters.put(rule, new FlowStats(packets, bytes))
                 } else {
-                    stats.add(value)
+                    stats.add(packets, bytes)
                 }
             }
         }
-        new FlowMeters(-1, meters)
+        counters
+    }
+
+    /**
+     * Removes the counters of a deleted rule from the meter registries of all
+     * packet workers.
+     */
+    def forgetRuleCounters(ruleId: UUID): Unit = {
+        val iterator = registries.iterator
+        while (iterator.hasNext) {
+            iterator.next().ruleCounters.remove(ruleId)
+        }
     }
 
     def registerAsMXBean(meters: MeterRegistry) = this.synchronized {
@@ -115,14 +171,9 @@ object Metering extends MeteringMXBean {
 
     def toTextTable(writer: BufferedWriter, delim: Char = '\t') : Unit = {
         var i = 0
-
+        val visitor = new TextTableWriter(writer, delim)
         while (i < registries.length) {
-            val keys = registries(i).getMeterKeys.iterator
-            while (keys.hasNext) {
-                val key = keys.next()
-                val meter = registries(i).getMeter(key)
-                serializeMeter(key, meter.getPackets, meter.getBytes, writer, delim)
-            }
+            registries(i).foreachMeter(visitor)
             i += 1
         }
     }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.management
+
+import java.io.BufferedWriter
+import java.lang.management.ManagementFactory
+import java.util.{Arrays, Collections, Comparator, PriorityQueue}
+
+import javax.management.ObjectName
+
+import org.slf4j.LoggerFactory
+
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.util.StringUtil
+import org.midonet.util.logging.Logger
+
+object PacketLatencyMXBean {
+    val Name = "org.midonet.midolman:type=PacketLatency"
+}
+
+trait PacketLatencyMXBean {
+    def startTrace(samples: Int): Unit
+    def stopTrace(): Unit
+    def isTracing: Boolean
+    def getSlowestPackets: Array[PacketLatencySample]
+}
+
+/**
+  * An on-demand trace of the slowest packets processed by the packet workers,
+  * with the time each packet spent in every stage of the packet pipeline.
+  * The trace keeps the slowest `samples` packets since it was started, and
+  * it is exposed through JMX and the statistics HTTP server.
+  *
+  * When the trace is stopped, recording a packet only reads a volatile
+  * field. When it is started, only the packets slower than the fastest
+  * sample in a full trace take the lock.
+  */
+object PacketLatency extends PacketLatencyMXBean {
+    val log = Logger(LoggerFactory.getLogger("org.midonet.midolman.management"))
+
+    private val Empty = new Array[PacketLatencySample](0)
+
+    private val ByTotal = new Comparator[PacketLatencySample] {
+        override def compare(a: PacketLatencySample,
+                             b: PacketLatencySample): Int =
+            java.lang.Long.compare(a.getTotalNanos, b.getTotalNanos)
+    }
+
+    // The samples ordered by total time, with the fastest at the head.
+    private val samples = new PriorityQueue[PacketLatencySample](16, ByTotal)
+
+    @volatile private var capacity = 0
+    @volatile private var threshold = Long.MaxValue
+
+    override def startTrace(samples: Int): Unit = this.synchronized {
+        this.samples.clear()
+        threshold = if (samples > 0) -1L else Long.MaxValue
+        capacity = Math.max(samples, 0)
+        log.info(s"Tracing the latency of the slowest $samples packets")
+    }
+
+    override def stopTrace(): Unit = this.synchronized {
+        capacity = 0
+        threshold = Long.MaxValue
+        log.info("Stopped tracing the packet latency")
+    }
+
+    override def isTracing: Boolean = capacity > 0
+
+    override def getSlowestPackets: Array[PacketLatencySample] =
+        this.synchronized {
+            if (samples.isEmpty) {
+                Empty
+            } else {
+                val array = samples.toArray(Empty)
+                Arrays.sort(array, Collections.reverseOrder(ByTotal))
+                array
+            }
+        }
+
+    /**
+      * Records the stage times of a packet whose datapath flow was written,
+      * if tracing is enabled and the packet is among the slowest packets.
+      * The ring wait and simulation times are computed by the caller.
+      */
+    def record(context: PacketContext, ringWaitNanos: Long,
+               simulationNanos: Long): Unit = {
+        if (capacity > 0) {
+            val total = context.handedOffAtNanos -
+                        context.packet.startTimeNanos + context.flowWriteNanos
+            if (total > threshold) {
+                add(new PacketLatencySample(
+                    context.cookie, context.origMatch.toString, context.runs,
+                    total, ringWaitNanos, simulationNanos,
+                    context.postponedNanos, context.postponedOn,
+                    context.translationNanos, context.handoffNanos,
+                    context.flowWriteNanos))
+            }
+        }
+    }
+
+    private def add(sample: PacketLatencySample): Unit = this.synchronized {
+        val max = capacity
+        if (max > 0) {
+            if (samples.size < max) {
+                samples.offer(sample)
+            } else if (sample.getTotalNanos > samples.peek().getTotalNanos) {
+                samples.poll()
+                samples.offer(sample)
+            }
+            if (samples.size >= max) {
+                threshold = samples.peek().getTotalNanos
+            }
+        }
+    }
+
+    // Flag to prevent multiple registrations on the same JVM. This Could
+    // happen in unit tests.
+    private var registered = false
+
+    def registerAsMXBean(): Unit = this.synchronized {
+        if (!registered) {
+            try {
+                val name = PacketLatencyMXBean.Name
+                ManagementFactory.getPlatformMBeanServer
+                    .registerMBean(this, new ObjectName(name))
+                registered = true
+                log.info(s"Registered PacketLatency JMX bean as $name")
+            } catch {
+                case e: Exception =>
+                    log.error("Failed to register packet latency JMX bean", e)
+            }
+        }
+    }
+
+    def toTextTable(writer: BufferedWriter, delim: Char = '\t'): Unit = {
+        val array = getSlowestPackets
+        var index = 0
+        while (index < array.length) {
+            val sample = array(index)
+            StringUtil.append(writer, sample.getCookie).append(delim)
+            StringUtil.append(writer, sample.getTotalNanos).append(delim)
+            StringUtil.append(writer, sample.getRingWaitNanos).append(delim)
+            StringUtil.append(writer, sample.getSimulationNanos).append(delim)
+            StringUtil.append(writer, sample.getPostponedNanos).append(delim)
+            writer.append(String.valueOf(sample.getPostponedOn)).append(delim)
+            StringUtil.append(writer, sample.getTranslationNanos).append(delim)
+            StringUtil.append(writer, sample.getHandoffNanos).append(delim)
+            StringUtil.append(writer, sample.getFlowWriteNanos).append(delim)
+            StringUtil.append(writer, sample.getRuns).append(delim)
+            writer.append(sample.getFlowMatch).append('\n')
+            index += 1
+        }
+    }
+}
+
+class PacketLatencyHTTPHandler extends SimpleHTTPServer.Handler {
+    override def path: String = "/packet_latency"
+    def writeResponse(writer: BufferedWriter): Unit = {
+        PacketLatency.toTextTable(writer)
+    }
+}
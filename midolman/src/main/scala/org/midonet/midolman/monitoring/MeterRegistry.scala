@@ -15,8 +15,7 @@
  */
 package org.midonet.midolman.monitoring
 
-import java.util.concurrent.ConcurrentHashMap
-import java.util.{ArrayList, Collection, Collections, List, HashMap => JHashMap}
+import java.util.{ArrayList, Arrays, Collection, List, UUID}
 
 import com.typesafe.scalalogging.Logger
 
@@ -24,7 +23,7 @@ import org.slf4j.LoggerFactory
 
 import org.midonet.odp.FlowMatch
 import org.midonet.odp.flows.FlowStats
-import org.midonet.sdn.flows.FlowTagger.{FlowTag, MeterTag}
+import org.midonet.sdn.flows.FlowTagger.{FlowTag, MeterIds, MeterTag}
 import org.midonet.util.collection.ArrayObjectPool
 import org.midonet.management.{FlowStats => JmxFlowStats}
 
@@ -32,44 +31,155 @@ object MeterRegistry {
     def newOnHeap(maxFlows: Int): MeterRegistry =
         new OnHeapMeterRegistry(maxFlows)
     def newOffHeap(): MeterRegistry = new NativeMeterRegistry
+
+    /**
+     * Receives the counters of the meters of a registry, without boxing.
+     */
+    trait MeterVisitor {
+        def visit(name: String, packets: Long, bytes: Long): Unit
+    }
 }
 
+/**
+ * Counts the packets and bytes of the meters of a packet worker. Flows are
+ * identified by the flow identifier assigned by the flow controller, while
+ * the native registry, which does not use it, identifies them by their flow
+ * match.
+ */
 trait MeterRegistry {
+    import MeterRegistry.MeterVisitor
+
     def getMeterKeys(): Collection[String]
     def getMeter(key: String): JmxFlowStats
-    def trackFlow(flowMatch: FlowMatch, tags: List[FlowTag]): Unit
-    def recordPacket(packetLen: Int, tags: List[FlowTag]): Unit
-    def updateFlow(flowMatch: FlowMatch, stats: FlowStats): Unit
-    def forgetFlow(flowMatch: FlowMatch): Unit
+    def ruleCounters: RuleCounters
+    def trackFlow(flowId: Long, flowMatch: FlowMatch, tags: List[FlowTag],
+                  rules: List[UUID]): Unit
+    def recordPacket(packetLen: Int, tags: List[FlowTag],
+                     rules: List[UUID]): Unit
+    def updateFlow(flowId: Long, flowMatch: FlowMatch, stats: FlowStats): Unit
+    def forgetFlow(flowId: Long, flowMatch: FlowMatch): Unit
+
+    /**
+     * Calls the visitor with a snapshot of the counters of every meter.
+     */
+    def foreachMeter(visitor: MeterVisitor): Unit = {
+        val keys = getMeterKeys().iterator()
+        while (keys.hasNext) {
+            val key = keys.next()
+            val meter = getMeter(key)
+            if (meter ne null) {
+                visitor.visit(key, meter.getPackets, meter.getBytes)
+            }
+        }
+    }
 }
 
+object OnHeapMeterRegistry {
+
+    private final class Counters(val capacity: Int) {
+        val packets = new Array[Long](capacity)
+        val bytes = new Array[Long](capacity)
+        val used = new Array[Boolean](capacity)
+    }
+
+    private final val NoFlow = -1L
+    private final val InitialMeters = 256
+
+    private def hash(flowId: Long): Int = {
+        val h = flowId * 0x9E3779B97F4A7C15L
+        (h ^ (h >>> 32)).toInt
+    }
+}
+
+/**
+ * A [[MeterRegistry]] that does not allocate on the packet path.
+ *
+ * The counters of the meters are kept in primitive arrays indexed by the
+ * interned meter identifier of each [[MeterTag]]. Each packet worker owns one
+ * registry, which it updates without synchronization, while [[Metering]]
+ * aggregates a possibly stale snapshot of the counters of all registries. The
+ * tracked flows are kept in an open-addressing table keyed by their flow
+ * identifier, with their metadata taken from a pool.
+ */
 class OnHeapMeterRegistry(val maxFlows: Int) extends MeterRegistry {
+    import MeterRegistry.MeterVisitor
+    import OnHeapMeterRegistry._
+
     val log = Logger(LoggerFactory.getLogger("org.midonet.metering"))
 
     class FlowData {
-        val meters = new ArrayList[MeterTag](8)
+        var meters = new Array[Int](8)
+        var numMeters = 0
+        val rules = new ArrayList[UUID](8)
         val stats = new FlowStats()
 
         def reset() {
             stats.bytes = 0
             stats.packets = 0
-            meters.clear()
+            numMeters = 0
+            rules.clear()
+        }
+
+        def addMeter(meterId: Int): Unit = {
+            if (numMeters == meters.length) {
+                meters = Arrays.copyOf(meters, numMeters << 1)
+            }
+            meters(numMeters) = meterId
+            numMeters += 1
         }
     }
 
     private val metadataPool = new ArrayObjectPool[FlowData]((maxFlows * 1.1).toInt,
                                                               pool => new FlowData())
 
-    private val meters = new ConcurrentHashMap[String, JmxFlowStats]()
-    private val trackedFlows = new JHashMap[FlowMatch, FlowData]()
+    @volatile private var counters =
+        new Counters(Math.max(InitialMeters, MeterIds.size))
+    override val ruleCounters = new RuleCounters()
+
+    // Open-addressing table from flow identifier to flow metadata.
+    private var flowIds = newFlowIds(
+        Integer.highestOneBit(Math.max(maxFlows, 8) - 1) << 2)
+    private var flows = new Array[FlowData](flowIds.length)
+    private var flowMask = flowIds.length - 1
+    private var numFlows = 0
+
     private val DELTA = new FlowStats()
 
-    override def getMeterKeys(): Collection[String] = meters.keySet
+    override def getMeterKeys(): Collection[String] = {
+        val c = counters
+        val keys = new ArrayList[String]()
+        var id = 0
+        while (id < c.capacity) {
+            if (c.used(id)) {
+                keys.add(MeterIds.nameOf(id))
+            }
+            id += 1
+        }
+        keys
+    }
+
+    override def getMeter(key: String): JmxFlowStats = {
+        val c = counters
+        val id = MeterIds.idOf(key)
+        if (id >= 0 && id < c.capacity && c.used(id))
+            new JmxFlowStats(c.packets(id), c.bytes(id))
+        else null
+    }
 
-    override def getMeter(key: String): JmxFlowStats = meters.get(key)
+    override def foreachMeter(visitor: MeterVisitor): Unit = {
+        val c = counters
+        var id = 0
+        while (id < c.capacity) {
+            if (c.used(id)) {
+                visitor.visit(MeterIds.nameOf(id), c.packets(id), c.bytes(id))
+            }
+            id += 1
+        }
+    }
 
-    override def trackFlow(flowMatch: FlowMatch, tags: List[FlowTag]): Unit = {
-        if (trackedFlows.containsKey(flowMatch))
+    override def trackFlow(flowId: Long, flowMatch: FlowMatch,
+                           tags: List[FlowTag], rules: List[UUID]): Unit = {
+        if (slotOf(flowId) >= 0)
             return
 
         var metadata = metadataPool.take
@@ -82,73 +192,181 @@ class OnHeapMeterRegistry(val maxFlows: Int) extends MeterRegistry {
         while (i < tags.size()) {
             tags.get(i) match {
                 case meter: MeterTag =>
-                    metadata.meters add meter
-                    if (meters.containsKey(meter.meterName)) {
-                        log.debug(s"tracking a new flow for meter ${meter.meterName}")
-                    } else {
-                        meters.put(meter.meterName, new JmxFlowStats())
+                    val c = countersFor(meter.meterId)
+                    if (!c.used(meter.meterId)) {
+                        c.used(meter.meterId) = true
                         log.debug(s"discovered a new meter: ${meter.meterName}")
                     }
+                    metadata.addMeter(meter.meterId)
                 case _ => // Do nothing
             }
             i += 1
         }
 
-        log.debug(s"new flow is associated with ${metadata.meters.size} meters")
-        if (metadata.meters.size() > 0) {
-            // Note: Avoid keeping a reference to the given FlowMatch
-            // because its lifetime can be shorter than this entry.
-            val key = new FlowMatch
-            key.reset(flowMatch)
-            trackedFlows.put(key, metadata)
+        i = 0
+        while (i < rules.size()) {
+            metadata.rules add rules.get(i)
+            i += 1
+        }
+
+        log.debug(s"new flow is associated with ${metadata.numMeters} " +
+                  s"meters and ${metadata.rules.size} rules")
+        if (metadata.numMeters > 0 || metadata.rules.size() > 0) {
+            putFlow(flowId, metadata)
         } else {
             metadataPool.offer(metadata)
         }
     }
 
-    override def recordPacket(packetLen: Int, tags: List[FlowTag]): Unit = {
-        DELTA.packets = 1
-        DELTA.bytes = packetLen
+    override def recordPacket(packetLen: Int, tags: List[FlowTag],
+                              rules: List[UUID]): Unit = {
+        var j = 0
+        while (j < rules.size()) {
+            ruleCounters.add(rules.get(j), 1, packetLen)
+            j += 1
+        }
 
         var i = 0
         while (i < tags.size()) {
             tags.get(i) match {
                 case meter: MeterTag =>
-                    if (meters.containsKey(meter.meterName)) {
-                        log.debug(s"adding a packet to meter: ${meter.meterName}")
-                        meters.get(meter.meterName).add(DELTA.packets, DELTA.bytes)
-                    } else {
-                        meters.put(meter.meterName, new JmxFlowStats(DELTA.packets, DELTA.bytes))
-                        log.debug(s"discovered a new meter: ${meter.meterName}")
-                    }
+                    val id = meter.meterId
+                    val c = countersFor(id)
+                    c.used(id) = true
+                    c.packets(id) += 1
+                    c.bytes(id) += packetLen
                 case _ => // Do nothing
             }
             i += 1
         }
     }
 
-    override def updateFlow(flowMatch: FlowMatch, stats: FlowStats): Unit = {
-        val metadata = trackedFlows.get(flowMatch)
-        if (metadata ne null) {
+    override def updateFlow(flowId: Long, flowMatch: FlowMatch,
+                            stats: FlowStats): Unit = {
+        val slot = slotOf(flowId)
+        if (slot >= 0) {
+            val metadata = flows(slot)
             metadata.stats.updateAndGetDelta(stats, DELTA)
             if (DELTA.packets < 0) {
                 metadata.stats.packets = 0
                 metadata.stats.bytes = 0
                 metadata.stats.updateAndGetDelta(stats, DELTA)
             }
+            val c = counters
             var i = 0
-            while (i < metadata.meters.size()) {
-                val meterName = metadata.meters.get(i).meterName
-                log.debug(s"meter $meterName got ${DELTA.bytes} bytes / ${DELTA.packets} packets")
-                meters.get(meterName).add(DELTA.packets, DELTA.bytes)
+            while (i < metadata.numMeters) {
+                val id = metadata.meters(i)
+                c.packets(id) += DELTA.packets
+                c.bytes(id) += DELTA.bytes
+                i += 1
+            }
+            i = 0
+            while (i < metadata.rules.size()) {
+                ruleCounters.add(metadata.rules.get(i), DELTA.packets,
+                                 DELTA.bytes)
                 i += 1
             }
         }
     }
 
-    override def forgetFlow(flowMatch: FlowMatch) {
-        val metadata = trackedFlows.remove(flowMatch)
-        if (metadata ne null)
+    override def forgetFlow(flowId: Long, flowMatch: FlowMatch): Unit = {
+        val slot = slotOf(flowId)
+        if (slot >= 0) {
+            val metadata = flows(slot)
+            removeSlot(slot)
             metadataPool.offer(metadata)
+        }
+    }
+
+    /** The number of flows tracked by the registry. */
+    def trackedFlows: Int = numFlows
+
+    private def countersFor(meterId: Int): Counters = {
+        val c = counters
+        if (meterId < c.capacity) c else growCounters(c, meterId)
+    }
+
+    private def growCounters(c: Counters, meterId: Int): Counters = {
+        var capacity = c.capacity << 1
+        while (capacity <= meterId) {
+            capacity <<= 1
+        }
+        val newCounters = new Counters(capacity)
+        System.arraycopy(c.packets, 0, newCounters.packets, 0, c.capacity)
+        System.arraycopy(c.bytes, 0, newCounters.bytes, 0, c.capacity)
+        System.arraycopy(c.used, 0, newCounters.used, 0, c.capacity)
+        counters = newCounters
+        newCounters
+    }
+
+    private def slotOf(flowId: Long): Int = {
+        var slot = hash(flowId) & flowMask
+        while (flowIds(slot) != NoFlow) {
+            if (flowIds(slot) == flowId) {
+                return slot
+            }
+            slot = (slot + 1) & flowMask
+        }
+        -1
+    }
+
+    private def putFlow(flowId: Long, metadata: FlowData): Unit = {
+        if ((numFlows + 1) << 1 > flowIds.length) {
+            growFlows()
+        }
+        var slot = hash(flowId) & flowMask
+        while (flowIds(slot) != NoFlow) {
+            slot = (slot + 1) & flowMask
+        }
+        flowIds(slot) = flowId
+        flows(slot) = metadata
+        numFlows += 1
+    }
+
+    /**
+     * Removes a slot from the flow table, shifting back the following slots
+     * of the probe sequence.
+     */
+    private def removeSlot(slot: Int): Unit = {
+        var hole = slot
+        var next = (slot + 1) & flowMask
+        while (flowIds(next) != NoFlow) {
+            val home = hash(flowIds(next)) & flowMask
+            if (((next - home) & flowMask) >= ((next - hole) & flowMask)) {
+                flowIds(hole) = flowIds(next)
+                flows(hole) = flows(next)
+                hole = next
+            }
+            next = (next + 1) & flowMask
+        }
+        flowIds(hole) = NoFlow
+        flows(hole) = null
+        numFlows -= 1
+    }
+
+    private def growFlows(): Unit = {
+        val oldFlowIds = flowIds
+        val oldFlows = flows
+        flowIds = newFlowIds(oldFlowIds.length << 1)
+        flows = new Array[FlowData](flowIds.length)
+        flowMask = flowIds.length - 1
+        var i = 0
+        while (i < oldFlowIds.length) {
+            if (oldFlowIds(i) != NoFlow) {
+                var slot = hash(oldFlowIds(i)) & flowMask
+                while (flowIds(slot) != NoFlow) {
+                    slot = (slot + 1) & flowMask
+                }
+                flowIds(slot) = oldFlowIds(i)
+                flows(slot) = oldFlows(i)
+            }
+            i += 1
+        }
+    }
+
+    private def newFlowIds(capacity: Int): Array[Long] = {
+        val ids = new Array[Long](capacity)
+        Arrays.fill(ids, NoFlow)
+        ids
     }
 }
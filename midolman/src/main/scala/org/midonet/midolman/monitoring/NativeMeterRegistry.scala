@@ -48,6 +48,10 @@ class NativeMeterRegistry extends MeterRegistry {
 
     private val ptr = JNI.create()
 
+    // The native registry does not track the rules of the flows, and only
+    // counts the rules traversed by simulated packets.
+    override val ruleCounters = new RuleCounters()
+
     override def getMeterKeys(): util.Collection[String] = {
         util.Arrays.asList(JNI.getMeterKeys(ptr): _*)
     }
@@ -59,23 +63,32 @@ class NativeMeterRegistry extends MeterRegistry {
         }
     }
 
-    override def trackFlow(flowMatch: FlowMatch,
-                           tags: util.List[FlowTag]): Unit = {
+    override def trackFlow(flowId: Long,
+                           flowMatch: FlowMatch,
+                           tags: util.List[FlowTag],
+                           rules: util.List[util.UUID]): Unit = {
         JNI.trackFlow(
             ptr, FlowMatches.toBytes(flowMatch), tagsToTagStrings(tags))
     }
 
     override def recordPacket(packetLen: Int,
-                              tags: util.List[FlowTag]): Unit = {
+                              tags: util.List[FlowTag],
+                              rules: util.List[util.UUID]): Unit = {
         JNI.recordPacket(ptr, packetLen, tagsToTagStrings(tags))
+        var i = 0
+        while (i < rules.size()) {
+            ruleCounters.add(rules.get(i), 1, packetLen)
+            i += 1
+        }
     }
 
-    override def updateFlow(flowMatch: FlowMatch, stats: FlowStats): Unit = {
+    override def updateFlow(flowId: Long, flowMatch: FlowMatch,
+                            stats: FlowStats): Unit = {
         JNI.updateFlow(ptr, FlowMatches.toBytes(flowMatch),
                        stats.packets, stats.bytes)
     }
 
-    override def forgetFlow(flowMatch: FlowMatch): Unit = {
+    override def forgetFlow(flowId: Long, flowMatch: FlowMatch): Unit = {
         JNI.forgetFlow(ptr, FlowMatches.toBytes(flowMatch))
     }
 
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.monitoring
+
+import java.util.UUID
+import java.util.concurrent.ConcurrentLinkedQueue
+
+import org.midonet.management.FlowStats
+
+object RuleCounters {
+
+    private final class Table(val capacity: Int) {
+        val msbs = new Array[Long](capacity)
+        val lsbs = new Array[Long](capacity)
+        val packets = new Array[Long](capacity)
+        val bytes = new Array[Long](capacity)
+        val used = new Array[Boolean](capacity)
+        var size = 0
+
+        def mask = capacity - 1
+    }
+
+    private def capacityFor(entries: Int): Int = {
+        Integer.highestOneBit(Math.max(entries, 16) - 1) << 1
+    }
+
+    private def hash(msb: Long, lsb: Long): Int = {
+        val h = msb ^ lsb
+        val i = (h ^ (h >>> 32)).toInt
+        i ^ (i >>> 16)
+    }
+
+}
+
+/**
+ * Packet and byte counters for the rules traversed by the flows of a packet
+ * worker.
+ *
+ * The counters are stored in an open-addressing table keyed by the rule
+ * identifier, such that updating a counter does not allocate. The table has
+ * a single writer, the packet worker owning the [[MeterRegistry]], while other
+ * threads may read a possibly stale view of the counters with `foreach` and
+ * `get`, which is how they are aggregated across workers off the packet path.
+ *
+ * The counters of deleted rules are removed at the request of any thread with
+ * `remove`, and the writer applies the removals in `processRemovals` by
+ * replacing the table, such that the table does not keep the counters of
+ * every rule ever hit.
+ */
+final class RuleCounters(initialCapacity: Int = 256) {
+
+    import RuleCounters._
+
+    @volatile private var table = new Table(capacityFor(initialCapacity))
+    private val removals = new ConcurrentLinkedQueue[UUID]()
+
+    /**
+     * Adds the given number of packets and bytes to the counters of a rule.
+     */
+    def add(rule: UUID, packets: Long, bytes: Long): Unit = {
+        val msb = rule.getMostSignificantBits
+        val lsb = rule.getLeastSignificantBits
+        var t = table
+        var index = indexOf(t, msb, lsb)
+        if (!t.used(index)) {
+            if ((t.size + 1) << 1 > t.capacity) {
+                t = grow(t)
+                index = indexOf(t, msb, lsb)
+            }
+            t.msbs(index) = msb
+            t.lsbs(index) = lsb
+            t.used(index) = true
+            t.size += 1
+        }
+        t.packets(index) += packets
+        t.bytes(index) += bytes
+    }
+
+    /**
+     * Returns the counters of a rule, or `null` if the rule has not been hit.
+     */
+    def get(rule: UUID): FlowStats = {
+        val t = table
+        val index = indexOf(t, rule.getMostSignificantBits,
+                            rule.getLeastSignificantBits)
+        if (t.used(index)) new FlowStats(t.packets(index), t.bytes(index))
+        else null
+    }
+
+    /**
+     * Calls the given function with the identifier, packets and bytes of every
+     * rule that has been hit.
+     */
+    def foreach(f: (UUID, Long, Long) => Unit): Unit = {
+        val t = table
+        var index = 0
+        while (index < t.capacity) {
+            if (t.used(index)) {
+                f(new UUID(t.msbs(index), t.lsbs(index)), t.packets(index),
+                  t.bytes(index))
+            }
+            index += 1
+        }
+    }
+
+    /**
+     * Requests the removal of the counters of a rule. This method may be
+     * called from any thread, and the counters are removed by the writer on
+     * the next call to `processRemovals`.
+     */
+    def remove(rule: UUID): Unit = {
+        removals.offer(rule)
+    }
+
+    /**
+     * Removes the counters of the rules whose removal was requested. The
+     * remaining counters are copied to a new table sized for them, which
+     * replaces the current table, such that the readers never see a partially
+     * updated table. This method must be called by the writer.
+     */
+    def processRemovals(): Unit = {
+        if (!removals.isEmpty) {
+            val t = table
+            val removed = new Array[Boolean](t.capacity)
+            var count = 0
+            var rule = removals.poll()
+            while (rule ne null) {
+                val index = indexOf(t, rule.getMostSignificantBits,
+                                    rule.getLeastSignificantBits)
+                if (t.used(index) && !removed(index)) {
+                    removed(index) = true
+                    count += 1
+                }
+                rule = removals.poll()
+            }
+            if (count > 0) {
+                val entries = t.size - count
+                copy(t, capacityFor(Math.max(initialCapacity, entries << 1)),
+                     removed, entries)
+            }
+        }
+    }
+
+    def size: Int = table.size
+
+    private def indexOf(t: Table, msb: Long, lsb: Long): Int = {
+        var index = hash(msb, lsb) & t.mask
+        while (t.used(index) &&
+               (t.msbs(index) != msb || t.lsbs(index) != lsb)) {
+            index = (index + 1) & t.mask
+        }
+        index
+    }
+
+    private def grow(t: Table): Table = {
+        copy(t, t.capacity << 1, null, t.size)
+    }
+
+    private def copy(t: Table, capacity: Int, removed: Array[Boolean],
+                     size: Int): Table = {
+        val newTable = new Table(capacity)
+        var index = 0
+        while (index < t.capacity) {
+            if (t.used(index) && ((removed eq null) || !removed(index))) {
+                val newIndex = indexOf(newTable, t.msbs(index), t.lsbs(index))
+                newTable.msbs(newIndex) = t.msbs(index)
+                newTable.lsbs(newIndex) = t.lsbs(index)
+                newTable.packets(newIndex) = t.packets(index)
+                newTable.bytes(newIndex) = t.bytes(index)
+                newTable.used(newIndex) = true
+            }
+            index += 1
+        }
+        newTable.size = size
+        table = newTable
+        newTable
+    }
+}
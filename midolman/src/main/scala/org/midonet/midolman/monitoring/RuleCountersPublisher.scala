@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.monitoring
+
+import java.util
+import java.util.UUID
+import java.util.concurrent.{ConcurrentLinkedQueue, Executors, ScheduledExecutorService, TimeUnit}
+
+import scala.concurrent.ExecutionContext
+import scala.util.control.NonFatal
+import scala.util.{Failure, Success}
+
+import com.google.common.annotations.VisibleForTesting
+import com.google.common.util.concurrent.{AbstractService, ThreadFactoryBuilder}
+
+import rx.Observer
+
+import org.midonet.cluster.data.storage.{StateResult, StateStorage}
+import org.midonet.cluster.models.Topology.Rule
+import org.midonet.cluster.state.RuleCountersStorage._
+import org.midonet.management.FlowStats
+import org.midonet.midolman.logging.MidolmanLogging
+import org.midonet.midolman.management.Metering
+import org.midonet.util.concurrent._
+
+object RuleCountersPublisher {
+
+    /** The number of intervals without changes after which the publisher
+      * checks whether a rule still exists. */
+    final val IdleIntervals = 10
+
+    private final class Published(val stats: FlowStats) {
+        var idleIntervals = 0
+    }
+
+}
+
+/**
+ * Periodically aggregates the rule counters of all packet workers and
+ * publishes the counters of the rules that changed since the last interval
+ * to the state storage, from where they are read by the REST API. The
+ * aggregation runs on its own thread, off the packet path.
+ *
+ * When the counters of a rule do not change for `IdleIntervals` intervals,
+ * the publisher checks whether the rule still exists, and if the rule or its
+ * chain were deleted, it removes the rule counters from the packet workers
+ * with the `forget` function.
+ */
+class RuleCountersPublisher(stateStore: StateStorage,
+                            intervalMillis: Long,
+                            counters: () => util.Map[UUID, FlowStats] =
+                                () => Metering.consolidatedRuleCounters(),
+                            forget: UUID => Unit =
+                                Metering.forgetRuleCounters)
+    extends AbstractService with MidolmanLogging {
+
+    import RuleCountersPublisher._
+
+    override def logSource = "org.midonet.metering.rule-counters"
+
+    private val published = new util.HashMap[UUID, Published]()
+    private val forgotten = new util.HashSet[UUID]()
+    private val deleted = new ConcurrentLinkedQueue[UUID]()
+    private var executor: ScheduledExecutorService = _
+
+    private val observer = new Observer[StateResult] {
+        override def onNext(result: StateResult): Unit = { }
+        override def onCompleted(): Unit = { }
+        override def onError(e: Throwable): Unit = {
+            // The rule may have been deleted since it was hit.
+            log.debug("Failed to publish rule counters", e)
+        }
+    }
+
+    override def doStart(): Unit = {
+        if (intervalMillis > 0) {
+            executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("rule-counters").build())
+            executor.scheduleWithFixedDelay(new Runnable {
+                override def run(): Unit = publishSafe()
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS)
+            log.info(s"Publishing rule counters every $intervalMillis ms")
+        }
+        notifyStarted()
+    }
+
+    override def doStop(): Unit = {
+        if (executor ne null) {
+            executor.shutdownNow()
+        }
+        notifyStopped()
+    }
+
+    /**
+     * Publishes the counters that changed since the last call, and returns
+     * the number of published rules.
+     */
+    @VisibleForTesting
+    private[monitoring] def publish(): Int = {
+        forgetDeleted()
+
+        var count = 0
+        val current = counters()
+        val iterator = current.entrySet().iterator()
+        while (iterator.hasNext) {
+            val entry = iterator.next()
+            val rule = entry.getKey
+            val stats = entry.getValue
+            val last = published.get(rule)
+            if (forgotten.contains(rule)) {
+                // The packet workers have not yet removed the counters.
+            } else if ((last eq null) || stats != last.stats) {
+                stateStore.setRuleCounters(rule, stats.packets, stats.bytes)
+                          .subscribe(observer)
+                published.put(rule, new Published(stats))
+                count += 1
+            } else {
+                last.idleIntervals += 1
+                if (last.idleIntervals % IdleIntervals == 0) {
+                    checkDeleted(rule)
+                }
+            }
+        }
+
+        // Keep only the rules that are still counted by the packet workers.
+        published.keySet().retainAll(current.keySet())
+        forgotten.retainAll(current.keySet())
+        count
+    }
+
+    private def checkDeleted(rule: UUID): Unit = {
+        implicit val ec = ExecutionContext.callingThread
+        stateStore.exists(classOf[Rule], rule).onComplete {
+            case Success(false) => deleted.offer(rule)
+            case Success(true) =>
+            case Failure(e) =>
+                log.debug(s"Failed to check whether rule $rule exists", e)
+        }
+    }
+
+    private def forgetDeleted(): Unit = {
+        var rule = deleted.poll()
+        while (rule ne null) {
+            log.debug(s"Forgetting the counters of deleted rule $rule")
+            forget(rule)
+            published.remove(rule)
+            forgotten.add(rule)
+            rule = deleted.poll()
+        }
+    }
+
+    private def publishSafe(): Unit = {
+        try {
+            val count = publish()
+            log.debug(s"Published the counters of $count rules")
+        } catch {
+            case NonFatal(e) => log.warn("Failed to publish rule counters", e)
+        }
+    }
+}
@@ -53,6 +53,19 @@ class PacketPipelineMetrics(val registry: MetricRegistry, workerId: Int) {
                       5, TimeUnit.MINUTES, 10, TimeUnit.SECONDS,
                       Clock.defaultClock)))
 
+    private def stageTimer(stage: String): Timer = registry.register(
+        name(classOf[PacketPipelineHistogram], workerTag, "stages", stage),
+        new Timer(new HdrHistogramSlidingTimeWindowReservoir(
+                      5, TimeUnit.MINUTES, 10, TimeUnit.SECONDS,
+                      Clock.defaultClock)))
+
+    val ringWaitTime = stageTimer("ringWait")
+    val simulationTime = stageTimer("simulation")
+    val postponedTime = stageTimer("postponed")
+    val translationTime = stageTimer("translation")
+    val handoffTime = stageTimer("handoff")
+    val flowWriteTime = stageTimer("flowWrite")
+
     val currentDpFlowsMetric = registry.register(
         name(classOf[FlowTablesGauge], workerTag, "currentDatapathFlows"),
         new Gauge[Long] {
@@ -69,10 +82,106 @@ class PacketPipelineMetrics(val registry: MetricRegistry, workerId: Int) {
     val workerQueueOverflow = registry.meter(
         name(classOf[PacketPipelineMeter], workerTag, "packetQueue", "overflow"))
 
+    // Written only by the packet worker thread.
+    @volatile private var busyNanos = 0L
+    @volatile private var invalidationBacklogTags = 0
+    @volatile private var invalidationBacklogFlows = 0
+
+    val flowInvalidationBacklogTags = registry.register(
+        name(classOf[FlowTablesGauge], workerTag, "invalidationBacklogTags"),
+        new Gauge[Int] {
+            override def getValue: Int = invalidationBacklogTags
+        })
+
+    val flowInvalidationBacklogFlows = registry.register(
+        name(classOf[FlowTablesGauge], workerTag, "invalidationBacklogFlows"),
+        new Gauge[Int] {
+            override def getValue: Int = invalidationBacklogFlows
+        })
+
+    val flowInvalidationTimer = registry.register(
+        name(classOf[FlowTablesTimer], workerTag, "flowInvalidation"),
+        new Timer(new HdrHistogramSlidingTimeWindowReservoir(
+                      5, TimeUnit.MINUTES, 10, TimeUnit.SECONDS,
+                      Clock.defaultClock)))
+
+    val utilization = registry.register(
+        name(classOf[PacketPipelineGauge], workerTag, "utilization"),
+        new Gauge[Double] {
+            private var lastBusyNanos = 0L
+            private var lastNanos = System.nanoTime()
+
+            /** The fraction of time the worker has been processing packets
+              * since the last time the gauge was read. */
+            override def getValue: Double = synchronized {
+                val busy = busyNanos
+                val now = System.nanoTime()
+                val value =
+                    if (now > lastNanos)
+                        (busy - lastBusyNanos).toDouble / (now - lastNanos)
+                    else 0.0
+                lastBusyNanos = busy
+                lastNanos = now
+                Math.min(value, 1.0)
+            }
+        })
+
     def packetPostponed() {
         packetsPostponed.mark()
         packetsOnHold.inc()
     }
+
+    def workerBusy(nanos: Long): Unit = {
+        busyNanos += nanos
+    }
+
+    /** Sets the number of tags pending invalidation and the number of
+      * invalidated flows pending deletion from the datapath. */
+    def flowInvalidationBacklog(tags: Int, flows: Int): Unit = {
+        invalidationBacklogTags = tags
+        invalidationBacklogFlows = flows
+    }
+
+    /** Records the time in nanoseconds an ingress packet spent in each
+      * stage of the pipeline. The postponed and flow write times are only
+      * recorded for the packets that were postponed or created a flow. */
+    def packetStages(ringWait: Long, simulation: Long, postponed: Long,
+                     translation: Long, handoff: Long, flowWrite: Long): Unit = {
+        ringWaitTime.update(ringWait, TimeUnit.NANOSECONDS)
+        simulationTime.update(simulation, TimeUnit.NANOSECONDS)
+        if (postponed > 0)
+            postponedTime.update(postponed, TimeUnit.NANOSECONDS)
+        translationTime.update(translation, TimeUnit.NANOSECONDS)
+        handoffTime.update(handoff, TimeUnit.NANOSECONDS)
+        if (flowWrite > 0)
+            flowWriteTime.update(flowWrite, TimeUnit.NANOSECONDS)
+    }
+
+    def flowInvalidationTime(nanos: Long): Unit = {
+        flowInvalidationTimer.update(nanos, TimeUnit.NANOSECONDS)
+    }
+}
+
+class UpcallPortMetrics(val registry: MetricRegistry, portNo: Int) {
+    val portTag = s"port-$portNo"
+
+    private val droppedName =
+        name(classOf[PacketPipelineMeter], portTag, "upcallQueue", "dropped")
+    private val latencyName =
+        name(classOf[PacketPipelineHistogram], portTag, "upcallQueueLatency")
+
+    val packetsDropped = registry.meter(droppedName)
+
+    val queueLatency = registry.register(
+        latencyName,
+        new Timer(new HdrHistogramSlidingTimeWindowReservoir(
+                      5, TimeUnit.MINUTES, 10, TimeUnit.SECONDS,
+                      Clock.defaultClock)))
+
+    def unregister(): Unit = {
+        registry.remove(droppedName)
+        registry.remove(latencyName)
+    }
 }
 
 class PacketExecutorMetrics(val registry: MetricRegistry, executorId: Int) {
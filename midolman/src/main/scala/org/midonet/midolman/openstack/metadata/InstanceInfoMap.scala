@@ -17,6 +17,7 @@
 package org.midonet.midolman.openstack.metadata
 
 import java.util.UUID
+import java.util.concurrent.CopyOnWriteArrayList
 
 import scala.collection.concurrent.TrieMap
 
@@ -51,11 +52,28 @@ case class InstanceInfo(address: String,
  *
  * Accessed by MetadataServiceWorkflow, MetadataServiceManagerActor,
  * and ProxyHandler contexts.  InstanceInfo instances in this map
- * are considered immutable.
+ * are considered immutable.  The listeners are notified of the
+ * InstanceInfo removed or replaced in this map.
  */
 object InstanceInfoMap {
     private val byAddr: TrieMap[String, InstanceInfo] = new TrieMap()
     private val byPortId: TrieMap[UUID, String] = new TrieMap()
+    private val listeners = new CopyOnWriteArrayList[InstanceInfo => Unit]()
+
+    def addListener(listener: InstanceInfo => Unit): Unit = {
+        listeners add listener
+    }
+
+    def removeListener(listener: InstanceInfo => Unit): Unit = {
+        listeners remove listener
+    }
+
+    private def notifyRemoved(info: InstanceInfo): Unit = {
+        val iterator = listeners.iterator()
+        while (iterator.hasNext) {
+            iterator.next()(info)
+        }
+    }
 
     def put(addr: String, portId: UUID, value: InstanceInfo) = {
         // Since the address is calculated using the datapath port, if we get 2
@@ -66,6 +84,7 @@ object InstanceInfoMap {
                 Log warn s"Found stale info: $staleInfo"
                 Log warn s"Removing old entry for port: ${staleInfo.portId}"
                 byPortId remove staleInfo.portId
+                notifyRemoved(staleInfo)
             case None => // everything ok
         }
         byPortId put (portId, addr)
@@ -82,6 +101,6 @@ object InstanceInfoMap {
     def removeByPortId(portId: UUID) = {
         val Some(addr) = byPortId get portId
         byPortId remove portId
-        byAddr remove addr
+        byAddr remove addr foreach notifyRemoved
     }
 }
@@ -17,6 +17,8 @@
 package org.midonet.midolman.openstack.metadata
 
 import java.io.InputStream
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent._
 
 import com.sun.jersey.api.client.config.DefaultClientConfig
 import com.sun.jersey.api.client.{Client, ClientResponse, UniformInterfaceException}
@@ -52,33 +54,91 @@ object Conv {
  *   The real instance address.
  *   Nova metadata API uses this as local-ipv4 when fixed_ips are not
  *   available.  It's also passed to vendordata_driver.
+ *
+ * A single Jersey client is shared by all the requests, and the requests are
+ * executed by a bounded pool of threads, which bounds the number of
+ * concurrent connections to the Nova metadata API.  The connections are kept
+ * alive between requests by the JDK's HTTP keep-alive cache.  The signatures
+ * of the instance IDs are memoized, and the responses to GET requests are
+ * optionally cached per instance and path for a short time.  Both are
+ * invalidated when the instance is removed from InstanceInfoMap.
  */
 
 class NovaMetadataClientException(message: String)
     extends RuntimeException(message)
 
+class NovaMetadataTimeoutException(message: String)
+    extends RuntimeException(message)
+
 object NovaMetadataClient {
 
     import Conv._
 
+    // The maximum number of cached responses of an instance.
+    private final val MaxCachedPaths = 256
+
+    private case class CachedResponse(data: String, expiresAt: Long)
+
     private def signInstanceId(sharedSecret: String,
                                instanceId: String): String =
         Hmac.hmac(sharedSecret, instanceId)
 
     private def readAll(stream: InputStream) = IOUtils.toByteArray(stream)
+}
+
+class NovaMetadataClient(config: MetadataConfig) {
+
+    import NovaMetadataClient._
+
+    private val novaMetadataUrl = config.novaMetadataUrl
+    private val sharedSecret = config.sharedSecret
+    private val requestTimeout = config.requestTimeout
+    private val cacheTtl = MILLISECONDS.toNanos(config.responseCacheTtl)
+
+    private val executor = new ThreadPoolExecutor(
+        config.maxConnections, config.maxConnections, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue[Runnable](), new ThreadFactory {
+            override def newThread(r: Runnable): Thread = {
+                val thread = new Thread(r, "metadata-proxy-client")
+                thread.setDaemon(true)
+                thread
+            }
+        })
+    executor.allowCoreThreadTimeOut(true)
+
+    private val client = {
+        val c = Client.create(new DefaultClientConfig(classOf[ByteArrayProvider]))
+        c.setConnectTimeout(requestTimeout.toInt)
+        c.setReadTimeout(requestTimeout.toInt)
+        c.setExecutorService(executor)
+        c
+    }
+
+    private val signatures = new ConcurrentHashMap[String, String]()
+    private val responses =
+        new ConcurrentHashMap[InstanceInfo,
+                              ConcurrentHashMap[String, CachedResponse]]()
+
+    private val instanceRemoved = (info: InstanceInfo) => {
+        signatures remove info.instanceId
+        responses remove info
+        ()
+    }
+    InstanceInfoMap addListener instanceRemoved
 
     def proxyRequest(method: String,
                      path: String,
                      content: InputStream,
-                     remoteAddr: String,
-                     novaMetadataUrl: String,
-                     sharedSecret: String): String = {
+                     remoteAddr: String): String = {
         Log debug s"$method request from $remoteAddr for path $path"
         InstanceInfoMap getByAddr remoteAddr match {
             case Some(info) =>
                 Log debug s"Request matches instance $info"
-                proxyRequest(method, path, content,
-                             info, novaMetadataUrl, sharedSecret)
+                if (method == "GET" && cacheTtl > 0) {
+                    cachedGet(path, info, remoteAddr)
+                } else {
+                    proxyRequest(method, path, content, info)
+                }
             case None =>
                 /*
                  * This shouldn't happen normally as datapath flows are
@@ -90,25 +150,63 @@ object NovaMetadataClient {
         }
     }
 
+    /**
+     * Releases the HTTP client and its threads, and stops listening to the
+     * InstanceInfoMap changes.
+     */
+    def close(): Unit = {
+        InstanceInfoMap removeListener instanceRemoved
+        client.destroy()
+        executor.shutdown()
+    }
+
+    private def cachedGet(path: String, info: InstanceInfo,
+                          remoteAddr: String): String = {
+        var cached = responses get info
+        if (cached eq null) {
+            responses.putIfAbsent(
+                info, new ConcurrentHashMap[String, CachedResponse]())
+            cached = responses get info
+        }
+        val now = System.nanoTime()
+        val response = cached get path
+        if ((response ne null) && response.expiresAt - now > 0) {
+            Log debug s"Cached response for instance:${info.instanceId} " +
+                      s"path:$path"
+            return response.data
+        }
+        val data = proxyRequest("GET", path, null, info)
+        // The instance may have been removed while the request was pending.
+        if ((InstanceInfoMap getByAddr remoteAddr) == Some(info) &&
+            (cached.size < MaxCachedPaths || cached.containsKey(path))) {
+            cached.put(path, CachedResponse(data, now + cacheTtl))
+        }
+        data
+    }
+
+    private def signature(info: InstanceInfo): String = {
+        var sig = signatures get info.instanceId
+        if (sig eq null) {
+            sig = signInstanceId(sharedSecret, info.instanceId)
+            signatures.put(info.instanceId, sig)
+        }
+        sig
+    }
+
     private def proxyRequest(method: String,
                      path: String,
                      content: InputStream,
-                     info: InstanceInfo,
-                     novaMetadataUrl: String,
-                     sharedSecret: String): String = {
-        val instanceIdSig = signInstanceId(sharedSecret, info.instanceId)
-        val cc = new DefaultClientConfig(classOf[ByteArrayProvider])
-        val client = Client.create(cc)
+                     info: InstanceInfo): String = {
         val url = novaMetadataUrl + path
         Log debug s"$method request from instance:${info.instanceId} to $url"
 
-        val resource = client.resource(url)
+        val resource = client.asyncResource(url)
             .header("X-Tenant-ID", info.tenantId)
             .header("X-Instance-ID", info.instanceId)
-            .header("X-Instance-ID-Signature", instanceIdSig)
+            .header("X-Instance-ID-Signature", signature(info))
             .header("X-Forwarded-For", info.address)
         try {
-            val response = method match {
+            val future = method match {
                 case "GET" => resource.get(classOf[ClientResponse])
                 // POST is used by nova blueprint get-password
                 // https://blueprints.launchpad.net/nova/+spec/get-password
@@ -117,16 +215,32 @@ object NovaMetadataClient {
                 case _ => throw new NovaMetadataClientException(
                     s"Unsupported method $method")
             }
-            if (response.getStatus >= 300) {
-                throw new UniformInterfaceException(response)
+            val response = try {
+                future.get(requestTimeout, MILLISECONDS)
+            } catch {
+                case e: ExecutionException if e.getCause ne null =>
+                    throw e.getCause
+                case e: TimeoutException =>
+                    future.cancel(true)
+                    throw new NovaMetadataTimeoutException(
+                        s"Request to $url timed out")
             }
             val encoding = {
                 val respType = response.getType
                 if (respType == null) "UTF-8"
                 else respType.getParameters.getOrDefault("charset", "UTF-8")
             }
-            val data = IOUtils.toString(response.getEntityInputStream,
-                                        encoding)
+            // Read the whole entity and close it, such that the connection
+            // is returned to the keep-alive cache, also for the error
+            // responses.
+            val data = try {
+                IOUtils.toString(response.getEntityInputStream, encoding)
+            } finally {
+                response.close()
+            }
+            if (response.getStatus >= 300) {
+                throw new UniformInterfaceException(response)
+            }
             Log debug s"Response for instance:${info.instanceId} " +
                       s"status:${response.getStatus} " +
                       s"length:${response.getLength} " +
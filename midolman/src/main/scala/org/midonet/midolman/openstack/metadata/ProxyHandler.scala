@@ -27,23 +27,36 @@ import org.midonet.midolman.config.MidolmanConfig
 
 class ProxyHandler(val config: MidolmanConfig) extends AbstractHandler {
 
+    private var client: NovaMetadataClient = _
+
+    override protected def doStart(): Unit = {
+        client = new NovaMetadataClient(config.openstack.metadata)
+        super.doStart()
+    }
+
+    override protected def doStop(): Unit = {
+        super.doStop()
+        client.close()
+    }
+
     def handle(target: String, baseReq: Request, request: HttpServletRequest,
                response: HttpServletResponse) = {
         baseReq setHandled true
         try {
-            val result = NovaMetadataClient.proxyRequest(
+            val result = client.proxyRequest(
                                 request.getMethod,
                                 request.getPathInfo,
                                 request.getInputStream,
-                                request.getRemoteAddr,
-                                config.openstack.metadata.novaMetadataUrl,
-                                config.openstack.metadata.sharedSecret)
+                                request.getRemoteAddr)
             response.getWriter print result
         } catch {
             case e: UniformInterfaceException =>
                 response.sendError(e.getResponse.getStatus, e.getMessage)
             case e: NovaMetadataClientException =>
                 response.sendError(HttpServletResponse.SC_FORBIDDEN, e.getMessage)
+            case e: NovaMetadataTimeoutException =>
+                response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT,
+                                   e.getMessage)
         }
     }
 }
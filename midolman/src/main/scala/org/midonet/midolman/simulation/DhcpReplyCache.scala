@@ -0,0 +1,298 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.{HashMap, HashSet, UUID}
+
+import org.midonet.packets._
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+object DhcpReplyCache {
+
+    private case class Key(portId: UUID, mac: MAC, msgType: Byte)
+
+    /**
+     * A cached reply: the serialized reply packet, the offsets of the fields
+     * patched for every request, and the tags invalidating the reply.
+     */
+    private final class Entry(val key: Key,
+                              val template: Array[Byte],
+                              val xidOffset: Int,
+                              val checksumOffset: Int,
+                              val xid: Int,
+                              val yourIpAddress: Int,
+                              val underlayMtu: Int,
+                              val tags: Array[FlowTag])
+
+    private final val EthernetHeaderLength = 14
+    private final val VlanTagLength = 4
+    private final val UdpHeaderLength = 8
+    private final val UdpChecksumOffset = 6
+    private final val DhcpXidOffset = 4
+    private final val DhcpYourIpOffset = 16
+    // The fixed DHCP header, followed by the magic cookie.
+    private final val DhcpOptionsOffset = 240
+
+    private final val DhcpType = DHCPOption.Code.DHCP_TYPE.value
+    private final val RequestedIp = DHCPOption.Code.REQUESTED_IP.value
+    private final val ParamRequestList = DHCPOption.Code.PRM_REQ_LIST.value
+    private final val Pad = DHCPOption.Code.PAD.value
+    private final val End = DHCPOption.Code.END.value
+
+    private final val Discover = DHCPOption.MsgType.DISCOVER.value
+    private final val Request = DHCPOption.MsgType.REQUEST.value
+    private final val Offer = DHCPOption.MsgType.OFFER.value
+    private final val Ack = DHCPOption.MsgType.ACK.value
+
+    private def getShort(data: Array[Byte], offset: Int): Int =
+        ((data(offset) & 0xff) << 8) | (data(offset + 1) & 0xff)
+
+    private def putShort(data: Array[Byte], offset: Int, value: Int): Unit = {
+        data(offset) = (value >>> 8).toByte
+        data(offset + 1) = value.toByte
+    }
+
+    private def getInt(data: Array[Byte], offset: Int): Int =
+        (getShort(data, offset) << 16) | getShort(data, offset + 2)
+
+    private def putInt(data: Array[Byte], offset: Int, value: Int): Unit = {
+        putShort(data, offset, value >>> 16)
+        putShort(data, offset + 2, value)
+    }
+}
+
+/**
+ * Caches the DHCP replies generated by [[DhcpImpl]] for a packet workflow.
+ *
+ * The replies are cached by input port, client MAC and request message type,
+ * as the serialized reply packet together with the offsets of the DHCP
+ * transaction identifier and of the UDP checksum. A request hitting the cache
+ * is answered by copying the cached reply, writing the transaction identifier
+ * of the request and updating the UDP checksum incrementally (RFC 1624),
+ * without looking up the DHCP subnets in storage or building the DHCP options.
+ * Only OFFER and ACK replies are cached, and a DHCP REQUEST only hits the
+ * cache when its requested address, if any, matches the cached address.
+ *
+ * The cached replies are removed when any of their tags is invalidated. This
+ * class is not thread-safe and must only be used from the thread of its
+ * packet workflow.
+ */
+final class DhcpReplyCache(maxEntries: Int = 16384) {
+
+    import DhcpReplyCache._
+
+    private val entries = new HashMap[Key, Entry]()
+    private val keysByTag = new HashMap[FlowTag, HashSet[Key]]()
+
+    // The fields of the last parsed request.
+    private var requestType: Byte = 0
+    private var hasRequestedIp = false
+    private var requestedIp = 0
+
+    /**
+     * Returns a copy of the cached reply for the given DHCP request, with the
+     * transaction identifier of the request, or `null` if the request must be
+     * handled by [[DhcpImpl]].
+     */
+    def get(portId: UUID, mac: MAC, request: DHCP, underlayMtu: Int)
+    : Ethernet = {
+        if (!parseRequest(request)) {
+            return null
+        }
+        val entry = entries.get(Key(portId, mac, requestType))
+        if ((entry eq null) || entry.underlayMtu != underlayMtu ||
+            (hasRequestedIp && requestedIp != entry.yourIpAddress)) {
+            return null
+        }
+        val data = entry.template.clone()
+        patchXid(data, entry, request.getTransactionId)
+        Ethernet.deserialize(data)
+    }
+
+    /**
+     * Caches the reply generated by [[DhcpImpl]] for the given DHCP request.
+     * The reply is removed when any of the given tags is invalidated.
+     */
+    def put(portId: UUID, mac: MAC, request: DHCP, underlayMtu: Int,
+            reply: Ethernet, tags: Array[FlowTag]): Unit = {
+        if (!parseRequest(request)) {
+            return
+        }
+        val key = Key(portId, mac, requestType)
+        remove(key)
+        if (entries.size() >= maxEntries) {
+            return
+        }
+
+        val data = reply.serialize()
+        var ipOffset = EthernetHeaderLength
+        var etherType = getShort(data, ipOffset - 2).toShort
+        while (etherType == Ethernet.VLAN_TAGGED_FRAME ||
+               etherType == Ethernet.PROVIDER_BRIDGING_TAG) {
+            ipOffset += VlanTagLength
+            etherType = getShort(data, ipOffset - 2).toShort
+        }
+        if (etherType != IPv4.ETHERTYPE) {
+            return
+        }
+        val udpOffset = ipOffset + ((data(ipOffset) & 0x0f) << 2)
+        val dhcpOffset = udpOffset + UdpHeaderLength
+        if (data.length < dhcpOffset + DhcpOptionsOffset ||
+            !isCacheable(data, dhcpOffset)) {
+            return
+        }
+
+        val entry = new Entry(key, data,
+                              dhcpOffset + DhcpXidOffset,
+                              udpOffset + UdpChecksumOffset,
+                              getInt(data, dhcpOffset + DhcpXidOffset),
+                              getInt(data, dhcpOffset + DhcpYourIpOffset),
+                              underlayMtu, tags)
+        entries.put(key, entry)
+        var index = 0
+        while (index < tags.length) {
+            var keys = keysByTag.get(tags(index))
+            if (keys eq null) {
+                keys = new HashSet[Key]()
+                keysByTag.put(tags(index), keys)
+            }
+            keys.add(key)
+            index += 1
+        }
+    }
+
+    /**
+     * Removes the cached replies tagged with the given tag.
+     */
+    def invalidate(tag: FlowTag): Unit = {
+        val keys = keysByTag.remove(tag)
+        if (keys ne null) {
+            val iterator = keys.iterator()
+            while (iterator.hasNext) {
+                remove(iterator.next())
+            }
+        }
+    }
+
+    /** The number of cached replies. */
+    def size: Int = entries.size()
+
+    private def remove(key: Key): Unit = {
+        val entry = entries.remove(key)
+        if (entry ne null) {
+            var index = 0
+            while (index < entry.tags.length) {
+                val keys = keysByTag.get(entry.tags(index))
+                if (keys ne null) {
+                    keys.remove(key)
+                    if (keys.isEmpty) {
+                        keysByTag.remove(entry.tags(index))
+                    }
+                }
+                index += 1
+            }
+        }
+    }
+
+    /**
+     * Reads the message type and the requested address of a DHCP request,
+     * and returns whether the request may be answered from the cache. The
+     * requests that [[DhcpImpl]] rejects are never cached.
+     */
+    private def parseRequest(request: DHCP): Boolean = {
+        requestType = 0
+        hasRequestedIp = false
+        val chaddr = request.getClientHardwareAddress
+        if ((chaddr eq null) || chaddr.length != 6) {
+            return false
+        }
+        val options = request.getOptions
+        if (options eq null) {
+            return false
+        }
+        var index = 0
+        while (index < options.size()) {
+            val option = options.get(index)
+            val code = option.getCode
+            if (code == DhcpType) {
+                if (option.getLength != 1) {
+                    return false
+                }
+                requestType = option.getData()(0)
+            } else if (code == ParamRequestList) {
+                if (option.getLength <= 0) {
+                    return false
+                }
+            } else if (code == RequestedIp) {
+                if ((option.getData eq null) || option.getData.length != 4) {
+                    return false
+                }
+                hasRequestedIp = true
+                requestedIp = IPv4Addr.bytesToInt(option.getData)
+            }
+            index += 1
+        }
+        requestType == Discover || requestType == Request
+    }
+
+    /**
+     * Returns whether a serialized reply is a DHCP OFFER or ACK.
+     */
+    private def isCacheable(data: Array[Byte], dhcpOffset: Int): Boolean = {
+        var offset = dhcpOffset + DhcpOptionsOffset
+        while (offset < data.length) {
+            val code = data(offset)
+            if (code == End) {
+                return false
+            } else if (code == Pad) {
+                offset += 1
+            } else if (offset + 2 < data.length) {
+                if (code == DhcpType) {
+                    val msgType = data(offset + 2)
+                    return msgType == Offer || msgType == Ack
+                }
+                offset += 2 + (data(offset + 1) & 0xff)
+            } else {
+                return false
+            }
+        }
+        false
+    }
+
+    /**
+     * Writes the transaction identifier of a request into a copy of a cached
+     * reply and updates the UDP checksum. The identifier is aligned to 16-bit
+     * words within the UDP datagram, such that the checksum can be updated
+     * using the differences of the two words: HC' = ~(~HC + ~m + m').
+     */
+    private def patchXid(data: Array[Byte], entry: Entry, xid: Int): Unit = {
+        if (xid == entry.xid) {
+            return
+        }
+        putInt(data, entry.xidOffset, xid)
+        val checksum = getShort(data, entry.checksumOffset)
+        if (checksum != 0) {
+            var sum = (~checksum & 0xffff) +
+                      (~(entry.xid >>> 16) & 0xffff) + (~entry.xid & 0xffff) +
+                      ((xid >>> 16) & 0xffff) + (xid & 0xffff)
+            while ((sum >>> 16) != 0) {
+                sum = (sum & 0xffff) + (sum >>> 16)
+            }
+            putShort(data, entry.checksumOffset, ~sum & 0xffff)
+        }
+    }
+}
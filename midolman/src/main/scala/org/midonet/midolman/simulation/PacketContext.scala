@@ -307,6 +307,8 @@ trait RecordedContext extends Clearable {
     val traversedRuleResults = new ArrayList[RuleResult]
     val traversedRulesMatched = new ArrayList[Boolean]
     val traversedRulesApplied = new ArrayList[Boolean]
+    // The rules whose condition matched, for the per-rule counters.
+    val matchedRules = new ArrayList[UUID]
 
     def recordTraversedRule(rule: UUID, result: RuleResult)
     : Unit = {
@@ -316,6 +318,9 @@ trait RecordedContext extends Clearable {
 
     def recordMatchedRule(rule: UUID, matched: Boolean): Unit = {
         traversedRulesMatched.add(matched)
+        if (matched && (rule ne null)) {
+            matchedRules.add(rule)
+        }
     }
 
     def recordAppliedRule(rule: UUID, applied: Boolean): Unit = {
@@ -327,6 +332,7 @@ trait RecordedContext extends Clearable {
         traversedRuleResults.clear()
         traversedRulesMatched.clear()
         traversedRulesApplied.clear()
+        matchedRules.clear()
     }
 
     override def clear(): Unit = {
@@ -433,6 +439,20 @@ class PacketContext extends Clearable
     var egressPort: UUID = null
     var egressPortNo: JInteger = null
 
+    // The time in nanoseconds the packet spent in each stage of the packet
+    // pipeline, accumulated over all simulation runs. The simulation time
+    // includes the translation time, and the flow write time is set by the
+    // flow processor before the flow is marked as processed.
+    var workflowStartNanos = 0L
+    var simulationNanos = 0L
+    var translationNanos = 0L
+    var postponedNanos = 0L
+    var postponedSinceNanos = 0L
+    var postponedOn: String = null
+    var handoffNanos = 0L
+    var handedOffAtNanos = 0L
+    var flowWriteNanos = 0L
+
     val flowProcessed: AtomicBoolean = new AtomicBoolean(false)
     val packetProcessed: AtomicBoolean = new AtomicBoolean(false)
 
@@ -492,6 +512,15 @@ class PacketContext extends Clearable
         this.origMatch.clear()
         this.egressPort = null
         this.egressPortNo = null
+        this.workflowStartNanos = 0L
+        this.simulationNanos = 0L
+        this.translationNanos = 0L
+        this.postponedNanos = 0L
+        this.postponedSinceNanos = 0L
+        this.postponedOn = null
+        this.handoffNanos = 0L
+        this.handedOffAtNanos = 0L
+        this.flowWriteNanos = 0L
         this.preRoutingMatch.clear()
         this.wcmatch.clear()
         this.diffBaseMatch.clear()
@@ -23,6 +23,8 @@ import scala.annotation.tailrec
 import scala.concurrent.{Future, Promise}
 import scala.util.Random
 
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry.name
 import com.google.common.collect.ArrayListMultimap
 
 import org.jctools.queues.SpscGrowableArrayQueue
@@ -32,6 +34,7 @@ import org.midonet.midolman.{NotYetException, SimulationBackChannel}
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.PacketWorkflow.GeneratedLogicalPacket
 import org.midonet.midolman.logging.MidolmanLogging
+import org.midonet.midolman.monitoring.metrics.{PacketPipelineGauge, PacketPipelineMetrics}
 import org.midonet.midolman.simulation._
 import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
 import org.midonet.sdn.flows.FlowTagger
@@ -60,6 +63,11 @@ object ArpRequestBroker {
     val RETRY_MAX_BASE_JITTER: Double = 1.25
     val RETRY_JITTER_GAP: Double = RETRY_MAX_BASE_JITTER - RETRY_MIN_BASE_JITTER
     val RETRY_JITTER_INCREMENT: Double = 0.1
+
+    /*
+     * Maximum number of negatively cached addresses per router.
+     */
+    val MAX_NEGATIVE_ENTRIES: Int = 65536
 }
 
 /**
@@ -77,10 +85,17 @@ object ArpRequestBroker {
  * agents may decide to ARP at the same time for the IP address. To reduce
  * this effect outside of the 1st ARP request, the implementation introduces
  * jitter to the staleness and ARP retry intervals.
+ *
+ * The ARP requests of each router are rate limited, and the addresses that
+ * could not be resolved are negatively cached for an exponentially growing
+ * period, such that traffic to a large number of dead addresses neither
+ * floods ARP requests nor suspends packets waiting for replies that will
+ * never arrive.
  */
 class ArpRequestBroker(config: MidolmanConfig,
                        backChannel: SimulationBackChannel,
-                       clock: NanoClock = NanoClock.DEFAULT)
+                       clock: NanoClock = NanoClock.DEFAULT,
+                       metrics: PacketPipelineMetrics = null)
     extends MidolmanLogging {
 
     override def logSource = "org.midonet.devices.router.arp-table"
@@ -96,6 +111,9 @@ class ArpRequestBroker(config: MidolmanConfig,
                 val broker = new SingleRouterArpRequestBroker(router.id,
                         router.arpCache, config, backChannel, clock)
                 brokers.put(router.id, broker)
+                if (metrics ne null) {
+                    registerMetrics(router.id, broker)
+                }
                 broker
             case broker => broker
         }
@@ -133,6 +151,23 @@ class ArpRequestBroker(config: MidolmanConfig,
         broker(router).setAndGet(ip, mac, port, cookie)
     }
 
+    private def registerMetrics(routerId: UUID,
+                                broker: SingleRouterArpRequestBroker): Unit = {
+        def register(metric: String)(f: => Int): Unit =
+            metrics.registry.register(
+                name(classOf[PacketPipelineGauge], metrics.workerTag, "arp",
+                     routerId.toString, metric),
+                new Gauge[Int] { override def getValue = f })
+        try {
+            register("outstandingArps") { broker.outstandingArps }
+            register("arpWaiters") { broker.waiters }
+            register("negativeArpEntries") { broker.negativeEntries }
+        } catch {
+            case e: IllegalArgumentException =>
+                log.debug(s"ARP metrics for router $routerId already registered")
+        }
+    }
+
     def process(): Unit = {
         val tables = brokers.values.iterator()
         while (tables.hasNext) {
@@ -202,6 +237,27 @@ class SingleRouterArpRequestBroker(id: UUID,
      */
     private val arpWaiters = ArrayListMultimap.create[IPv4Addr, Promise[MAC]]()
 
+    /*
+     * Addresses whose ARP request loops timed out without a reply. Packets
+     * to these addresses are not suspended, and no ARP requests are sent for
+     * them until the entry expires. The backoff of an entry doubles every time
+     * its address times out again, and the entry is forgotten once it has
+     * been expired for the maximum backoff.
+     */
+    private val negativeCache = new util.HashMap[IPv4Addr, NegativeEntry]()
+    private var nextNegativePurge = 0L
+
+    /*
+     * Token bucket limiting the rate of ARP requests. The bucket holds up to
+     * one second of requests, and the requests refreshing stale entries may
+     * only use the upper half of the bucket, which leaves the lower half for
+     * the addresses with packets waiting for their MAC.
+     */
+    private val rateLimit = config.arptable.rateLimit
+    private val bucketSize = rateLimit.toDouble
+    private var tokens = bucketSize
+    private var lastRefill = clock.timeMillis
+
     /*
      * Privately managed back-channel through which this class hears of newly
      * learned MACs. This class will install a callback in the underlying
@@ -237,6 +293,15 @@ class SingleRouterArpRequestBroker(id: UUID,
      */
     def isIdle: Boolean = arpLoops.isEmpty && expiryQ.isEmpty && arpWaiters.isEmpty
 
+    /* The number of addresses this broker is ARP'ing for. */
+    def outstandingArps: Int = arpLoops.size
+
+    /* The number of suspended packets waiting for a MAC. */
+    def waiters: Int = arpWaiters.size
+
+    /* The number of negatively cached addresses. */
+    def negativeEntries: Int = negativeCache.size
+
     /*
      * Checks back-channels (which are private, but exist) and runs all
      * ARP table book keeping tasks. Including expiries and ARP request
@@ -246,6 +311,7 @@ class SingleRouterArpRequestBroker(id: UUID,
         processNewMacs()
         processArpLoops()
         processExpirations()
+        processNegativeEntries()
     }
 
     @volatile
@@ -261,7 +327,8 @@ class SingleRouterArpRequestBroker(id: UUID,
 
     /*
      * Queries the ARP table, returning a MAC or throwing a NotYetException
-     * if the MAC is unknownn.
+     * if the MAC is unknownn. Returns null if the address is negatively
+     * cached, such that the packet is not suspended.
      */
     @throws(classOf[NotYetException])
     def get(ip: IPv4Addr, port: RouterPort, cookie: Long): MAC = {
@@ -269,8 +336,13 @@ class SingleRouterArpRequestBroker(id: UUID,
         val cacheEntry = arpCache.get(ip)
 
         if (shouldArp(cacheEntry)) {
-            arpForAddress(ip, port, cookie)
-            if ((cacheEntry ne null) && (cacheEntry.mac ne null))
+            val hasMac = (cacheEntry ne null) && (cacheEntry.mac ne null)
+            if (!hasMac && isNegativelyCached(ip)) {
+                log.debug(s"MAC for IP $ip unknown and negatively cached")
+                return null
+            }
+            arpForAddress(ip, port, cookie, refresh = hasMac)
+            if (hasMac)
                 cacheEntry.mac
             else
                 throw new NotYetException(waitForArpEntry(ip), s"MAC for IP $ip unknown, suspending during ARP")
@@ -279,13 +351,19 @@ class SingleRouterArpRequestBroker(id: UUID,
         }
     }
 
+    private def isNegativelyCached(ip: IPv4Addr): Boolean = {
+        val entry = negativeCache.get(ip)
+        (entry ne null) && clock.timeMillis < entry.until
+    }
+
     private def waitForArpEntry(ip: IPv4Addr): Future[MAC] = {
         val promise = Promise[MAC]()
         arpWaiters.put(ip, promise)
         promise.future
     }
 
-    private def arpForAddress(ip: IPv4Addr, port: RouterPort, cookie: Long): Unit = {
+    private def arpForAddress(ip: IPv4Addr, port: RouterPort, cookie: Long,
+                              refresh: Boolean): Unit = {
         if (arpLoops.contains(ip))
             return
         if (port.portAddress4 eq null)
@@ -293,8 +371,14 @@ class SingleRouterArpRequestBroker(id: UUID,
 
         val loop = new ArpLoop(ip, port, cookie)
 
-        val arp = makeArpRequest(port.portMac, port.portAddress4.getAddress, ip)
-        backChannel.tell(GeneratedLogicalPacket(port.id, arp, cookie))
+        if (tryAcquireToken(refresh)) {
+            val arp = makeArpRequest(port.portMac, port.portAddress4.getAddress, ip)
+            backChannel.tell(GeneratedLogicalPacket(port.id, arp, cookie))
+            loop.sent()
+        } else {
+            log.debug(s"ARP request for $ip delayed by the rate limit")
+            loop.defer(nextTokenTime(refresh))
+        }
 
         arpLoops.add(ip)
         arpLoopQ.add(loop)
@@ -357,20 +441,92 @@ class SingleRouterArpRequestBroker(id: UUID,
                 keepPromises(loop.ip, entry.mac)
             } else if (loop.timedOut) {
                 arpLoops.remove(loop.ip)
+                if ((entry eq null) || (entry.mac eq null)) {
+                    addNegativeEntry(loop.ip)
+                }
                 breakPromises(loop.ip)
             } else {
-                val arp = makeArpRequest(loop.port.portMac,
-                                         loop.port.portAddress4.getAddress,
-                                         loop.ip)
-                backChannel.tell(
-                    GeneratedLogicalPacket(loop.port.id, arp, loop.cookie))
-                loop.tick()
+                val refresh = (entry ne null) && (entry.mac ne null)
+                if (tryAcquireToken(refresh)) {
+                    val arp = makeArpRequest(loop.port.portMac,
+                                             loop.port.portAddress4.getAddress,
+                                             loop.ip)
+                    backChannel.tell(
+                        GeneratedLogicalPacket(loop.port.id, arp, loop.cookie))
+                    loop.sent()
+                } else {
+                    loop.defer(nextTokenTime(refresh))
+                }
                 arpLoopQ.add(loop)
             }
         }
         updateNextEvent()
     }
 
+    /*
+     * Takes a token from the rate limit bucket, returning false if the ARP
+     * request must be delayed.
+     */
+    private def tryAcquireToken(refresh: Boolean): Boolean = {
+        if (rateLimit <= 0)
+            return true
+        val now = clock.timeMillis
+        tokens = Math.min(bucketSize,
+                          tokens + (now - lastRefill) * rateLimit / 1000d)
+        lastRefill = now
+        if (tokens >= requiredTokens(refresh)) {
+            tokens -= 1
+            true
+        } else {
+            false
+        }
+    }
+
+    private def requiredTokens(refresh: Boolean): Double =
+        if (refresh) Math.max(1d, bucketSize / 2) else 1d
+
+    /*
+     * The time when the rate limit bucket will have enough tokens for an
+     * ARP request.
+     */
+    private def nextTokenTime(refresh: Boolean): Long = {
+        val missing = requiredTokens(refresh) - tokens
+        clock.timeMillis + Math.max(1L, Math.ceil(missing * 1000 / rateLimit).toLong)
+    }
+
+    private def addNegativeEntry(ip: IPv4Addr): Unit = {
+        val initialBackoff = config.arptable.negativeCache
+        if (initialBackoff <= 0)
+            return
+        var entry = negativeCache.get(ip)
+        if (entry eq null) {
+            if (negativeCache.size >= MAX_NEGATIVE_ENTRIES)
+                return
+            entry = new NegativeEntry(initialBackoff)
+            negativeCache.put(ip, entry)
+        } else {
+            entry.backoff = Math.min(entry.backoff * 2,
+                                     Math.max(initialBackoff,
+                                              config.arptable.negativeCacheMax))
+        }
+        entry.until = clock.timeMillis + entry.backoff
+        log.debug(s"ARP for $ip timed out, negatively cached for " +
+                  s"${entry.backoff} ms")
+    }
+
+    private def processNegativeEntries(): Unit = {
+        val now = clock.timeMillis
+        if (negativeCache.isEmpty || now < nextNegativePurge)
+            return
+        val maxBackoff = config.arptable.negativeCacheMax
+        val entries = negativeCache.values.iterator()
+        while (entries.hasNext) {
+            if (now >= entries.next().until + maxBackoff)
+                entries.remove()
+        }
+        nextNegativePurge = now + config.arptable.retryInterval
+    }
+
     private def breakPromises(ip: IPv4Addr) {
         val waiters = arpWaiters.removeAll(ip).iterator()
         while (waiters.hasNext)
@@ -389,7 +545,8 @@ class SingleRouterArpRequestBroker(id: UUID,
             case null =>
             case MacChange(ip, oldMac, newMac) if newMac ne null =>
                 log.debug("Got address for {}: {}", ip, newMac)
-                if ((oldMac ne null) && (newMac != oldMac)) {
+                val wasNegative = negativeCache.remove(ip) ne null
+                if (((oldMac ne null) && (newMac != oldMac)) || wasNegative) {
                     log.debug("Invalidating flows for {} in router {}", ip, id)
                     backChannel.tell(FlowTagger.tagForArpEntry(id, ip))
                 }
@@ -408,7 +565,10 @@ class SingleRouterArpRequestBroker(id: UUID,
     }
 
     class ArpLoop(val ip: IPv4Addr, val port: RouterPort, val cookie: Long) {
-        private val timeout = clock.timeMillis + config.arptable.timeout
+        /* The loop times out after the ARP timeout since its first request,
+         * such that an address whose requests are delayed by the rate limit
+         * is not negatively cached before it is ARPed. */
+        private var timeout = Long.MaxValue
 
         private val baseJitter = random.nextDouble() * RETRY_JITTER_GAP + RETRY_MIN_BASE_JITTER
         private var retries = -1
@@ -423,11 +583,25 @@ class SingleRouterArpRequestBroker(id: UUID,
             _nextTry = clock.timeMillis + (config.arptable.retryInterval * jitter).toLong
         }
 
-        tick()
+        /* Schedules the retry of a request that was just sent. */
+        def sent() {
+            if (timeout == Long.MaxValue)
+                timeout = clock.timeMillis + config.arptable.timeout
+            tick()
+        }
+
+        /* Delays the next try without counting a retry. */
+        def defer(until: Long) {
+            _nextTry = until
+        }
 
         def timedOut: Boolean = clock.timeMillis >= timeout
     }
 
+    private class NegativeEntry(var backoff: Long) {
+        var until: Long = 0L
+    }
+
     object ImmortalLoop extends ArpLoop(IPv4Addr.fromString("255.255.255.255" ), null, -1) {
         override val nextTry = Long.MaxValue
         override def tick() {}
@@ -19,11 +19,12 @@ package org.midonet.midolman.state
 import java.lang.{Integer => JInt, Long => JLong}
 import java.util.UUID
 import java.util.concurrent.{ConcurrentHashMap, ThreadLocalRandom}
+import java.util.concurrent.atomic.{AtomicLong, AtomicReferenceArray}
 import java.util.concurrent.TimeUnit.{NANOSECONDS => NANOS, MILLISECONDS => MILLIS}
 
-import scala.concurrent.{ExecutionContext, Future}
+import scala.concurrent.{ExecutionContext, Future, Promise}
 import scala.concurrent.duration._
-import scala.util.Success
+import scala.util.{Failure, Success}
 
 import org.midonet.midolman.NotYetException
 import org.midonet.midolman.rules.NatTarget
@@ -42,6 +43,9 @@ object NatLeaser {
     val BLOCK_EXPIRATION = 5 minutes
     private val OBLITERATION_CYCLE = (1 minute).toNanos
 
+    // The used ports of a block are tracked with a bitmap in a long.
+    require(BLOCK_SIZE == JLong.SIZE)
+
     private def blend(ip: IPv4Addr, port: Int): Long =
         (ip.toInt.toLong << 32) | port
 
@@ -53,21 +57,58 @@ object NatLeaser {
      * This type represents a block of BLOCK_SIZE ports. Each port, identified
      * by the NatBlock's tpPortStart plus the offset given by the position in
      * the leasedPorts array, can be oversubscribed based on a unique number,
-     * a combination of the destination IP and port.
+     * a combination of the destination IP and port. The set of unique numbers
+     * of a port is only created when the port is first leased, such that
+     * spare blocks are cheap to keep.
+     *
+     * The block also holds a bitmap of the ports that have at least one
+     * binding, used to prefer free ports and to tell whether the block is
+     * unused. The bitmap is a hint updated after the bindings: the sets of
+     * unique numbers remain the authority on whether a port can be leased.
      * It also holds a port index to enable round-robin allocation
      * of the ports in the block.
      */
     sealed class LeasedBlock(val block: NatBlock) {
-        val leasedPorts = new Array[ConcurrentHashMap[JLong, AnyRef]](BLOCK_SIZE)
+        val leasedPorts =
+            new AtomicReferenceArray[ConcurrentHashMap[JLong, AnyRef]](BLOCK_SIZE)
+        val usedPorts = new AtomicLong()
         var portIndex = ThreadLocalRandom.current().nextLong()
 
-        {
-            var i = 0
-            while (i < BLOCK_SIZE) {
-                leasedPorts(i) = new ConcurrentHashMap[JLong, AnyRef]
-                i += 1
+        def bindings(offset: Int): ConcurrentHashMap[JLong, AnyRef] = {
+            var value = leasedPorts.get(offset)
+            if (value eq null) {
+                value = new ConcurrentHashMap[JLong, AnyRef]
+                if (!leasedPorts.compareAndSet(offset, null, value))
+                    value = leasedPorts.get(offset)
+            }
+            value
+        }
+
+        /**
+         * Marks the port at the given offset as used.
+         */
+        def markUsed(offset: Int): Unit = {
+            val bit = 1L << offset
+            var current = usedPorts.get
+            while ((current & bit) == 0 &&
+                   !usedPorts.compareAndSet(current, current | bit)) {
+                current = usedPorts.get
             }
         }
+
+        /**
+         * Marks the port at the given offset as free.
+         */
+        def markFree(offset: Int): Unit = {
+            val bit = 1L << offset
+            var current = usedPorts.get
+            while ((current & bit) != 0 &&
+                   !usedPorts.compareAndSet(current, current & ~bit)) {
+                current = usedPorts.get
+            }
+        }
+
+        def isUnused: Boolean = usedPorts.get == 0
     }
 
     /**
@@ -95,6 +136,18 @@ object NatLeaser {
     type DeviceLeases = ConcurrentHashMap[UUID, IpLeases]
 
     type OutstandingRequests = ConcurrentHashMap[NatRange, Future[NatBlock]]
+
+    /**
+     * Returns the mask of the port offsets in the block starting at the given
+     * port that are within the given port range.
+     */
+    private def portMask(firstPortInBlock: Int, tpStart: Int, tpEnd: Int)
+    : Long = {
+        val first = Math.max(tpStart - firstPortInBlock, 0)
+        val last = Math.min(tpEnd - firstPortInBlock, BLOCK_MASK)
+        if (first > last) 0L
+        else (-1L >>> (BLOCK_MASK - last)) & (-1L << first)
+    }
     object NoNatBindingException extends Exception {
         override def fillInStackTrace(): Throwable = this
     }
@@ -113,8 +166,19 @@ trait NatLeaser {
     val clock: NanoClock
     private val deviceLeases = new DeviceLeases
     private val outstandingBlockRequests = new OutstandingRequests
+    private val outstandingSpareRequests = new OutstandingRequests
+
+    /**
+     * The number of unused blocks leased ahead of demand for each device,
+     * NAT IP and port range, such that a new connection does not wait for
+     * the allocator when the blocks in use fill up. The spare blocks are
+     * requested in the background when a spare block starts being used,
+     * and idle spare blocks are released by `obliterateUnusedBlocks` like
+     * any other idle block.
+     */
+    def spareBlocks: Int = 0
 
-    private var lastObliterated = 0L
+    @volatile private var lastObliterated = 0L
 
     /**
      *  Allocates a NatBinding for a particular device. We further scope the
@@ -134,7 +198,8 @@ trait NatLeaser {
             var ip = target.nwStart
             while (ip <= target.nwEnd) {
                 val leasedBlocks = getLeasedBlocks(deviceId, ip)
-                val binding = allocateInPortRange(leasedBlocks, uniquefier, ip,
+                val binding = allocateInPortRange(deviceId, leasedBlocks,
+                                                  uniquefier, ip,
                                                   target.tpStart, target.tpEnd)
                 if (binding ne null) {
                     return binding
@@ -171,7 +236,13 @@ trait NatLeaser {
         if (leasedBlock ne null) {
             val portOffset = binding.transportPort - leasedBlock.block.tpPortStart
             val uniquefier = blend(destinationIp, destinationPort)
-            leasedBlock.leasedPorts(portOffset).remove(uniquefier)
+            val bindings = leasedBlock.leasedPorts.get(portOffset)
+            if (bindings ne null) {
+                bindings.remove(uniquefier)
+                if (bindings.isEmpty) {
+                    leasedBlock.markFree(portOffset)
+                }
+            }
         }
     }
 
@@ -206,8 +277,9 @@ trait NatLeaser {
         }
     }
 
-    private def allocateInPortRange(leasedBlocks: LeasedBlocks, uniquefier: Long,
-                                    targetIp: IPv4Addr, targetPortStart: Int,
+    private def allocateInPortRange(deviceId: UUID, leasedBlocks: LeasedBlocks,
+                                    uniquefier: Long, targetIp: IPv4Addr,
+                                    targetPortStart: Int,
                                     targetPortEnd: Int): NatBinding = {
         var port = targetPortStart
         while (port <= targetPortEnd) {
@@ -216,9 +288,16 @@ trait NatLeaser {
             val leasedBlock = leasedBlocks.ref(block)
             if (leasedBlock ne null) {
                 val endPort = Math.min(targetPortEnd, firstPortInNextBlock - 1)
+                val wasUnused = leasedBlock.isUnused
                 val binding = allocateInPortBlock(leasedBlock, uniquefier,
                                                   targetIp, port, endPort)
                 if (binding ne null) {
+                    if (wasUnused && spareBlocks > 0) {
+                        // A spare block is now in use: replenish the spares.
+                        fetchSpareBlocks(
+                            new NatRange(deviceId, targetIp, targetPortStart,
+                                         targetPortEnd), leasedBlocks)
+                    }
                     return binding
                 }
 
@@ -234,13 +313,27 @@ trait NatLeaser {
     : NatBinding = {
         val index = lease.portIndex
         val firstPortInBlock = lease.block.tpPortStart
+
+        // Prefer the next free port, if any.
+        val freePorts = ~lease.usedPorts.get &
+                        portMask(firstPortInBlock, tpStart, tpEnd)
+        if (freePorts != 0L) {
+            val start = index.toInt & BLOCK_MASK
+            val i = JLong.numberOfTrailingZeros(
+                JLong.rotateRight(freePorts, start))
+            val portOffset = (start + i) & BLOCK_MASK
+            if (leasePort(lease, uniquefier, portOffset)) {
+                lease.portIndex += i + 31
+                return NatBinding(ip, firstPortInBlock + portOffset)
+            }
+        }
+
         var i = 0
         while (i < BLOCK_SIZE) { // Search all ports
             val portOffset = (index + i).toInt & BLOCK_MASK
             val port = firstPortInBlock + portOffset
             if (port >= tpStart && port <= tpEnd) {
-                val sharedBinding = lease.leasedPorts(portOffset)
-                if (sharedBinding.putIfAbsent(uniquefier, this) eq null) {
+                if (leasePort(lease, uniquefier, portOffset)) {
                     lease.portIndex += i + 31
                     return NatBinding(ip, port)
                 }
@@ -250,6 +343,16 @@ trait NatLeaser {
         null
     }
 
+    private def leasePort(lease: LeasedBlock, uniquefier: Long,
+                          portOffset: Int): Boolean = {
+        if (lease.bindings(portOffset).putIfAbsent(uniquefier, this) eq null) {
+            lease.markUsed(portOffset)
+            true
+        } else {
+            false
+        }
+    }
+
     private def fetchNatBlock(deviceId: UUID, targets: Array[NatTarget],
                                 targetIp: IPv4Addr, targetIndex: Int): Future[NatBlock] = {
         val target = targets(targetIndex)
@@ -262,7 +365,12 @@ trait NatLeaser {
             preexistingRequest
         } else {
             val newRequest = allocator.allocateBlockInRange(range) andThen {
-                case Success(data) => registerNewBlock(data)
+                case Success(data) =>
+                    registerNewBlock(data)
+                    if (spareBlocks > 0) {
+                        fetchSpareBlocks(range, getLeasedBlocks(deviceId,
+                                                                targetIp))
+                    }
             } recoverWith {
                 case NoFreeNatBlocksException =>
                     val nextIp = targetIp.next
@@ -291,6 +399,57 @@ trait NatLeaser {
         }
     }
 
+    /**
+     * Requests in the background as many blocks as needed to have the
+     * configured number of unused blocks in the given range. Only one such
+     * request is outstanding per range.
+     */
+    private def fetchSpareBlocks(range: NatRange,
+                                 leasedBlocks: LeasedBlocks): Unit = {
+        if (outstandingSpareRequests.containsKey(range))
+            return
+
+        val unused = leasedBlocks.fold(0, new Reducer[JInt, LeasedBlock, Int] {
+            override def apply(acc: Int, key: JInt, value: LeasedBlock): Int = {
+                val block = value.block
+                if (value.isUnused && block.tpPortEnd >= range.tpPortStart &&
+                    block.tpPortStart <= range.tpPortEnd) acc + 1
+                else acc
+            }
+        })
+        val missing = spareBlocks - unused
+        if (missing <= 0)
+            return
+
+        val promise = Promise[NatBlock]()
+        if (outstandingSpareRequests.putIfAbsent(range, promise.future) ne null)
+            return
+
+        log.debug("Leasing {} spare NAT blocks in {}", Int.box(missing), range)
+        implicit val ec = ExecutionContext.callingThread
+        promise.completeWith(fetchSpareBlocks(range, missing))
+        promise.future.onComplete {
+            case Failure(NoFreeNatBlocksException) =>
+                log.debug("No free NAT blocks left in {}", range)
+                outstandingSpareRequests.remove(range, promise.future)
+            case Failure(e) =>
+                log.warn(s"Failed to lease spare NAT blocks in $range", e)
+                outstandingSpareRequests.remove(range, promise.future)
+            case _ =>
+                outstandingSpareRequests.remove(range, promise.future)
+        }
+    }
+
+    private def fetchSpareBlocks(range: NatRange, count: Int)
+                                (implicit ec: ExecutionContext)
+    : Future[NatBlock] = {
+        allocator.allocateBlockInRange(range) flatMap { block =>
+            registerNewBlock(block)
+            if (count > 1) fetchSpareBlocks(range, count - 1)
+            else Future.successful(block)
+        }
+    }
+
     private def registerNewBlock(block: NatBlock): Unit = {
         log.debug("Acquiring NAT block {}", block)
         val leasedBlocks = getLeasedBlocks(block.deviceId, block.ip)
@@ -29,13 +29,13 @@ import scala.concurrent.duration._
 import scala.reflect.ClassTag
 import scala.util.control.NonFatal
 
-import rx.Observable
+import rx.{Observable, Subscriber, Subscription}
 import rx.subjects.{PublishSubject, Subject}
 
 import org.midonet.cluster.VlanPortMapImpl
 import org.midonet.cluster.client.{IpMacMap, MacLearningTable}
 import org.midonet.cluster.data.storage.StateTable
-import org.midonet.cluster.models.Topology.{Network => TopologyBridge}
+import org.midonet.cluster.models.Topology.{Dhcp, Network => TopologyBridge}
 import org.midonet.cluster.util.UUIDUtil._
 import org.midonet.midolman.CallbackRegistry
 import org.midonet.midolman.CallbackRegistry.{CallbackId, CallbackSpec, SerializableCallback}
@@ -43,9 +43,7 @@ import org.midonet.midolman.simulation.Bridge.{MacFlowCount, RemoveFlowCallbackG
 import org.midonet.midolman.simulation.{Bridge => SimulationBridge, _}
 import org.midonet.midolman.state.ReplicatedMap
 import org.midonet.packets.{IPAddr, IPv4Addr, MAC}
-import org.midonet.sdn.flows.FlowTagger.{tagForArpRequests, tagForBridgePort, tagForBroadcast, tagForFloodedFlowsByDstMac, tagForVlanPort}
-import org.midonet.util.collection.Reducer
-import org.midonet.util.concurrent.OnHeapTimedExpirationMap
+import org.midonet.sdn.flows.FlowTagger.{tagForArpRequests, tagForBridgePort, tagForBroadcast, tagForDhcp, tagForFloodedFlowsByDstMac, tagForVlanPort}
 import org.midonet.util.functors._
 import org.midonet.util.logging.Logger
 
@@ -103,6 +101,11 @@ object BridgeMapper {
      * notifications for MAC-port updates. A complete() methods stops watching
      * the underlying [[ReplicatedMap]] and completes the exposed observable
      * when the VLAN is no longer present on the bridge.
+     *
+     * The table serves the MAC lookups from a compact [[MacPortTable]], which
+     * mirrors the underlying map through its own subscription to the map
+     * updates, and which is updated directly by the local learns such that
+     * they are visible before the map notifies them.
      */
     private class BridgeMacLearningTable(vt: VirtualTopology, bridgeId: UUID,
                                          vlanId: Short, log: Logger)
@@ -112,6 +115,25 @@ object BridgeMapper {
         private val table = vt.stateTables.bridgeMacTable(bridgeId, vlanId)
         table.start()
 
+        private val mirror = new MacPortTable(vlanId)
+        private val mirrorSubscription = table.observable.subscribe(
+            new Subscriber[StateTable.Update[MAC, UUID]] {
+                override def onNext(update: StateTable.Update[MAC, UUID])
+                : Unit = {
+                    if (update.newValue eq null) {
+                        mirror.remove(update.key.asLong)
+                    } else {
+                        mirror.put(update.key.asLong, update.newValue)
+                    }
+                }
+                override def onCompleted(): Unit = mirror.clear()
+                override def onError(e: Throwable): Unit = mirror.clear()
+            })
+        // Entries loaded before the subscription are not notified.
+        for ((mac, portId) <- table.localSnapshot) {
+            mirror.put(mac.asLong, portId)
+        }
+
         val observable = table.observable
             .map[MacTableUpdate](makeFunc1(update => {
                 MacTableUpdate(vlanId, update.key, update.oldValue,
@@ -120,13 +142,14 @@ object BridgeMapper {
             .takeUntil(mark)
 
         /** Gets the port for the specified MAC. */
-        override def get(mac: MAC): UUID = table.getLocal(mac)
+        override def get(mac: MAC): UUID = mirror.get(mac.asLong)
         /** Adds a new MAC-port mapping to the MAC learning table. */
         override def add(mac: MAC, portId: UUID): Unit = {
             try {
                 log.debug("Mapping MAC {}, VLAN {} to port {}",
                           mac, Short.box(vlanId), portId)
                 table.add(mac, portId)
+                mirror.put(mac.asLong, portId)
             } catch {
                 case NonFatal(e) =>
                     log.warn("Failed to map MAC {}, VLAN {} to port {}",
@@ -139,7 +162,9 @@ object BridgeMapper {
             log.debug("Removing mapping from MAC {}, VLAN {} to port {}",
                       mac, vlanIdObj, portId)
             try {
-                if (!table.remove(mac, portId))
+                if (table.remove(mac, portId))
+                    mirror.remove(mac.asLong, portId)
+                else
                     log.debug("No mapping from MAC {}, VLAN {} to port {} " +
                               "owned by this node.", mac, vlanIdObj, portId)
             } catch {
@@ -150,6 +175,8 @@ object BridgeMapper {
         }
         /** Stops the underlying replicated map and completes the observable. */
         def complete(): Unit = {
+            mirrorSubscription.unsubscribe()
+            mirror.clear()
             table.stop()
             mark.onCompleted()
         }
@@ -159,10 +186,6 @@ object BridgeMapper {
         def isReady: Boolean = table.isReady
     }
 
-    /** Represents a MAC-port mapping */
-    private case class MacPortMapping(vlanId: Short, mac: MAC, portId: UUID) {
-        override def toString = s"{vlan=$vlanId mac=$mac port=$portId}"
-    }
     /** Represents a MAC table update */
     private case class MacTableUpdate(vlanId: Short, mac: MAC, oldPort: UUID,
                                       newPort: UUID) {
@@ -174,32 +197,38 @@ object BridgeMapper {
      * Handles the MAC-port mappings for a bridge. It adds/removes the (MAC,
      * VLAN, port) tuples to/from the underlying replicated map. The callbacks
      * guarantee the required happens-before relationship because all ZooKeeper
-     * requests are served by a single threaded reactor.
+     * requests are served by a single threaded reactor. The reference counts
+     * are kept in a [[MacRefTable]] with at most `maxEntries` mappings.
      */
     private class MacLearning(tables: CMap[Short, BridgeMacLearningTable],
-                              log: Logger, ttl: Duration) {
-        private val map = new OnHeapTimedExpirationMap[MacPortMapping, AnyRef](
-            log, _ => ttl)
-        private val reducer = new Reducer[MacPortMapping, Any, Unit] {
-            override def apply(acc: Unit, mapping: MacPortMapping, value: Any)
-            : Unit = {
-                doOnMap(mapping.vlanId, _.remove(mapping.mac, mapping.portId))
-            }
+                              log: Logger, ttl: Duration, maxEntries: Int) {
+        private val refs = new MacRefTable(ttl.toMillis, maxEntries)
+        private val expired = (vlanId: Short, mac: Long, portId: UUID) => {
+            val macAddress = new MAC(mac)
+            log.debug("Expiring MAC {} VLAN {} on port {}", macAddress,
+                      Short.box(vlanId), portId)
+            doOnMap(vlanId, _.remove(macAddress, portId))
         }
 
         /** Adds a mapping if it does not exist, and increases its reference count */
-        def incrementRefCount(mapping: MacPortMapping): Unit = {
-            if (map.putIfAbsentAndRef(mapping, mapping) == 1) {
-                doOnMap(mapping.vlanId, _.add(mapping.mac, mapping.portId))
+        def incrementRefCount(vlanId: Short, mac: MAC, portId: UUID): Unit = {
+            refs.ref(vlanId, mac.asLong, portId) match {
+                case 1 => doOnMap(vlanId, _.add(mac, portId))
+                case 0 =>
+                    log.debug("Not learning MAC {} VLAN {} on port {}: the " +
+                              "bridge has {} MAC-port mappings", mac,
+                              Short.box(vlanId), portId, Int.box(maxEntries))
+                case _ =>
             }
         }
         /** Decrements the reference count for a given mapping */
-        def decrementRefCount(mapping: MacPortMapping, currentTime: Long): Unit = {
-            map.unref(mapping, currentTime)
+        def decrementRefCount(vlanId: Short, mac: Long, portMsb: Long,
+                              portLsb: Long, currentTime: Long): Unit = {
+            refs.unref(vlanId, mac, portMsb, portLsb, currentTime)
         }
         /** Expires MAC-port mappings */
         def expireEntries(currentTime: Long): Unit = {
-            map.obliterateIdleEntries(currentTime, (), reducer)
+            refs.expire(currentTime, expired)
         }
         /** Executes the specified operation on the MAC learning table for the
           * given VLAN.*/
@@ -246,10 +275,12 @@ object BridgeMapper {
     private class BridgeMacFlowCount(macLearning: MacLearning)
         extends MacFlowCount {
         override def increment(mac: MAC, vlanId: Short, portId: UUID): Unit = {
-            macLearning.incrementRefCount(MacPortMapping(vlanId, mac, portId))
+            macLearning.incrementRefCount(vlanId, mac, portId)
         }
         override def decrement(mac: MAC, vlanId: Short, portId: UUID): Unit = {
-            macLearning.decrementRefCount(MacPortMapping(vlanId, mac, portId),
+            macLearning.decrementRefCount(vlanId, mac.asLong,
+                                          portId.getMostSignificantBits,
+                                          portId.getLeastSignificantBits,
                                           Platform.currentTime)
         }
     }
@@ -264,9 +295,8 @@ object BridgeMapper {
         override def call(args: Array[Byte]): Unit = {
             val bb = ByteBuffer.wrap(args)
             val vlanId = bb.getShort
-            val mac = new MAC(bb.getLong)
-            val portId = new UUID(bb.getLong, bb.getLong)
-            macLearning.decrementRefCount(MacPortMapping(vlanId, mac, portId),
+            val mac = bb.getLong
+            macLearning.decrementRefCount(vlanId, mac, bb.getLong, bb.getLong,
                                           Platform.currentTime)
         }
     }
@@ -321,7 +351,8 @@ final class BridgeMapper(bridgeId: UUID, override val vt: VirtualTopology,
     private val macLearningTables = new TrieMap[Short, BridgeMacLearningTable]
     private val macLearning =
         new MacLearning(macLearningTables, log,
-                        vt.config.bridge.macPortMappingExpiry millis)
+                        vt.config.bridge.macPortMappingExpiry millis,
+                        vt.config.bridge.macTableMaxEntries)
     private val flowCount = new BridgeMacFlowCount(macLearning)
 
     private val removeMacLearningCbId = cbRegistry.registerCallback(
@@ -332,6 +363,9 @@ final class BridgeMapper(bridgeId: UUID, override val vt: VirtualTopology,
 
     private var deviceReady = false
 
+    // The subscriptions to the DHCP subnets of the bridge, which invalidate
+    // the cached DHCP replies when a subnet or any of its hosts changes.
+    private val dhcpSubscriptions = new mutable.HashMap[UUID, Subscription]
 
     // A subject that emits a port observable for every port added to the
     // bridge.
@@ -471,6 +505,7 @@ final class BridgeMapper(bridgeId: UUID, override val vt: VirtualTopology,
         stateTableSubject.onCompleted()
         macUpdatesSubscription.unsubscribe()
         timerSubscription.unsubscribe()
+        unsubscribeDhcps()
 
         cbRegistry.unregisterCallback(removeMacLearningCbId)
     }
@@ -483,6 +518,7 @@ final class BridgeMapper(bridgeId: UUID, override val vt: VirtualTopology,
     private def bridgeError(e: Throwable): Unit = {
         macUpdatesSubscription.unsubscribe()
         timerSubscription.unsubscribe()
+        unsubscribeDhcps()
         cbRegistry.unregisterCallback(removeMacLearningCbId)
     }
 
@@ -554,6 +590,46 @@ final class BridgeMapper(bridgeId: UUID, override val vt: VirtualTopology,
         mirrorsTracker.requestRefs(
             bridge.getInboundMirrorIdsList.asScala.map(_.asJava) ++
             bridge.getOutboundMirrorIdsList.asScala.map(_.asJava) :_*)
+
+        // Watch the DHCP subnets of this bridge when the DHCP replies are
+        // cached.
+        if (vt.config.dhcpReplyCache) {
+            updateDhcps(bridge.getDhcpIdsList.asScala.map(_.asJava).toSet)
+        }
+    }
+
+    /**
+     * Updates the subscriptions to the DHCP subnets of the bridge. The DHCP
+     * subnets are not part of the simulation device, and they are only
+     * observed to invalidate the DHCP replies cached by the packet workflows
+     * whenever a subnet or its hosts are modified or deleted.
+     */
+    private def updateDhcps(dhcpIds: Set[UUID]): Unit = {
+        for ((dhcpId, subscription) <- dhcpSubscriptions.toList
+             if !dhcpIds.contains(dhcpId)) {
+            subscription.unsubscribe()
+            dhcpSubscriptions -= dhcpId
+            vt.invalidate(tagForDhcp(dhcpId))
+        }
+        for (dhcpId <- dhcpIds if !dhcpSubscriptions.contains(dhcpId)) {
+            val tag = tagForDhcp(dhcpId)
+            dhcpSubscriptions += dhcpId -> vt.store
+                .observable(classOf[Dhcp], dhcpId)
+                .observeOn(vt.vtScheduler)
+                .subscribe(makeAction1((_: Dhcp) => vt.invalidate(tag)),
+                           makeAction1((e: Throwable) => {
+                               log.debug(s"DHCP subnet $dhcpId error", e)
+                               vt.invalidate(tag)
+                           }),
+                           makeAction0(vt.invalidate(tag)))
+        }
+    }
+
+    private def unsubscribeDhcps(): Unit = {
+        for (subscription <- dhcpSubscriptions.values) {
+            subscription.unsubscribe()
+        }
+        dhcpSubscriptions.clear()
     }
 
     /**
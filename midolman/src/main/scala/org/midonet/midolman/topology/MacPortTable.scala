@@ -0,0 +1,625 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.util.UUID
+import java.util.concurrent.locks.StampedLock
+
+object MacPortTable {
+
+    private final val MinSlots = 16
+    private final val MaxSlots = 1 << 30
+    private final val UsedBit = 1L << 63
+    private final val MacMask = 0xFFFFFFFFFFFFL
+    private final val VlanMask = 0xFFFL
+
+    /** Packs a VLAN and a 48-bit MAC in a table key. The keys are never
+      * zero, which marks an empty slot. */
+    @inline def key(vlanId: Short, mac: Long): Long =
+        UsedBit | ((vlanId & VlanMask) << 48) | (mac & MacMask)
+
+    @inline def vlanOf(key: Long): Short = ((key >>> 48) & VlanMask).toShort
+
+    @inline def macOf(key: Long): Long = key & MacMask
+
+    @inline private[topology] def hash(key: Long): Int = {
+        val h = key * 0x9E3779B97F4A7C15L
+        (h ^ (h >>> 32)).toInt
+    }
+
+    /** The number of slots for the given number of entries: a power of two
+      * that keeps the load factor at or below one half. */
+    private[topology] def slotsFor(entries: Int): Int = {
+        var slots = MinSlots
+        while (slots < (entries << 1) && slots < MaxSlots) {
+            slots <<= 1
+        }
+        slots
+    }
+
+    @inline private[topology] def arrayBytes(length: Int, width: Int): Long =
+        16L + length.toLong * width
+}
+
+/**
+  * Interns the port identifiers of a MAC table as small indices with a
+  * reference count, such that the table stores an int per entry instead of
+  * a [[UUID]] reference. Released indices are reused. The indices are kept
+  * in an open-addressing array with linear probing, which stores the index
+  * plus one such that zero marks an empty slot.
+  *
+  * This class is not thread-safe: it is guarded by the lock of its table.
+  */
+private[topology] final class PortIndex {
+
+    import MacPortTable._
+
+    private var msbs = new Array[Long](8)
+    private var lsbs = new Array[Long](8)
+    private var ids = new Array[UUID](8)
+    private var refs = new Array[Int](8)
+    private var released = new Array[Int](8)
+    private var releasedCount = 0
+    private var next = 0
+    private var count = 0
+    private var slots = new Array[Int](slotsFor(0))
+
+    def size: Int = count
+
+    /** The ports by index, exposed for the optimistic reads of the table. */
+    def portIds: Array[UUID] = ids
+
+    @inline def portOf(index: Int): UUID = ids(index)
+
+    @inline private def hashOf(msb: Long, lsb: Long): Int =
+        hash(msb ^ java.lang.Long.rotateLeft(lsb, 32))
+
+    /** @return The index of the port, or -1 if the port is not interned. */
+    def indexOf(msb: Long, lsb: Long): Int = {
+        val mask = slots.length - 1
+        var slot = hashOf(msb, lsb) & mask
+        var index = slots(slot) - 1
+        while (index >= 0 && (msbs(index) != msb || lsbs(index) != lsb)) {
+            slot = (slot + 1) & mask
+            index = slots(slot) - 1
+        }
+        index
+    }
+
+    /** Interns the port, if needed, and increments the reference count of
+      * its index. */
+    def acquire(portId: UUID): Int = {
+        val msb = portId.getMostSignificantBits
+        val lsb = portId.getLeastSignificantBits
+        var index = indexOf(msb, lsb)
+        if (index < 0) {
+            index = allocate()
+            msbs(index) = msb
+            lsbs(index) = lsb
+            ids(index) = portId
+            if ((count + 1) << 1 > slots.length) {
+                rehash(slots.length << 1)
+            }
+            insert(index)
+            count += 1
+        }
+        refs(index) += 1
+        index
+    }
+
+    /** Decrements the reference count of the index, which is released when
+      * the count reaches zero. */
+    def release(index: Int): Unit = {
+        refs(index) -= 1
+        if (refs(index) == 0) {
+            remove(index)
+            ids(index) = null
+            released(releasedCount) = index
+            releasedCount += 1
+            count -= 1
+        }
+    }
+
+    def footprint: Long = {
+        arrayBytes(msbs.length, 8) * 2 + arrayBytes(ids.length, 4) +
+        arrayBytes(refs.length, 4) + arrayBytes(released.length, 4) +
+        arrayBytes(slots.length, 4) + count * 32L
+    }
+
+    private def allocate(): Int = {
+        if (releasedCount > 0) {
+            releasedCount -= 1
+            released(releasedCount)
+        } else {
+            if (next == ids.length) {
+                val length = ids.length << 1
+                msbs = java.util.Arrays.copyOf(msbs, length)
+                lsbs = java.util.Arrays.copyOf(lsbs, length)
+                ids = java.util.Arrays.copyOf(ids, length)
+                refs = java.util.Arrays.copyOf(refs, length)
+                released = java.util.Arrays.copyOf(released, length)
+            }
+            next += 1
+            next - 1
+        }
+    }
+
+    private def insert(index: Int): Unit = {
+        val mask = slots.length - 1
+        var slot = hashOf(msbs(index), lsbs(index)) & mask
+        while (slots(slot) != 0) {
+            slot = (slot + 1) & mask
+        }
+        slots(slot) = index + 1
+    }
+
+    private def remove(index: Int): Unit = {
+        val mask = slots.length - 1
+        var hole = hashOf(msbs(index), lsbs(index)) & mask
+        while (slots(hole) != index + 1) {
+            hole = (hole + 1) & mask
+        }
+        // Shift back the following entries of the probe sequence whose home
+        // slot is not between the hole and their current slot.
+        var slot = (hole + 1) & mask
+        while (slots(slot) != 0) {
+            val moved = slots(slot) - 1
+            val home = hashOf(msbs(moved), lsbs(moved)) & mask
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                slots(hole) = slots(slot)
+                hole = slot
+            }
+            slot = (slot + 1) & mask
+        }
+        slots(hole) = 0
+    }
+
+    private def rehash(length: Int): Unit = {
+        val old = slots
+        slots = new Array[Int](length)
+        var slot = 0
+        while (slot < old.length) {
+            if (old(slot) != 0) {
+                insert(old(slot) - 1)
+            }
+            slot += 1
+        }
+    }
+}
+
+/**
+  * A compact mirror of the MAC-port mappings of a bridge MAC learning table
+  * for a VLAN, which serves the MAC lookups of the simulation. The keys pack
+  * the VLAN and the MAC in a long, and the values are port indices interned
+  * by a [[PortIndex]], in open-addressing arrays with linear probing and
+  * backward-shift deletion. An entry takes 12 bytes per slot, at a load
+  * factor of at most one half, instead of the map entry, [[UUID]] and MAC
+  * objects of a JVM map.
+  *
+  * The table has a single writer, the subscriber to the state table updates,
+  * and it is read concurrently by the packet workers. Reads are optimistic
+  * and they only take the read lock when they race with a write.
+  */
+final class MacPortTable(vlanId: Short, initialCapacity: Int = 16) {
+
+    import MacPortTable._
+
+    private val lock = new StampedLock
+    private var keys = new Array[Long](slotsFor(initialCapacity))
+    private var ports = new Array[Int](keys.length)
+    private var portIndex = new PortIndex
+    @volatile private var count = 0
+
+    def size: Int = count
+
+    /** @return The port for the given MAC, or null if there is none. */
+    def get(mac: Long): UUID = {
+        val k = key(vlanId, mac)
+        val stamp = lock.tryOptimisticRead()
+        var portId = find(k)
+        if (!lock.validate(stamp)) {
+            val readStamp = lock.readLock()
+            try portId = find(k)
+            finally lock.unlockRead(readStamp)
+        }
+        portId
+    }
+
+    /** Maps the MAC to the given port, replacing the current port if any. */
+    def put(mac: Long, portId: UUID): Unit = {
+        val stamp = lock.writeLock()
+        try {
+            val k = key(vlanId, mac)
+            val slot = slotOf(k)
+            if (slot >= 0) {
+                val index = ports(slot)
+                if (portIndex.portOf(index) != portId) {
+                    ports(slot) = portIndex.acquire(portId)
+                    portIndex.release(index)
+                }
+            } else {
+                if ((count + 1) << 1 > keys.length) {
+                    rehash(keys.length << 1)
+                }
+                insert(k, portIndex.acquire(portId))
+                count += 1
+            }
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    /** Removes the mapping for the MAC, and returns whether it existed. */
+    def remove(mac: Long): Boolean = {
+        val stamp = lock.writeLock()
+        try {
+            val slot = slotOf(key(vlanId, mac))
+            if (slot >= 0) {
+                portIndex.release(ports(slot))
+                removeSlot(slot)
+                count -= 1
+                true
+            } else {
+                false
+            }
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    /** Removes the mapping for the MAC if it maps to the given port, and
+      * returns whether it existed. */
+    def remove(mac: Long, portId: UUID): Boolean = {
+        val stamp = lock.writeLock()
+        try {
+            val slot = slotOf(key(vlanId, mac))
+            if (slot >= 0 && portIndex.portOf(ports(slot)) == portId) {
+                portIndex.release(ports(slot))
+                removeSlot(slot)
+                count -= 1
+                true
+            } else {
+                false
+            }
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    /** Removes all mappings and shrinks the table to its initial capacity. */
+    def clear(): Unit = {
+        val stamp = lock.writeLock()
+        try {
+            keys = new Array[Long](slotsFor(initialCapacity))
+            ports = new Array[Int](keys.length)
+            portIndex = new PortIndex
+            count = 0
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    /** @return An estimate of the heap bytes retained by this table. */
+    def footprint: Long = {
+        val stamp = lock.readLock()
+        try {
+            arrayBytes(keys.length, 8) + arrayBytes(ports.length, 4) +
+            portIndex.footprint
+        } finally {
+            lock.unlockRead(stamp)
+        }
+    }
+
+    /**
+      * Looks up a key. During an optimistic read the arrays may be changed
+      * by the writer, in which case the result is discarded: the lookup
+      * bounds the number of probes and checks every index, such that it
+      * never throws or loops forever.
+      */
+    private def find(k: Long): UUID = {
+        val keys = this.keys
+        val ports = this.ports
+        val ids = portIndex.portIds
+        val mask = keys.length - 1
+        var slot = hash(k) & mask
+        var probes = 0
+        var current = keys(slot)
+        while (current != 0L && current != k && probes < keys.length) {
+            slot = (slot + 1) & mask
+            current = keys(slot)
+            probes += 1
+        }
+        if (current == k && slot < ports.length) {
+            val index = ports(slot)
+            if (index >= 0 && index < ids.length) ids(index) else null
+        } else {
+            null
+        }
+    }
+
+    private def slotOf(k: Long): Int = {
+        val mask = keys.length - 1
+        var slot = hash(k) & mask
+        while (keys(slot) != 0L && keys(slot) != k) {
+            slot = (slot + 1) & mask
+        }
+        if (keys(slot) == k) slot else -1
+    }
+
+    private def insert(k: Long, index: Int): Unit = {
+        val mask = keys.length - 1
+        var slot = hash(k) & mask
+        while (keys(slot) != 0L) {
+            slot = (slot + 1) & mask
+        }
+        keys(slot) = k
+        ports(slot) = index
+    }
+
+    private def removeSlot(removed: Int): Unit = {
+        val mask = keys.length - 1
+        var hole = removed
+        var slot = (hole + 1) & mask
+        while (keys(slot) != 0L) {
+            val home = hash(keys(slot)) & mask
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                keys(hole) = keys(slot)
+                ports(hole) = ports(slot)
+                hole = slot
+            }
+            slot = (slot + 1) & mask
+        }
+        keys(hole) = 0L
+    }
+
+    private def rehash(length: Int): Unit = {
+        val oldKeys = keys
+        val oldPorts = ports
+        keys = new Array[Long](length)
+        ports = new Array[Int](length)
+        var slot = 0
+        while (slot < oldKeys.length) {
+            if (oldKeys(slot) != 0L) {
+                insert(oldKeys(slot), oldPorts(slot))
+            }
+            slot += 1
+        }
+    }
+}
+
+/**
+  * The reference counts of the MAC-port mappings learned by a bridge, with
+  * per-entry aging: when the count of an entry drops to zero, the entry
+  * expires after the time-to-live unless it is referenced again. An entry is
+  * identified by a VLAN and MAC key and an interned port index, and it is
+  * stored in open-addressing arrays like the [[MacPortTable]], together with
+  * its count and expiration time.
+  *
+  * The table holds at most `maxEntries` entries. When the table is full, the
+  * bridge does not learn new mappings until the idle entries expire, and the
+  * packets to unknown MACs are flooded.
+  *
+  * The methods are synchronized: the packet workers and the flow removal
+  * callbacks reference and unreference the entries, and the bridge mapper
+  * expires them. The expiration callback is called while holding the lock,
+  * such that a mapping is never learned again before its removal is issued.
+  */
+final class MacRefTable(ttlMillis: Long, maxEntries: Int,
+                        initialCapacity: Int = 16) {
+
+    import MacPortTable._
+
+    private var keys = new Array[Long](slotsFor(initialCapacity))
+    private var ports = new Array[Int](keys.length)
+    private var refs = new Array[Int](keys.length)
+    private var expirations = new Array[Long](keys.length)
+    private val portIndex = new PortIndex
+    private var count = 0
+    private var idle = 0
+    private var nextExpiration = Long.MaxValue
+
+    private var expiredKeys = new Array[Long](16)
+    private var expiredPorts = new Array[Int](16)
+
+    def size: Int = synchronized { count }
+
+    /**
+      * Increments the reference count of a mapping, adding the mapping if it
+      * does not exist.
+      * @return The new reference count. A count of one means the mapping is
+      *         new or it was idle, and zero means the table is full.
+      */
+    def ref(vlanId: Short, mac: Long, portId: UUID): Int = synchronized {
+        val k = key(vlanId, mac)
+        val slot = slotOf(k, portId.getMostSignificantBits,
+                          portId.getLeastSignificantBits)
+        if (slot >= 0) {
+            if (refs(slot) == 0) {
+                expirations(slot) = Long.MaxValue
+                idle -= 1
+            }
+            refs(slot) += 1
+            refs(slot)
+        } else if (count >= maxEntries) {
+            0
+        } else {
+            if ((count + 1) << 1 > keys.length) {
+                rehash(keys.length << 1)
+            }
+            insert(k, portIndex.acquire(portId), 1, Long.MaxValue)
+            count += 1
+            1
+        }
+    }
+
+    /**
+      * Decrements the reference count of a mapping given the two halves of
+      * the port identifier. The mapping expires after the time-to-live once
+      * its count reaches zero.
+      * @return False if the mapping does not exist or it is already idle.
+      */
+    def unref(vlanId: Short, mac: Long, portMsb: Long, portLsb: Long,
+              currentTimeMillis: Long): Boolean = synchronized {
+        val slot = slotOf(key(vlanId, mac), portMsb, portLsb)
+        if (slot >= 0 && refs(slot) > 0) {
+            refs(slot) -= 1
+            if (refs(slot) == 0) {
+                val expiration = currentTimeMillis + ttlMillis
+                expirations(slot) = expiration
+                if (expiration < nextExpiration) {
+                    nextExpiration = expiration
+                }
+                idle += 1
+            }
+            true
+        } else {
+            false
+        }
+    }
+
+    /** @return The reference count of a mapping, or -1 if it does not
+      *         exist. */
+    def refCount(vlanId: Short, mac: Long, portId: UUID): Int = synchronized {
+        val slot = slotOf(key(vlanId, mac), portId.getMostSignificantBits,
+                          portId.getLeastSignificantBits)
+        if (slot >= 0) refs(slot) else -1
+    }
+
+    /**
+      * Removes the idle mappings whose time-to-live has elapsed, calling the
+      * given function with the VLAN, MAC and port of every mapping before it
+      * is removed. The function must not throw. The idle entries are found by
+      * scanning the table, which is skipped until the earliest expiration
+      * time.
+      * @return The number of expired mappings.
+      */
+    def expire(currentTimeMillis: Long,
+               expired: (Short, Long, UUID) => Unit): Int = synchronized {
+        if (idle == 0 || currentTimeMillis < nextExpiration) {
+            0
+        } else {
+            var found = 0
+            var next = Long.MaxValue
+            var slot = 0
+            while (slot < keys.length) {
+                if (keys(slot) != 0L && refs(slot) == 0) {
+                    if (expirations(slot) <= currentTimeMillis) {
+                        if (found == expiredKeys.length) {
+                            expiredKeys = java.util.Arrays.copyOf(
+                                expiredKeys, found << 1)
+                            expiredPorts = java.util.Arrays.copyOf(
+                                expiredPorts, found << 1)
+                        }
+                        expiredKeys(found) = keys(slot)
+                        expiredPorts(found) = ports(slot)
+                        found += 1
+                    } else if (expirations(slot) < next) {
+                        next = expirations(slot)
+                    }
+                }
+                slot += 1
+            }
+            nextExpiration = next
+
+            var index = 0
+            while (index < found) {
+                val k = expiredKeys(index)
+                val port = expiredPorts(index)
+                expired(vlanOf(k), macOf(k), portIndex.portOf(port))
+                removeSlot(slotOf(k, port))
+                portIndex.release(port)
+                count -= 1
+                idle -= 1
+                index += 1
+            }
+            found
+        }
+    }
+
+    /** @return An estimate of the heap bytes retained by this table. */
+    def footprint: Long = synchronized {
+        arrayBytes(keys.length, 8) + arrayBytes(ports.length, 4) +
+        arrayBytes(refs.length, 4) + arrayBytes(expirations.length, 8) +
+        arrayBytes(expiredKeys.length, 8) + arrayBytes(expiredPorts.length, 4) +
+        portIndex.footprint
+    }
+
+    @inline private def hashOf(k: Long, port: Int): Int =
+        hash(k ^ (port.toLong * 0xC2B2AE3D27D4EB4FL))
+
+    private def slotOf(k: Long, portMsb: Long, portLsb: Long): Int = {
+        val port = portIndex.indexOf(portMsb, portLsb)
+        if (port >= 0) slotOf(k, port) else -1
+    }
+
+    private def slotOf(k: Long, port: Int): Int = {
+        val mask = keys.length - 1
+        var slot = hashOf(k, port) & mask
+        while (keys(slot) != 0L && (keys(slot) != k || ports(slot) != port)) {
+            slot = (slot + 1) & mask
+        }
+        if (keys(slot) != 0L) slot else -1
+    }
+
+    private def insert(k: Long, port: Int, ref: Int, expiration: Long): Unit = {
+        val mask = keys.length - 1
+        var slot = hashOf(k, port) & mask
+        while (keys(slot) != 0L) {
+            slot = (slot + 1) & mask
+        }
+        keys(slot) = k
+        ports(slot) = port
+        refs(slot) = ref
+        expirations(slot) = expiration
+    }
+
+    private def removeSlot(removed: Int): Unit = {
+        val mask = keys.length - 1
+        var hole = removed
+        var slot = (hole + 1) & mask
+        while (keys(slot) != 0L) {
+            val home = hashOf(keys(slot), ports(slot)) & mask
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                keys(hole) = keys(slot)
+                ports(hole) = ports(slot)
+                refs(hole) = refs(slot)
+                expirations(hole) = expirations(slot)
+                hole = slot
+            }
+            slot = (slot + 1) & mask
+        }
+        keys(hole) = 0L
+    }
+
+    private def rehash(length: Int): Unit = {
+        val oldKeys = keys
+        val oldPorts = ports
+        val oldRefs = refs
+        val oldExpirations = expirations
+        keys = new Array[Long](length)
+        ports = new Array[Int](length)
+        refs = new Array[Int](length)
+        expirations = new Array[Long](length)
+        var slot = 0
+        while (slot < oldKeys.length) {
+            if (oldKeys(slot) != 0L) {
+                insert(oldKeys(slot), oldPorts(slot), oldRefs(slot),
+                       oldExpirations(slot))
+            }
+            slot += 1
+        }
+    }
+}
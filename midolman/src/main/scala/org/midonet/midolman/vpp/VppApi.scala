@@ -68,8 +68,34 @@ object VppApi {
     private def boolToByte(inVal: Boolean): Byte = if (inVal) 1 else 0
 }
 
+/**
+  * The VPP requests that add and delete the route and FIP64 entries, which
+  * the [[VppBatchExecutor]] executes in batches.
+  */
+trait VppEntryApi {
+
+    def addRoute(subnet: IPSubnet[_ <: IPAddr],
+                 nextHop: Option[IPAddr] = None,
+                 device: Option[VppApi.Device] = None,
+                 vrf: Int = 0): Future[Any]
+
+    def deleteRoute(subnet: IPSubnet[_ <: IPAddr],
+                    nextHop: Option[IPAddr] = None,
+                    device: Option[VppApi.Device] = None,
+                    vrf: Int = 0): Future[Any]
+
+    def fip64Add(floatingIp: IPv6Addr,
+                 fixedIp: IPv4Addr,
+                 poolStart: IPv4Addr,
+                 poolEnd: IPv4Addr,
+                 vrf: Int, vni: Int): Future[Any]
+
+    def fip64Del(floatingIp: IPv6Addr): Future[Any]
+
+}
+
 class VppApi(connectionName: String)(implicit ec: ExecutionContext)
-        extends AutoCloseable {
+        extends VppEntryApi with AutoCloseable {
 
     import VppApi._
 
@@ -288,17 +314,17 @@ class VppApi(connectionName: String)(implicit ec: ExecutionContext)
         execVppRequest(routeMsg, lib.ipAddDelRoute)
     }
 
-    def addRoute(subnet: IPSubnet[_ <: IPAddr],
-                 nextHop: Option[IPAddr] = None,
-                 device: Option[Device] = None,
-                 vrf: Int = 0): Future[Any] = {
+    override def addRoute(subnet: IPSubnet[_ <: IPAddr],
+                          nextHop: Option[IPAddr],
+                          device: Option[Device],
+                          vrf: Int): Future[Any] = {
         addDelRoute(subnet, nextHop, device, vrf, isAdd=true)
     }
 
-    def deleteRoute(subnet: IPSubnet[_ <: IPAddr],
-                    nextHop: Option[IPAddr] = None,
-                    device: Option[Device] = None,
-                    vrf: Int = 0): Future[Any] = {
+    override def deleteRoute(subnet: IPSubnet[_ <: IPAddr],
+                             nextHop: Option[IPAddr],
+                             device: Option[Device],
+                             vrf: Int): Future[Any] = {
         addDelRoute(subnet, nextHop, device, vrf, isAdd=false)
     }
 
@@ -310,11 +336,11 @@ class VppApi(connectionName: String)(implicit ec: ExecutionContext)
     /**
       * Adds given fip64 translation
       */
-    def fip64Add(floatingIp: IPv6Addr,
-                 fixedIp: IPv4Addr,
-                 poolStart: IPv4Addr,
-                 poolEnd: IPv4Addr,
-                 vrf: Int, vni: Int): Future[Any] = {
+    override def fip64Add(floatingIp: IPv6Addr,
+                          fixedIp: IPv4Addr,
+                          poolStart: IPv4Addr,
+                          poolEnd: IPv4Addr,
+                          vrf: Int, vni: Int): Future[Any] = {
         val request = new Fip64Add()
         request.fip6 = floatingIp.toBytes
         request.fixed4 = fixedIp.toBytes
@@ -330,7 +356,7 @@ class VppApi(connectionName: String)(implicit ec: ExecutionContext)
       * @param floatingIp fip6 to delte
       * @return future to track asynchronous operation
       */
-    def fip64Del(floatingIp: IPv6Addr): Future[Any] = {
+    override def fip64Del(floatingIp: IPv6Addr): Future[Any] = {
         val request = new Fip64Del()
         request.fip6 = floatingIp.toBytes
         execVppRequest(request, lib.fip64Del)
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.vpp
+
+import java.util
+import java.util.concurrent.{ScheduledExecutorService, ScheduledFuture, TimeUnit}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.concurrent.duration.FiniteDuration
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.util.control.NonFatal
+
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
+
+import org.midonet.packets.{IPAddr, IPSubnet, IPv4Addr, IPv6Addr}
+import org.midonet.util.functors.makeRunnable
+import org.midonet.util.logging.Logger
+
+object VppBatchExecutor {
+
+    /**
+      * A VPP request executed by the [[VppBatchExecutor]]. Operations with
+      * the same key add or delete the same VPP entry, and they are coalesced
+      * while they are pending.
+      */
+    sealed trait Operation {
+        def key: Any
+        def isAdd: Boolean
+        private[vpp] def execute(vppApi: VppEntryApi): Future[Any]
+    }
+
+    private case class RouteKey(subnet: IPSubnet[_ <: IPAddr],
+                                nextHop: Option[IPAddr],
+                                device: Option[VppApi.Device],
+                                vrf: Int)
+
+    private case class Fip64Key(floatingIp: IPv6Addr)
+
+    case class AddRoute(subnet: IPSubnet[_ <: IPAddr],
+                        nextHop: Option[IPAddr] = None,
+                        device: Option[VppApi.Device] = None,
+                        vrf: Int = 0) extends Operation {
+        override def key: Any = RouteKey(subnet, nextHop, device, vrf)
+        override def isAdd = true
+        def delete = DeleteRoute(subnet, nextHop, device, vrf)
+        private[vpp] override def execute(vppApi: VppEntryApi): Future[Any] =
+            vppApi.addRoute(subnet, nextHop, device, vrf)
+    }
+
+    case class DeleteRoute(subnet: IPSubnet[_ <: IPAddr],
+                           nextHop: Option[IPAddr] = None,
+                           device: Option[VppApi.Device] = None,
+                           vrf: Int = 0) extends Operation {
+        override def key: Any = RouteKey(subnet, nextHop, device, vrf)
+        override def isAdd = false
+        private[vpp] override def execute(vppApi: VppEntryApi): Future[Any] =
+            vppApi.deleteRoute(subnet, nextHop, device, vrf)
+    }
+
+    case class AddFip64(floatingIp: IPv6Addr, fixedIp: IPv4Addr,
+                        poolStart: IPv4Addr, poolEnd: IPv4Addr,
+                        vrf: Int, vni: Int) extends Operation {
+        override def key: Any = Fip64Key(floatingIp)
+        override def isAdd = true
+        private[vpp] override def execute(vppApi: VppEntryApi): Future[Any] =
+            vppApi.fip64Add(floatingIp, fixedIp, poolStart, poolEnd, vrf, vni)
+    }
+
+    case class DeleteFip64(floatingIp: IPv6Addr) extends Operation {
+        override def key: Any = Fip64Key(floatingIp)
+        override def isAdd = false
+        private[vpp] override def execute(vppApi: VppEntryApi): Future[Any] =
+            vppApi.fip64Del(floatingIp)
+    }
+
+    /**
+      * A pending operation and the promises of all submitted operations
+      * coalesced into it.
+      */
+    private class Pending(var operation: Operation) {
+        val promises = new mutable.ArrayBuffer[Promise[Any]](1)
+    }
+
+}
+
+/**
+  * Executes VPP requests in batches. The operations submitted during the
+  * `window` following the first pending operation, or until there are
+  * `maxBatchSize` pending operations, form a batch. The requests of a batch
+  * are pipelined to VPP with at most `maxOutstanding` requests waiting for a
+  * reply, instead of waiting for the reply of every request before sending
+  * the next one.
+  *
+  * While pending, the operations for the same VPP entry are coalesced: a new
+  * add replaces a pending add, and a delete cancels a pending add if the
+  * entry was not added by a previous batch. The operations for the same entry
+  * that remain in a batch, such as a delete followed by an add, execute in
+  * order.
+  *
+  * Batches execute one at a time, and the executor records the latency and
+  * the size of every batch in the metric registry. This class is thread-safe.
+  */
+class VppBatchExecutor(vppApi: VppEntryApi,
+                       window: FiniteDuration,
+                       maxBatchSize: Int,
+                       maxOutstanding: Int,
+                       scheduler: ScheduledExecutorService,
+                       registry: MetricRegistry,
+                       log: Logger)
+                      (implicit ec: ExecutionContext) {
+
+    import VppBatchExecutor._
+
+    require(maxBatchSize > 0 && maxOutstanding > 0)
+
+    private[vpp] val batchLatencyHistogram =
+        registry.histogram(name(classOf[VppBatchExecutor], "batchLatency"))
+    private[vpp] val batchSizeHistogram =
+        registry.histogram(name(classOf[VppBatchExecutor], "batchSize"))
+    private[vpp] val coalescedCounter =
+        registry.counter(name(classOf[VppBatchExecutor], "coalescedRequests"))
+
+    // All the following are guarded by `this`.
+    private var pending = new util.LinkedHashMap[Any, mutable.ArrayBuffer[Pending]]
+    private var pendingCount = 0
+    private var pendingSince = 0L
+    private var flushTask: ScheduledFuture[_] = null
+    private var batch: Batch = null
+    private val barriers = new mutable.ArrayBuffer[Promise[Any]]
+    // The keys of the entries added to VPP, including the ones being added by
+    // the current batch.
+    private val installed = new util.HashSet[Any]
+
+    private val flushRunnable = makeRunnable {
+        VppBatchExecutor.this.synchronized {
+            flushTask = null
+            if (batch eq null) {
+                startBatch()
+            }
+        }
+    }
+
+    /**
+      * Executes the requests of a batch, keeping up to `maxOutstanding`
+      * chains of operations in progress.
+      */
+    private class Batch(chains: IndexedSeq[Seq[Pending]], val size: Int) {
+
+        val startTime = System.nanoTime()
+        private var next = 0
+        private var remaining = chains.size
+
+        def start(): Unit = {
+            while (next < chains.size && next < maxOutstanding) {
+                dispatchNext()
+            }
+        }
+
+        private def dispatchNext(): Unit = {
+            val chain = chains(next)
+            next += 1
+            execute(chain).onComplete { _ =>
+                VppBatchExecutor.this.synchronized {
+                    remaining -= 1
+                    if (next < chains.size) {
+                        dispatchNext()
+                    } else if (remaining == 0) {
+                        batchCompleted(this)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+      * Submits an operation for execution in the next batch. The returned
+      * future completes with the reply of the VPP request, or successfully
+      * when the operation is cancelled by a later operation for the same
+      * entry.
+      */
+    def submit(operation: Operation): Future[Any] = {
+        val promise = Promise[Any]()
+        synchronized {
+            var entries = pending.get(operation.key)
+            if (entries eq null) {
+                entries = new mutable.ArrayBuffer[Pending](2)
+                pending.put(operation.key, entries)
+            }
+            coalesce(operation, promise, entries)
+            if (entries.isEmpty) {
+                pending.remove(operation.key)
+            }
+
+            if (batch eq null) {
+                if (pendingCount >= maxBatchSize) {
+                    startBatch()
+                } else if ((pendingCount > 0) && (flushTask eq null)) {
+                    scheduleFlush()
+                }
+            }
+        }
+        promise.future
+    }
+
+    /**
+      * Executes the pending operations without waiting for the batch window.
+      * The returned future completes when all operations submitted so far
+      * have completed.
+      */
+    def flush(): Future[Any] = synchronized {
+        if ((pendingCount == 0) && (batch eq null)) {
+            Future.successful(null)
+        } else {
+            val promise = Promise[Any]()
+            barriers += promise
+            if (batch eq null) {
+                startBatch()
+            }
+            promise.future
+        }
+    }
+
+    private def coalesce(operation: Operation, promise: Promise[Any],
+                         entries: mutable.ArrayBuffer[Pending]): Unit = {
+        val last = if (entries.isEmpty) null else entries.last
+        if ((last eq null) || (!last.operation.isAdd && operation.isAdd)) {
+            append(operation, promise, entries)
+        } else if (last.operation.isAdd && operation.isAdd) {
+            // The new operation replaces the pending add.
+            last.operation = operation
+            last.promises += promise
+            coalescedCounter.inc()
+        } else if (last.operation.isAdd) {
+            // The delete cancels the pending add: the delete is only needed
+            // if a previous delete is pending or if the entry exists in VPP.
+            entries.remove(entries.size - 1)
+            pendingCount -= 1
+            last.promises.foreach(_.trySuccess(null))
+            coalescedCounter.inc(last.promises.size)
+            if (entries.nonEmpty) {
+                entries.last.promises += promise
+                coalescedCounter.inc()
+            } else if (installed.contains(operation.key)) {
+                append(operation, promise, entries)
+            } else {
+                promise.trySuccess(null)
+                coalescedCounter.inc()
+            }
+        } else {
+            // The delete joins the pending delete.
+            last.promises += promise
+            coalescedCounter.inc()
+        }
+    }
+
+    private def append(operation: Operation, promise: Promise[Any],
+                       entries: mutable.ArrayBuffer[Pending]): Unit = {
+        val entry = new Pending(operation)
+        entry.promises += promise
+        entries += entry
+        if (pendingCount == 0) {
+            pendingSince = System.nanoTime()
+        }
+        pendingCount += 1
+    }
+
+    private def scheduleFlush(): Unit = {
+        val delay = Math.max(0L, pendingSince + window.toNanos - System.nanoTime())
+        flushTask = scheduler.schedule(flushRunnable, delay,
+                                       TimeUnit.NANOSECONDS)
+    }
+
+    private def startBatch(): Unit = {
+        if (flushTask ne null) {
+            flushTask.cancel(false)
+            flushTask = null
+        }
+        if (pendingCount == 0) {
+            pending.clear()
+            completeBarriers()
+            return
+        }
+
+        val chains = pending.values.asScala.toIndexedSeq
+        val size = pendingCount
+        pending = new util.LinkedHashMap[Any, mutable.ArrayBuffer[Pending]]
+        pendingCount = 0
+
+        for (chain <- chains; entry <- chain) {
+            if (entry.operation.isAdd) installed.add(entry.operation.key)
+            else installed.remove(entry.operation.key)
+        }
+
+        batch = new Batch(chains, size)
+        batch.start()
+    }
+
+    private def batchCompleted(completed: Batch): Unit = {
+        val latency = System.nanoTime() - completed.startTime
+        batchLatencyHistogram.update(TimeUnit.NANOSECONDS.toMicros(latency))
+        batchSizeHistogram.update(completed.size)
+        log debug s"Executed batch of ${completed.size} VPP requests in " +
+                  s"${TimeUnit.NANOSECONDS.toMillis(latency)} ms"
+
+        batch = null
+        if (pendingCount == 0) {
+            completeBarriers()
+        } else if (barriers.nonEmpty || pendingCount >= maxBatchSize) {
+            startBatch()
+        } else if (flushTask eq null) {
+            scheduleFlush()
+        }
+    }
+
+    private def completeBarriers(): Unit = {
+        barriers.foreach(_.trySuccess(null))
+        barriers.clear()
+    }
+
+    /**
+      * Executes the operations of a chain in order, regardless of whether
+      * the previous operations have failed.
+      */
+    private def execute(chain: Seq[Pending]): Future[Any] = {
+        chain.foldLeft(Future.successful[Any](null)) { (previous, entry) =>
+            previous.recover { case NonFatal(_) => null }
+                    .flatMap { _ => execute(entry) }
+        }
+    }
+
+    private def execute(entry: Pending): Future[Any] = {
+        val operation = entry.operation
+        val future =
+            try operation.execute(vppApi)
+            catch { case NonFatal(e) => Future.failed(e) }
+        future.onComplete { result =>
+            if (result.isFailure) {
+                log debug s"VPP request $operation failed: ${result.failed.get}"
+                if (operation.isAdd) synchronized {
+                    installed.remove(operation.key)
+                }
+            }
+            entry.promises.foreach(_.tryComplete(result))
+        }
+        future
+    }
+
+}
@@ -39,6 +39,7 @@ import org.midonet.cluster.services.MidonetBackend
 import org.midonet.midolman.Midolman.MIDOLMAN_ERROR_CODE_VPP_PROCESS_DIED
 import org.midonet.midolman.simulation.RouterPort
 import org.midonet.midolman.topology.VirtualTopology
+import org.midonet.midolman.vpp.VppBatchExecutor.{AddFip64, AddRoute, DeleteFip64}
 import org.midonet.midolman.vpp.VppDownlink._
 import org.midonet.midolman.vpp.VppExecutor.Receive
 import org.midonet.midolman.vpp.VppExternalNetwork.{AddExternalNetwork, RemoveExternalNetwork}
@@ -46,6 +47,7 @@ import org.midonet.midolman.vpp.VppProviderRouter.Gateways
 import org.midonet.midolman.vpp.VppUplink.{AddUplink, DeleteUplink}
 import org.midonet.midolman.{DatapathState, Midolman}
 import org.midonet.packets.{IPv4Addr, IPv4Subnet, IPv6Addr, IPv6Subnet, MAC, TunnelKeys}
+import org.midonet.util.concurrent.Executors
 import org.midonet.util.process.MonitoredDaemonProcess
 
 object VppController {
@@ -106,6 +108,9 @@ class VppController(protected override val hostId: UUID,
 
     private var vppProcess: MonitoredDaemonProcess = _
     private var vppApi: VppApi = _
+    private var batchExecutor: VppBatchExecutor = _
+    private lazy val batchScheduler = Executors.singleThreadScheduledExecutor(
+        "vpp-batch", isDaemon = true, Executors.CallerRunsPolicy)
 
     private var routerPortSubscribers = mutable.Map[UUID, Subscription]()
     private val uplinks = new util.HashMap[UUID, VppUplinkSetup]
@@ -126,6 +131,18 @@ class VppController(protected override val hostId: UUID,
     }
 
     protected override val receive: Receive = {
+        case AssociateFip(portId, vrf, vni, floatingIp, fixedIp, localIp, natPool) =>
+            associateFip(portId, vrf, vni, floatingIp, fixedIp, localIp, natPool)
+        case DisassociateFip(portId, vrf, floatingIp, fixedIp, localIp) =>
+            disassociateFip(portId, vrf, floatingIp, fixedIp, localIp)
+        case message if handler.isDefinedAt(message) =>
+            // The FIP64 requests are batched without waiting for their
+            // completion: wait for the pending requests before handling a
+            // message that may depend on them, such as deleting a tunnel.
+            flushBatch() flatMap { _ => handler(message) }
+    }
+
+    private val handler: Receive = {
         case port: RouterPort =>
             log debug s"Received router port update for port ${port.id}"
             handleExternalRoutesUpdate(port)
@@ -144,10 +161,6 @@ class VppController(protected override val hostId: UUID,
             createTunnel(portId, vrf, vni, routerPortMac)
         case DeleteTunnel(portId, vrf, vni) =>
             deleteTunnel(portId, vni)
-        case AssociateFip(portId, vrf, vni, floatingIp, fixedIp, localIp, natPool) =>
-            associateFip(portId, vrf, vni, floatingIp, fixedIp, localIp, natPool)
-        case DisassociateFip(portId, vrf, floatingIp, fixedIp, localIp) =>
-            disassociateFip(portId, vrf, floatingIp, fixedIp, localIp)
         case Cleanup =>
             cleanup()
     }
@@ -177,6 +190,9 @@ class VppController(protected override val hostId: UUID,
         }
 
         stopVppProcess()
+        Executors.shutdown(batchScheduler) { _ =>
+            log warn s"Exception while stopping VPP batch scheduler"
+        }
         super.doStop()
         notifyStopped()
     }
@@ -216,12 +232,17 @@ class VppController(protected override val hostId: UUID,
 
         if (startVppProcess()) {
             vppApi = createApiConnection(VppConnectMaxRetries)
+            batchExecutor = new VppBatchExecutor(
+                vppApi, vt.config.fip64.vppBatchWindow millis,
+                vt.config.fip64.vppBatchMaxSize,
+                vt.config.fip64.vppMaxOutstandingRequests,
+                batchScheduler, vt.metricRegistry, log)
         }
 
         val uplinkSetup = new VppUplinkSetup(portId, portAddress.getAddress,
                                              dpNumber.intValue(),
                                              vt.config.fip64, VppFlowStateCfg,
-                                             vppApi, vppOvs, log)
+                                             vppApi, batchExecutor, vppOvs, log)
 
         val result = {
             uplinks.put(portId, uplinkSetup) match {
@@ -422,6 +443,17 @@ class VppController(protected override val hostId: UUID,
         }
     }
 
+    private def flushBatch(): Future[Any] = {
+        if (batchExecutor ne null) batchExecutor.flush()
+        else Future.successful(Unit)
+    }
+
+    /**
+      * Submits the FIP64 entry and the route to the tenant router VXLAN for
+      * execution in the next VPP batch. The returned future completes when
+      * the NAT pool is allocated, without waiting for the VPP requests, such
+      * that the associations of many floating IPs are sent to VPP together.
+      */
     private def associateFip(portId: UUID, vrf: Int, vni: Int,
                              floatingIp: IPv6Addr, fixedIp: IPv4Addr,
                              localIp: IPv4Subnet, natPool: IPv4Subnet)
@@ -429,18 +461,34 @@ class VppController(protected override val hostId: UUID,
         log debug s"Associating FIP at port $portId (VRF $vrf, VNI $vni): " +
                   s"$floatingIp -> $fixedIp"
 
-        poolFor(portId, natPool) flatMap { pool =>
+        if (batchExecutor eq null) {
+            return Future.failed(new IllegalStateException(
+                s"Cannot associate FIP $floatingIp: VPP is not running"))
+        }
+        val batch = batchExecutor
+        poolFor(portId, natPool) map { pool =>
             if (pool.nonEmpty) {
                 log debug s"Allocated NAT pool at port $portId is ${pool.get}"
-                val setup = new Fip64Setup(floatingIp, fixedIp, vppApi,
-                                           vt.config.fip64, log, pool.get.start,
-                                           pool.get.end, vrf, vni)
-                setup.execute()
-            } else {
-                // We complete the future successfully, since there is nothing
-                // to rollback.
-                Future.successful(Unit)
+                val route = fip64Route(fixedIp, vrf)
+                val fipFuture = batch.submit(AddFip64(floatingIp, fixedIp,
+                                                      pool.get.start,
+                                                      pool.get.end, vrf, vni))
+                val routeFuture = batch.submit(route)
+                // Roll back the request that succeeded if the other failed.
+                fipFuture zip routeFuture onFailure { case e =>
+                    log warn s"Associating FIP $floatingIp -> $fixedIp " +
+                             s"failed: $e"
+                    fipFuture onSuccess { case _ =>
+                        batch.submit(DeleteFip64(floatingIp))
+                    }
+                    routeFuture onSuccess { case _ =>
+                        batch.submit(route.delete)
+                    }
+                }
             }
+            // We complete the future successfully, since there is nothing
+            // to rollback.
+            Unit
         }
     }
 
@@ -450,9 +498,21 @@ class VppController(protected override val hostId: UUID,
         log debug s"Disassociating FIP at port $portId (VRF $vrf): " +
                   s"$floatingIp -> $fixedIp"
 
-        val setup = new Fip64Setup(floatingIp, fixedIp, vppApi, vt.config.fip64,
-                                   log)
-        setup.rollback()
+        if (batchExecutor eq null) {
+            return Future.failed(new IllegalStateException(
+                s"Cannot disassociate FIP $floatingIp: VPP is not running"))
+        }
+        val fipFuture = batchExecutor.submit(DeleteFip64(floatingIp))
+        val routeFuture = batchExecutor.submit(fip64Route(fixedIp, vrf).delete)
+        fipFuture zip routeFuture onFailure { case e =>
+            log warn s"Disassociating FIP $floatingIp -> $fixedIp failed: $e"
+        }
+        Future.successful(Unit)
+    }
+
+    private def fip64Route(fixedIp: IPv4Addr, vrf: Int): AddRoute = {
+        AddRoute(new IPv4Subnet(fixedIp, 32),
+                 Some(vt.config.fip64.vppInternalGateway), None, vrf)
     }
 
     private def handleExternalRoutesUpdate(port: RouterPort): Future[_] = {
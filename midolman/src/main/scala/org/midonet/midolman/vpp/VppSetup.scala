@@ -373,25 +373,6 @@ object VppSetup extends MidolmanLogging {
         }
     }
 
-    class VppAddFip64(override val name: String,
-                      floatingIp: IPv6Addr,
-                      fixedIp: IPv4Addr,
-                      poolStart: IPv4Addr,
-                      poolEnd: IPv4Addr,
-                      vrf: Int, vni: Int,
-                      vppApi: VppApi)
-                     (implicit ec: ExecutionContext)
-    extends FutureTaskWithRollback {
-
-        override def execute(): Future[Any] = {
-            vppApi.fip64Add(floatingIp, fixedIp, poolStart, poolEnd, vrf, vni)
-        }
-
-        override def rollback(): Future[Any] = {
-            vppApi.fip64Del(floatingIp)
-        }
-    }
-
     /* on rollback, removes all entries on a fip table in VPP
        This is required specially for IPv6 VRF tables, otherwise
        VPP crashes the next time it accesses the VRF table after
@@ -445,11 +426,13 @@ class VppUplinkSetup(uplinkPortId: UUID,
                      fip64Conf: Fip64Config,
                      flowStateConf: VppFlowStateConfig,
                      vppApi: VppApi,
+                     batchExecutor: VppBatchExecutor,
                      vppOvs: VppOvs,
                      log: Logger)
                      (implicit ec: ExecutionContext)
     extends VppSetup("VPP uplink setup", log) {
 
+    import VppBatchExecutor.AddRoute
     import VppSetup._
 
     private final val VppUplinkVRF = 0
@@ -489,7 +472,7 @@ class VppUplinkSetup(uplinkPortId: UUID,
                                            () => { ovsBind.getPortNo },
                                            () => { uplinkPortDpNo })
 
-    private val externalRoutes = new mutable.HashMap[Topology.Route, VppAddRoute]()
+    private val externalRoutes = new mutable.HashMap[Topology.Route, AddRoute]()
 
     private val flowStateOut = new VppFlowStateOutVxlanTunnelSetup(fip64Conf,
                                                                    flowStateConf,
@@ -534,15 +517,12 @@ class VppUplinkSetup(uplinkPortId: UUID,
         externalRoutes.get(route) match {
             case None =>
                 val nextHop = IPAddressUtil.toIPAddr(route.getNextHopGateway)
-                val newVppRoute = new VppAddRoute("Add external route to VPP",
-                                                  dst, Some(nextHop),
-                                                  uplinkVpp.vppInterface,
-                                                  vrf = 0,
-                                                  vppApi)
+                val newVppRoute = AddRoute(dst, Some(nextHop),
+                                           uplinkVpp.vppInterface, vrf = 0)
                 externalRoutes.put(route, newVppRoute)
                 log debug s"Adding uplink route ${route.getId.asJava} " +
                           s"to interface ${uplinkVpp.vppInterface.get}"
-                newVppRoute.execute()
+                batchExecutor.submit(newVppRoute)
 
             case _ =>
                 deleteExternalRoute(route) flatMap {
@@ -558,7 +538,7 @@ class VppUplinkSetup(uplinkPortId: UUID,
             case Some(vppRoute) =>
                 externalRoutes.remove(route)
                 log debug s"Deleting external route ${route.getId.asJava}"
-                vppRoute.rollback()
+                batchExecutor.submit(vppRoute.delete)
         }
     }
 
@@ -775,45 +755,6 @@ class VppFlowStateInVxlanTunnelSetup(fip64conf: Fip64Config,
     add(setIpAddress)
 }
 
-/**
-  *
-  * @param floatingIp ip from external ipv6 subnet
-  * @param fixedIp ip of a private port
-  * @param vppApi handler for jvpp
-  * @param fip64conf
-  * @param log
-  * @param poolStart start address of NAT pool
-  * @param poolEnd end address of NAT pool
-  * @param vrf vrf of this tenant router
-  * @param vni vni of this tenant router
-  * @param ec execution context
-  */
-class Fip64Setup(floatingIp: IPv6Addr,
-                fixedIp: IPv4Addr,
-                vppApi: VppApi,
-                fip64conf: Fip64Config,
-                log: Logger,
-                poolStart: IPv4Addr = IPv4Addr.AnyAddress,
-                poolEnd: IPv4Addr = IPv4Addr.AnyAddress,
-                vrf: Int = -1, vni: Int = -1)
-               (implicit ec: ExecutionContext)
-    extends VppSetup(s"Fip64 setup", log)(ec) {
-
-    import VppSetup.{VppAddRoute, VppAddFip64}
-
-    val fip6 = new VppAddFip64(s"fip64 $floatingIp <-> $fixedIp",
-                               floatingIp, fixedIp,
-                               poolStart,
-                               poolEnd,
-                               vrf, vni, vppApi)
-    val routeToVxlan = new VppAddRoute(s"route to vxlan for $fixedIp",
-        IPSubnet.fromString(fixedIp.toString, 32).asInstanceOf[IPv4Subnet],
-                                       Some(fip64conf.vppInternalGateway), None,
-                                       vrf, vppApi)
-    add(fip6)
-    add(routeToVxlan)
-}
-
 /**
   *
   * @param vppOvs wrapper to talt to linux ovs library
@@ -17,7 +17,8 @@
 package org.midonet.sdn.flows
 
 import java.nio.ByteBuffer
-import java.util.{UUID, WeakHashMap}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.{Arrays, UUID, WeakHashMap}
 import java.lang.ref.WeakReference
 
 import com.google.common.hash.Hashing
@@ -48,6 +49,7 @@ object FlowTagger {
         val ConnTrackFlowState: Byte = 17
         val NatFlowState: Byte = 18
         val TraceFlowState: Byte = 19
+        val Dhcp: Byte = 20
     }
 
     trait FlowTag extends BackChannelMessage with Broadcast {
@@ -63,11 +65,67 @@ object FlowTagger {
 
     trait MeterTag extends FlowTag {
         private[this] var _meterName: String = null
+        private[this] var _meterId = -1
         def meterName: String = {
             if (_meterName eq null)
                 _meterName = s"meters:$toString"
             _meterName
         }
+
+        /**
+         * The dense identifier of the meter name, which is interned the first
+         * time it is requested. Since tags are cached by the tagger, this
+         * happens once per tag.
+         */
+        def meterId: Int = {
+            if (_meterId < 0)
+                _meterId = MeterIds.intern(meterName)
+            _meterId
+        }
+    }
+
+    /**
+     * Interns the names of the meters to dense integer identifiers, such that
+     * the meter registries can keep their counters in primitive arrays indexed
+     * by the meter identifier. Identifiers are never released.
+     */
+    object MeterIds {
+        private val ids = new ConcurrentHashMap[String, Integer]()
+        @volatile private var names = new Array[String](256)
+        @volatile private var count = 0
+
+        def intern(name: String): Int = {
+            val id = ids.get(name)
+            if (id ne null) id.intValue() else internSlow(name)
+        }
+
+        /** Returns the identifier of a meter name, or -1 if not interned. */
+        def idOf(name: String): Int = {
+            val id = ids.get(name)
+            if (id ne null) id.intValue() else -1
+        }
+
+        def nameOf(id: Int): String =
+            if (id < count) names(id) else null
+
+        /** The number of interned meter names. */
+        def size: Int = count
+
+        private def internSlow(name: String): Int = synchronized {
+            val existing = ids.get(name)
+            if (existing ne null) {
+                existing.intValue()
+            } else {
+                val id = count
+                if (id == names.length) {
+                    names = Arrays.copyOf(names, id << 1)
+                }
+                names(id) = name
+                count = id + 1
+                ids.put(name, id)
+                id
+            }
+        }
     }
 
     private def msbOr0(id: UUID): Long =
@@ -582,6 +640,32 @@ object FlowTagger {
         }
         tag
     }
+
+    /**
+     * Tag for the DHCP replies generated from the specified DHCP subnet, which
+     * is invalidated when the subnet or any of its hosts changes.
+     */
+    case class DhcpTag(subnetId: UUID) extends FlowTag {
+        override def toString = s"dhcp:$subnetId"
+        override lazy val toLongHash =
+            Hashing.murmur3_128(TagTypes.Dhcp).newHasher().
+                putLong(msbOr0(subnetId)).
+                putLong(lsbOr0(subnetId)).hash().asLong
+    }
+
+    val cachedDhcpTags = new ThreadLocal[TagsTrie] {
+        override def initialValue = new TagsTrie
+    }
+
+    def tagForDhcp(subnetId: UUID): FlowTag = {
+        val segment = cachedDhcpTags.get().getOrAddSegment(subnetId)
+        var tag = segment.value
+        if (tag eq null) {
+            tag = DhcpTag(subnetId)
+            segment.value = tag
+        }
+        tag
+    }
 }
 
 class FlowTagger {}
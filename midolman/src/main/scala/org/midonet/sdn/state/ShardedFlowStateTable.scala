@@ -207,13 +207,15 @@ abstract class BaseShardedFlowStateTable[K <: IdleExpiration, V >: Null]
 }
 
 class OnHeapShardedFlowStateTable[K <: IdleExpiration, V >: Null]
-    (clock: NanoClock = NanoClock.DEFAULT)
+    (clock: NanoClock = NanoClock.DEFAULT,
+     maxExpirations: Int = Int.MaxValue)
         extends BaseShardedFlowStateTable[K, V](clock) {
 
     override protected def newShard(workerId: Int,
                                     log: Logger): FlowStateShard = {
         new FlowStateShard(workerId, log) {
-            override val map = new OnHeapTimedExpirationMap[K, V](log, _.expiresAfter)
+            override val map = new OnHeapTimedExpirationMap[K, V](
+                log, _.expiresAfter, maxExpirations)
         }
     }
 }
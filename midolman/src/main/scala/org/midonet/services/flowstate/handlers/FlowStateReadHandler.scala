@@ -55,6 +55,10 @@ import io.netty.util.concurrent.GenericFutureListener
   * and sent back. In the case of a transfer from a different agent, the raw
   * flow state data will be sent, then saved locally and decompressed for the
   * client requesting it.
+  *
+  * Requests include an offset, such that a client resumes an interrupted
+  * transfer by skipping the flow state messages, or the raw blocks, that it
+  * already received.
   */
 @Sharable
 class FlowStateReadHandler(context: Context)
@@ -85,16 +89,18 @@ class FlowStateReadHandler(context: Context)
                               msg: ByteBuf): Unit = {
 
         parseSegment(msg) match {
-            case StateRequestInternal(portId) =>
-                log info s"Flow state internal request for port: ${fromProto(portId)}"
-                respondInternal(context, portId)
-            case StateRequestRemote(portId, address) =>
+            case StateRequestInternal(portId, offset) =>
+                log info s"Flow state internal request for port: " +
+                         s"${fromProto(portId)} offset: $offset"
+                respondInternal(context, portId, offset)
+            case StateRequestRemote(portId, address, offset) =>
                 log info s"Flow state remote [${address.getAddress}] request " +
-                          s"for port: ${fromProto(portId)}"
-                respondRemote(context, portId, address)
-            case StateRequestRaw(portId) =>
-                log info s"Flow state raw request for port: ${fromProto(portId)}"
-                respondRaw(context, portId)
+                          s"for port: ${fromProto(portId)} offset: $offset"
+                respondRemote(context, portId, address, offset)
+            case StateRequestRaw(portId, offset) =>
+                log info s"Flow state raw request for port: " +
+                         s"${fromProto(portId)} offset: $offset"
+                respondRaw(context, portId, offset)
             case InvalidStateRequest(e) =>
                 log warn s"Invalid flow state request: ${e.getMessage}"
                 val error = buildError(Error.Code.BAD_REQUEST, e).toByteArray
@@ -160,7 +166,8 @@ class FlowStateReadHandler(context: Context)
         }
     }
 
-    private def respondRaw(ctx: ChannelHandlerContext, portId: UUID): Unit = {
+    private def respondRaw(ctx: ChannelHandlerContext, portId: UUID,
+                           offset: Long): Unit = {
         try {
             val ack = buildAck(portId).toByteArray
             writeAndFlushWithHeader(ctx, ack)
@@ -169,34 +176,50 @@ class FlowStateReadHandler(context: Context)
             val headerBuff = new Array[Byte](FlowStateBlock.headerSize)
             val blockBuff = new Array[Byte](context.config.blockSize)
 
+            // Skip the blocks already received by the client.
+            var skipped = 0L
+            while (skipped < offset &&
+                   in.read(headerBuff) > 0 &&
+                   in.read(blockBuff, 0,
+                           FlowStateBlock(ByteBuffer.wrap(headerBuff))
+                               .blockLength) > 0) {
+                skipped += 1
+            }
+
             pipeRawBlocksToSocket(portId, in, headerBuff, blockBuff, ctx)
         } catch {
             case NonFatal(e) => handleStorageError(ctx, portId, e)
         }
     }
 
-    private def respondInternal(ctx: ChannelHandlerContext, portId: UUID): Unit = {
+    private def respondInternal(ctx: ChannelHandlerContext, portId: UUID,
+                                offset: Long): Unit = {
         try {
             val ack = buildAck(portId).toByteArray
             writeAndFlushWithHeader(ctx, ack)
 
-            readFromLocalState(ctx, portId)
+            readFromLocalState(ctx, portId, offset)
         } catch {
             case NonFatal(e) => handleStorageError(ctx, portId, e)
         }
     }
 
     private def respondRemote(ctx: ChannelHandlerContext,
-                              portId: UUID, address: IPAddress): Unit = {
+                              portId: UUID, address: IPAddress,
+                              offset: Long): Unit = {
         try {
-            // Request and save all flow state locally
-            val out = getByteBufferBlockWriter(portId)
-            tcpClient.rawPipelinedFlowStateFrom(address.getAddress, portId, out)
+            // Request and save all flow state locally, unless the agent
+            // resumes a transfer for which the state was already saved.
+            if (offset == 0 || !context.ioManager.exists(portId)) {
+                val out = getByteBufferBlockWriter(portId)
+                tcpClient.rawPipelinedFlowStateFrom(address.getAddress, portId,
+                                                    out)
+            }
 
             val ack = buildAck(portId).toByteArray
             writeAndFlushWithHeader(ctx, ack)
 
-            readFromLocalState(ctx, portId)
+            readFromLocalState(ctx, portId, offset)
         } catch {
             case NonFatal(e) => handleStorageError(ctx, portId, e)
         }
@@ -235,7 +258,7 @@ class FlowStateReadHandler(context: Context)
     }
 
     private def readFromLocalState(ctx: ChannelHandlerContext,
-                                   portId: UUID): Unit = {
+                                   portId: UUID, offset: Long): Unit = {
         // Expire blocks before actually start reading from it. Expiration
         // is done lazily to avoid excessive delays on the boot sequence.
         try {
@@ -243,6 +266,12 @@ class FlowStateReadHandler(context: Context)
 
             // Blocks are up to date, read and send it back to the agent.
             val in = getFlowStateReader(portId)
+
+            // Skip the messages already received by the agent.
+            var skipped = 0L
+            while (skipped < offset && in.read().isDefined) {
+                skipped += 1
+            }
             pipeReaderToSocket(portId, in, ctx)
         } catch {
             case NonFatal(e) => handleStorageError(ctx, portId, e)
@@ -29,9 +29,10 @@ import org.midonet.cluster.util.UUIDUtil.toProto
 
 object StateTransferProtocolBuilder {
 
-    def buildStateRequestInternal(portId: UUID) = {
+    def buildStateRequestInternal(portId: UUID, offset: Long = 0L) = {
         @inline def internal = StateRequest.Internal.newBuilder()
             .setPortId(toProto(portId))
+            .setOffset(offset)
             .build()
 
         StateRequest.newBuilder()
@@ -39,7 +40,8 @@ object StateTransferProtocolBuilder {
             .build()
     }
 
-    def buildStateRequestRemote(portId: UUID, address: String) = {
+    def buildStateRequestRemote(portId: UUID, address: String,
+                                offset: Long = 0L) = {
         @inline def remoteIp = Commons.IPAddress.newBuilder()
                 .setAddress(address)
                 .setVersion(Commons.IPVersion.V4)
@@ -48,6 +50,7 @@ object StateTransferProtocolBuilder {
         @inline def remote = StateRequest.Remote.newBuilder()
             .setPortId(toProto(portId))
             .setRemoteIp(remoteIp)
+            .setOffset(offset)
             .build()
 
         StateRequest.newBuilder()
@@ -55,9 +58,10 @@ object StateTransferProtocolBuilder {
             .build()
     }
 
-    def buildStateRequestRaw(portId: UUID) = {
+    def buildStateRequestRaw(portId: UUID, offset: Long = 0L) = {
         @inline def raw = StateRequest.Raw.newBuilder()
             .setPortId(toProto(portId))
+            .setOffset(offset)
             .build()
 
         StateRequest.newBuilder()
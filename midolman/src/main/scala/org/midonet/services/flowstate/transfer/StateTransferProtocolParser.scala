@@ -27,12 +27,14 @@ object StateTransferProtocolParser {
 
     def parseStateRequest(request: StateRequest) = {
         if (request.hasInternal) {
-            new StateRequestInternal(request.getInternal.getPortId)
+            new StateRequestInternal(request.getInternal.getPortId,
+                request.getInternal.getOffset)
         } else if (request.hasRemote) {
             new StateRequestRemote(request.getRemote.getPortId,
-                request.getRemote.getRemoteIp)
+                request.getRemote.getRemoteIp, request.getRemote.getOffset)
         } else if (request.hasRaw) {
-            new StateRequestRaw(request.getRaw.getPortId)
+            new StateRequestRaw(request.getRaw.getPortId,
+                request.getRaw.getOffset)
         } else {
             throw new IllegalArgumentException(s"Can not parse empty" +
                 s" ${request.getClass.getSimpleName}")
@@ -16,26 +16,34 @@
 
 package org.midonet.services.flowstate.transfer.client
 
-import java.util.{HashMap => JHashMap, HashSet => JHashSet}
-
-import org.midonet.midolman.HostRequestProxy.FlowStateBatch
+import org.midonet.midolman.HostRequestProxy.{EmptyFlowStateBatch, FlowStateBatch}
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
 import org.midonet.midolman.state.FlowStateAgentPackets._
 import org.midonet.midolman.state.NatState._
-import org.midonet.packets.NatState.NatBinding
 import org.midonet.packets.SbeEncoder
 
 /**
   * Translates flow state SbeEncoder responses to internally used FlowStateBatch
   * objects. For performance the object is constructed in a pipeline, and since
   * many keys could be repeated, we can also get better memory usage.
+  *
+  * The aggregator passes the flow state to the `handler` in chunks of at most
+  * `chunkSize` entries, such that the receiver can import the flow state
+  * while it is being transferred, without buffering the state of the whole
+  * port.
   */
-class FlowStateAggregator {
+class FlowStateAggregator(chunkSize: Int = Int.MaxValue,
+                          handler: FlowStateBatch => Unit = _ => {}) {
+
+    private var batch = EmptyFlowStateBatch
+    private var messages = 0L
+    private var entries = 0L
 
-    val strongConnTrack = new JHashSet[ConnTrackKey]()
-    val weakConnTrack = new JHashSet[ConnTrackKey]()
-    val strongNat = new JHashMap[NatKey, NatBinding]()
-    val weakNat = new JHashMap[NatKey, NatBinding]()
+    /** The number of flow state messages pushed to this aggregator. */
+    def received: Long = messages
+
+    /** The number of flow state entries passed to the handler. */
+    def delivered: Long = entries
 
     def push(sbe: SbeEncoder): Unit = {
         val message = sbe.flowStateMessageDecoder
@@ -45,7 +53,7 @@ class FlowStateAggregator {
             val next = connTrackIter.next()
             val connTrack = connTrackKeyFromSbe(next, ConnTrackKey)
 
-            strongConnTrack.add(connTrack)
+            batch.strongConnTrack.add(connTrack)
         }
 
         val natIter = message.nat()
@@ -54,10 +62,24 @@ class FlowStateAggregator {
             val natKey = natKeyFromSbe(next, NatKey)
             val natBinding = natBindingFromSbe(next)
 
-            strongNat.put(natKey, natBinding)
+            batch.strongNat.put(natKey, natBinding)
+        }
+
+        messages += 1
+        if (batch.size() >= chunkSize) {
+            flush()
         }
     }
 
-    def batch() =
-        FlowStateBatch(strongConnTrack, weakConnTrack, strongNat, weakNat)
+    /**
+      * Passes the flow state aggregated since the last chunk to the handler.
+      */
+    def flush(): Unit = {
+        val size = batch.size()
+        if (size > 0) {
+            handler(batch)
+            entries += size
+            batch = EmptyFlowStateBatch
+        }
+    }
 }
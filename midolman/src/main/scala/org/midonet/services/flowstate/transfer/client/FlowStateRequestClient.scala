@@ -25,6 +25,7 @@ import scala.util.control.NonFatal
 
 import org.midonet.cluster.flowstate.FlowStateTransfer.{StateRequest, StateResponse}
 import org.midonet.cluster.util.UUIDUtil.fromProto
+import org.midonet.midolman.HostRequestProxy.{EmptyFlowStateBatch, FlowStateBatch}
 import org.midonet.midolman.config.FlowStateConfig
 import org.midonet.packets.SbeEncoder
 import org.midonet.services.flowstate.transfer.StateTransferProtocolBuilder._
@@ -83,8 +84,28 @@ trait FlowStateRequestClient extends DefaultRetriable
 class FlowStateInternalClient(override val flowStateConfig: FlowStateConfig)
      extends FlowStateRequestClient {
 
-    def remoteFlowStateFrom(host: String, portId: UUID) = {
-        val aggregator = new FlowStateAggregator
+    def remoteFlowStateFrom(host: String, portId: UUID): FlowStateBatch = {
+        val batch = EmptyFlowStateBatch
+        streamRemoteFlowState(host, portId)(batch.merge)
+        batch
+    }
+
+    def internalFlowStateFrom(portId: UUID): FlowStateBatch = {
+        val batch = EmptyFlowStateBatch
+        streamInternalFlowState(portId)(batch.merge)
+        batch
+    }
+
+    /**
+      * Requests the flow state of a port that was previously owned by a remote
+      * host, and passes it to the `handler` in chunks as it arrives. If the
+      * transfer fails, the retries resume it from the last received message.
+      * Returns the number of flow state entries passed to the handler.
+      */
+    def streamRemoteFlowState(host: String, portId: UUID)
+                             (handler: FlowStateBatch => Unit): Long = {
+        val aggregator = new FlowStateAggregator(
+            flowStateConfig.transferChunkSize, handler)
 
         try retry(log.underlying,
                   s"Request flow state to $host for port $portId") {
@@ -92,7 +113,8 @@ class FlowStateInternalClient(override val flowStateConfig: FlowStateConfig)
             try {
                 val dis = new DataInputStream(socket.getInputStream)
 
-                val request = buildStateRequestRemote(portId, host)
+                val request = buildStateRequestRemote(portId, host,
+                                                      aggregator.received)
                 val response = sendRequest(socket, dis, request)
 
                 response match {
@@ -113,37 +135,51 @@ class FlowStateInternalClient(override val flowStateConfig: FlowStateConfig)
             case NonFatal(e) => log.warn("Error requesting remote flow state", e)
         }
 
-        aggregator.batch()
+        aggregator.flush()
+        aggregator.delivered
     }
 
-    def internalFlowStateFrom(portId: UUID) = {
-        val aggregator = new FlowStateAggregator
-        var socket: Socket = null
+    /**
+      * Requests the flow state of a port from the local storage, and passes it
+      * to the `handler` in chunks as it arrives. If the transfer fails, the
+      * retries resume it from the last received message. Returns the number
+      * of flow state entries passed to the handler.
+      */
+    def streamInternalFlowState(portId: UUID)
+                               (handler: FlowStateBatch => Unit): Long = {
+        val aggregator = new FlowStateAggregator(
+            flowStateConfig.transferChunkSize, handler)
 
         try retry(log.underlying,
                   s"Request flow state to internal minion for port $portId") {
-            socket = initSocket()
-            val dis = new DataInputStream(socket.getInputStream)
-
-            val request = buildStateRequestInternal(portId)
-            val response = sendRequest(socket, dis, request)
-
-            response match {
-                case StateAck(port) =>
-                    log info s"Internal Ack received from previous owner of ${fromProto(port)}"
-                    pipelinedReadTranslatedState(dis, aggregator)
-                case StateError(code, description) =>
-                    log warn s"Ignoring response: $code error received from" +
-                        s" previous owner: $description"
-                case _ =>
-                    log warn "Ignoring response: received a malformed/illegal" +
-                        " response"
+            val socket = initSocket()
+            try {
+                val dis = new DataInputStream(socket.getInputStream)
+
+                val request = buildStateRequestInternal(portId,
+                                                        aggregator.received)
+                val response = sendRequest(socket, dis, request)
+
+                response match {
+                    case StateAck(port) =>
+                        log info s"Internal Ack received from previous owner of ${fromProto(port)}"
+                        pipelinedReadTranslatedState(dis, aggregator)
+                    case StateError(code, description) =>
+                        log warn s"Ignoring response: $code error received from" +
+                            s" previous owner: $description"
+                    case _ =>
+                        log warn "Ignoring response: received a malformed/illegal" +
+                            " response"
+                }
+            } finally {
+                socket.close()
             }
         } catch {
             case NonFatal(e) => log.warn("Error requesting local flow state", e)
         }
 
-        aggregator.batch()
+        aggregator.flush()
+        aggregator.delivered
     }
 
     private def pipelinedReadTranslatedState(dis: DataInputStream,
@@ -174,26 +210,33 @@ class FlowStateRemoteClient(override val flowStateConfig: FlowStateConfig)
 
     def rawPipelinedFlowStateFrom(host: String, portId: UUID,
                                   writer: ByteBufferBlockWriter[_]): Unit = {
-        var socket: Socket = null
+        // The number of blocks received, such that a retry resumes the
+        // transfer instead of writing the same blocks again.
+        var blocks = 0L
 
         try retry(log.underlying,
                   s"Request raw flow state to $host for port $portId") {
-            socket = initSocket(host)
-            val dis = new DataInputStream(socket.getInputStream)
-
-            val request = buildStateRequestRaw(portId)
-            val response = sendRequest(socket, dis, request)
-
-            response match {
-                case StateAck(port) =>
-                    log info s"Raw Ack received from previous owner of ${fromProto(port)}"
-                    pipelinedReadWriteRawState(dis, writer)
-                case StateError(code, description) =>
-                    log warn s"Ignoring response: $code error received from" +
-                        s" previous owner: $description"
-                case _ =>
-                    log warn "Ignoring response: received a malformed/illegal" +
-                        s" response from $host"
+            val socket = initSocket(host)
+            try {
+                val dis = new DataInputStream(socket.getInputStream)
+
+                val request = buildStateRequestRaw(portId, blocks)
+                val response = sendRequest(socket, dis, request)
+
+                response match {
+                    case StateAck(port) =>
+                        log info s"Raw Ack received from previous owner of ${fromProto(port)}"
+                        pipelinedReadWriteRawState(dis, writer,
+                                                   () => blocks += 1)
+                    case StateError(code, description) =>
+                        log warn s"Ignoring response: $code error received from" +
+                            s" previous owner: $description"
+                    case _ =>
+                        log warn "Ignoring response: received a malformed/illegal" +
+                            s" response from $host"
+                }
+            } finally {
+                socket.close()
             }
         } catch {
             case NonFatal(e) => log.warn("Error requesting raw flow state", e)
@@ -201,11 +244,13 @@ class FlowStateRemoteClient(override val flowStateConfig: FlowStateConfig)
     }
 
     private def pipelinedReadWriteRawState(dis: DataInputStream,
-                                           writer: ByteBufferBlockWriter[_]): Unit = {
+                                           writer: ByteBufferBlockWriter[_],
+                                           onBlock: () => Unit): Unit = {
         var next = dis.readInt()
         while (next > 0) {
             val buffer = readBytes(dis, next)
             writer.write(buffer)
+            onBlock()
             next = dis.readInt()
         }
     }
@@ -19,13 +19,14 @@ import org.midonet.cluster.models.Commons.{IPAddress, UUID}
 
 trait StateRequest
 
-case class StateRequestInternal(portId: UUID)
+case class StateRequestInternal(portId: UUID, offset: Long = 0L)
     extends StateRequest
 
-case class StateRequestRemote(portId: UUID, iPAddress: IPAddress)
+case class StateRequestRemote(portId: UUID, iPAddress: IPAddress,
+                              offset: Long = 0L)
     extends StateRequest
 
-case class StateRequestRaw(portId: UUID)
+case class StateRequestRaw(portId: UUID, offset: Long = 0L)
     extends StateRequest
 
 case class InvalidStateRequest(e: Throwable)
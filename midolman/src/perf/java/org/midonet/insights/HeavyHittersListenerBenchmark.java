@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.insights;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.midonet.midolman.PacketWorkflow;
+import org.midonet.midolman.simulation.PacketContext;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.sdn.flows.FlowTagger;
+
+/**
+ * Measures the cost that the heavy hitters listener adds to every simulated
+ * packet. Run with the GC profiler (-prof gc) to verify that recording a
+ * simulation does not allocate: the normalized allocation rate should be
+ * zero bytes per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class HeavyHittersListenerBenchmark {
+
+    @Param({"16", "64"})
+    public int topK;
+
+    /** The number of distinct talkers the simulations cycle through. */
+    @Param({"8", "1024"})
+    public int talkers;
+
+    private HeavyHittersListener listener;
+    private PacketContext[] contexts;
+    private int index = 0;
+
+    @Setup
+    public void setup() {
+        listener = new HeavyHittersListener(4, 2048, topK, 10000L);
+        contexts = new PacketContext[talkers];
+        for (int i = 0; i < talkers; i++) {
+            PacketContext context = new PacketContext();
+            context.inputPort_$eq(UUID.randomUUID());
+            context.addFlowTag(FlowTagger.tagForBridge(UUID.randomUUID()));
+            context.addFlowTag(FlowTagger.tagForRouter(UUID.randomUUID()));
+            context.origMatch().setNetworkSrc(new IPv4Addr(0x0a000000 + i));
+            context.origMatch().setNetworkDst(new IPv4Addr(0x0a010001));
+            context.origMatch().setNetworkProto((byte) 6);
+            context.origMatch().setSrcPort(10000 + i);
+            context.origMatch().setDstPort(80);
+            contexts[i] = context;
+        }
+    }
+
+    @Benchmark
+    public void flowSimulation() {
+        listener.flowSimulation(contexts[index], PacketWorkflow.NoOp$.MODULE$);
+        if (++index == contexts.length) {
+            index = 0;
+        }
+    }
+}
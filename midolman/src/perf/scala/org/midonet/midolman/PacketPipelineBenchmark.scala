@@ -0,0 +1,334 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.nio.ByteBuffer
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import rx.Observer
+
+import org.midonet.midolman.layer3.Route
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.midolman.rules.{Condition, NatTarget, RuleResult}
+import org.midonet.midolman.simulation.{Bridge, Router}
+import org.midonet.midolman.util.MockPacketWorkflow
+import org.midonet.midolman.util.mock.{MockDatapathChannel, MockFlowProcessor}
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.odp.{FlowMatch, FlowMatches, Packet}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+
+object PacketPipelineBenchmark {
+
+    /**
+      * A topology under test: the datapath port numbers of the exterior
+      * ports, the datapath port number receiving the upcalls, and the
+      * frame of every connection.
+      */
+    case class Topology(dpPorts: Map[Int, UUID], inPortNumber: Int,
+                        frame: Int => Ethernet)
+
+    /**
+      * A flow processor that completes the flow deletions immediately, such
+      * that the expired flows return to the flow pools.
+      */
+    class CompletingFlowProcessor extends MockFlowProcessor {
+        override def tryEject(sequence: Long, datapathId: Int,
+                              flowMatch: FlowMatch,
+                              obs: Observer[ByteBuffer]): Boolean = {
+            obs.onCompleted()
+            true
+        }
+    }
+
+    // The number of packets after which the benchmark expires all flows and
+    // connection state, keeping the flow table below its capacity.
+    final val ExpirationInterval = 4096
+    final val ExpirationStep = TimeUnit.HOURS.toNanos(1)
+
+    final val SecurityGroupRules = 20
+
+    val vm1Mac = MAC.fromString("02:00:00:00:00:01")
+    val vm2Mac = MAC.fromString("02:00:00:00:00:02")
+    val routerMac = MAC.fromString("02:00:00:00:01:01")
+    val uplinkMac = MAC.fromString("02:00:00:00:01:02")
+    val gatewayMac = MAC.fromString("02:00:00:00:02:01")
+    val backendMacs = (0 until 4) map { n => MAC.fromString(s"02:00:00:00:03:0$n") }
+}
+
+/**
+  * Measures the packet workflow, from an upcall to the datapath channel,
+  * over the following topologies built in the in-memory storage:
+  *  - `bridge`: two VMs on a bridge.
+  *  - `router-nat`: a VM on a bridge behind a router, which source NATs
+  *    the traffic to an uplink port.
+  *  - `l4lb`: a client reaching the VIP of a load balancer with four
+  *    backends.
+  *  - `security-groups`: two VMs on a bridge, where the ingress port chain
+  *    of the destination VM tracks connections and jumps to a security group
+  *    chain of [[PacketPipelineBenchmark.SecurityGroupRules]] rules.
+  *
+  * The packets cycle through `connections` different TCP connections. Every
+  * [[PacketPipelineBenchmark.ExpirationInterval]] packets the benchmark
+  * advances the clock and expires the flows and connection state, such that
+  * the cost of the flow expiration is amortized in the results, and it shows
+  * in the upper latency percentiles.
+  *
+  * Run with `./gradlew :midolman:pipelineBenchmarks`, which adds the GC
+  * profiler to report the allocation per packet and writes the results in
+  * JSON format to be used as a baseline.
+  */
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+class PacketPipelineBenchmark extends MidolmanBenchmark {
+
+    import PacketPipelineBenchmark._
+
+    @Param(Array("bridge", "router-nat", "l4lb", "security-groups"))
+    var topology: String = _
+
+    @Param(Array("1", "1024"))
+    var connections: Int = _
+
+    private var workflow: MockPacketWorkflow = _
+    private var dpChannel: MockDatapathChannel = _
+    private var frames: Array[Ethernet] = _
+    private var inPortNumber: Int = _
+    private var index = 0
+    private var packets = 0L
+
+    @JmhSetup
+    def setup(): Unit = {
+        newHost("myself", hostId)
+        val testTopology = topology match {
+            case "bridge" => bridgeTopology()
+            case "router-nat" => routerNatTopology()
+            case "l4lb" => loadBalancerTopology()
+            case "security-groups" => securityGroupTopology()
+            case _ => throw new IllegalArgumentException(
+                s"Unknown topology $topology")
+        }
+
+        frames = Array.tabulate(connections)(testTopology.frame)
+        inPortNumber = testTopology.inPortNumber
+        dpChannel = mockDpChannel
+        workflow = packetWorkflow(testTopology.dpPorts,
+                                  dpFlowProcessor = new CompletingFlowProcessor)
+        checkForwarding()
+    }
+
+    @Benchmark
+    @BenchmarkMode(Array(Mode.Throughput))
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    def throughput(): Unit = handleNext()
+
+    @Benchmark
+    @BenchmarkMode(Array(Mode.SampleTime))
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    def latency(): Unit = handleNext()
+
+    private def nextPacket(): Packet = {
+        val frame = frames(index)
+        index = (index + 1) % frames.length
+        new Packet(frame, FlowMatches.fromEthernetPacket(frame)
+                                    .addKey(FlowKeys.inPort(inPortNumber))
+                                    .setInputPortNumber(inPortNumber))
+    }
+
+    private def handleNext(): Unit = {
+        workflow.handlePackets(nextPacket())
+        packets += 1
+        if (packets % ExpirationInterval == 0) {
+            expire()
+        }
+    }
+
+    private def expire(): Unit = {
+        clock.time += ExpirationStep
+        do {
+            workflow.process()
+        } while (workflow.shouldProcess)
+        dpChannel.packetsSent.clear()
+        dpChannel.contextsSeen.clear()
+    }
+
+    /**
+      * Verifies that the topology forwards the packets, waiting for the
+      * devices loaded during the first simulations, such that the benchmark
+      * does not measure dropped or postponed packets.
+      */
+    private def checkForwarding(): Unit = {
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10)
+        while (dpChannel.packetsSent.isEmpty) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException(
+                    s"Topology $topology does not forward packets")
+            }
+            workflow.handlePackets(nextPacket())
+            Thread.sleep(10)
+        }
+        expire()
+        index = 0
+        packets = 0L
+    }
+
+    private def tcpFrame(srcMac: MAC, dstMac: MAC, srcIp: String,
+                         dstIp: String, dstPort: Short)
+                        (connection: Int): Ethernet = {
+        { eth src srcMac dst dstMac } <<
+            { ip4 src srcIp dst dstIp } <<
+            { tcp src (10000 + connection).toShort dst dstPort }
+    }
+
+    private def bridgeTopology(): Topology = {
+        val bridge = newBridge("bridge")
+        val vm1Port = newBridgePort(bridge)
+        val vm2Port = newBridgePort(bridge)
+        materializePort(vm1Port, hostId, "vm1")
+        materializePort(vm2Port, hostId, "vm2")
+        fetchPorts(vm1Port, vm2Port)
+
+        val simBridge = fetchDevice[Bridge](bridge)
+        feedMacTable(simBridge, vm1Mac, vm1Port)
+        feedMacTable(simBridge, vm2Mac, vm2Port)
+
+        Topology(Map(1 -> vm1Port, 2 -> vm2Port), 1,
+                 tcpFrame(vm1Mac, vm2Mac, "10.0.0.1", "10.0.0.2", 80))
+    }
+
+    private def routerNatTopology(): Topology = {
+        val router = newRouter("router")
+        val routerPort = newRouterPort(router, routerMac, "10.0.0.254",
+                                       "10.0.0.0", 24)
+        val uplinkPort = newRouterPort(router, uplinkMac, "192.168.1.2",
+                                       "192.168.1.0", 24)
+        materializePort(uplinkPort, hostId, "uplink")
+        newRoute(router, "0.0.0.0", 0, "10.0.0.0", 24, NextHop.PORT,
+                 routerPort, new IPv4Addr(Route.NO_GATEWAY).toString, 10)
+        newRoute(router, "0.0.0.0", 0, "192.168.1.0", 24, NextHop.PORT,
+                 uplinkPort, new IPv4Addr(Route.NO_GATEWAY).toString, 10)
+        newRoute(router, "0.0.0.0", 0, "0.0.0.0", 0, NextHop.PORT,
+                 uplinkPort, "192.168.1.1", 1)
+
+        val bridge = newBridge("bridge")
+        val bridgePort = newBridgePort(bridge)
+        linkPorts(routerPort, bridgePort)
+        val vmPort = newBridgePort(bridge)
+        materializePort(vmPort, hostId, "vm")
+
+        val inChain = newInboundChainOnRouter("router-in", router)
+        val outChain = newOutboundChainOnRouter("router-out", router)
+        newReverseNatRuleOnChain(inChain, 1, new Condition(),
+                                 RuleResult.Action.CONTINUE, isDnat = false)
+        val snatCondition = new Condition()
+        snatCondition.nwSrcIp = IPv4Addr.fromString("10.0.0.0").subnet(24)
+        val snatTarget = new NatTarget(IPv4Addr.fromString("192.168.1.2"),
+                                       IPv4Addr.fromString("192.168.1.2"),
+                                       10000, 65535)
+        newForwardNatRuleOnChain(outChain, 1, snatCondition,
+                                 RuleResult.Action.ACCEPT, Set(snatTarget),
+                                 isDnat = false)
+
+        fetchPorts(routerPort, uplinkPort, bridgePort, vmPort)
+        fetchChains(inChain, outChain)
+        val simBridge = fetchDevice[Bridge](bridge)
+        val simRouter = fetchDevice[Router](router)
+        feedMacTable(simBridge, vm1Mac, vmPort)
+        feedArpTable(simRouter, IPv4Addr.fromString("10.0.0.1"), vm1Mac)
+        feedArpTable(simRouter, IPv4Addr.fromString("192.168.1.1"), gatewayMac)
+
+        Topology(Map(1 -> vmPort, 2 -> uplinkPort), 1,
+                 tcpFrame(vm1Mac, routerMac, "10.0.0.1", "8.8.8.8", 80))
+    }
+
+    private def loadBalancerTopology(): Topology = {
+        val router = newRouter("router")
+        val clientPort = newRouterPort(router, routerMac, "100.0.0.254",
+                                       "100.0.0.0", 24)
+        val backendPort = newRouterPort(router, uplinkMac, "10.0.0.254",
+                                        "10.0.0.0", 24)
+        materializePort(clientPort, hostId, "client")
+        materializePort(backendPort, hostId, "backend")
+        newRoute(router, "0.0.0.0", 0, "100.0.0.0", 24, NextHop.PORT,
+                 clientPort, new IPv4Addr(Route.NO_GATEWAY).toString, 10)
+        newRoute(router, "0.0.0.0", 0, "10.0.0.0", 24, NextHop.PORT,
+                 backendPort, new IPv4Addr(Route.NO_GATEWAY).toString, 10)
+
+        val loadBalancer = newLoadBalancer()
+        setLoadBalancerOnRouter(loadBalancer, router)
+        val pool = newPool(loadBalancer)
+        newVip(pool, "200.0.0.1", 80)
+        for (n <- backendMacs.indices) {
+            newPoolMember(pool, s"10.0.0.${n + 1}", 8080)
+        }
+
+        fetchPorts(clientPort, backendPort)
+        val simRouter = fetchDevice[Router](router)
+        feedArpTable(simRouter, IPv4Addr.fromString("100.0.0.1"), vm1Mac)
+        for (n <- backendMacs.indices) {
+            feedArpTable(simRouter, IPv4Addr.fromString(s"10.0.0.${n + 1}"),
+                         backendMacs(n))
+        }
+
+        Topology(Map(1 -> clientPort, 2 -> backendPort), 1,
+                 tcpFrame(vm1Mac, routerMac, "100.0.0.1", "200.0.0.1", 80))
+    }
+
+    private def securityGroupTopology(): Topology = {
+        val bridge = newBridge("bridge")
+        val vm1Port = newBridgePort(bridge)
+        val vm2Port = newBridgePort(bridge)
+        materializePort(vm1Port, hostId, "vm1")
+        materializePort(vm2Port, hostId, "vm2")
+
+        // The security group only accepts the traffic from the address group
+        // in its last rule.
+        val ipAddrGroup = newIpAddrGroup()
+        addIpAddrToIpAddrGroup(ipAddrGroup, "10.0.0.1")
+        val groupChain = newChain("security-group")
+        for (n <- 0 until SecurityGroupRules) {
+            newTcpDstRuleOnChain(groupChain, n + 1, 1000 + n,
+                                 RuleResult.Action.ACCEPT)
+        }
+        newIpAddrGroupRuleOnChain(groupChain, SecurityGroupRules + 1,
+                                  RuleResult.Action.ACCEPT, None,
+                                  Some(ipAddrGroup))
+
+        val portChain = newOutboundChainOnPort("vm2-in", vm2Port)
+        val returnCondition = new Condition()
+        returnCondition.matchReturnFlow = true
+        newLiteralRuleOnChain(portChain, 1, returnCondition,
+                              RuleResult.Action.ACCEPT)
+        newJumpRuleOnChain(portChain, 2, new Condition(), groupChain)
+        newLiteralRuleOnChain(portChain, 3, new Condition(),
+                              RuleResult.Action.DROP)
+
+        fetchPorts(vm1Port, vm2Port)
+        fetchChains(groupChain, portChain)
+        val simBridge = fetchDevice[Bridge](bridge)
+        feedMacTable(simBridge, vm1Mac, vm1Port)
+        feedMacTable(simBridge, vm2Mac, vm2Port)
+
+        Topology(Map(1 -> vm1Port, 2 -> vm2Port), 1,
+                 tcpFrame(vm1Mac, vm2Mac, "10.0.0.1", "10.0.0.2", 80))
+    }
+}
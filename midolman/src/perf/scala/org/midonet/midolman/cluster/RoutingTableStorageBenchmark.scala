@@ -26,7 +26,6 @@ import scala.util.Random
 import scala.util.control.NonFatal
 
 import com.codahale.metrics.MetricRegistry
-import com.typesafe.config.ConfigFactory
 
 import org.apache.curator.framework.{CuratorFramework, CuratorFrameworkFactory}
 import org.apache.curator.retry.RetryNTimes
@@ -46,6 +45,7 @@ import org.midonet.cluster.state.RoutingTableStorage._
 import org.midonet.cluster.storage.{CuratorZkConnection, MidonetBackendConfig}
 import org.midonet.cluster.topology.TopologyBuilder
 import org.midonet.cluster.util.UUIDUtil._
+import org.midonet.conf.MidoTestConfigurator
 import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.layer3.Route.NextHop
 import org.midonet.util.concurrent._
@@ -65,7 +65,7 @@ class RoutingTableStorageBenchmark extends TopologyBuilder {
     private final val zkServer = "127.0.0.1:2181"
     private final val zkRoot = "/midonet/benchmark"
     private final val hostId = UUID.randomUUID()
-    private final val config = new MidonetBackendConfig(ConfigFactory.parseString(
+    private final val config = new MidonetBackendConfig(MidoTestConfigurator.forAgents(
         s"""
            |zookeeper.zookeeper.root_key=$zkRoot
         """.stripMargin))
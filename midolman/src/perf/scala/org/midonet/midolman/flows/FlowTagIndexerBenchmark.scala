@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.{ArrayList, UUID}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.sdn.flows.FlowTagger
+
+object FlowTagIndexerBenchmark {
+    // The number of devices shared by the flows, each invalidation removes
+    // the flows of one of them.
+    final val Devices = 64
+}
+
+/**
+ * Compares the flow tag indexers of the JVM flow controller. Every flow has a
+ * tag of its own, the tag of one of a few devices, and a tag shared by all
+ * flows. The `indexAndRemove` benchmark replaces the oldest flow, while the
+ * `invalidate` benchmark invalidates the flows of a device and adds them
+ * back. Run with the GC profiler (-prof gc) to compare the allocation rates.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class FlowTagIndexerBenchmark {
+
+    import FlowTagIndexerBenchmark._
+
+    @Param(Array("object", "primitive"))
+    var indexer: String = _
+
+    @Param(Array("65536", "1048576"))
+    var flows: Int = _
+
+    private var index: FlowTagIndex = _
+    private var indexToFlow: Array[ManagedFlowImpl] = _
+    private var mask = 0
+    private var curIndex = -1L
+
+    private var liveFlows: Array[ManagedFlowImpl] = _
+    private var position = 0
+    private var device = 0
+    private val invalidated = new ArrayList[ManagedFlowImpl]()
+
+    private val deviceTags = Array.fill(Devices)(
+        FlowTagger.tagForBridge(UUID.randomUUID()))
+    private val routerTag = FlowTagger.tagForRouter(UUID.randomUUID())
+
+    @JmhSetup
+    def setup(): Unit = {
+        indexToFlow = new Array[ManagedFlowImpl](flows << 1)
+        mask = indexToFlow.length - 1
+        index = indexer match {
+            case "primitive" =>
+                new PrimitiveFlowTagIndexer(
+                    new PrimitiveFlowTagIndexer.FlowLookup {
+                        override def flowOf(id: ManagedFlow.FlowId)
+                        : ManagedFlowImpl = {
+                            val flow = indexToFlow((id & mask).toInt)
+                            if ((flow ne null) && flow.id == id) flow else null
+                        }
+                    }, flows << 1)
+            case _ => new FlowTagIndexer
+        }
+        liveFlows = new Array[ManagedFlowImpl](flows)
+        var i = 0
+        while (i < flows) {
+            val flow = new ManagedFlowImpl(null)
+            flow.tags.add(FlowTagger.tagForDpPort(i))
+            flow.tags.add(deviceTags(i % Devices))
+            flow.tags.add(routerTag)
+            register(flow)
+            liveFlows(i) = flow
+            i += 1
+        }
+    }
+
+    @Benchmark
+    def indexAndRemove(): Long = {
+        val flow = liveFlows(position)
+        forget(flow)
+        register(flow)
+        position += 1
+        if (position == flows) {
+            position = 0
+        }
+        flow.id
+    }
+
+    @Benchmark
+    def invalidate(): Int = {
+        val iterator = index.invalidateFlowsFor(deviceTags(device))
+        while (iterator.hasNext) {
+            val flow = iterator.next()
+            forget(flow)
+            invalidated.add(flow)
+        }
+        val count = invalidated.size()
+        var i = 0
+        while (i < count) {
+            register(invalidated.get(i))
+            i += 1
+        }
+        invalidated.clear()
+        device += 1
+        if (device == Devices) {
+            device = 0
+        }
+        count
+    }
+
+    private def register(flow: ManagedFlowImpl): Unit = {
+        do {
+            curIndex += 1
+        } while (indexToFlow((curIndex & mask).toInt) ne null)
+        indexToFlow((curIndex & mask).toInt) = flow
+        flow.setId(curIndex)
+        index.indexFlowTags(flow)
+    }
+
+    private def forget(flow: ManagedFlowImpl): Unit = {
+        index.removeFlowTags(flow)
+        indexToFlow((flow.id & mask).toInt) = null
+    }
+}
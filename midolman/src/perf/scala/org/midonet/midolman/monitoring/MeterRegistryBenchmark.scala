@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.monitoring
+
+import java.util.{ArrayList, UUID}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.FlowStats
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+/**
+ * Measures the cost of the on-heap meter registry on the packet path. Run
+ * with the GC profiler (-prof gc) to verify that recording a packet and
+ * tracking, updating and forgetting a flow do not allocate: the normalized
+ * allocation rate should be zero bytes per operation.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class MeterRegistryBenchmark {
+
+    /** The number of meter tags of each packet. */
+    @Param(Array("2", "8"))
+    var meters: Int = _
+
+    private val flowMatch = new FlowMatch()
+    private val stats = new FlowStats()
+    private val rules = new ArrayList[UUID]()
+    private val tags = new ArrayList[FlowTag]()
+    private var registry: MeterRegistry = _
+    private var flowId = 0L
+
+    @JmhSetup
+    def setup(): Unit = {
+        registry = MeterRegistry.newOnHeap(1024)
+        var i = 0
+        while (i < meters) {
+            tags.add(FlowTagger.tagForBridge(UUID.randomUUID()))
+            i += 1
+        }
+        tags.add(FlowTagger.tagForBroadcast(UUID.randomUUID()))
+        rules.add(UUID.randomUUID())
+    }
+
+    @Benchmark
+    def recordPacket(): Unit = {
+        registry.recordPacket(100, tags, rules)
+    }
+
+    @Benchmark
+    def trackUpdateForgetFlow(): Unit = {
+        registry.trackFlow(flowId, flowMatch, tags, rules)
+        stats.packets = 10
+        stats.bytes = 1000
+        registry.updateFlow(flowId, flowMatch, stats)
+        registry.forgetFlow(flowId, flowMatch)
+        flowId += 1
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import java.lang.management.ManagementFactory
+import java.util.UUID
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+import scala.concurrent.duration._
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.slf4j.LoggerFactory
+
+import org.midonet.packets.MAC
+import org.midonet.util.concurrent.OnHeapTimedExpirationMap
+import org.midonet.util.logging.Logger
+
+object MacPortTableBenchmark {
+
+    final val Ports = 64
+    final val VlanId = 0.toShort
+    final val Ttl = 15 seconds
+
+    case class Mapping(vlanId: Short, mac: MAC, portId: UUID)
+
+    /** An entry of the state table cache, with the key, value and version of
+      * the table entries. */
+    case class CacheEntry(key: MAC, value: UUID, version: Int)
+
+    /** Returns the heap bytes retained by the objects built by `f`, which is
+      * measured as the difference in used heap after a full collection. */
+    def retainedBytes(f: => Unit): Long = {
+        val before = usedHeap()
+        f
+        usedHeap() - before
+    }
+
+    private def usedHeap(): Long = {
+        val memory = ManagementFactory.getMemoryMXBean
+        for (_ <- 0 until 4) {
+            System.gc()
+            Thread.sleep(100)
+        }
+        memory.getHeapMemoryUsage.getUsed
+    }
+
+    /**
+      * Reports the heap retained per entry by the MAC table of a bridge as
+      * secondary results: `tableBytes` for the MAC lookups and reference
+      * counts of each implementation, and `totalBytes` including the local
+      * cache of the state table, which both implementations keep.
+      */
+    @AuxCounters
+    @State(Scope.Thread)
+    class Footprint {
+        var tableBytes: Long = 0L
+        var totalBytes: Long = 0L
+
+        @JmhSetup(Level.Iteration)
+        def setup(benchmark: MacPortTableBenchmark): Unit = {
+            tableBytes = benchmark.tableBytes / benchmark.entries
+            totalBytes = (benchmark.tableBytes + benchmark.cacheBytes) /
+                         benchmark.entries
+        }
+    }
+}
+
+/**
+  * Compares the compact MAC tables of the bridge with the JVM maps they
+  * replace. Both implementations keep the local cache of the state table, a
+  * concurrent map with [[MAC]] keys and table entry values. The `map`
+  * implementation looks up the MACs in that cache and counts the references
+  * in an [[OnHeapTimedExpirationMap]]; the `compact` implementation looks up
+  * the MACs in a [[MacPortTable]] mirror and counts the references in a
+  * [[MacRefTable]]. The `lookup` and `lookupMiss` benchmarks measure the
+  * simulation lookups, and the `refUnref` benchmark the flow count updates.
+  * The heap retained per entry is reported by the footprint counters.
+  *
+  * Example command:
+  *   ./gradlew :midolman:benchmarks '-Pjmh=.*MacPortTableBenchmark.*'
+  */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class MacPortTableBenchmark {
+
+    import MacPortTableBenchmark._
+
+    @Param(Array("map", "compact"))
+    var table: String = _
+
+    @Param(Array("4096", "262144"))
+    var entries: Int = _
+
+    private val ports = Array.fill(Ports)(UUID.randomUUID())
+    private var macs: Array[MAC] = _
+    private var unknownMacs: Array[MAC] = _
+    private var mask = 0
+
+    private var cache: ConcurrentHashMap[MAC, CacheEntry] = _
+    private var refMap: OnHeapTimedExpirationMap[Mapping, AnyRef] = _
+    private var mappings: Array[Mapping] = _
+    private var compact: MacPortTable = _
+    private var refs: MacRefTable = _
+
+    private[topology] var cacheBytes = 0L
+    private[topology] var tableBytes = 0L
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        macs = Array.fill(entries)(MAC.random())
+        unknownMacs = Array.fill(entries)(MAC.random())
+        mask = entries - 1
+
+        cacheBytes = retainedBytes {
+            cache = new ConcurrentHashMap[MAC, CacheEntry]()
+            for (index <- 0 until entries) {
+                // Use new MAC and UUID objects, like the decoded state table
+                // entries.
+                val mac = new MAC(macs(index).asLong)
+                val port = ports(index % Ports)
+                cache.put(mac, CacheEntry(mac,
+                                          new UUID(port.getMostSignificantBits,
+                                                   port.getLeastSignificantBits),
+                                          index))
+            }
+        }
+        tableBytes = retainedBytes {
+            table match {
+                case "map" =>
+                    refMap = new OnHeapTimedExpirationMap[Mapping, AnyRef](
+                        Logger(LoggerFactory.getLogger("benchmark")), _ => Ttl)
+                    mappings = new Array[Mapping](entries)
+                    for (index <- 0 until entries) {
+                        mappings(index) = Mapping(VlanId,
+                                                  new MAC(macs(index).asLong),
+                                                  ports(index % Ports))
+                        refMap.putIfAbsentAndRef(mappings(index),
+                                                 mappings(index))
+                    }
+                case "compact" =>
+                    compact = new MacPortTable(VlanId)
+                    refs = new MacRefTable(Ttl.toMillis, Int.MaxValue)
+                    for (index <- 0 until entries) {
+                        val mac = macs(index).asLong
+                        val port = ports(index % Ports)
+                        compact.put(mac, port)
+                        refs.ref(VlanId, mac, port)
+                    }
+            }
+        }
+    }
+
+    private var position = 0
+
+    @Benchmark
+    def lookup(footprint: Footprint): UUID = {
+        position = (position + 1) & mask
+        get(macs(position))
+    }
+
+    @Benchmark
+    def lookupMiss(footprint: Footprint): UUID = {
+        position = (position + 1) & mask
+        get(unknownMacs(position))
+    }
+
+    @Benchmark
+    def refUnref(footprint: Footprint): Int = {
+        position = (position + 1) & mask
+        val port = ports(position % Ports)
+        table match {
+            case "map" =>
+                // The flow callback decodes a new mapping from its arguments.
+                val mapping = mappings(position)
+                val count = refMap.putIfAbsentAndRef(mapping, mapping)
+                refMap.unref(Mapping(VlanId, new MAC(mapping.mac.asLong),
+                                     new UUID(port.getMostSignificantBits,
+                                              port.getLeastSignificantBits)),
+                             0L)
+                count
+            case _ =>
+                val mac = macs(position).asLong
+                val count = refs.ref(VlanId, mac, port)
+                refs.unref(VlanId, mac, port.getMostSignificantBits,
+                           port.getLeastSignificantBits, 0L)
+                count
+        }
+    }
+
+    private def get(mac: MAC): UUID = table match {
+        case "map" =>
+            val entry = cache.get(mac)
+            if (entry ne null) entry.value else null
+        case _ => compact.get(mac.asLong)
+    }
+}
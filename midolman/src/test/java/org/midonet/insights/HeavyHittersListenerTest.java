@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.insights;
+
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.midonet.midolman.PacketWorkflow;
+import org.midonet.midolman.management.HeavyHitter;
+import org.midonet.midolman.management.HeavyHitters;
+import org.midonet.midolman.simulation.PacketContext;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.sdn.flows.FlowTagger;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class HeavyHittersListenerTest {
+
+    @After
+    public void teardown() {
+        HeavyHitters.reset();
+    }
+
+    private static PacketContext context(UUID port, UUID bridge,
+                                         int srcIp, int srcPort) {
+        PacketContext context = new PacketContext();
+        context.inputPort_$eq(port);
+        context.addFlowTag(FlowTagger.tagForBridge(bridge));
+        context.origMatch().setNetworkSrc(new IPv4Addr(srcIp));
+        context.origMatch().setNetworkDst(new IPv4Addr(0x0a000001));
+        context.origMatch().setNetworkProto((byte) 6);
+        context.origMatch().setSrcPort(srcPort);
+        context.origMatch().setDstPort(80);
+        return context;
+    }
+
+    @Test
+    public void testCountMinSketch() {
+        CountMinSketch sketch = new CountMinSketch(4, 100);
+        assertThat(sketch.width(), is(128));
+
+        long a = CountMinSketch.hash(1L, 2L);
+        long b = CountMinSketch.hash(2L, 1L);
+        assertThat(sketch.add(a, 5L), is(5L));
+        assertThat(sketch.add(a, 5L), is(10L));
+        sketch.add(b, 3L);
+        assertThat(sketch.estimate(a) >= 10L, is(true));
+        assertThat(sketch.estimate(b) >= 3L, is(true));
+
+        CountMinSketch other = new CountMinSketch(4, 128);
+        other.add(a, 7L);
+        sketch.merge(other);
+        assertThat(sketch.estimate(a) >= 17L, is(true));
+
+        sketch.clear();
+        assertThat(sketch.estimate(a), is(0L));
+    }
+
+    @Test
+    public void testTopK() {
+        TopK topK = new TopK(2);
+        topK.offer(1L, 1L, 10L);
+        topK.offer(2L, 2L, 5L);
+        topK.offer(3L, 3L, 1L);
+        assertThat(topK.size(), is(2));
+
+        // A larger count replaces the minimum.
+        topK.offer(3L, 3L, 7L);
+        assertThat(topK.hi(0), is(1L));
+        assertThat(topK.hi(1), is(3L));
+        assertThat(topK.count(1), is(7L));
+
+        // An existing key is updated in place.
+        topK.offer(1L, 1L, 11L);
+        assertThat(topK.size(), is(2));
+        assertThat(topK.count(0), is(11L));
+
+        topK.clear();
+        assertThat(topK.size(), is(0));
+    }
+
+    @Test
+    public void testMergePublishesTopTalkers() throws Exception {
+        HeavyHittersListener listener =
+            new HeavyHittersListener(4, 1024, 2, 60000L);
+        UUID port1 = UUID.randomUUID();
+        UUID port2 = UUID.randomUUID();
+        UUID port3 = UUID.randomUUID();
+        UUID bridge = UUID.randomUUID();
+
+        PacketContext heavy = context(port1, bridge, 0x0a000002, 1000);
+        PacketContext medium = context(port2, bridge, 0x0a000003, 2000);
+        PacketContext light = context(port3, bridge, 0x0a000004, 3000);
+
+        for (int i = 0; i < 100; i++) {
+            listener.flowSimulation(heavy, PacketWorkflow.NoOp$.MODULE$);
+        }
+        // Simulations recorded by another worker thread.
+        Thread worker = new Thread(() -> {
+            for (int i = 0; i < 50; i++) {
+                listener.flowSimulation(medium, PacketWorkflow.NoOp$.MODULE$);
+            }
+            listener.flowSimulation(light, PacketWorkflow.NoOp$.MODULE$);
+        });
+        worker.start();
+        worker.join();
+
+        listener.merge();
+
+        HeavyHitter[] ports = HeavyHitters.getTopPorts();
+        assertThat(ports.length, is(2));
+        assertThat(ports[0], is(new HeavyHitter(port1.toString(), 100L)));
+        assertThat(ports[1], is(new HeavyHitter(port2.toString(), 50L)));
+
+        HeavyHitter[] devices = HeavyHitters.getTopDevices();
+        assertThat(devices.length, is(1));
+        assertThat(devices[0], is(new HeavyHitter(bridge.toString(), 151L)));
+
+        HeavyHitter[] flows = HeavyHitters.getTopFlows();
+        assertThat(flows.length, is(2));
+        assertThat(flows[0].getKey(),
+                   is("proto 6 10.0.0.2:1000 -> 10.0.0.1:80"));
+        assertThat(flows[0].getPackets(), is(100L));
+
+        // The next interval starts from empty counts.
+        listener.flowSimulation(light, PacketWorkflow.NoOp$.MODULE$);
+        listener.merge();
+        ports = HeavyHitters.getTopPorts();
+        assertThat(ports.length, is(1));
+        assertThat(ports[0], is(new HeavyHitter(port3.toString(), 1L)));
+    }
+}
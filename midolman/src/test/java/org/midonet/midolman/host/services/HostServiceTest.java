@@ -57,6 +57,7 @@ import org.midonet.cluster.models.Topology;
 import org.midonet.cluster.services.MidonetBackend;
 import org.midonet.cluster.services.MidonetBackendService;
 import org.midonet.cluster.storage.MidonetBackendConfig;
+import org.midonet.cluster.util.HostStateUtil;
 import org.midonet.cluster.util.UUIDUtil;
 import org.midonet.conf.HostIdGenerator;
 import org.midonet.conf.MidoNodeConfigurator;
@@ -149,7 +150,9 @@ public class HostServiceTest {
             .withValue("agent.host.wait_time_gen_id",
                        ConfigValueFactory.fromAnyRef(0))
             .withValue("agent.host.retries_gen_id",
-                       ConfigValueFactory.fromAnyRef(0));
+                       ConfigValueFactory.fromAnyRef(0))
+            .withValue("agent.host.interfaces_quiet_period",
+                       ConfigValueFactory.fromAnyRef("0ms"));
     }
 
     @Before
@@ -181,6 +184,9 @@ public class HostServiceTest {
         stateStore.registerKey(Topology.Host.class,
                                MidonetBackend.HostKey(),
                                KeyType.SingleLastWriteWins());
+        stateStore.registerKey(Topology.Host.class,
+                               MidonetBackend.HostDeltaKey(),
+                               KeyType.SingleLastWriteWins());
         store.build(true);
     }
 
@@ -421,6 +427,50 @@ public class HostServiceTest {
         stopService(hostService);
     }
 
+    @Test
+    public void hostServiceWritesInterfaceDeltas() throws Throwable {
+        TestableHostService hostService = startService();
+        MockInterfaceScanner scanner = getInterfaceScanner();
+
+        // Adding interfaces to a small snapshot writes new snapshots.
+        scanner.addInterface(new InterfaceDescription("eth0", 1));
+        scanner.addInterface(new InterfaceDescription("eth1", 2));
+        scanner.addInterface(new InterfaceDescription("eth2", 3));
+        scanner.addInterface(new InterfaceDescription("eth3", 4));
+
+        State.HostState snapshot = getHostSnapshot(hostId);
+        assertEquals(snapshot.getInterfacesCount(), 4);
+        assertNull(getHostDelta(hostId));
+
+        // Adding and removing a few interfaces only writes the delta.
+        scanner.addInterface(new InterfaceDescription("tap0", 5));
+        scanner.removeInterface("eth0");
+
+        assertEquals(getHostSnapshot(hostId), snapshot);
+        State.HostState delta = getHostDelta(hostId);
+        assertNotNull(delta);
+        assertEquals(delta.getBaseVersion(), snapshot.getVersion());
+        assertEquals(delta.getInterfacesCount(), 1);
+        assertEquals(delta.getInterfaces(0).getName(), "tap0");
+        assertEquals(delta.getRemovedInterfacesCount(), 1);
+        assertEquals(delta.getRemovedInterfaces(0), "eth0");
+
+        State.HostState hostState = getHostState(hostId);
+        assertEquals(hostState.getInterfacesCount(), 4);
+        assertFalse(hasInterface(hostState, "eth0"));
+        assertTrue(hasInterface(hostState, "tap0"));
+
+        // Adding another interface compacts the delta into a new snapshot.
+        scanner.addInterface(new InterfaceDescription("tap1", 6));
+
+        snapshot = getHostSnapshot(hostId);
+        assertEquals(snapshot.getInterfacesCount(), 5);
+        assertTrue(hasInterface(snapshot, "tap1"));
+        assertNull(getHostDelta(hostId));
+
+        stopService(hostService);
+    }
+
     @Test
     public void hostServiceDoesNotUpdateHostInterfacesWhenStopped()
         throws Throwable {
@@ -455,8 +505,27 @@ public class HostServiceTest {
     }
 
     private State.HostState getHostState(UUID hostId) throws Exception {
+        StateKey snapshot = await(stateStore.getKey(Topology.Host.class, hostId,
+                                                    MidonetBackend.HostKey()));
+        StateKey delta = await(stateStore.getKey(Topology.Host.class, hostId,
+                                                 MidonetBackend.HostDeltaKey()));
+        scala.Option<State.HostState> hostState =
+            HostStateUtil.fromKeys(snapshot, delta);
+        return hostState.isDefined() ? hostState.get() : null;
+    }
+
+    private State.HostState getHostSnapshot(UUID hostId) throws Exception {
+        return getHostStateKey(hostId, MidonetBackend.HostKey());
+    }
+
+    private State.HostState getHostDelta(UUID hostId) throws Exception {
+        return getHostStateKey(hostId, MidonetBackend.HostDeltaKey());
+    }
+
+    private State.HostState getHostStateKey(UUID hostId, String keyName)
+        throws Exception {
         StateKey key = await(stateStore.getKey(Topology.Host.class, hostId,
-                                               MidonetBackend.HostKey()));
+                                               keyName));
 
         if (key.isEmpty()) return null;
 
@@ -467,6 +536,14 @@ public class HostServiceTest {
         return builder.build();
     }
 
+    private static boolean hasInterface(State.HostState hostState,
+                                        String name) {
+        for (State.HostState.Interface iface : hostState.getInterfacesList()) {
+            if (iface.getName().equals(name)) return true;
+        }
+        return false;
+    }
+
     private void eventuallyAssertHostState() throws Exception {
         for (byte attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
             try { assertHostState(); return; }
@@ -59,6 +59,8 @@ class ArpRequestBrokerTest extends Suite
     private final val ARP_TIMEOUT = 6 * 1000
     private final val ARP_STALE = 100 * 1000
     private final val ARP_EXPIRATION = 200 * 1000
+    private final val ARP_NEGATIVE_CACHE = 10 * 1000
+    private final val ARP_NEGATIVE_CACHE_MAX = 40 * 1000
 
     implicit def strToIpv4(str: String): IPv4Addr = IPv4Addr.fromString(str)
     val ZK_RTT_TIMEOUT = Timeout(Span(1, Second))
@@ -117,6 +119,8 @@ class ArpRequestBrokerTest extends Suite
           |        arp_timeout = ${ARP_TIMEOUT}ms
           |        arp_stale = ${ARP_STALE}ms
           |        arp_expiration = ${ARP_EXPIRATION}ms
+          |        arp_negative_cache = ${ARP_NEGATIVE_CACHE}ms
+          |        arp_negative_cache_max = ${ARP_NEGATIVE_CACHE_MAX}ms
           |    }
           |}
         """.stripMargin
@@ -426,4 +430,117 @@ class ArpRequestBrokerTest extends Suite
         }
         arps should be ('empty)
     }
+
+    private def timeOutArpLoop(): Unit = {
+        val NotYetException(macFuture, _) = intercept[NotYetException] {
+            arpBroker.get(THEIR_IP, port, router, -1)
+        }
+        val timeout = clock.time + NANOS.convert(ARP_TIMEOUT, MILLIS)
+        while (clock.time < timeout + NANOS.convert(ARP_RETRY * 2, MILLIS)) {
+            clock.time += NANOS.convert(ARP_RETRY, MILLIS)
+            arpBroker.process()
+        }
+        macFuture.value.get should be ('failure)
+        arps.clear()
+    }
+
+    def testNegativeCacheForUnrepliedArps(): Unit = {
+        timeOutArpLoop()
+
+        // the address is negatively cached: no ARPs and no suspended packets
+        arpBroker.get(THEIR_IP, port, router, -1) should be (null)
+        arps should be ('empty)
+        arpBroker.broker(router).negativeEntries should be (1)
+        arpBroker.broker(router).waiters should be (0)
+        arpBroker.broker(router).outstandingArps should be (0)
+
+        // after the negative cache period, the router ARPs again
+        clock.time += NANOS.convert(ARP_NEGATIVE_CACHE, MILLIS)
+        intercept[NotYetException] { arpBroker.get(THEIR_IP, port, router, -1) }
+        expectEmitArp()
+        arpBroker.broker(router).outstandingArps should be (1)
+
+        // a second timeout doubles the negative cache period
+        arps.clear()
+        timeOutArpLoop()
+        clock.time += NANOS.convert(ARP_NEGATIVE_CACHE * 3 / 2, MILLIS)
+        arpBroker.get(THEIR_IP, port, router, -1) should be (null)
+        arps should be ('empty)
+
+        // the entry is forgotten after the maximum period
+        clock.time += NANOS.convert(ARP_NEGATIVE_CACHE_MAX * 2, MILLIS)
+        arpBroker.process()
+        arpBroker.broker(router).negativeEntries should be (0)
+    }
+
+    def testNegativeCacheClearedByReply(): Unit = {
+        timeOutArpLoop()
+        arpBroker.get(THEIR_IP, port, router, -1) should be (null)
+
+        ArpCacheHelper.feedArpCache(remoteArpCache, THEIR_IP, THEIR_MAC)
+        eventually(ZK_RTT_TIMEOUT) {
+            arpBroker.process()
+            invalidations should have size 1
+        }
+        invalidations.poll() should be (FlowTagger.tagForArpEntry(routerId, THEIR_IP))
+        arpBroker.broker(router).negativeEntries should be (0)
+        arpBroker.get(THEIR_IP, port, router, -1) should be (THEIR_MAC)
+    }
+
+    def testRateLimitsArpRequests(): Unit = {
+        val limitedConfig = MidolmanConfig.forTests(confValues +
+            "agent.arptable.arp_rate_limit = 2")
+        arpBroker = new ArpRequestBroker(limitedConfig, backChannel, clock)
+
+        // only the first two ARP requests fit in the bucket
+        for (i <- 10 until 15) {
+            intercept[NotYetException] {
+                arpBroker.get(s"180.0.1.$i", port, router, -1)
+            }
+        }
+        arps should have size 2
+        arpBroker.broker(router).outstandingArps should be (5)
+        arpBroker.broker(router).waiters should be (5)
+        arps.clear()
+
+        // a token is added every 500 ms
+        clock.time += NANOS.convert(501, MILLIS)
+        arpBroker.process()
+        arps should have size 1
+    }
+
+    def testRateLimitedArpsAreNotNegativelyCachedBeforeSent(): Unit = {
+        val limitedConfig = MidolmanConfig.forTests(confValues +
+            "agent.arptable.arp_rate_limit = 1")
+        arpBroker = new ArpRequestBroker(limitedConfig, backChannel, clock)
+
+        val addresses = (10 until 20) map { i => IPv4Addr(s"180.0.1.$i") }
+        for (ip <- addresses) {
+            intercept[NotYetException] { arpBroker.get(ip, port, router, -1) }
+        }
+
+        // the rate limit delays some requests past the ARP timeout
+        val arped = new java.util.HashSet[IPv4Addr]()
+        def collectArps(): Unit = {
+            while (!arps.isEmpty) {
+                val pkt = arps.poll().asInstanceOf[GeneratedLogicalPacket]
+                val arp = pkt.eth.getPayload.asInstanceOf[ARP]
+                arped.add(IPv4Addr.fromBytes(arp.getTargetProtocolAddress))
+            }
+        }
+        collectArps()
+        val end = clock.time + NANOS.convert(ARP_TIMEOUT + ARP_RETRY, MILLIS)
+        while (clock.time < end) {
+            clock.time += NANOS.convert(100, MILLIS)
+            arpBroker.process()
+            collectArps()
+        }
+        arped.size should be < addresses.size
+
+        // only the addresses that were ARPed may be negatively cached
+        for (ip <- addresses if !arped.contains(ip)) {
+            intercept[NotYetException] { arpBroker.get(ip, port, router, -1) }
+        }
+        arpBroker.broker(router).negativeEntries should be <= arped.size
+    }
 }
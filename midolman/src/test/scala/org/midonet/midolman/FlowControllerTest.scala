@@ -16,6 +16,8 @@
 
 package org.midonet.midolman
 
+import java.util.UUID
+
 import com.google.common.collect.Lists
 
 import org.junit.runner.RunWith
@@ -26,6 +28,7 @@ import org.midonet.midolman.CallbackRegistry.{CallbackSpec, SerializableCallback
 import org.midonet.midolman.flows.{FlowExpirationIndexer, ManagedFlowImpl}
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.odp.FlowMatch
+import org.midonet.sdn.flows.FlowTagger
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 
 @RunWith(classOf[JUnitRunner])
@@ -181,6 +184,45 @@ class FlowControllerTest extends MidolmanSpec {
             flowController.flowExists(managedFlow.mark) shouldBe false
             managedFlow.currentRefCount should be (0)
         }
+
+        scenario("Scheduled invalidations are coalesced") {
+            Given("A flow and a recirculated flow with the same tag")
+            val tag = FlowTagger.tagForBridge(UUID.randomUUID())
+            val flow1 = new TestableFlow()
+            val managedFlow1 = flow1.add(tag)
+            val flow2 = new TestableFlow(linked = new FlowMatch)
+            val managedFlow2 = flow2.add(tag)
+
+            When("Scheduling the invalidation of the tag twice")
+            flowController.scheduleInvalidation(tag)
+            flowController.scheduleInvalidation(tag)
+
+            Then("The tag is pending once and the flows are not invalidated")
+            metrics.flowInvalidationBacklogTags.getValue shouldBe 1
+            flowController.shouldProcess shouldBe true
+            flowController.flowExists(managedFlow1.mark) shouldBe true
+            flowController.flowExists(managedFlow2.mark) shouldBe true
+
+            When("Processing the invalidations")
+            flowController.processInvalidations()
+
+            Then("The flows are removed")
+            flowController.flowExists(managedFlow1.mark) shouldBe false
+            flowController.flowExists(managedFlow2.mark) shouldBe false
+            flowController.flowExists(managedFlow2.linkedFlow.mark) shouldBe false
+            flow1.callbackCalled shouldBe true
+            flow2.callbackCalled shouldBe true
+            flow2.linkedCallbackCalled shouldBe true
+            metrics.currentDpFlowsMetric.getValue shouldBe 0
+
+            And("The flows are deleted from the datapath and released")
+            managedFlow1.currentRefCount shouldBe 0
+            managedFlow2.currentRefCount shouldBe 0
+            managedFlow2.linkedFlow.currentRefCount shouldBe 0
+            metrics.flowInvalidationBacklogTags.getValue shouldBe 0
+            metrics.flowInvalidationBacklogFlows.getValue shouldBe 0
+            metrics.flowInvalidationTimer.getCount shouldBe 1
+        }
     }
 
     final class TestableFlow(val fmatch: FlowMatch = new FlowMatch(),
@@ -207,6 +249,7 @@ class FlowControllerTest extends MidolmanSpec {
                     flowController.addFlow(
                         fmatch,
                         Lists.newArrayList(tags :_*),
+                        FlowController.NoRules,
                         Lists.newArrayList(
                             new CallbackSpec(callbackCalledCbId, new Array[Byte](0))),
                         FlowExpirationIndexer.FLOW_EXPIRATION)
@@ -214,6 +257,7 @@ class FlowControllerTest extends MidolmanSpec {
                     flowController.addRecircFlow(
                         fmatch, linked,
                         Lists.newArrayList(tags :_*),
+                        FlowController.NoRules,
                         Lists.newArrayList(
                             new CallbackSpec(callbackCalledCbId, new Array[Byte](0))),
                         FlowExpirationIndexer.FLOW_EXPIRATION)
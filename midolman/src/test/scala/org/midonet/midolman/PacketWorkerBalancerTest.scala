@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.concurrent.TimeUnit
+
+import com.codahale.metrics.Meter
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.odp.Packet
+
+@RunWith(classOf[JUnitRunner])
+class PacketWorkerBalancerTest extends FeatureSpec with Matchers {
+
+    class Worker extends PacketWorker {
+        var queued = 0L
+        override def submit(packet: Packet): Boolean = true
+        override def backlog: Long = queued
+    }
+
+    private val Millis = TimeUnit.MILLISECONDS.toNanos(1)
+
+    private val config = MidolmanConfig.forTests(
+        """
+          |agent.midolman.work_stealing.enabled = true
+          |agent.midolman.work_stealing.min_threads = 2
+          |agent.midolman.work_stealing.affinity_timeout = 100ms
+          |agent.midolman.work_stealing.steal_backlog = 10
+          |agent.midolman.work_stealing.scale_up_backlog = 50
+          |agent.midolman.work_stealing.scale_down_backlog = 5
+          |agent.midolman.work_stealing.scale_interval = 1s
+        """.stripMargin).workStealing
+
+    private def balancer(workers: IndexedSeq[Worker], steals: Meter,
+                         postponeNanos: Long = 0L) =
+        new PacketWorkerBalancer(workers, config, postponeNanos, steals, 0L)
+
+    feature("Packet worker balancer") {
+        scenario("Idle buckets go to their home worker") {
+            val workers = IndexedSeq.fill(4)(new Worker)
+            val b = balancer(workers, new Meter)
+
+            b.activeWorkers shouldBe 2
+            b.select(2, 1) shouldBe 0
+            b.select(3, 1) shouldBe 1
+        }
+
+        scenario("Busy home workers have their idle buckets stolen") {
+            val workers = IndexedSeq.fill(2)(new Worker)
+            val steals = new Meter
+            val b = balancer(workers, steals)
+
+            workers(0).queued = 100
+            b.select(2, 1) shouldBe 1
+            steals.getCount shouldBe 1
+        }
+
+        scenario("Busy buckets keep their worker") {
+            val workers = IndexedSeq.fill(2)(new Worker)
+            val b = balancer(workers, new Meter)
+
+            b.select(2, 1) shouldBe 0
+
+            // The home worker becomes busy, but the bucket is still active.
+            workers(0).queued = 100
+            b.select(2, 50 * Millis) shouldBe 0
+            b.select(2, 140 * Millis) shouldBe 0
+
+            // After the bucket has been idle for the affinity timeout, it
+            // can be stolen.
+            b.select(2, 300 * Millis) shouldBe 1
+            b.select(2, 310 * Millis) shouldBe 1
+        }
+
+        scenario("Buckets keep their worker while packets may be postponed") {
+            val workers = IndexedSeq.fill(2)(new Worker)
+            val b = balancer(workers, new Meter, postponeNanos = 1000 * Millis)
+
+            // The first packet of the bucket is postponed by its worker.
+            b.select(2, 1) shouldBe 0
+
+            // The home worker becomes busy, and the bucket is idle for longer
+            // than the affinity timeout but the postponed packet may still be
+            // waiting: the next packets must not overtake it.
+            workers(0).queued = 100
+            b.select(2, 300 * Millis) shouldBe 0
+
+            // After the bucket has been idle for the postpone timeout, no
+            // packet may be waiting and the bucket can be stolen.
+            b.select(2, 1200 * Millis) shouldBe 0
+            b.select(2, 2300 * Millis) shouldBe 1
+        }
+
+        scenario("The active workers scale with the backlog") {
+            val workers = IndexedSeq.fill(4)(new Worker)
+            val b = balancer(workers, new Meter)
+
+            workers(0).queued = 200
+            workers(1).queued = 200
+            b.select(0, 1000 * Millis)
+            b.activeWorkers shouldBe 3
+            b.select(0, 2000 * Millis)
+            b.activeWorkers shouldBe 4
+            b.select(0, 3000 * Millis)
+            b.activeWorkers shouldBe 4
+
+            workers foreach { _.queued = 0 }
+            b.select(0, 4000 * Millis)
+            b.activeWorkers shouldBe 3
+            b.select(0, 5000 * Millis)
+            b.select(0, 6000 * Millis)
+            b.activeWorkers shouldBe 2
+        }
+    }
+}
@@ -20,9 +20,12 @@ import java.util.UUID
 import scala.collection.JavaConverters._
 import scala.concurrent.Promise
 
+import com.typesafe.config.ConfigFactory
+
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
+import org.midonet.conf.MidoTestConfigurator
 import org.midonet.insights.Insights
 import org.midonet.midolman.CallbackRegistry.CallbackSpec
 import org.midonet.midolman.PacketWorkflow._
@@ -69,7 +72,10 @@ class PacketWorkflowTest extends MidolmanSpec {
                              custom: Boolean = true,
                              overlayVxlanPort: Int = 10,
                              vtepVxlanPort: Int = 11,
-                             fip64VxlanPort: Int = 12): Unit = {
+                             fip64VxlanPort: Int = 12,
+                             config: MidolmanConfig =
+                                 injector.getInstance(classOf[MidolmanConfig]))
+    : Unit = {
         val dpState = new DatapathStateDriver(new Datapath(0, "midonet"))
         dpState.tunnelOverlayGrePort = new GreTunnelPort("overlay-gre")
         dpState.tunnelOverlayVxLanPort = new VxLanTunnelPort("overlay-vxlan", 4700,
@@ -84,7 +90,8 @@ class PacketWorkflowTest extends MidolmanSpec {
                                                     dpState,
                                                     (x: Int) => { packetsOut += x },
                                                     custom = custom,
-                                                    simulationExpireMillis)
+                                                    simulationExpireMillis,
+                                                    config)
     }
 
     def makeFrame(variation: Short) =
@@ -543,6 +550,41 @@ class PacketWorkflowTest extends MidolmanSpec {
         }
     }
 
+    feature("Packet workflow invalidates flows within a time budget") {
+        scenario("Invalidations beyond the budget are processed next round") {
+            Given("A packet workflow without flow invalidation budget")
+            val conf = MidoTestConfigurator.forAgents(fillConfig(
+                ConfigFactory.parseString(
+                    "agent.midolman.flow_invalidation_budget : 0s")))
+            createPacketWorkflow(
+                config = new MidolmanConfig(conf, ConfigFactory.empty()))
+
+            When("The back channel is flooded with flow tags")
+            val tags = for (_ <- 0 until 3)
+                yield FlowTagger.tagForBridge(UUID.randomUUID())
+            tags foreach simBackChannel.tell
+            packetWorkflow.process()
+
+            Then("The back channel is drained and a single tag invalidated")
+            simBackChannel.hasMessages shouldBe false
+            metrics.flowInvalidationBacklogTags.getValue shouldBe 2
+            metrics.flowInvalidationTimer.getCount shouldBe 1
+
+            When("The workflow processes the next rounds")
+            packetWorkflow.process()
+
+            Then("The remaining tags are invalidated one per round")
+            metrics.flowInvalidationBacklogTags.getValue shouldBe 1
+            packetWorkflow.process()
+            metrics.flowInvalidationBacklogTags.getValue shouldBe 0
+            metrics.flowInvalidationTimer.getCount shouldBe 3
+
+            And("No invalidations are left for the following rounds")
+            packetWorkflow.process()
+            metrics.flowInvalidationTimer.getCount shouldBe 3
+        }
+    }
+
     private def isCleared(context: PacketContext): Unit = {
         context.flowTags should be (empty)
         context.flowRemovedCallbacks should be (empty)
@@ -742,8 +784,9 @@ class PacketWorkflowTest extends MidolmanSpec {
                                  dpState: DatapathState,
                                  packetOut: Int => Unit,
                                  custom: Boolean,
-                                 override val simulationExpireMillis: Long)
-            extends PacketWorkflow(1, 0, injector.getInstance(classOf[MidolmanConfig]),
+                                 override val simulationExpireMillis: Long,
+                                 config: MidolmanConfig)
+            extends PacketWorkflow(1, 0, config,
                                    hostId, dpState,
                                    cookieGen, clock, dpChannel,
                                    simBackChannel,
@@ -756,7 +799,7 @@ class PacketWorkflowTest extends MidolmanSpec {
                                    NullFlowRecorder(),
                                    injector.getInstance(classOf[VirtualTopology]),
                                    packetOut,
-                                   new MockFlowTablePreallocation(injector.getInstance(classOf[MidolmanConfig])),
+                                   new MockFlowTablePreallocation(config),
                                    cbRegistry,
                                    Insights.NONE) {
         var p = Promise[Any]()
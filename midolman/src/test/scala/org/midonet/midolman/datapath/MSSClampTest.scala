@@ -186,6 +186,43 @@ class MSSClampTest extends FlatSpec with Matchers {
         success.get shouldBe true
     }
 
+    it should "reduce MSS in place for packets not materialized" in {
+        val pkt = { eth src srcMac2 dst dstMac2 } <<
+                  { ip4 src srcIp2 dst dstIp2 } <<
+                  { udp src srcPort2 dst UDP.VXLAN.toShort } <<
+                  { vxlan vni 5 } <<
+                  { eth src srcMac1 dst dstMac1 } <<
+                  { ip4 src srcIp1 dst dstIp2 } <<
+                  { tcp src srcPort1 dst dstPort1 flags synFlags mss 1460 }
+        val packet = new Packet(pkt.packet.serialize(), new FlowMatch())
+        val ctx = PacketContext.generated(cookie, packet, packet.getMatch)
+        ctx.inputPort = UUID.randomUUID()
+
+        PacketExecutor.clampMss(ctx, log)
+        packet.isMaterialized shouldBe false
+
+        val view = new HeaderView().wrap(packet.getData)
+        val offset = view.encapsulatedFrameOffset
+        view.udpChecksum shouldBe 0
+        view.wrap(packet.getData, offset, packet.getData.length - offset)
+        view.tcpMss shouldBe 1410
+        checkMss(packet.getEthernet, 1410)
+    }
+
+    it should "not materialize unencapsulated TCP packets" in {
+        val pkt = { eth src srcMac1 dst dstMac1 } <<
+                  { ip4 src srcIp1 dst dstIp1 } <<
+                  { tcp src srcPort1 dst dstPort1 flags synFlags mss 1460 }
+        val data = pkt.packet.serialize()
+        val packet = new Packet(data.clone(), new FlowMatch())
+        val ctx = PacketContext.generated(cookie, packet, packet.getMatch)
+        ctx.inputPort = UUID.randomUUID()
+
+        PacketExecutor.clampMss(ctx, log)
+        packet.isMaterialized shouldBe false
+        packet.getData shouldBe data
+    }
+
     private def clampAndCheck(ctx: PacketContext, mss: Short,
                               checksumCleared: Boolean): Unit = {
         val eth = ctx.packet.getEthernet
@@ -24,7 +24,7 @@ import scala.util.Random.shuffle
 import com.google.common.collect.Lists
 
 import org.junit.runner.RunWith
-import org.mockito.Matchers.{eq => mockEq}
+import org.mockito.Matchers.{anyLong, eq => mockEq}
 import org.mockito.Mockito.verify
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.mock.MockitoSugar
@@ -78,14 +78,17 @@ class NativeFlowControllerTest extends MidolmanSpec with MockitoSugar {
             val managedFlow = flowController.addFlow(
                 flowMatch,
                 tags,
+                FlowController.NoRules,
                 Lists.newArrayList(callbackCalledSpec),
                 FlowExpirationIndexer.FLOW_EXPIRATION)
 
             Then("The flow is registered and the metrics updated")
             managedFlow should not be null
             metrics.dpFlowsMetric.getCount should be (1)
-            verify(mockMeterRegistry).trackFlow(mockEq(flowMatch),
-                                                mockEq(tags))
+            verify(mockMeterRegistry).trackFlow(anyLong(),
+                                                mockEq(flowMatch),
+                                                mockEq(tags),
+                                                mockEq(FlowController.NoRules))
 
             And("The flow has a reasonable string representation")
             managedFlow.toString() should fullyMatch regex (
@@ -97,6 +100,7 @@ class NativeFlowControllerTest extends MidolmanSpec with MockitoSugar {
             val managedFlow = flowController.addFlow(
                 FlowMatches.generateFlowMatch(random),
                 Lists.newArrayList(),
+                FlowController.NoRules,
                 Lists.newArrayList(callbackCalledSpec),
                 FlowExpirationIndexer.FLOW_EXPIRATION)
             managedFlow should not be null
@@ -118,6 +122,7 @@ class NativeFlowControllerTest extends MidolmanSpec with MockitoSugar {
                 FlowMatches.generateFlowMatch(random),
                 FlowMatches.generateFlowMatch(random),
                 Lists.newArrayList(),
+                FlowController.NoRules,
                 Lists.newArrayList(callbackCalledSpec),
                 FlowExpirationIndexer.FLOW_EXPIRATION).
                 asInstanceOf[NativeFlowController#NativeManagedFlow]
@@ -145,6 +150,7 @@ class NativeFlowControllerTest extends MidolmanSpec with MockitoSugar {
                 FlowMatches.generateFlowMatch(random),
                 FlowMatches.generateFlowMatch(random),
                 Lists.newArrayList(),
+                FlowController.NoRules,
                 Lists.newArrayList(callbackCalledSpec),
                 FlowExpirationIndexer.FLOW_EXPIRATION).
                 asInstanceOf[NativeFlowController#NativeManagedFlow]
@@ -169,6 +175,7 @@ class NativeFlowControllerTest extends MidolmanSpec with MockitoSugar {
             val managedFlow = flowController.addFlow(
                 FlowMatches.generateFlowMatch(random),
                 Lists.newArrayList(),
+                FlowController.NoRules,
                 Lists.newArrayList(callbackCalledSpec),
                 FlowExpirationIndexer.FLOW_EXPIRATION)
             managedFlow should not be null
@@ -195,6 +202,7 @@ class NativeFlowControllerTest extends MidolmanSpec with MockitoSugar {
             val managedFlow =  flowController.addFlow(
                 FlowMatches.generateFlowMatch(random),
                 Lists.newArrayList(),
+                FlowController.NoRules,
                 Lists.newArrayList(callbackCalledSpec),
                 FlowExpirationIndexer.FLOW_EXPIRATION)
             managedFlow should not be null
@@ -231,6 +239,7 @@ class NativeFlowControllerTest extends MidolmanSpec with MockitoSugar {
             val managedFlow1 =  flowController.addFlow(
                 FlowMatches.generateFlowMatch(random),
                 Lists.newArrayList(tag1, tag2),
+                FlowController.NoRules,
                 Lists.newArrayList(callbackCalledSpec),
                 FlowExpirationIndexer.FLOW_EXPIRATION)
             managedFlow1 should not be null
@@ -238,6 +247,7 @@ class NativeFlowControllerTest extends MidolmanSpec with MockitoSugar {
             val managedFlow2 =  flowController.addFlow(
                 FlowMatches.generateFlowMatch(random),
                 Lists.newArrayList(tag1),
+                FlowController.NoRules,
                 Lists.newArrayList(callbackCalledSpec),
                 FlowExpirationIndexer.FLOW_EXPIRATION)
             managedFlow2 should not be null
@@ -245,6 +255,7 @@ class NativeFlowControllerTest extends MidolmanSpec with MockitoSugar {
             val managedFlow3 =  flowController.addFlow(
                 FlowMatches.generateFlowMatch(random),
                 Lists.newArrayList(tag2),
+                FlowController.NoRules,
                 Lists.newArrayList(callbackCalledSpec),
                 FlowExpirationIndexer.FLOW_EXPIRATION)
             managedFlow3 should not be null
@@ -296,6 +307,7 @@ class NativeFlowControllerTest extends MidolmanSpec with MockitoSugar {
                 val managedFlow = flowController.addFlow(
                     flowMatch,
                     Lists.newArrayList(shuffle(tags).asJava),
+                    FlowController.NoRules,
                     Lists.newArrayList(callbackCalledSpec),
                     FlowExpirationIndexer.FLOW_EXPIRATION)
                 managedFlow should not be null
@@ -328,6 +340,7 @@ class NativeFlowControllerTest extends MidolmanSpec with MockitoSugar {
                 FlowMatches.generateFlowMatch(random),
                 FlowMatches.generateFlowMatch(random),
                 Lists.newArrayList(tag1),
+                FlowController.NoRules,
                 Lists.newArrayList(callbackCalledSpec),
                 FlowExpirationIndexer.FLOW_EXPIRATION).
                 asInstanceOf[NativeFlowController#NativeManagedFlow]
@@ -352,6 +365,7 @@ class NativeFlowControllerTest extends MidolmanSpec with MockitoSugar {
             val managedFlow =  flowController.addFlow(
                 FlowMatches.generateFlowMatch(random),
                 Lists.newArrayList(tag1),
+                FlowController.NoRules,
                 Lists.newArrayList(callbackCalledSpec),
                 FlowExpirationIndexer.FLOW_EXPIRATION)
             managedFlow should not be null
@@ -394,11 +408,13 @@ class NativeFlowControllerTest extends MidolmanSpec with MockitoSugar {
             val managedFlow1 =  flowController.addFlow(
                 FlowMatches.generateFlowMatch(random),
                 Lists.newArrayList(tag1),
+                FlowController.NoRules,
                 Lists.newArrayList(callbackCalledSpec),
                 FlowExpirationIndexer.FLOW_EXPIRATION)
             val managedFlow2 =  flowController.addFlow(
                 FlowMatches.generateFlowMatch(random),
                 Lists.newArrayList(tag1),
+                FlowController.NoRules,
                 Lists.newArrayList(callbackCalledSpec),
                 FlowExpirationIndexer.FLOW_EXPIRATION)
 
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.HashMap
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+@RunWith(classOf[JUnitRunner])
+class PrimitiveFlowTagIndexerTest extends FeatureSpec with BeforeAndAfter
+                                          with Matchers with GivenWhenThen {
+
+    private val tag1 = FlowTagger.tagForDpPort(1)
+    private val tag2 = FlowTagger.tagForDpPort(2)
+
+    private var table: HashMap[Long, ManagedFlowImpl] = _
+    private var indexer: PrimitiveFlowTagIndexer = _
+    private var nextId = 0L
+
+    before {
+        table = new HashMap[Long, ManagedFlowImpl]()
+        indexer = new PrimitiveFlowTagIndexer(
+            new PrimitiveFlowTagIndexer.FlowLookup {
+                override def flowOf(id: Long): ManagedFlowImpl = table.get(id)
+            }, initialCapacity = 4)
+        nextId = 0L
+    }
+
+    private def addFlow(tags: FlowTag*): ManagedFlowImpl = {
+        val flow = new ManagedFlowImpl(null)
+        tags.foreach(flow.tags.add(_))
+        flow.setId(nextId)
+        nextId += 1
+        table.put(flow.id, flow)
+        indexer.indexFlowTags(flow)
+        flow
+    }
+
+    private def forgetFlow(flow: ManagedFlowImpl): Unit = {
+        indexer.removeFlowTags(flow)
+        table.remove(flow.id)
+    }
+
+    private def invalidate(tag: FlowTag): List[ManagedFlowImpl] = {
+        val flows = indexer.invalidateFlowsFor(tag).toList
+        flows foreach forgetFlow
+        flows
+    }
+
+    feature("Flows are invalidated by tags") {
+        scenario("A flow is removed when a tag is invalidated") {
+            Given("A flow with a tag")
+            val flow = addFlow(tag1)
+
+            Then("Invalidating the tag returns the flow")
+            invalidate(tag1) shouldBe List(flow)
+            indexer.tagCount shouldBe 0
+        }
+
+        scenario("A flow can have multiple tags") {
+            Given("A flow with two tags")
+            val flow = addFlow(tag1, tag2)
+
+            When("Invalidating the first tag")
+            invalidate(tag1) shouldBe List(flow)
+
+            Then("The second tag is removed when the flow is forgotten")
+            invalidate(tag2) shouldBe empty
+            indexer.tagCount shouldBe 0
+        }
+
+        scenario("Multiple flows can be invalidated") {
+            Given("Two flows sharing a tag")
+            val flow1 = addFlow(tag1)
+            val flow2 = addFlow(tag1, tag2)
+
+            Then("Invalidating the tag returns both flows")
+            invalidate(tag1) shouldBe List(flow1, flow2)
+            invalidate(tag2) shouldBe empty
+        }
+
+        scenario("A flow with a repeated tag is returned once") {
+            Given("A flow with the same tag twice")
+            val flow = addFlow(tag1, tag1)
+
+            Then("Invalidating the tag returns the flow once")
+            invalidate(tag1) shouldBe List(flow)
+        }
+    }
+
+    feature("Flows can be removed") {
+        scenario("A removed flow is not invalidated") {
+            Given("Two flows with two tags")
+            val flow1 = addFlow(tag1, tag2)
+            val flow2 = addFlow(tag1, tag2)
+
+            When("Removing the first flow")
+            forgetFlow(flow1)
+
+            Then("The tags only count the second flow")
+            indexer.flowCount(tag1) shouldBe 1
+            indexer.flowCount(tag2) shouldBe 1
+            invalidate(tag1) shouldBe List(flow2)
+        }
+
+        scenario("A tag is removed when it contains no more flows") {
+            Given("A flow with a tag")
+            val flow = addFlow(tag1)
+
+            When("Removing the flow")
+            forgetFlow(flow)
+
+            Then("The tag is removed")
+            indexer.tagCount shouldBe 0
+            indexer.flowCount(tag1) shouldBe 0
+        }
+
+        scenario("Removed flows are purged when the tag grows") {
+            Given("A tag with many flows added and removed")
+            val kept = for (i <- 0 until 100) yield {
+                val flow = addFlow(tag1)
+                forgetFlow(addFlow(tag1))
+                flow
+            }
+
+            Then("The tag counts only the remaining flows")
+            indexer.flowCount(tag1) shouldBe kept.size
+            invalidate(tag1) shouldBe kept.toList
+        }
+    }
+
+    feature("The index grows") {
+        scenario("Many tags are indexed") {
+            Given("Many flows with distinct tags")
+            val flows = for (i <- 0 until 1000) yield
+                addFlow(FlowTagger.tagForDpPort(i), tag1)
+
+            Then("Every tag returns its flow")
+            indexer.tagCount shouldBe 1001
+            for (i <- 0 until 1000 by 2) {
+                invalidate(FlowTagger.tagForDpPort(i)) shouldBe List(flows(i))
+            }
+            indexer.flowCount(tag1) shouldBe 500
+
+            And("The remaining tags are still indexed")
+            for (i <- 1 until 1000 by 2) {
+                invalidate(FlowTagger.tagForDpPort(i)) shouldBe List(flows(i))
+            }
+            indexer.tagCount shouldBe 0
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.io
+
+import java.util.concurrent.ConcurrentHashMap
+
+import scala.collection.mutable.ArrayBuffer
+
+import com.codahale.metrics.MetricRegistry
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.midolman.PacketWorker
+import org.midonet.midolman.monitoring.metrics.UpcallPortMetrics
+import org.midonet.odp.{FlowMatch, Packet}
+import org.midonet.util.{Bucket, StatisticalCounter}
+
+@RunWith(classOf[JUnitRunner])
+class UpcallSchedulerTest extends FeatureSpec with Matchers {
+
+    class BoundedWorker(capacity: Int) extends PacketWorker {
+        val packets = new ArrayBuffer[Packet]()
+        override def submit(packet: Packet): Boolean = {
+            if (packets.size < capacity) {
+                packets += packet
+                true
+            } else false
+        }
+    }
+
+    private def packet(portNo: Int): Packet =
+        new Packet(new Array[Byte](64),
+                   new FlowMatch().setInputPortNumber(portNo))
+
+    private def identities(packets: Seq[Packet]): Seq[Int] =
+        packets map { p => System.identityHashCode(p) }
+
+    private def port(ports: ConcurrentHashMap[Integer, UpcallPort],
+                     registry: MetricRegistry, portNo: Int,
+                     weight: Int,
+                     bucket: Bucket = Bucket.BOTTOMLESS): UpcallPort = {
+        val port = new UpcallPort(portNo, weight,
+                                  new UpcallPortMetrics(registry, portNo),
+                                  bucket)
+        ports.put(portNo, port)
+        port
+    }
+
+    feature("Upcall scheduler") {
+        scenario("Dispatches all packets when the workers have capacity") {
+            val worker = new BoundedWorker(100)
+            val scheduler = new UpcallScheduler(
+                IndexedSeq(worker), 16, 2,
+                new ConcurrentHashMap[Integer, UpcallPort]())
+
+            val packets = (1 to 10) map { i => packet(i % 2) }
+            packets foreach { p => scheduler.submit(p, 0) shouldBe true }
+            worker.packets shouldBe empty
+
+            scheduler.dispatch()
+            worker.packets should have size 10
+            // The packets of a port keep their order.
+            identities(worker.packets.filter(_.getMatch.getInputPortNumber == 0)) shouldBe
+                identities(packets.filter(_.getMatch.getInputPortNumber == 0))
+        }
+
+        scenario("Shares a full worker fairly between ports") {
+            val registry = new MetricRegistry
+            val ports = new ConcurrentHashMap[Integer, UpcallPort]()
+            val noisy = port(ports, registry, 1, 1)
+            val quiet = port(ports, registry, 2, 1)
+            val worker = new BoundedWorker(12)
+            val scheduler = new UpcallScheduler(IndexedSeq(worker), 64, 2, ports)
+
+            // The noisy port is read first and sends many more packets.
+            for (i <- 1 to 50) scheduler.submit(packet(1), 0)
+            for (i <- 1 to 6) scheduler.submit(packet(2), 0)
+            scheduler.dispatch()
+
+            worker.packets.count(_.getMatch.getInputPortNumber == 1) shouldBe 6
+            worker.packets.count(_.getMatch.getInputPortNumber == 2) shouldBe 6
+            noisy.metrics.packetsDropped.getCount shouldBe 44
+            quiet.metrics.packetsDropped.getCount shouldBe 0
+            quiet.metrics.queueLatency.getCount shouldBe 6
+        }
+
+        scenario("Honors the port weights") {
+            val registry = new MetricRegistry
+            val ports = new ConcurrentHashMap[Integer, UpcallPort]()
+            port(ports, registry, 1, 1)
+            port(ports, registry, 2, 3)
+            val worker = new BoundedWorker(16)
+            val scheduler = new UpcallScheduler(IndexedSeq(worker), 64, 2, ports)
+
+            for (i <- 1 to 20) scheduler.submit(packet(1), 0)
+            for (i <- 1 to 20) scheduler.submit(packet(2), 0)
+            scheduler.dispatch()
+
+            worker.packets.count(_.getMatch.getInputPortNumber == 1) shouldBe 4
+            worker.packets.count(_.getMatch.getInputPortNumber == 2) shouldBe 12
+        }
+
+        scenario("Drops packets that overflow the port queue") {
+            val registry = new MetricRegistry
+            val ports = new ConcurrentHashMap[Integer, UpcallPort]()
+            val p = port(ports, registry, 3, 1)
+            val worker = new BoundedWorker(100)
+            val scheduler = new UpcallScheduler(IndexedSeq(worker), 4, 2, ports)
+
+            (1 to 6) map { _ => scheduler.submit(packet(3), 0) } shouldBe
+                Seq(true, true, true, true, false, false)
+            p.metrics.packetsDropped.getCount shouldBe 2
+
+            scheduler.dispatch()
+            worker.packets should have size 4
+
+            // The queue is available again after the dispatch.
+            scheduler.submit(packet(3), 0) shouldBe true
+        }
+
+        scenario("Returns the tokens of the packets dropped at dispatch") {
+            val registry = new MetricRegistry
+            val ports = new ConcurrentHashMap[Integer, UpcallPort]()
+            // The counter receives the tokens returned to the system.
+            val returned = new StatisticalCounter(1)
+            val bucket = new Bucket(null, 1, returned, 0, false)
+            val p = port(ports, registry, 4, 1, bucket)
+            val worker = new BoundedWorker(10)
+            val scheduler = new UpcallScheduler(IndexedSeq(worker), 64, 2, ports)
+
+            for (i <- 1 to 30) scheduler.submit(packet(4), 0) shouldBe true
+            scheduler.dispatch()
+
+            worker.packets should have size 10
+            p.metrics.packetsDropped.getCount shouldBe 20
+            returned.getValue shouldBe 20
+
+            // The tokens are returned when the next batch is dispatched too.
+            for (i <- 1 to 5) scheduler.submit(packet(4), 0)
+            scheduler.dispatch()
+            returned.getValue shouldBe 25
+        }
+
+        scenario("Keeps the worker selected for each packet") {
+            val workers = IndexedSeq(new BoundedWorker(100),
+                                     new BoundedWorker(100))
+            val scheduler = new UpcallScheduler(
+                workers, 16, 1, new ConcurrentHashMap[Integer, UpcallPort]())
+
+            val packets = (0 until 8) map { i => packet(i % 3) }
+            packets.zipWithIndex foreach { case (p, i) =>
+                scheduler.submit(p, i % 2)
+            }
+            scheduler.dispatch()
+
+            identities(workers(0).packets).toSet shouldBe
+                identities(packets.zipWithIndex.filter(_._2 % 2 == 0).map(_._1)).toSet
+            identities(workers(1).packets).toSet shouldBe
+                identities(packets.zipWithIndex.filter(_._2 % 2 == 1).map(_._1)).toSet
+        }
+    }
+}
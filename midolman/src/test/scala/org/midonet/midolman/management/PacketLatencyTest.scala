@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.management
+
+import java.io.{BufferedWriter, StringWriter}
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.odp.{FlowMatch, Packet}
+
+@RunWith(classOf[JUnitRunner])
+class PacketLatencyTest extends FeatureSpec with Matchers
+                        with GivenWhenThen with BeforeAndAfter {
+
+    private def context(cookie: Long, totalNanos: Long): PacketContext = {
+        val context = new PacketContext
+        val packet = new Packet(null, new FlowMatch)
+        packet.startTimeNanos = 1000L
+        context.cookie = cookie
+        context.runs = 1
+        context.packet = packet
+        context.workflowStartNanos = 1100L
+        context.simulationNanos = 300L
+        context.translationNanos = 100L
+        context.postponedOn = "device"
+        context.handedOffAtNanos = 1000L + totalNanos
+        context.handoffNanos = 10L
+        context
+    }
+
+    private def record(cookie: Long, totalNanos: Long): Unit =
+        PacketLatency.record(context(cookie, totalNanos), 100L, 200L)
+
+    after {
+        PacketLatency.stopTrace()
+    }
+
+    feature("Packet latency trace") {
+        scenario("Packets are not sampled when the trace is stopped") {
+            Given("A stopped trace")
+            PacketLatency.startTrace(4)
+            PacketLatency.stopTrace()
+
+            When("Recording a packet")
+            record(1L, 5000L)
+
+            Then("The trace is empty")
+            PacketLatency.isTracing shouldBe false
+            PacketLatency.getSlowestPackets shouldBe empty
+        }
+
+        scenario("The trace keeps the slowest packets") {
+            Given("A trace of three samples")
+            PacketLatency.startTrace(3)
+
+            When("Recording several packets")
+            for ((cookie, total) <- Seq(1L -> 500L, 2L -> 9000L, 3L -> 100L,
+                                        4L -> 7000L, 5L -> 3000L)) {
+                record(cookie, total)
+            }
+
+            Then("The trace contains the slowest packets by total time")
+            val samples = PacketLatency.getSlowestPackets
+            samples.map(_.getCookie) shouldBe Array(2L, 4L, 5L)
+            samples.map(_.getTotalNanos) shouldBe Array(9000L, 7000L, 3000L)
+
+            And("The samples contain the stage breakdown")
+            samples(0).getRingWaitNanos shouldBe 100L
+            samples(0).getSimulationNanos shouldBe 200L
+            samples(0).getTranslationNanos shouldBe 100L
+            samples(0).getHandoffNanos shouldBe 10L
+            samples(0).getPostponedOn shouldBe "device"
+        }
+
+        scenario("Restarting the trace clears the samples") {
+            Given("A trace with samples")
+            PacketLatency.startTrace(2)
+            record(1L, 500L)
+            record(2L, 800L)
+
+            When("Restarting the trace")
+            PacketLatency.startTrace(2)
+
+            Then("The trace is empty")
+            PacketLatency.getSlowestPackets shouldBe empty
+
+            And("Any packet is sampled")
+            record(3L, 10L)
+            PacketLatency.getSlowestPackets.map(_.getCookie) shouldBe Array(3L)
+        }
+
+        scenario("The trace is written as a text table") {
+            Given("A trace with a sample")
+            PacketLatency.startTrace(1)
+            record(7L, 500L)
+
+            When("Writing the table")
+            val output = new StringWriter
+            val writer = new BufferedWriter(output)
+            PacketLatency.toTextTable(writer)
+            writer.flush()
+
+            Then("The table contains the stage times of the sample")
+            output.toString should startWith ("7\t500\t100\t200\t0\tdevice\t100\t10\t0\t1\t")
+        }
+    }
+}
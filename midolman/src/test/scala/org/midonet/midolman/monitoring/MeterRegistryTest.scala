@@ -28,7 +28,7 @@ import org.midonet.odp.FlowMatches
 import org.midonet.packets.{IPv4Addr, MAC, Ethernet}
 import org.midonet.packets.util.PacketBuilder._
 import org.midonet.sdn.flows.FlowTagger
-import org.midonet.sdn.flows.FlowTagger.MeterTag
+import org.midonet.sdn.flows.FlowTagger.{FlowTag, MeterTag}
 
 abstract class MeterRegistryTest extends FeatureSpec with Matchers {
 
@@ -51,6 +51,8 @@ abstract class MeterRegistryTest extends FeatureSpec with Matchers {
 
     val matchA = FlowMatches.fromEthernetPacket(packetA)
     val matchB = FlowMatches.fromEthernetPacket(packetB)
+    val flowA = 1L
+    val flowB = 2L
 
     val metersA: List[MeterTag] = List(deviceA, commonDevice)
     val metersB: List[MeterTag] = List(deviceB, commonDevice)
@@ -58,19 +60,21 @@ abstract class MeterRegistryTest extends FeatureSpec with Matchers {
     val tagsA = new ArrayList((nonMeterRandomTag :: metersA).asJava)
     val tagsB = new ArrayList((nonMeterRandomTag :: metersB).asJava)
 
+    val noRules = new ArrayList[UUID]()
+
     val FIRST_PKT_SIZE = 237
 
     feature("Meter registry") {
         scenario("registers new meters") {
             val registry = createRegistry()
 
-            registry.trackFlow(matchA, tagsA)
+            registry.trackFlow(flowA, matchA, tagsA, noRules)
             registry.getMeterKeys should have size 2
             for (meter <- metersA) {
                 registry.getMeterKeys should contain (meter.meterName)
             }
 
-            registry.trackFlow(matchB, tagsB)
+            registry.trackFlow(flowB, matchB, tagsB, noRules)
             registry.getMeterKeys should have size 3
             for (meter <- metersB) {
                 registry.getMeterKeys should contain (meter.meterName)
@@ -85,14 +89,14 @@ abstract class MeterRegistryTest extends FeatureSpec with Matchers {
 
         scenario("tracks stats for a single flow, N meters") {
             val registry = createRegistry()
-            registry.trackFlow(matchA, tagsA)
-            registry.recordPacket(FIRST_PKT_SIZE, tagsA)
+            registry.trackFlow(flowA, matchA, tagsA, noRules)
+            registry.recordPacket(FIRST_PKT_SIZE, tagsA, noRules)
 
             val stats = new FlowStats()
             for (i <- 1 to 10) {
                 stats.packets = i
                 stats.bytes = i * 100
-                registry.updateFlow(matchA, stats)
+                registry.updateFlow(flowA, matchA, stats)
 
                 for (key <- registry.getMeterKeys.asScala) {
                     val meter = registry.getMeter(key)
@@ -104,18 +108,18 @@ abstract class MeterRegistryTest extends FeatureSpec with Matchers {
 
         scenario("forgets flows") {
             val registry = createRegistry()
-            registry.trackFlow(matchA, tagsA)
+            registry.trackFlow(flowA, matchA, tagsA, noRules)
 
             val fixedPackets = 5
             val fixedBytes = 55
 
             val stats = new FlowStats(fixedPackets, fixedBytes)
-            registry.updateFlow(matchA, stats)
-            registry.forgetFlow(matchA)
+            registry.updateFlow(flowA, matchA, stats)
+            registry.forgetFlow(flowA, matchA)
 
             stats.packets = 245
             stats.bytes = 1235
-            registry.updateFlow(matchA, stats)
+            registry.updateFlow(flowA, matchA, stats)
             for (key <- registry.getMeterKeys.asScala) {
                 val meter = registry.getMeter(key)
                 meter.packets should === (fixedPackets)
@@ -125,15 +129,15 @@ abstract class MeterRegistryTest extends FeatureSpec with Matchers {
 
         scenario("tracks stats for two flows, overlapping meters") {
             val registry = createRegistry()
-            registry.trackFlow(matchA, tagsA)
-            registry.trackFlow(matchB, tagsB)
+            registry.trackFlow(flowA, matchA, tagsA, noRules)
+            registry.trackFlow(flowB, matchB, tagsB, noRules)
 
             val stats = new FlowStats()
             for (i <- 1 to 10) {
                 stats.packets = i
                 stats.bytes = i * 100
-                registry.updateFlow(matchA, stats)
-                registry.updateFlow(matchB, stats)
+                registry.updateFlow(flowA, matchA, stats)
+                registry.updateFlow(flowB, matchB, stats)
 
                 registry.getMeter(commonDevice.meterName).packets should === (i * 2)
                 registry.getMeter(commonDevice.meterName).bytes should === (i * 200)
@@ -150,6 +154,90 @@ abstract class MeterRegistryTest extends FeatureSpec with Matchers {
 @RunWith(classOf[JUnitRunner])
 class OnHeapMeterRegistryTest extends MeterRegistryTest {
     override def createRegistry(): MeterRegistry = MeterRegistry.newOnHeap(10)
+
+    feature("Rule counters") {
+        scenario("tracks stats for the rules of the flows") {
+            val registry = createRegistry()
+            val ruleA = UUID.randomUUID()
+            val ruleB = UUID.randomUUID()
+            val common = UUID.randomUUID()
+            registry.trackFlow(flowA, matchA, noRules,
+                               new ArrayList(List(ruleA, common).asJava))
+            registry.trackFlow(flowB, matchB, noRules,
+                               new ArrayList(List(ruleB, common).asJava))
+            registry.recordPacket(FIRST_PKT_SIZE, noRules,
+                                  new ArrayList(List(ruleA, common).asJava))
+
+            val stats = new FlowStats(10, 1000)
+            registry.updateFlow(flowA, matchA, stats)
+            registry.updateFlow(flowB, matchB, stats)
+
+            registry.ruleCounters.get(ruleA).packets should === (11)
+            registry.ruleCounters.get(ruleA).bytes should === (1000 + FIRST_PKT_SIZE)
+            registry.ruleCounters.get(ruleB).packets should === (10)
+            registry.ruleCounters.get(common).packets should === (21)
+            registry.ruleCounters.get(common).bytes should === (2000 + FIRST_PKT_SIZE)
+
+            registry.forgetFlow(flowA, matchA)
+            registry.updateFlow(flowA, matchA, new FlowStats(20, 2000))
+            registry.ruleCounters.get(ruleA).packets should === (11)
+        }
+    }
+
+    feature("Interned meters") {
+        scenario("meters with the same name share the identifier") {
+            val device = UUID.randomUUID()
+            val tag1 = FlowTagger.tagForBridge(device).asInstanceOf[MeterTag]
+            val tag2 = new FlowTagger.BridgeDeviceTag(device)
+
+            tag1 should not be theSameInstanceAs (tag2)
+            tag1.meterId should === (tag2.meterId)
+            FlowTagger.MeterIds.nameOf(tag1.meterId) should === (tag1.meterName)
+            FlowTagger.MeterIds.idOf(tag1.meterName) should === (tag1.meterId)
+        }
+
+        scenario("visits a snapshot of the meters") {
+            val registry = createRegistry()
+            registry.trackFlow(flowA, matchA, tagsA, noRules)
+            registry.updateFlow(flowA, matchA, new FlowStats(3, 300))
+
+            val meters = new java.util.HashMap[String, (Long, Long)]()
+            registry.foreachMeter(new MeterRegistry.MeterVisitor {
+                override def visit(name: String, packets: Long,
+                                   bytes: Long): Unit = {
+                    meters.put(name, (packets, bytes))
+                }
+            })
+            meters.asScala shouldBe metersA.map(_.meterName -> (3L, 300L)).toMap
+        }
+
+        scenario("tracks more flows and meters than preallocated") {
+            val registry = createRegistry()
+            val tags = new ArrayList[FlowTag]()
+            for (i <- 0 until 20) {
+                tags.add(FlowTagger.tagForBridge(UUID.randomUUID()))
+            }
+            for (flowId <- 0L until 100L) {
+                registry.trackFlow(flowId, matchA, tags, noRules)
+            }
+            for (flowId <- 0L until 100L) {
+                registry.updateFlow(flowId, matchA, new FlowStats(1, 10))
+            }
+            for (flowId <- 0L until 100L by 2) {
+                registry.forgetFlow(flowId, matchA)
+            }
+            for (flowId <- 0L until 100L) {
+                registry.updateFlow(flowId, matchA, new FlowStats(2, 20))
+            }
+
+            registry.asInstanceOf[OnHeapMeterRegistry].trackedFlows should === (50)
+            for (tag <- tags.asScala) {
+                val meter = registry.getMeter(tag.asInstanceOf[MeterTag].meterName)
+                meter.packets should === (150)
+                meter.bytes should === (1500)
+            }
+        }
+    }
 }
 
 @RunWith(classOf[JUnitRunner])
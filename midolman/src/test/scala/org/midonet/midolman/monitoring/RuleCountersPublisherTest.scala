@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.monitoring
+
+import java.util
+import java.util.UUID
+
+import scala.collection.mutable
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.cluster.data.storage.InMemoryStorage
+import org.midonet.cluster.models.Topology.Rule
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.util.UUIDUtil._
+import org.midonet.management.FlowStats
+
+@RunWith(classOf[JUnitRunner])
+class RuleCountersPublisherTest extends FeatureSpec with Matchers
+                                with GivenWhenThen with BeforeAndAfter {
+
+    private var store: InMemoryStorage = _
+    private var counters: util.Map[UUID, FlowStats] = _
+    private var forgotten: mutable.Buffer[UUID] = _
+    private var publisher: RuleCountersPublisher = _
+
+    before {
+        store = new InMemoryStorage
+        MidonetBackend.setupBindings(store, store)
+        counters = new util.HashMap[UUID, FlowStats]()
+        forgotten = mutable.Buffer[UUID]()
+        publisher = new RuleCountersPublisher(store, intervalMillis = 0,
+                                              () => new util.HashMap[UUID, FlowStats](counters),
+                                              forgotten += _)
+    }
+
+    private def createRule(): UUID = {
+        val id = UUID.randomUUID()
+        store.create(Rule.newBuilder().setId(id.asProto).build())
+        id
+    }
+
+    feature("Publisher publishes the rule counters") {
+        scenario("Only the changed counters are published") {
+            Given("Two rules with counters")
+            val rule1 = createRule()
+            val rule2 = createRule()
+            counters.put(rule1, new FlowStats(1, 10))
+            counters.put(rule2, new FlowStats(2, 20))
+
+            Then("The publisher publishes both rules")
+            publisher.publish() shouldBe 2
+
+            And("The publisher does not publish unchanged counters")
+            publisher.publish() shouldBe 0
+
+            When("The counters of a rule change")
+            counters.put(rule1, new FlowStats(3, 30))
+
+            Then("The publisher publishes that rule")
+            publisher.publish() shouldBe 1
+        }
+
+        scenario("The publisher forgets the rules that are no longer counted") {
+            Given("A published rule")
+            val rule = createRule()
+            counters.put(rule, new FlowStats(1, 10))
+            publisher.publish() shouldBe 1
+
+            When("The packet workers no longer count the rule")
+            counters.remove(rule)
+            publisher.publish() shouldBe 0
+
+            And("The rule is counted again with the same counters")
+            counters.put(rule, new FlowStats(1, 10))
+
+            Then("The publisher publishes the rule again")
+            publisher.publish() shouldBe 1
+        }
+    }
+
+    feature("Publisher forgets the counters of deleted rules") {
+        scenario("The counters of a deleted rule are forgotten") {
+            Given("Two published rules")
+            val rule1 = createRule()
+            val rule2 = createRule()
+            counters.put(rule1, new FlowStats(1, 10))
+            counters.put(rule2, new FlowStats(2, 20))
+            publisher.publish() shouldBe 2
+
+            When("Deleting the first rule")
+            store.delete(classOf[Rule], rule1)
+
+            And("The counters do not change for the idle intervals")
+            for (_ <- 0 until RuleCountersPublisher.IdleIntervals) {
+                publisher.publish() shouldBe 0
+            }
+            forgotten shouldBe empty
+
+            Then("The next interval forgets the deleted rule")
+            publisher.publish() shouldBe 0
+            forgotten shouldBe Seq(rule1)
+
+            And("The counters of the deleted rule are not published")
+            counters.put(rule1, new FlowStats(4, 40))
+            publisher.publish() shouldBe 0
+
+            When("The packet workers remove the counters")
+            counters.remove(rule1)
+            publisher.publish() shouldBe 0
+
+            Then("The existing rule is not forgotten")
+            for (_ <- 0 until RuleCountersPublisher.IdleIntervals) {
+                publisher.publish() shouldBe 0
+            }
+            forgotten shouldBe Seq(rule1)
+        }
+    }
+}
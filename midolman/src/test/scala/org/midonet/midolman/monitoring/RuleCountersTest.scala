@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.monitoring
+
+import java.util.UUID
+
+import scala.collection.mutable
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.management.FlowStats
+
+@RunWith(classOf[JUnitRunner])
+class RuleCountersTest extends FeatureSpec with Matchers {
+
+    feature("Rule counters") {
+        scenario("Counters of a rule that was not hit") {
+            val counters = new RuleCounters()
+            counters.get(UUID.randomUUID()) shouldBe null
+            counters.size shouldBe 0
+        }
+
+        scenario("Counters accumulate packets and bytes") {
+            val counters = new RuleCounters()
+            val rule = UUID.randomUUID()
+
+            counters.add(rule, 1, 100)
+            counters.add(rule, 2, 300)
+
+            counters.get(rule) shouldBe new FlowStats(3, 400)
+            counters.size shouldBe 1
+        }
+
+        scenario("Counters grow beyond the initial capacity") {
+            val counters = new RuleCounters(initialCapacity = 16)
+            val rules = for (index <- 0 until 1000) yield UUID.randomUUID()
+
+            for ((rule, index) <- rules.zipWithIndex) {
+                counters.add(rule, index, index * 10)
+            }
+            counters.add(rules.head, 1, 10)
+
+            counters.size shouldBe rules.size
+            counters.get(rules.head) shouldBe new FlowStats(1, 10)
+            for ((rule, index) <- rules.zipWithIndex.tail) {
+                counters.get(rule) shouldBe new FlowStats(index, index * 10)
+            }
+        }
+
+        scenario("Iterating over the counters") {
+            val counters = new RuleCounters()
+            val rule1 = UUID.randomUUID()
+            val rule2 = UUID.randomUUID()
+            counters.add(rule1, 1, 10)
+            counters.add(rule2, 2, 20)
+
+            val result = mutable.Map[UUID, (Long, Long)]()
+            counters.foreach { (rule, packets, bytes) =>
+                result += rule -> (packets, bytes)
+            }
+
+            result shouldBe Map(rule1 -> (1L, 10L), rule2 -> (2L, 20L))
+        }
+
+        scenario("Counters are removed when the removals are processed") {
+            val counters = new RuleCounters(initialCapacity = 16)
+            val rules = for (index <- 0 until 1000) yield UUID.randomUUID()
+            for ((rule, index) <- rules.zipWithIndex) {
+                counters.add(rule, index, index * 10)
+            }
+
+            val (removed, kept) = rules.splitAt(990)
+            removed.foreach(counters.remove)
+            counters.remove(UUID.randomUUID())
+            counters.size shouldBe rules.size
+
+            counters.processRemovals()
+
+            counters.size shouldBe kept.size
+            for (rule <- removed) {
+                counters.get(rule) shouldBe null
+            }
+            for ((rule, index) <- kept.zipWithIndex) {
+                counters.get(rule) shouldBe new FlowStats(990 + index,
+                                                          (990 + index) * 10)
+            }
+
+            counters.add(removed.head, 1, 10)
+            counters.get(removed.head) shouldBe new FlowStats(1, 10)
+            counters.size shouldBe kept.size + 1
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.openstack.metadata
+
+import java.io.ByteArrayInputStream
+import java.util.UUID
+import java.util.concurrent.ConcurrentLinkedQueue
+import javax.servlet.http.{HttpServletRequest, HttpServletResponse}
+
+import scala.collection.JavaConversions._
+
+import com.sun.jersey.api.client.UniformInterfaceException
+
+import org.eclipse.jetty.server.handler.AbstractHandler
+import org.eclipse.jetty.server.{Request, Server, ServerConnector}
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.midolman.config.MidolmanConfig
+
+@RunWith(classOf[JUnitRunner])
+class NovaMetadataClientTest extends FeatureSpec with BeforeAndAfter
+                                     with Matchers with GivenWhenThen {
+
+    import Conv._
+
+    private val sharedSecret = "secret"
+    private val remoteAddr = "169.254.0.2"
+
+    /** The requests received by the stub Nova metadata server. */
+    private case class NovaRequest(method: String, path: String,
+                                   instanceId: String, signature: String,
+                                   forwardedFor: String)
+
+    private val requests = new ConcurrentLinkedQueue[NovaRequest]()
+    private var server: Server = _
+    private var client: NovaMetadataClient = _
+    private var info: InstanceInfo = _
+
+    before {
+        requests.clear()
+        server = new Server(0)
+        server.setHandler(new AbstractHandler {
+            override def handle(target: String, baseReq: Request,
+                                request: HttpServletRequest,
+                                response: HttpServletResponse): Unit = {
+                baseReq setHandled true
+                requests add NovaRequest(
+                    request.getMethod, request.getPathInfo,
+                    request.getHeader("X-Instance-ID"),
+                    request.getHeader("X-Instance-ID-Signature"),
+                    request.getHeader("X-Forwarded-For"))
+                if (request.getPathInfo == "/missing") {
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND)
+                } else {
+                    response.getWriter print
+                        s"${request.getMethod} ${request.getPathInfo} " +
+                        s"${requests.size}"
+                }
+            }
+        })
+        server.start()
+        info = InstanceInfo("10.0.0.1", "fa:16:3e:a8:9f:15", UUID.randomUUID(),
+                            "tenant", UUID.randomUUID().toString)
+        InstanceInfoMap.put(remoteAddr, info.portId, info)
+    }
+
+    after {
+        if (client ne null) {
+            client.close()
+            client = null
+        }
+        if (InstanceInfoMap.getByPortId(info.portId).isDefined) {
+            InstanceInfoMap removeByPortId info.portId
+        }
+        server.stop()
+        server.join()
+    }
+
+    private def newClient(cacheTtl: String = "0s"): NovaMetadataClient = {
+        val port = server.getConnectors()(0).asInstanceOf[ServerConnector]
+                         .getLocalPort
+        val config = MidolmanConfig.forTests(
+            s"""
+               |agent.openstack.metadata.nova_metadata_url : "http://127.0.0.1:$port"
+               |agent.openstack.metadata.shared_secret : "$sharedSecret"
+               |agent.openstack.metadata.max_connections : 4
+               |agent.openstack.metadata.response_cache_ttl : $cacheTtl
+             """.stripMargin)
+        client = new NovaMetadataClient(config.openstack.metadata)
+        client
+    }
+
+    private def get(path: String): String =
+        client.proxyRequest("GET", path, null, remoteAddr)
+
+    feature("The client proxies the requests to Nova") {
+        scenario("Requests are signed with the instance ID") {
+            Given("A metadata client")
+            newClient()
+
+            When("Requesting two paths")
+            get("/latest/meta-data/") shouldBe "GET /latest/meta-data/ 1"
+            get("/latest/user-data") shouldBe "GET /latest/user-data 2"
+
+            Then("Nova receives the signed requests of the instance")
+            val signature: String = Hmac.hmac(sharedSecret, info.instanceId)
+            requests.toList shouldBe List(
+                NovaRequest("GET", "/latest/meta-data/", info.instanceId,
+                            signature, info.address),
+                NovaRequest("GET", "/latest/user-data", info.instanceId,
+                            signature, info.address))
+        }
+
+        scenario("Posted content is forwarded") {
+            Given("A metadata client")
+            newClient()
+
+            Then("A POST request is forwarded")
+            client.proxyRequest("POST", "/openstack/latest/password",
+                                new ByteArrayInputStream("pwd".getBytes),
+                                remoteAddr) shouldBe
+                "POST /openstack/latest/password 1"
+        }
+
+        scenario("Errors and unknown addresses are reported") {
+            Given("A metadata client")
+            newClient()
+
+            Then("An error response throws an exception")
+            val e = intercept[UniformInterfaceException] {
+                get("/missing")
+            }
+            e.getResponse.getStatus shouldBe HttpServletResponse.SC_NOT_FOUND
+
+            And("A request from an unknown address is rejected")
+            intercept[NovaMetadataClientException] {
+                client.proxyRequest("GET", "/", null, "169.254.0.3")
+            }
+
+            And("The connection is usable after an error")
+            get("/latest/meta-data/") shouldBe "GET /latest/meta-data/ 2"
+        }
+    }
+
+    feature("The client caches the GET responses") {
+        scenario("Responses are not cached by default") {
+            Given("A metadata client without a response cache")
+            newClient()
+
+            Then("Every request reaches Nova")
+            get("/latest/meta-data/") shouldBe "GET /latest/meta-data/ 1"
+            get("/latest/meta-data/") shouldBe "GET /latest/meta-data/ 2"
+        }
+
+        scenario("Responses are cached per instance and path") {
+            Given("A metadata client with a response cache")
+            newClient(cacheTtl = "1m")
+
+            When("Requesting the same path twice")
+            get("/latest/meta-data/") shouldBe "GET /latest/meta-data/ 1"
+            get("/latest/meta-data/") shouldBe "GET /latest/meta-data/ 1"
+
+            Then("Nova receives a single request")
+            requests.size shouldBe 1
+
+            And("Other paths and POST requests are not served from the cache")
+            get("/latest/user-data") shouldBe "GET /latest/user-data 2"
+            client.proxyRequest("POST", "/latest/meta-data/",
+                                new ByteArrayInputStream(Array[Byte]()),
+                                remoteAddr) shouldBe "POST /latest/meta-data/ 3"
+        }
+
+        scenario("Responses expire") {
+            Given("A metadata client with a short response cache")
+            newClient(cacheTtl = "1ms")
+
+            When("Requesting the same path after the TTL")
+            get("/latest/meta-data/") shouldBe "GET /latest/meta-data/ 1"
+            Thread.sleep(10)
+
+            Then("The request reaches Nova")
+            get("/latest/meta-data/") shouldBe "GET /latest/meta-data/ 2"
+        }
+
+        scenario("Responses are invalidated when the instance changes") {
+            Given("A metadata client with a cached response")
+            newClient(cacheTtl = "1m")
+            get("/latest/meta-data/") shouldBe "GET /latest/meta-data/ 1"
+
+            When("The address is assigned to another instance")
+            val other = InstanceInfo("10.0.0.2", "fa:16:3e:a8:9f:16",
+                                     UUID.randomUUID(), "tenant",
+                                     UUID.randomUUID().toString)
+            InstanceInfoMap.put(remoteAddr, other.portId, other)
+            info = other
+
+            Then("The request of the new instance reaches Nova")
+            get("/latest/meta-data/") shouldBe "GET /latest/meta-data/ 2"
+            requests.toList.last.instanceId shouldBe other.instanceId
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.packets._
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+@RunWith(classOf[JUnitRunner])
+class DhcpReplyCacheTest extends FeatureSpec with BeforeAndAfter
+                                 with Matchers with GivenWhenThen {
+
+    private val mtu = 1500
+    private val serverMac = MAC.fromString("02:a8:9c:de:39:27")
+    private val serverIp = IPv4Addr.fromString("10.0.0.1")
+    private val clientIp = IPv4Addr.fromString("10.0.0.2")
+
+    private var cache: DhcpReplyCache = _
+    private var portId: UUID = _
+    private var mac: MAC = _
+    private var tags: Array[FlowTag] = _
+
+    before {
+        cache = new DhcpReplyCache
+        portId = UUID.randomUUID()
+        mac = MAC.random()
+        tags = Array(FlowTagger.tagForPort(portId),
+                     FlowTagger.tagForDhcp(UUID.randomUUID()))
+    }
+
+    private def option(code: DHCPOption.Code, data: Array[Byte]): DHCPOption =
+        new DHCPOption(code.value, data.length.toByte, data)
+
+    private def request(msgType: DHCPOption.MsgType, xid: Int,
+                        requestedIp: IPv4Addr = null): DHCP = {
+        val options = new java.util.ArrayList[DHCPOption]()
+        options.add(option(DHCPOption.Code.DHCP_TYPE, Array(msgType.value)))
+        if (requestedIp ne null) {
+            options.add(option(DHCPOption.Code.REQUESTED_IP,
+                               requestedIp.toBytes))
+        }
+        new DHCP()
+            .setOpCode(DHCP.OPCODE_REQUEST)
+            .setHardwareType(ARP.HW_TYPE_ETHERNET.toByte)
+            .setHardwareAddressLength(6)
+            .setTransactionId(xid)
+            .setClientHardwareAddress(mac)
+            .setOptions(options)
+    }
+
+    private def reply(msgType: DHCPOption.MsgType, xid: Int): Ethernet = {
+        val dhcp = new DHCP()
+            .setOpCode(DHCP.OPCODE_REPLY)
+            .setHardwareType(ARP.HW_TYPE_ETHERNET.toByte)
+            .setHardwareAddressLength(6)
+            .setTransactionId(xid)
+            .setClientHardwareAddress(mac)
+            .setServerIPAddress(serverIp.addr)
+            .setYourIPAddress(clientIp.addr)
+            .setOptions(Seq(
+                option(DHCPOption.Code.DHCP_TYPE, Array(msgType.value)),
+                option(DHCPOption.Code.SERVER_ID, serverIp.toBytes),
+                new DHCPOption(DHCPOption.Code.END.value,
+                               DHCPOption.Code.END.length, null)))
+        val udp = new UDP()
+        udp.setSourcePort(67)
+        udp.setDestinationPort(68)
+        udp.setPayload(dhcp)
+        val ip = new IPv4()
+        ip.setSourceAddress(serverIp.addr)
+        ip.setDestinationAddress("255.255.255.255")
+        ip.setProtocol(UDP.PROTOCOL_NUMBER)
+        ip.setPayload(udp)
+        val eth = new Ethernet()
+        eth.setEtherType(IPv4.ETHERTYPE)
+        eth.setSourceMACAddress(serverMac)
+        eth.setDestinationMACAddress(mac)
+        eth.setPayload(ip)
+        eth
+    }
+
+    private def udpOf(eth: Ethernet): UDP =
+        eth.getPayload.getPayload.asInstanceOf[UDP]
+
+    private def dhcpOf(eth: Ethernet): DHCP =
+        udpOf(eth).getPayload.asInstanceOf[DHCP]
+
+    feature("Cached replies are patched for each request") {
+        scenario("A reply is returned with the transaction of the request") {
+            Given("A cached offer")
+            cache.put(portId, mac, request(DHCPOption.MsgType.DISCOVER, 1),
+                      mtu, reply(DHCPOption.MsgType.OFFER, 1), tags)
+            cache.size shouldBe 1
+
+            When("Requesting the offer with another transaction")
+            val cached = cache.get(portId, mac,
+                                   request(DHCPOption.MsgType.DISCOVER,
+                                           0x12345678), mtu)
+
+            Then("The reply is the same as a new reply for that transaction")
+            val expected = reply(DHCPOption.MsgType.OFFER, 0x12345678)
+            expected.serialize()
+            cached should not be null
+            udpOf(cached).getChecksum shouldBe udpOf(expected).getChecksum
+            dhcpOf(cached).getTransactionId shouldBe 0x12345678
+            dhcpOf(cached).getYourIPAddress shouldBe clientIp.addr
+            dhcpOf(cached).getOptions shouldBe dhcpOf(expected).getOptions
+        }
+
+        scenario("Replies are cached per port, MAC and message type") {
+            Given("A cached offer")
+            cache.put(portId, mac, request(DHCPOption.MsgType.DISCOVER, 1),
+                      mtu, reply(DHCPOption.MsgType.OFFER, 1), tags)
+
+            Then("Requests for other ports, MACs or types are not cached")
+            cache.get(UUID.randomUUID(), mac,
+                      request(DHCPOption.MsgType.DISCOVER, 2), mtu) shouldBe null
+            cache.get(portId, MAC.random(),
+                      request(DHCPOption.MsgType.DISCOVER, 2), mtu) shouldBe null
+            cache.get(portId, mac,
+                      request(DHCPOption.MsgType.REQUEST, 2), mtu) shouldBe null
+
+            And("Requests with a different underlay MTU are not cached")
+            cache.get(portId, mac,
+                      request(DHCPOption.MsgType.DISCOVER, 2), 1400) shouldBe null
+        }
+
+        scenario("Acknowledgements match the requested address") {
+            Given("A cached acknowledgement")
+            cache.put(portId, mac,
+                      request(DHCPOption.MsgType.REQUEST, 1, clientIp), mtu,
+                      reply(DHCPOption.MsgType.ACK, 1), tags)
+
+            Then("Requests for the same address are cached")
+            cache.get(portId, mac,
+                      request(DHCPOption.MsgType.REQUEST, 2, clientIp),
+                      mtu) should not be null
+            cache.get(portId, mac,
+                      request(DHCPOption.MsgType.REQUEST, 2), mtu) should not be null
+
+            And("Requests for another address are not cached")
+            cache.get(portId, mac,
+                      request(DHCPOption.MsgType.REQUEST, 2, serverIp),
+                      mtu) shouldBe null
+        }
+
+        scenario("Negative acknowledgements are not cached") {
+            When("Adding a negative acknowledgement")
+            cache.put(portId, mac,
+                      request(DHCPOption.MsgType.REQUEST, 1, serverIp), mtu,
+                      reply(DHCPOption.MsgType.NAK, 1), tags)
+
+            Then("The cache is empty")
+            cache.size shouldBe 0
+        }
+    }
+
+    feature("Cached replies are invalidated by tags") {
+        scenario("Invalidating a tag removes the tagged replies") {
+            Given("Two cached replies for different ports")
+            val otherPortId = UUID.randomUUID()
+            cache.put(portId, mac, request(DHCPOption.MsgType.DISCOVER, 1),
+                      mtu, reply(DHCPOption.MsgType.OFFER, 1), tags)
+            cache.put(otherPortId, mac, request(DHCPOption.MsgType.DISCOVER, 1),
+                      mtu, reply(DHCPOption.MsgType.OFFER, 1),
+                      Array(FlowTagger.tagForPort(otherPortId), tags(1)))
+            cache.size shouldBe 2
+
+            When("Invalidating the first port")
+            cache.invalidate(FlowTagger.tagForPort(portId))
+
+            Then("Only the reply for the second port remains")
+            cache.size shouldBe 1
+            cache.get(portId, mac,
+                      request(DHCPOption.MsgType.DISCOVER, 2), mtu) shouldBe null
+            cache.get(otherPortId, mac,
+                      request(DHCPOption.MsgType.DISCOVER, 2), mtu) should not be null
+
+            When("Invalidating the DHCP subnet")
+            cache.invalidate(tags(1))
+
+            Then("The cache is empty")
+            cache.size shouldBe 0
+        }
+    }
+}
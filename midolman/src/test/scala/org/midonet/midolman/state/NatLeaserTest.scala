@@ -43,25 +43,35 @@ class NatLeaserTest extends FeatureSpec
     val dev = UUID.randomUUID()
     val clock = new MockClock()
     val allocatedBlocks = mutable.Set[NatBlock]()
+    val freedBlocks = mutable.Set[NatBlock]()
+    val blockAllocator = new NatBlockAllocator {
+        override def allocateBlockInRange(natRange: NatRange) =
+            (natRange.tpPortStart to natRange.tpPortEnd) map { port =>
+                new NatBlock(natRange.deviceId, natRange.ip, blockOf(port))
+            } find { block =>
+                if (allocatedBlocks contains block) {
+                    false
+                } else {
+                    allocatedBlocks += block
+                    true
+                }
+            } map Future.successful getOrElse Future.failed(NoFreeNatBlocksException)
+
+        override def freeBlock(natBlock: NatBlock): Unit = {
+            allocatedBlocks -= natBlock
+            freedBlocks += natBlock
+        }
+    }
     val natLeaser = new NatLeaser {
         override val log = Logger(NOPLogger.NOP_LOGGER)
-        override val allocator: NatBlockAllocator = new NatBlockAllocator {
-            override def allocateBlockInRange(natRange: NatRange) =
-                (natRange.tpPortStart to natRange.tpPortEnd) map { port =>
-                    new NatBlock(natRange.deviceId, natRange.ip, blockOf(port))
-                } find { block =>
-                    if (allocatedBlocks contains block) {
-                        false
-                    } else {
-                        allocatedBlocks += block
-                        true
-                    }
-                } map Future.successful getOrElse Future.failed(NoFreeNatBlocksException)
-
-            override def freeBlock(natBlock: NatBlock): Unit = {}
-        }
-
+        override val allocator = blockAllocator
+        override val clock = NatLeaserTest.this.clock
+    }
+    val spareLeaser = new NatLeaser {
+        override val log = Logger(NOPLogger.NOP_LOGGER)
+        override val allocator = blockAllocator
         override val clock = NatLeaserTest.this.clock
+        override val spareBlocks = 2
     }
 
     feature("NatBindings are allocated") {
@@ -337,4 +347,82 @@ class NatLeaserTest extends FeatureSpec
             }
         }
     }
+
+    feature("Spare NatBlocks are leased ahead of demand") {
+        scenario("Spare blocks are leased with the first block") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          0,
+                                          NatBlock.BLOCK_SIZE * 8 - 1)
+            val ip = IPv4Addr.random
+            intercept[NotYetException] {
+                spareLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+
+            // The requested block counts as one of the spare blocks.
+            allocatedBlocks should have size 2
+
+            spareLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+
+            // Using a spare block leases another one.
+            allocatedBlocks should have size 3
+        }
+
+        scenario("Spare blocks are used without waiting") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          0,
+                                          NatBlock.BLOCK_SIZE * 8 - 1)
+            val ip = IPv4Addr.random
+            intercept[NotYetException] {
+                spareLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+
+            // Oversubscription is per destination, so the same destination
+            // uses a new port for every binding.
+            val bindings = for (port <- 0 until NatBlock.BLOCK_SIZE * 4) yield
+                spareLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+
+            bindings.map(_.transportPort).toSet should have size bindings.size
+            allocatedBlocks should have size 6
+        }
+
+        scenario("Free ports are preferred") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          0,
+                                          NatBlock.BLOCK_SIZE - 1)
+            intercept[NotYetException] {
+                spareLeaser.allocateNatBinding(dev, IPv4Addr.random, 10,
+                                               Array(natTarget))
+            }
+
+            val bindings = for (port <- 0 until NatBlock.BLOCK_SIZE) yield
+                spareLeaser.allocateNatBinding(dev, IPv4Addr.random, 10,
+                                               Array(natTarget))
+
+            bindings.map(_.transportPort).toSet should have size bindings.size
+        }
+
+        scenario("Idle spare blocks are released") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          0,
+                                          NatBlock.BLOCK_SIZE * 8 - 1)
+            val ip = IPv4Addr.random
+            intercept[NotYetException] {
+                spareLeaser.allocateNatBinding(dev, ip, 10, Array(natTarget))
+            }
+            val binding = spareLeaser.allocateNatBinding(dev, ip, 10,
+                                                         Array(natTarget))
+            allocatedBlocks should have size 3
+
+            spareLeaser.freeNatBinding(dev, ip, 10, binding)
+            clock.time += (NatLeaser.BLOCK_EXPIRATION + (10 seconds)).toNanos
+            spareLeaser.obliterateUnusedBlocks()
+
+            allocatedBlocks shouldBe empty
+            freedBlocks should have size 3
+        }
+    }
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.util.UUID
+
+import scala.collection.mutable
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.packets.MAC
+
+@RunWith(classOf[JUnitRunner])
+class MacPortTableTest extends FeatureSpec with Matchers with GivenWhenThen {
+
+    private val vlanId = 10.toShort
+
+    feature("MAC table keys") {
+        scenario("Keys pack the VLAN and the MAC") {
+            val mac = MAC.random()
+            val key = MacPortTable.key(vlanId, mac.asLong)
+            key should not be 0L
+            MacPortTable.vlanOf(key) shouldBe vlanId
+            MacPortTable.macOf(key) shouldBe mac.asLong
+            MacPortTable.key(0, 0L) should not be 0L
+        }
+    }
+
+    feature("MAC-port table") {
+        scenario("Mappings are added, replaced and removed") {
+            Given("A table")
+            val table = new MacPortTable(vlanId)
+            val mac = MAC.random().asLong
+            val port1 = UUID.randomUUID()
+            val port2 = UUID.randomUUID()
+
+            Then("The table is empty")
+            table.get(mac) shouldBe null
+
+            When("Adding a mapping")
+            table.put(mac, port1)
+
+            Then("The table returns the port")
+            table.get(mac) shouldBe port1
+            table.size shouldBe 1
+
+            When("The MAC moves to another port")
+            table.put(mac, port2)
+
+            Then("The table returns the new port")
+            table.get(mac) shouldBe port2
+            table.size shouldBe 1
+
+            When("Removing the mapping")
+            table.remove(mac) shouldBe true
+
+            Then("The table is empty")
+            table.get(mac) shouldBe null
+            table.remove(mac) shouldBe false
+            table.size shouldBe 0
+        }
+
+        scenario("Mappings are removed only for their port") {
+            Given("A table with a mapping")
+            val table = new MacPortTable(vlanId)
+            val mac = MAC.random().asLong
+            val port1 = UUID.randomUUID()
+            val port2 = UUID.randomUUID()
+            table.put(mac, port2)
+
+            Then("Removing the mapping for another port fails")
+            table.remove(mac, port1) shouldBe false
+            table.get(mac) shouldBe port2
+
+            And("Removing the mapping for its port succeeds")
+            table.remove(mac, port2) shouldBe true
+            table.get(mac) shouldBe null
+            table.size shouldBe 0
+        }
+
+        scenario("The table matches a map under random updates") {
+            Given("A table and a map")
+            val table = new MacPortTable(vlanId)
+            val map = new mutable.HashMap[Long, UUID]
+            val random = new Random(1L)
+            val macs = Array.fill(2000)(MAC.random().asLong)
+            val ports = Array.fill(20)(UUID.randomUUID())
+
+            When("Adding and removing random mappings")
+            for (_ <- 0 until 20000) {
+                val mac = macs(random.nextInt(macs.length))
+                if (random.nextInt(3) == 0) {
+                    table.remove(mac) shouldBe map.remove(mac).nonEmpty
+                } else {
+                    val port = ports(random.nextInt(ports.length))
+                    table.put(mac, port)
+                    map.put(mac, port)
+                }
+            }
+
+            Then("The table contains the same mappings")
+            table.size shouldBe map.size
+            for (mac <- macs) {
+                table.get(mac) shouldBe map.getOrElse(mac, null)
+            }
+        }
+
+        scenario("Clearing the table") {
+            Given("A table with mappings")
+            val table = new MacPortTable(vlanId)
+            val macs = Array.fill(100)(MAC.random().asLong)
+            for (mac <- macs) table.put(mac, UUID.randomUUID())
+            val footprint = table.footprint
+
+            When("Clearing the table")
+            table.clear()
+
+            Then("The table is empty and smaller")
+            table.size shouldBe 0
+            macs.map(table.get) shouldBe Array.fill[UUID](100)(null)
+            table.footprint should be < footprint
+        }
+    }
+
+    feature("MAC reference table") {
+        scenario("Mappings are learned and referenced") {
+            Given("A table")
+            val table = new MacRefTable(ttlMillis = 1000L, maxEntries = 16)
+            val mac = MAC.random().asLong
+            val port1 = UUID.randomUUID()
+            val port2 = UUID.randomUUID()
+
+            Then("The first reference learns the mapping")
+            table.ref(vlanId, mac, port1) shouldBe 1
+            table.ref(vlanId, mac, port1) shouldBe 2
+
+            And("The same MAC on another port is another mapping")
+            table.ref(vlanId, mac, port2) shouldBe 1
+            table.size shouldBe 2
+
+            And("The same MAC on another VLAN is another mapping")
+            table.ref(1, mac, port1) shouldBe 1
+            table.refCount(vlanId, mac, port1) shouldBe 2
+            table.refCount(1, mac, port1) shouldBe 1
+        }
+
+        scenario("Idle mappings expire after the time-to-live") {
+            Given("A table with a mapping")
+            val table = new MacRefTable(ttlMillis = 1000L, maxEntries = 16)
+            val mac = MAC.random().asLong
+            val port = UUID.randomUUID()
+            table.ref(vlanId, mac, port)
+            table.ref(vlanId, mac, port)
+
+            When("Releasing the references")
+            def unref() = table.unref(vlanId, mac,
+                                      port.getMostSignificantBits,
+                                      port.getLeastSignificantBits, 100L)
+            unref() shouldBe true
+            unref() shouldBe true
+
+            Then("Releasing an idle mapping fails")
+            unref() shouldBe false
+            table.refCount(vlanId, mac, port) shouldBe 0
+
+            And("The mapping does not expire before the time-to-live")
+            val expired = new mutable.ArrayBuffer[(Short, Long, UUID)]
+            val collect = (v: Short, m: Long, p: UUID) => { expired += ((v, m, p)) }
+            table.expire(1099L, collect) shouldBe 0
+            expired shouldBe empty
+
+            And("The mapping expires after the time-to-live")
+            table.expire(1100L, collect) shouldBe 1
+            expired shouldBe Seq((vlanId, mac, port))
+            table.refCount(vlanId, mac, port) shouldBe -1
+            table.size shouldBe 0
+        }
+
+        scenario("Referencing an idle mapping prevents its expiration") {
+            Given("A table with an idle mapping")
+            val table = new MacRefTable(ttlMillis = 1000L, maxEntries = 16)
+            val mac = MAC.random().asLong
+            val port = UUID.randomUUID()
+            table.ref(vlanId, mac, port)
+            table.unref(vlanId, mac, port.getMostSignificantBits,
+                        port.getLeastSignificantBits, 0L)
+
+            When("Referencing the mapping again")
+            table.ref(vlanId, mac, port) shouldBe 1
+
+            Then("The mapping does not expire")
+            table.expire(5000L, (_, _, _) => fail("Unexpected expiration")) shouldBe 0
+            table.refCount(vlanId, mac, port) shouldBe 1
+        }
+
+        scenario("The table does not learn mappings when full") {
+            Given("A table with a capacity of two mappings")
+            val table = new MacRefTable(ttlMillis = 10L, maxEntries = 2)
+            val port = UUID.randomUUID()
+            val macs = Array.fill(3)(MAC.random().asLong)
+
+            When("Learning three mappings")
+            table.ref(vlanId, macs(0), port) shouldBe 1
+            table.ref(vlanId, macs(1), port) shouldBe 1
+
+            Then("The third mapping is not learned")
+            table.ref(vlanId, macs(2), port) shouldBe 0
+            table.refCount(vlanId, macs(2), port) shouldBe -1
+
+            When("A mapping expires")
+            table.unref(vlanId, macs(0), port.getMostSignificantBits,
+                        port.getLeastSignificantBits, 0L)
+            table.expire(10L, (_, _, _) => { }) shouldBe 1
+
+            Then("The third mapping is learned")
+            table.ref(vlanId, macs(2), port) shouldBe 1
+        }
+
+        scenario("Many mappings expire with their ports") {
+            Given("A table with many mappings on several ports")
+            val table = new MacRefTable(ttlMillis = 10L, maxEntries = 10000)
+            val ports = Array.fill(8)(UUID.randomUUID())
+            val mappings = for (index <- 0 until 5000) yield
+                (MAC.random().asLong, ports(index % ports.length))
+            for ((mac, port) <- mappings) {
+                table.ref(vlanId, mac, port) shouldBe 1
+            }
+
+            When("Releasing half of the mappings")
+            val (idle, used) = mappings.splitAt(2500)
+            for ((mac, port) <- idle) {
+                table.unref(vlanId, mac, port.getMostSignificantBits,
+                            port.getLeastSignificantBits, 0L) shouldBe true
+            }
+
+            Then("Only the released mappings expire")
+            val expired = new mutable.HashSet[(Long, UUID)]
+            table.expire(10L, (_, m, p) => { expired += ((m, p)) }) shouldBe 2500
+            expired shouldBe idle.toSet
+            table.size shouldBe 2500
+            for ((mac, port) <- used) {
+                table.refCount(vlanId, mac, port) shouldBe 1
+            }
+        }
+    }
+}
@@ -115,11 +115,13 @@ trait MidolmanServices {
         }
 
         override def addFlow(fmatch: FlowMatch, flowTags: ArrayList[FlowTag],
+                             flowRules: ArrayList[UUID],
                              removeCallbacks: ArrayList[CallbackSpec],
                              expiration: Expiration): ManagedFlow = null
         override def addRecircFlow(fmatch: FlowMatch,
                                    recircMatch: FlowMatch,
                                    flowTags: ArrayList[FlowTag],
+                                   flowRules: ArrayList[UUID],
                                    removeCallbacks: ArrayList[CallbackSpec],
                                    expiration: Expiration): ManagedFlow = null
         override def removeDuplicateFlow(mark: Int): Unit = {}
@@ -127,6 +129,8 @@ trait MidolmanServices {
         override def shouldProcess = false
         override def process(): Unit = {}
         override def invalidateFlowsFor(tag: FlowTag) = tags = tags :+ tag
+        override def scheduleInvalidation(tag: FlowTag) = tags = tags :+ tag
+        override def processInvalidations(): Unit = {}
     }
 
     def dpConn()(implicit ec: ExecutionContext, as: ActorSystem):
@@ -33,7 +33,7 @@ import com.google.inject.Injector
 import org.midonet.midolman.PacketWorkflow.SimulationResult
 import org.midonet.midolman.UnderlayResolver.{Route => UnderlayRoute}
 import org.midonet.midolman._
-import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.datapath.{DatapathChannel, FlowProcessor}
 import org.midonet.midolman.monitoring.{FlowRecorder, NullFlowRecorder}
 import org.midonet.midolman.simulation.{PacketContext, Bridge => SimBridge, Chain => SimChain, Port => SimPort, Router => SimRouter, _}
 import org.midonet.midolman.state.ConnTrackState._
@@ -237,6 +237,7 @@ trait VirtualTopologyHelper { this: MidolmanServices =>
                        tunnelPorts: List[Integer] = List.empty,
                        peers: Map[UUID, UnderlayRoute] = Map.empty,
                        dpChannel: DatapathChannel = mockDpChannel,
+                       dpFlowProcessor: FlowProcessor = flowProcessor,
                        packetCtxTrap: JQueue[PacketContext] = new JLinkedList[PacketContext](),
                        workflowTrap: PacketContext => SimulationResult = null,
                        conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue] = new OnHeapShardedFlowStateTable[ConnTrackKey, ConnTrackValue](clock).addShard(),
@@ -289,7 +290,7 @@ trait VirtualTopologyHelper { this: MidolmanServices =>
         }
 
         new MockPacketWorkflow(config, hostId, dpState, clock, dpChannel,
-                               virtualTopology, simBackChannel, flowProcessor,
+                               virtualTopology, simBackChannel, dpFlowProcessor,
                                conntrackTable, natTable,
                                traceTable, peerResolver, natLeaser,
                                metrics, flowRecorder,
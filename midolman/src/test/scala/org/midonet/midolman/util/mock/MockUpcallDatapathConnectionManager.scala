@@ -19,6 +19,8 @@ import scala.concurrent.{ExecutionContext, Future}
 
 import akka.actor.ActorSystem
 
+import com.codahale.metrics.MetricRegistry
+
 import org.midonet.midolman.PacketWorker
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.io._
@@ -29,7 +31,8 @@ import org.midonet.util._
 class MockUpcallDatapathConnectionManager(config: MidolmanConfig)
         extends UpcallDatapathConnectionManagerBase(config,
             new TokenBucketPolicy(config, new TokenBucketTestRate, 1,
-                                  _ => Bucket.BOTTOMLESS)) {
+                                  _ => Bucket.BOTTOMLESS),
+            new MetricRegistry) {
 
     val conn = new MockManagedDatapathConnection()
 
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.vpp
+
+import java.util.concurrent.{Executors, ScheduledExecutorService}
+
+import scala.collection.mutable
+import scala.concurrent.duration._
+import scala.concurrent.{ExecutionContext, Future, Promise}
+
+import com.codahale.metrics.MetricRegistry
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.midolman.vpp.VppBatchExecutor._
+import org.midonet.packets.{IPAddr, IPSubnet, IPv4Addr, IPv4Subnet, IPv6Addr}
+import org.midonet.util.concurrent._
+import org.midonet.util.logging.Logger
+
+@RunWith(classOf[JUnitRunner])
+class VppBatchExecutorTest extends FeatureSpec with Matchers
+                           with GivenWhenThen with BeforeAndAfter {
+
+    private implicit val ec = ExecutionContext.callingThread
+
+    /** A fake VPP API that records the requests, and completes them either
+      * immediately or on demand. */
+    private class FakeVppApi(auto: Boolean = true) extends VppEntryApi {
+        val requests = new mutable.ArrayBuffer[String]
+        val replies = new mutable.Queue[Promise[Any]]
+        val failures = new mutable.HashSet[String]
+
+        private def request(name: String): Future[Any] = synchronized {
+            requests += name
+            if (auto) {
+                if (failures.contains(name)) Future.failed(new Exception(name))
+                else Future.successful(name)
+            } else {
+                val promise = Promise[Any]()
+                replies += promise
+                promise.future
+            }
+        }
+
+        def reply(): Unit = synchronized { replies.dequeue() } success null
+
+        override def addRoute(subnet: IPSubnet[_ <: IPAddr],
+                              nextHop: Option[IPAddr],
+                              device: Option[VppApi.Device],
+                              vrf: Int): Future[Any] =
+            request(s"add route $subnet")
+
+        override def deleteRoute(subnet: IPSubnet[_ <: IPAddr],
+                                 nextHop: Option[IPAddr],
+                                 device: Option[VppApi.Device],
+                                 vrf: Int): Future[Any] =
+            request(s"del route $subnet")
+
+        override def fip64Add(floatingIp: IPv6Addr, fixedIp: IPv4Addr,
+                              poolStart: IPv4Addr, poolEnd: IPv4Addr,
+                              vrf: Int, vni: Int): Future[Any] =
+            request(s"add fip64 $floatingIp $fixedIp")
+
+        override def fip64Del(floatingIp: IPv6Addr): Future[Any] =
+            request(s"del fip64 $floatingIp")
+    }
+
+    private val log = Logger(getClass)
+    private var scheduler: ScheduledExecutorService = _
+    private var registry: MetricRegistry = _
+
+    before {
+        scheduler = Executors.newSingleThreadScheduledExecutor()
+        registry = new MetricRegistry
+    }
+
+    after {
+        scheduler.shutdownNow()
+    }
+
+    private def newExecutor(api: VppEntryApi, window: FiniteDuration = 1 hour,
+                            maxBatchSize: Int = 100,
+                            maxOutstanding: Int = 10): VppBatchExecutor = {
+        new VppBatchExecutor(api, window, maxBatchSize, maxOutstanding,
+                             scheduler, registry, log)
+    }
+
+    private def route(index: Int) =
+        AddRoute(new IPv4Subnet(IPv4Addr.fromInt(0x0a000000 + index), 32),
+                 vrf = 1)
+
+    private val fip = IPv6Addr.fromString("2001::1")
+
+    feature("Executor batches the requests") {
+        scenario("Requests are sent when flushed") {
+            Given("A batch executor")
+            val api = new FakeVppApi
+            val executor = newExecutor(api)
+
+            When("Submitting several requests")
+            val futures = for (index <- 0 until 5) yield
+                executor.submit(route(index))
+
+            Then("No request is sent during the window")
+            api.requests shouldBe empty
+
+            When("Flushing the executor")
+            executor.flush().await() shouldBe null
+
+            Then("The requests are sent in a single batch")
+            api.requests shouldBe (0 until 5).map(i => s"add route ${route(i).subnet}")
+            futures.map(_.await()) shouldBe api.requests
+            executor.batchSizeHistogram.getCount shouldBe 1
+            executor.batchSizeHistogram.getSnapshot.getMax shouldBe 5
+            executor.batchLatencyHistogram.getCount shouldBe 1
+        }
+
+        scenario("Requests are sent after the window") {
+            Given("A batch executor with a short window")
+            val api = new FakeVppApi
+            val executor = newExecutor(api, window = 10 millis)
+
+            When("Submitting a request")
+            val future = executor.submit(route(0))
+
+            Then("The request is sent after the window")
+            future.await(5 seconds) shouldBe s"add route ${route(0).subnet}"
+        }
+
+        scenario("Requests are sent when the batch is full") {
+            Given("A batch executor")
+            val api = new FakeVppApi
+            val executor = newExecutor(api, maxBatchSize = 3)
+
+            When("Submitting as many requests as the batch size")
+            executor.submit(route(0))
+            executor.submit(route(1))
+            api.requests shouldBe empty
+            executor.submit(route(2))
+
+            Then("The requests are sent")
+            api.requests should have size 3
+        }
+
+        scenario("Outstanding requests are limited") {
+            Given("A batch executor with VPP replies on demand")
+            val api = new FakeVppApi(auto = false)
+            val executor = newExecutor(api, maxOutstanding = 2)
+
+            When("Flushing several requests")
+            val futures = for (index <- 0 until 5) yield
+                executor.submit(route(index))
+            val flush = executor.flush()
+
+            Then("Only the maximum outstanding requests are sent")
+            api.requests should have size 2
+
+            When("VPP replies to a request")
+            api.reply()
+
+            Then("The next request is sent")
+            api.requests should have size 3
+            futures.head.isCompleted shouldBe true
+            futures(1).isCompleted shouldBe false
+
+            When("VPP replies to all requests")
+            for (_ <- 0 until 4) api.reply()
+
+            Then("The batch completes")
+            flush.isCompleted shouldBe true
+            futures.forall(_.isCompleted) shouldBe true
+        }
+
+        scenario("Failed requests fail their futures") {
+            Given("A batch executor")
+            val api = new FakeVppApi
+            val executor = newExecutor(api)
+
+            When("Submitting a request that fails")
+            val other = IPv6Addr.fromString("2001::2")
+            api.failures += s"del fip64 $other"
+            val future = executor.submit(AddFip64(
+                fip, IPv4Addr.fromString("10.0.0.1"), IPv4Addr.fromString("1.0.0.1"),
+                IPv4Addr.fromString("1.0.0.2"), vrf = 1, vni = 1))
+            val failed = executor.submit(DeleteFip64(other))
+            executor.flush().await()
+
+            Then("Only the failed request fails")
+            future.await() shouldBe s"add fip64 $fip 10.0.0.1"
+            intercept[Exception] { failed.await() }
+        }
+    }
+
+    feature("Executor coalesces the requests") {
+        scenario("Adding and deleting the same entry is coalesced") {
+            Given("A batch executor")
+            val api = new FakeVppApi
+            val executor = newExecutor(api)
+
+            When("Adding and deleting a route within the window")
+            val add = executor.submit(route(0))
+            val delete = executor.submit(route(0).delete)
+            executor.flush().await()
+
+            Then("No request is sent")
+            api.requests shouldBe empty
+            add.isCompleted shouldBe true
+            delete.isCompleted shouldBe true
+            executor.coalescedCounter.getCount shouldBe 2
+        }
+
+        scenario("Adding the same entry twice is coalesced") {
+            Given("A batch executor")
+            val api = new FakeVppApi
+            val executor = newExecutor(api)
+
+            When("Adding a FIP64 entry twice within the window")
+            val fixed1 = IPv4Addr.fromString("10.0.0.1")
+            val fixed2 = IPv4Addr.fromString("10.0.0.2")
+            val pool = IPv4Addr.fromString("1.0.0.1")
+            val add1 = executor.submit(AddFip64(fip, fixed1, pool, pool, 1, 1))
+            val add2 = executor.submit(AddFip64(fip, fixed2, pool, pool, 1, 1))
+            executor.flush().await()
+
+            Then("Only the last request is sent")
+            api.requests shouldBe Seq(s"add fip64 $fip $fixed2")
+            add1.await() shouldBe add2.await()
+        }
+
+        scenario("Deleting an added entry is not coalesced") {
+            Given("A batch executor with an added route")
+            val api = new FakeVppApi
+            val executor = newExecutor(api)
+            executor.submit(route(0))
+            executor.flush().await()
+
+            When("Deleting, adding and deleting the route within the window")
+            executor.submit(route(0).delete)
+            executor.submit(route(0))
+            executor.submit(route(0).delete)
+            executor.flush().await()
+
+            Then("A single delete request is sent")
+            api.requests shouldBe Seq(s"add route ${route(0).subnet}",
+                                      s"del route ${route(0).subnet}")
+
+            When("Adding the route and replacing it within the window")
+            executor.submit(route(0))
+            executor.flush().await()
+            executor.submit(route(0).delete)
+            executor.submit(route(0))
+            executor.flush().await()
+
+            Then("The delete and add requests are sent in order")
+            api.requests.drop(2) shouldBe Seq(s"add route ${route(0).subnet}",
+                                              s"del route ${route(0).subnet}",
+                                              s"add route ${route(0).subnet}")
+        }
+    }
+
+}
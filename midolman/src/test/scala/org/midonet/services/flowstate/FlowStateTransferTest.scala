@@ -16,12 +16,15 @@
 
 package org.midonet.services.flowstate
 
+import java.io.DataInputStream
+import java.net.Socket
 import java.nio.ByteBuffer
 import java.nio.file.{Files, Paths}
 import java.util.UUID
 import java.util.concurrent.TimeUnit
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable
 
 import org.junit.runner.RunWith
 import org.mockito.Mockito.{atLeastOnce, mock, times, verify}
@@ -32,7 +35,8 @@ import org.midonet.cluster.topology.TopologyBuilder
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.services.flowstate.handlers._
-import org.midonet.services.flowstate.stream.{ByteBufferBlockReader, Context, FlowStateBlock, FlowStateManager}
+import org.midonet.services.flowstate.stream.{ByteBufferBlockReader, Context, FlowStateBlock, FlowStateManager, FlowStateWriter}
+import org.midonet.services.flowstate.transfer.StateTransferProtocolBuilder._
 import org.midonet.services.flowstate.transfer.client._
 import org.midonet.util.io.stream.{ByteBufferBlockWriter, TimedBlockHeader}
 import org.midonet.util.netty.ServerFrontEnd
@@ -77,6 +81,36 @@ class FlowStateTransferTest extends FlowStateBaseTest with TopologyBuilder {
         raw
     }
 
+    private def createFlowStatePort(context: Context, messages: Int) = {
+        val port = UUID.randomUUID()
+        val writer = FlowStateWriter(context, port)
+        for (_ <- 0 until messages) {
+            writer.write(validFlowStateInternalMessage(numNats = 2)._3)
+        }
+        writer.flush()
+        port
+    }
+
+    private def internalMessageCount(portId: UUID, offset: Long) = {
+        val socket = new Socket("127.0.0.1", configAlt.flowState.port)
+        try {
+            val request = buildStateRequestInternal(portId, offset)
+            socket.getOutputStream.write(request.toByteArray)
+            val dis = new DataInputStream(socket.getInputStream)
+            dis.readFully(new Array[Byte](dis.readInt())) // Ack
+            var count = 0
+            var next = dis.readInt()
+            while (next > 0) {
+                dis.readFully(new Array[Byte](next))
+                count += 1
+                next = dis.readInt()
+            }
+            count
+        } finally {
+            socket.close()
+        }
+    }
+
     private def allWrittenBytes(writer: ByteBufferBlockWriter[TimedBlockHeader]) = {
         val responseCaptor = ArgumentCaptor.forClass(classOf[Array[Byte]])
         verify(writer, atLeastOnce).write(responseCaptor.capture())
@@ -197,6 +231,45 @@ class FlowStateTransferTest extends FlowStateBaseTest with TopologyBuilder {
             }
         }
 
+        scenario("A internal flow state request is received in chunks") {
+            Given("A port with several flow state messages")
+            val portId = createFlowStatePort(streamContextAlt, messages = 5)
+
+            And("A client importing chunks of one entry")
+            val chunkConfig = MidolmanConfig.forTests(
+                getConfig +
+                s"agent.minions.flow_state.port : ${configAlt.flowState.port}\n" +
+                "agent.minions.flow_state.transfer_chunk_size : 1\n")
+            val client = new FlowStateInternalClient(chunkConfig.flowState)
+
+            When("The flow state is streamed by the TCP client")
+            val chunks = new mutable.ArrayBuffer[FlowStateBatch]
+            val count = client.streamInternalFlowState(portId)(chunks += _)
+
+            Then("The flow state is received in several chunks")
+            chunks.size should be > 1
+            chunks.map(_.size()).sum shouldBe count
+
+            And("The chunks contain the same state as a single batch")
+            val batch = internalClient.internalFlowStateFrom(portId)
+            chunks.flatMap(_.strongConnTrack.asScala).toSet shouldBe
+                batch.strongConnTrack.asScala.toSet
+            chunks.flatMap(_.strongNat.keySet.asScala).toSet shouldBe
+                batch.strongNat.keySet.asScala.toSet
+        }
+
+        scenario("A internal flow state request resumes from an offset") {
+            Given("A port with several flow state messages")
+            val portId = createFlowStatePort(streamContextAlt, messages = 5)
+
+            Then("A request without offset receives all messages")
+            internalMessageCount(portId, offset = 0) shouldBe 5
+
+            And("A request with an offset skips the received messages")
+            internalMessageCount(portId, offset = 3) shouldBe 2
+            internalMessageCount(portId, offset = 10) shouldBe 0
+        }
+
         scenario("An invalid flow state transfer between agents") {
             Given("An invalid port id")
             val portId = UUID.randomUUID()
@@ -15,6 +15,7 @@
  */
 package org.midonet.cluster.auth.keystone.v2_0;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import com.typesafe.config.Config;
 
@@ -24,8 +25,8 @@ import com.typesafe.config.Config;
 public class KeystoneService extends org.midonet.cluster.auth.keystone.KeystoneService {
 
     @Inject
-    public KeystoneService(Config config) {
-        super(config);
+    public KeystoneService(Config config, MetricRegistry metrics) {
+        super(config, metrics);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster.rest_api.models;
+
+import java.util.UUID;
+
+/**
+ * The packet and byte counters of a rule, aggregated across all agents.
+ */
+public class RuleCounters {
+
+    public UUID ruleId;
+    public long packets;
+    public long bytes;
+
+    public RuleCounters() { }
+
+    public RuleCounters(UUID ruleId, long packets, long bytes) {
+        this.ruleId = ruleId;
+        this.packets = packets;
+        this.bytes = bytes;
+    }
+
+}
@@ -183,6 +183,8 @@ class ContainersConfig(val conf: Config) extends MinionConfig[ContainerService]
     def schedulerRetryMs = conf.getDuration(s"$prefix.scheduler_retry", TimeUnit.MILLISECONDS)
     def schedulerMaxRetries = conf.getInt(s"$prefix.scheduler_max_retries")
     def schedulerBadHostLifetimeMs = conf.getDuration(s"$prefix.scheduler_bad_host_lifetime", TimeUnit.MILLISECONDS)
+    def schedulerBatchSize = conf.getInt(s"$prefix.scheduler_batch_size")
+    def schedulerBatchWindowMs = conf.getDuration(s"$prefix.scheduler_batch_window", TimeUnit.MILLISECONDS)
 }
 
 class StateProxyConfig(val conf: Config) extends MinionConfig[StateProxy] {
@@ -226,4 +228,6 @@ class TopologyCacheConfig(val conf: Config) extends MinionConfig[TopologyCache]
    final val prefix = "cluster.topology_cache"
 
     override def isEnabled = conf.getBoolean(s"$prefix.enabled")
+    def loadMaxInFlight = conf.getInt(s"$prefix.load_max_in_flight")
+    def loadThreads = conf.getInt(s"$prefix.load_threads")
 }
\ No newline at end of file
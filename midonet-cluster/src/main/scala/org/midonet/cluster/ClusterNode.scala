@@ -177,7 +177,7 @@ object ClusterNode extends App {
             bind(classOf[Context]).toInstance(nodeContext)
             bind(classOf[Reflections]).toInstance(reflections)
             bind(classOf[LeaderLatchProvider]).in(classOf[Singleton])
-            install(new AuthModule(clusterConf.auth, log))
+            install(new AuthModule(clusterConf.auth, metrics, log))
             install(new ExecutorsModule(clusterExecutor, clusterConf.executors))
 
             // Minion configurations
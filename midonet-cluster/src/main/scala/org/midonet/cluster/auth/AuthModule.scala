@@ -18,6 +18,7 @@ package org.midonet.cluster.auth
 
 import scala.util.{Failure, Success, Try}
 
+import com.codahale.metrics.MetricRegistry
 import com.google.inject.AbstractModule
 import com.typesafe.config.Config
 import com.typesafe.scalalogging.Logger
@@ -26,7 +27,8 @@ import org.apache.commons.configuration.ConfigurationException
 
 import org.midonet.cluster.AuthConfig
 
-class AuthModule(config: AuthConfig, log: Logger) extends AbstractModule {
+class AuthModule(config: AuthConfig, metrics: MetricRegistry, log: Logger)
+    extends AbstractModule {
 
     override def configure(): Unit = {
         bind(classOf[AuthService]).toInstance(newAuthService)
@@ -40,21 +42,31 @@ class AuthModule(config: AuthConfig, log: Logger) extends AbstractModule {
             Class.forName(authProvider)
         ) flatMap { clazz =>
             Try (
-                clazz.getDeclaredConstructor(classOf[Config])
+                clazz.getDeclaredConstructor(classOf[Config],
+                                             classOf[MetricRegistry])
             ) recover {
+                case e: NoSuchMethodException =>
+                    clazz.getDeclaredConstructor(classOf[Config])
+            } recover {
                 case e: NoSuchMethodException => clazz.getDeclaredConstructor()
             }
         } match {
             case Success(c) =>
                 c.setAccessible(true)
-                c.newInstance(config.conf).asInstanceOf[AuthService]
+                val args = c.getParameterCount match {
+                    case 2 => Array[AnyRef](config.conf, metrics)
+                    case 1 => Array[AnyRef](config.conf)
+                    case _ => Array.empty[AnyRef]
+                }
+                c.newInstance(args: _*).asInstanceOf[AuthService]
             case e @ Failure(_: InstantiationException |
                              _: IllegalAccessException |
                              _: NoSuchMethodException) =>
                 throw new ConfigurationException(
                     s"Authentication provider $authProvider must expose a " +
                     s"either a default constructor or a constructor taking " +
-                    s"a single configuration argument", e.exception)
+                    s"a configuration and optionally a metric registry " +
+                    s"argument", e.exception)
             case Failure(e: SecurityException) =>
                 throw new ConfigurationException(
                     s"Failed to create an instance of the authentication " +
@@ -20,6 +20,7 @@ import java.util.Date
 
 import scala.collection.JavaConverters._
 
+import com.codahale.metrics.MetricRegistry
 import com.google.inject.Inject
 import com.typesafe.config.Config
 import com.typesafe.scalalogging.Logger
@@ -32,12 +33,19 @@ import org.midonet.cluster.auth._
 import org.midonet.cluster.KeystoneLog
 import org.midonet.cluster.rest_api.models.Tenant
 
-class KeystoneService @Inject()(config: Config) extends AuthService {
+class KeystoneService @Inject()(config: Config, metrics: MetricRegistry)
+    extends AuthService {
 
     private val log = Logger(LoggerFactory.getLogger(KeystoneLog))
     private val keystoneConfig = new KeystoneConfig(config)
     private val keystoneClient = new KeystoneClient(keystoneConfig)
 
+    private val tokenCache =
+        new KeystoneTokenCache(keystoneConfig.tokenCacheSize,
+                               keystoneConfig.tokenCacheTtl,
+                               keystoneConfig.tokenCacheNegativeTtl,
+                               metrics)
+
     /**
       * Authenticates the user with the specified credentials. If the tenant
       * argument is set, the user is authenticated in the context of the
@@ -69,7 +77,11 @@ class KeystoneService @Inject()(config: Config) extends AuthService {
         if (StringUtils.isBlank(token))
             throw new InvalidCredentialsException("No token was passed in.")
 
-        val identity = identityOf(keystoneClient.validate(token))
+        val identity = tokenCache.get(token) { token =>
+            val response = keystoneClient.validate(token)
+            (identityOf(response),
+                KeystoneClient.parseExpiresAt(response.token.expiresAt))
+        }
 
         log info s"Token $token authorized as $identity"
 
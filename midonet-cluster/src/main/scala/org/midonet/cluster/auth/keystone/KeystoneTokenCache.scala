@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.auth.keystone
+
+import java.util
+import java.util.Map.Entry
+import java.util.concurrent.ConcurrentHashMap
+import javax.ws.rs.core.Response.Status
+
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, Future, Promise}
+import scala.util.control.NonFatal
+
+import com.codahale.metrics.MetricRegistry.name
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.sun.jersey.api.client.UniformInterfaceException
+
+import org.midonet.cluster.auth.{AuthException, UserIdentity}
+import org.midonet.cluster.auth.keystone.KeystoneTokenCache.CachedToken
+
+object KeystoneTokenCache {
+
+    /**
+      * A cached validation result: either the identity of a valid token, or
+      * the error returned for an invalid token.
+      */
+    private case class CachedToken(identity: UserIdentity,
+                                   error: AuthException,
+                                   expiresAt: Long)
+
+    /**
+      * Indicates whether the exception means that Keystone rejected the
+      * token, as opposed to a failure to reach Keystone, in which case the
+      * result must not be cached.
+      */
+    def isInvalidToken(e: AuthException): Boolean = e match {
+        case _: KeystoneUnauthorizedException => true
+        case _: KeystoneConnectionException => false
+        case _: KeystoneException => e.getCause match {
+            case u: UniformInterfaceException =>
+                u.getResponse.getStatus == Status.NOT_FOUND.getStatusCode
+            case _ => false
+        }
+        case _ => false
+    }
+
+}
+
+/**
+  * A bounded cache of validated Keystone tokens, mapping each token to the
+  * corresponding user identity.
+  *
+  * A valid token is cached for the configured time-to-live, but never beyond
+  * its expiration time. An invalid token is cached for the negative
+  * time-to-live, such that clients retrying with the same token do not
+  * translate into requests to the Keystone server. When the cache is full,
+  * the least recently used token is evicted.
+  *
+  * Concurrent requests for the same uncached token are coalesced: only the
+  * first one validates the token, while the others wait for its result.
+  */
+class KeystoneTokenCache(maxSize: Int, ttlMillis: Long,
+                         negativeTtlMillis: Long, metrics: MetricRegistry,
+                         clock: () => Long = () => System.currentTimeMillis()) {
+
+    private val tokens = new util.LinkedHashMap[String, CachedToken](
+        16, 0.75f, true) {
+        override def removeEldestEntry(eldest: Entry[String, CachedToken])
+        : Boolean = {
+            size() > maxSize
+        }
+    }
+    private val pending = new ConcurrentHashMap[String, Future[CachedToken]]
+
+    private val hits =
+        metrics.counter(name(classOf[KeystoneTokenCache], "hits"))
+    private val negativeHits =
+        metrics.counter(name(classOf[KeystoneTokenCache], "negativeHits"))
+    private val misses =
+        metrics.counter(name(classOf[KeystoneTokenCache], "misses"))
+    private val coalesced =
+        metrics.counter(name(classOf[KeystoneTokenCache], "coalesced"))
+    metrics.register(name(classOf[KeystoneTokenCache], "size"),
+                     new Gauge[Int] {
+                         override def getValue: Int = size
+                     })
+
+    def size: Int = tokens.synchronized { tokens.size() }
+
+    /**
+      * Returns the user identity for the given token from the cache, or
+      * validates the token with the given function, which returns the
+      * identity and the expiration time of the token.
+      */
+    @throws[AuthException]
+    def get(token: String)(validate: String => (UserIdentity, Long))
+    : UserIdentity = {
+        if (maxSize <= 0) {
+            return validate(token)._1
+        }
+
+        var cached = lookup(token)
+        if (cached ne null) {
+            return resultOf(cached)
+        }
+
+        val promise = Promise[CachedToken]()
+        val future = pending.putIfAbsent(token, promise.future)
+        if (future ne null) {
+            // Another thread is validating the same token.
+            coalesced.inc()
+            return resultOf(Await.result(future, Duration.Inf))
+        }
+
+        try {
+            // The token may have been cached by a validation that completed
+            // after the first lookup.
+            cached = lookup(token)
+            if (cached eq null) {
+                misses.inc()
+                cached = load(token, validate)
+            }
+            promise.success(cached)
+        } catch {
+            case NonFatal(e) =>
+                promise.failure(e)
+                throw e
+        } finally {
+            pending.remove(token, promise.future)
+        }
+        resultOf(cached)
+    }
+
+    /**
+      * Removes the given token from the cache.
+      */
+    def invalidate(token: String): Unit = tokens.synchronized {
+        tokens.remove(token)
+    }
+
+    private def lookup(token: String): CachedToken = {
+        val cached = tokens.synchronized { tokens.get(token) }
+        if (cached eq null) {
+            null
+        } else if (cached.expiresAt <= clock()) {
+            tokens.synchronized { tokens.remove(token, cached) }
+            null
+        } else {
+            if (cached.error eq null) hits.inc() else negativeHits.inc()
+            cached
+        }
+    }
+
+    private def load(token: String, validate: String => (UserIdentity, Long))
+    : CachedToken = {
+        val now = clock()
+        val cached = try {
+            val (identity, expiresAt) = validate(token)
+            CachedToken(identity, null, Math.min(expiresAt, now + ttlMillis))
+        } catch {
+            case e: AuthException if KeystoneTokenCache.isInvalidToken(e) =>
+                CachedToken(null, e, now + negativeTtlMillis)
+        }
+        if (cached.expiresAt > now) {
+            tokens.synchronized { tokens.put(token, cached) }
+        }
+        cached
+    }
+
+    private def resultOf(cached: CachedToken): UserIdentity = {
+        if (cached.error ne null) throw cached.error
+        cached.identity
+    }
+
+}
@@ -16,10 +16,13 @@
 
 package org.midonet.cluster.services.containers
 
+import java.util
+import java.util.UUID
 import java.util.concurrent.{Executors, TimeUnit}
 
 import scala.collection.concurrent.TrieMap
 import scala.collection.JavaConverters._
+import scala.collection.mutable
 import scala.util.control.NonFatal
 
 import com.google.common.annotations.VisibleForTesting
@@ -32,15 +35,18 @@ import org.slf4j.LoggerFactory
 import rx.schedulers.Schedulers
 import rx.{Observer, Subscription}
 
+import org.midonet.cluster.data.ZoomMetadata.ZoomOwner
 import org.midonet.cluster.models.Topology.ServiceContainer
 import org.midonet.cluster.services.containers.schedulers._
 import org.midonet.cluster.services._
+import org.midonet.cluster.util.UUIDUtil._
 import org.midonet.cluster.{ClusterConfig, ContainersLog}
 import org.midonet.containers
 import org.midonet.containers.{Container, ContainerDelegate}
 import org.midonet.minion.MinionService.TargetNode
 import org.midonet.minion.{Context, Minion, MinionService}
 import org.midonet.util.concurrent.NamedThreadFactory
+import org.midonet.util.functors.makeFunc1
 import org.midonet.util.logging.Logger
 
 object ContainerService {
@@ -114,9 +120,9 @@ class ContainerService @Inject()(nodeContext: Context,
     @volatile private var schedulerSubscription: Subscription = null
     @volatile private var errorCount = 0
 
-    private val schedulerObserver = new Observer[SchedulerEvent] {
-        override def onNext(event: SchedulerEvent): Unit = {
-            handleEvent(event)
+    private val schedulerObserver = new Observer[util.List[SchedulerEvent]] {
+        override def onNext(events: util.List[SchedulerEvent]): Unit = {
+            handleEvents(events)
         }
         override def onCompleted(): Unit = {
             log info "Containers notification stream closed"
@@ -220,10 +226,113 @@ class ContainerService @Inject()(nodeContext: Context,
         scheduler = newScheduler()
         schedulerSubscription = scheduler.observable
             .onBackpressureBuffer(SchedulingBufferSize)
+            .buffer(config.containers.schedulerBatchWindowMs,
+                    TimeUnit.MILLISECONDS,
+                    config.containers.schedulerBatchSize,
+                    delegateScheduler)
+            .filter(makeFunc1((events: util.List[SchedulerEvent]) =>
+                                  !events.isEmpty))
             .observeOn(delegateScheduler)
             .subscribe(schedulerObserver)
     }
 
+    /** Handles a batch of scheduling events. The scheduling changes (schedule
+      * and unschedule) for containers whose delegates support transactions
+      * are grouped and committed in a single storage transaction, while
+      * preserving the order of the events for every container. All other
+      * events are handled individually.
+      */
+    private def handleEvents(events: util.List[SchedulerEvent]): Unit = {
+        val batch = new util.ArrayList[SchedulerEvent](events.size())
+        val batchContainers = new mutable.HashSet[UUID]
+        var index = 0
+        while (index < events.size()) {
+            val event = events.get(index)
+            val containerId = event.container.getId.asJava
+            if (isTransactional(event)) {
+                batch add event
+                batchContainers += containerId
+            } else {
+                // Commit the current batch only if it contains changes for the
+                // same container, to preserve the order of events for the
+                // container.
+                if (batchContainers.contains(containerId)) {
+                    commitBatch(batch)
+                    batchContainers.clear()
+                }
+                handleEvent(event)
+            }
+            index += 1
+        }
+        commitBatch(batch)
+    }
+
+    /** Indicates whether the event is a scheduling change that can be applied
+      * within a transaction.
+      */
+    private def isTransactional(event: SchedulerEvent): Boolean = {
+        event match {
+            case Schedule(_,_) | Unschedule(_,_) =>
+                try delegateOf(event.container)
+                        .isInstanceOf[TransactionalContainerDelegate]
+                catch { case NonFatal(_) => false }
+            case _ => false
+        }
+    }
+
+    /** Commits the scheduling changes from the specified batch in a single
+      * transaction. If the transaction fails, the method falls back to
+      * handling each event individually, such that a failure of one container
+      * does not prevent the scheduling of the other containers.
+      */
+    private def commitBatch(batch: util.List[SchedulerEvent]): Unit = {
+        if (batch.isEmpty) {
+            return
+        }
+        if (batch.size() == 1) {
+            handleEvent(batch.get(0))
+            batch.clear()
+            return
+        }
+        log debug s"Committing ${batch.size()} container scheduling events " +
+                  "in a single transaction"
+        errorCount = 0
+        try {
+            backend.store.tryTransaction(ZoomOwner.ClusterContainers) { tx =>
+                var index = 0
+                while (index < batch.size()) {
+                    batch.get(index) match {
+                        case Schedule(container, hostId) =>
+                            transactionalDelegateOf(container)
+                                .onScheduled(tx, container, hostId)
+                        case Unschedule(container, hostId) =>
+                            transactionalDelegateOf(container)
+                                .onUnscheduled(tx, container, hostId)
+                        case _ =>
+                    }
+                    index += 1
+                }
+            }
+        } catch {
+            case NonFatal(e) =>
+                log.warn(s"Failed to commit ${batch.size()} container " +
+                         "scheduling events in a single transaction: " +
+                         "handling events individually", e)
+                var index = 0
+                while (index < batch.size()) {
+                    handleEvent(batch.get(index))
+                    index += 1
+                }
+        }
+        batch.clear()
+    }
+
+    @inline
+    private def transactionalDelegateOf(container: ServiceContainer)
+    : TransactionalContainerDelegate = {
+        delegateOf(container).asInstanceOf[TransactionalContainerDelegate]
+    }
+
     private def handleEvent(event: SchedulerEvent): Unit = {
         log debug s"Container scheduling event: $event"
         errorCount = 0
@@ -35,11 +35,10 @@ import org.midonet.cluster.models.State.ContainerStatus
 import org.midonet.cluster.models.Topology.{Host, Port, ServiceContainer}
 import org.midonet.cluster.services.MidonetBackend
 import org.midonet.cluster.util.UUIDUtil._
-import org.midonet.containers.ContainerDelegate
 
 
 abstract class DatapathBoundContainerDelegate (backend: MidonetBackend)
-    extends ContainerDelegate {
+    extends TransactionalContainerDelegate {
 
     def name: String
 
@@ -50,6 +49,14 @@ abstract class DatapathBoundContainerDelegate (backend: MidonetBackend)
       */
     @throws[Exception]
     override def onScheduled(container: ServiceContainer, hostId: UUID): Unit = {
+        tryTx { tx => onScheduled(tx, container, hostId) }
+    }
+
+    /** Binds the container port to the host within the specified transaction.
+      */
+    @throws[Exception]
+    override def onScheduled(tx: Transaction, container: ServiceContainer,
+                             hostId: UUID): Unit = {
         val containerId = container.getId.asJava
         if (!container.hasPortId) {
             throw new IllegalArgumentException(
@@ -60,27 +67,25 @@ abstract class DatapathBoundContainerDelegate (backend: MidonetBackend)
 
         log info s"$name container ${container.getId.asJava} scheduled at host " +
                  s"$hostId: binding port $portId to interface $interfaceName"
-        tryTx { tx =>
-            val port = tx.get(classOf[Port], portId)
-            val builder = port.toBuilder.setHostId(hostId.asProto)
-
-            if (!port.hasInterfaceName) {
-                // If the interface name is not set, set it for backwards
-                // compatibility.
-                builder.setInterfaceName(interfaceName)
-            }
-
-            // Check the host does not have another port bound to the same
-            // interface.
-            val host = tx.get(classOf[Host], hostId.asProto)
-            val hostPorts = tx.getAll(classOf[Port], host.getPortIdsList.asScala)
-            for (hostPort <- hostPorts
-                 if hostPort.getInterfaceName == interfaceName) {
-                log warn s"Host $hostId already has port ${hostPort.getId.asJava} " +
-                         s"bound to interface $interfaceName"
-            }
-            tx update builder.build()
+        val port = tx.get(classOf[Port], portId)
+        val builder = port.toBuilder.setHostId(hostId.asProto)
+
+        if (!port.hasInterfaceName) {
+            // If the interface name is not set, set it for backwards
+            // compatibility.
+            builder.setInterfaceName(interfaceName)
         }
+
+        // Check the host does not have another port bound to the same
+        // interface.
+        val host = tx.get(classOf[Host], hostId.asProto)
+        val hostPorts = tx.getAll(classOf[Port], host.getPortIdsList.asScala)
+        for (hostPort <- hostPorts
+             if hostPort.getInterfaceName == interfaceName) {
+            log warn s"Host $hostId already has port ${hostPort.getId.asJava} " +
+                     s"bound to interface $interfaceName"
+        }
+        tx update builder.build()
     }
 
     /** This method is called when the container is reported UP at the host
@@ -105,6 +110,22 @@ abstract class DatapathBoundContainerDelegate (backend: MidonetBackend)
       */
     @throws[Exception]
     override def onUnscheduled(container: ServiceContainer, hostId: UUID): Unit = {
+        tryTx { tx =>
+            onUnscheduled(tx, container, hostId)
+        } {
+            case e: NotFoundException
+                if e.clazz == classOf[Port] && e.id == container.getPortId =>
+                log debug s"Port ${container.getPortId.asJava} already deleted"
+        }
+    }
+
+    /** Unbinds the container port from the host within the specified
+      * transaction. If the port has already been deleted, the method does
+      * not modify the transaction.
+      */
+    @throws[Exception]
+    override def onUnscheduled(tx: Transaction, container: ServiceContainer,
+                               hostId: UUID): Unit = {
         val containerId = container.getId.asJava
         if (!container.hasPortId) {
             throw new IllegalArgumentException(
@@ -113,18 +134,16 @@ abstract class DatapathBoundContainerDelegate (backend: MidonetBackend)
 
         log info s"$name container $containerId unscheduled from host $hostId: " +
                  "unbinding port"
-        tryTx { tx =>
-            val port = tx.get(classOf[Port], container.getPortId)
-            if (port.hasHostId && port.getHostId.asJava == hostId) {
-                tx update port.toBuilder.clearHostId().build()
-            } else {
-                log info s"Port ${container.getPortId.asJava} already " +
-                         s"unbound from host $hostId"
-            }
-        } {
-            case e: NotFoundException
-                if e.clazz == classOf[Port] && e.id == container.getPortId =>
+        val port = try tx.get(classOf[Port], container.getPortId) catch {
+            case e: NotFoundException =>
                 log debug s"Port ${container.getPortId.asJava} already deleted"
+                return
+        }
+        if (port.hasHostId && port.getHostId.asJava == hostId) {
+            tx update port.toBuilder.clearHostId().build()
+        } else {
+            log info s"Port ${container.getPortId.asJava} already " +
+                     s"unbound from host $hostId"
         }
     }
 
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.containers
+
+import java.util.UUID
+
+import org.midonet.cluster.data.storage.Transaction
+import org.midonet.cluster.models.Topology.ServiceContainer
+import org.midonet.containers.ContainerDelegate
+
+/**
+  * A [[ContainerDelegate]] that can apply the scheduling changes of a
+  * container within a storage transaction provided by the caller. This allows
+  * the [[ContainerService]] to commit the scheduling changes of several
+  * containers in a single transaction, for instance when the containers of a
+  * failed host are rescheduled at once.
+  *
+  * The transactional methods must only modify the topology through the given
+  * transaction, and they must not commit it.
+  */
+trait TransactionalContainerDelegate extends ContainerDelegate {
+
+    /**
+      * Method called when the container is scheduled on the specified agent,
+      * within the specified transaction.
+      */
+    @throws[Exception]
+    def onScheduled(tx: Transaction, container: ServiceContainer,
+                    hostId: UUID): Unit
+
+    /**
+      * Method called when the container has been unscheduled from a host,
+      * within the specified transaction.
+      */
+    @throws[Exception]
+    def onUnscheduled(tx: Transaction, container: ServiceContainer,
+                      hostId: UUID): Unit
+
+}
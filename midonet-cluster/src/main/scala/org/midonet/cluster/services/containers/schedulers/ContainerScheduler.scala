@@ -136,6 +136,12 @@ object ContainerScheduler {
   * of failed attempts. Bad hosts are cleared after they spent a configured
   * interval in the bad hosts list, or when their status has changed.
   *
+  * The host selection uses the [[HostCapacityIndex]] of the current host
+  * selector, which is shared by all container schedulers of the same
+  * [[ServiceScheduler]] using that selector, such that the containers
+  * rescheduled in response to the same hosts notification are placed in a
+  * single pass over the hosts, and spread according to the hosts load.
+  *
   * The notification flow is the following:
   *
   * +-----------+   +-----------+
@@ -166,6 +172,9 @@ class ContainerScheduler(containerId: UUID, context: Context,
     private var currentContainer: ServiceContainer = null
     private var currentHosts: HostsEvent = Map.empty
     private var hostSelector: HostSelector = null
+    // The capacity index of the current host selector. Until the container
+    // has a selector, this is a private index that is never updated.
+    private var capacityIndex = new HostCapacityIndex
 
     private val badHosts = new mutable.HashMap[UUID, BadHost]
 
@@ -297,70 +306,33 @@ class ContainerScheduler(containerId: UUID, context: Context,
     @VisibleForTesting
     protected def currentTime: Long = Platform.currentTime
 
-    /** Selects the host that should launch the container from the specified
-      * list, using the specified selection policy. If there is no available
-      * host, the method returns null.
+    /** Selects the host that should launch the container from the available
+      * hosts in the capacity index, excluding the current bad hosts, using
+      * the specified selection policy. If there is no available host, the
+      * method returns `None`.
       */
-    private def selectHost(hosts: HostsEvent, policy: ServiceContainerPolicy)
-    : Option[UUID] = {
-        if (hosts.isEmpty)
-            return None
-
+    private def selectHost(policy: ServiceContainerPolicy): Option[UUID] = {
         policy match {
             case ServiceContainerPolicy.WEIGHTED_SCHEDULER =>
-                selectHostWeightedPolicy(hosts)
+                capacityIndex.selectWeighted(badHosts.keySet, random)
             case ServiceContainerPolicy.LEAST_SCHEDULER =>
-                selectHostLeastPolicy(hosts)
+                capacityIndex.selectLeast(badHosts.keySet)
             case _ =>
                 log warn s"Unrecognized scheduling policy $policy"
                 None
         }
     }
 
-    /** Selects the host from the list using the weighted policy. This is a
-      * random selection, where the probability of selecting a certain host
-      * is proportional to that host's weight.
-      */
-    private def selectHostWeightedPolicy(hosts: HostsEvent): Option[UUID] = {
-        val totalWeight = hosts.foldLeft(0L)((seed, host) =>
-                                                 seed + host._2.status.getWeight)
-        val randomWeight = Math.abs(random.nextLong()) % totalWeight
-        var sumWeight = 0L
-        var selectedId: UUID = null
-
-        val hostIterator = hosts.iterator
-        while (hostIterator.hasNext && sumWeight <= randomWeight) {
-            val host = hostIterator.next()
-            selectedId = host._1
-            sumWeight += host._2.status.getWeight
-        }
-
-        Option(selectedId)
-    }
-
-    /** Selects the host from the list using the least policy. This selects the
-      * host that currently runs the minimum number of containers as reported
-      * by the host and read from NSDB.
-      */
-    private def selectHostLeastPolicy(hosts: HostsEvent): Option[UUID] = {
-        Some(hosts.minBy(_._2.status.getCount)._1)
-    }
-
     /** Determines whether a host is running to start a container: the host
       * must be running the container service, and it must report a positive
       * container weight.
       */
     @inline
-    private def isHostRunning(entry: (UUID, HostEvent)): Boolean = {
-        entry._2.running && entry._2.status.getWeight > 0
-    }
-
-    /** Determines whether a host is available to start a container: the host
-      * must report a non-zero quota.
-      */
-    @inline
-    private def isHostAvailable(entry: (UUID, HostEvent)): Boolean = {
-        entry._2.status.getQuota != 0
+    private def isHostRunning(hosts: HostsEvent, hostId: UUID): Boolean = {
+        hosts.get(hostId) match {
+            case Some(host) => host.running && host.status.getWeight > 0
+            case None => false
+        }
     }
 
     /** Handles updates to this container. The method verifies if this is the
@@ -421,6 +393,8 @@ class ContainerScheduler(containerId: UUID, context: Context,
         val selector = selectorProvider.selectorOf(group)
         if (hostSelector ne selector) {
             hostSelector = selector
+            capacityIndex.release(containerId)
+            capacityIndex = selectorProvider.capacityIndexOf(selector)
             hostsReady = false
             hostsSubject onNext hostSelector.observable
                 .doOnNext(makeAction1(_ => hostsReady = true))
@@ -600,34 +574,30 @@ class ContainerScheduler(containerId: UUID, context: Context,
             }
         }
 
-        log debug s"Scheduling from hosts: ${hosts.keySet}"
-
-        // Select all hosts that are running.
-        val runningHosts = hosts.filter(isHostRunning)
-        log debug s"Scheduling from running hosts: ${runningHosts.keySet}"
+        // Apply the hosts to the shared capacity index: the index is updated
+        // only once for all containers receiving the same hosts notification.
+        capacityIndex update hosts
 
         // Clear the bad hosts set.
-        checkBadHosts(runningHosts)
+        checkBadHosts(hosts)
 
-        // Filter the bad hosts.
-        val eligibleHosts = runningHosts -- badHosts.keySet
-        log debug s"Scheduling from eligible hosts: ${eligibleHosts.keySet}"
+        log debug s"Scheduling from ${hosts.size} hosts with " +
+                  s"${capacityIndex.availableCount} available and bad hosts " +
+                  s"${badHosts.keySet}"
 
         val selectedHostId =
-            if ((state.hostId ne null) && eligibleHosts.contains(state.hostId)) {
+            if ((state.hostId ne null) && isHostRunning(hosts, state.hostId) &&
+                !badHosts.contains(state.hostId)) {
                 // If the container is currently scheduled at a host, and that
-                // host belongs to the eligible set, no rescheduling needed.
+                // host is running and it is not a bad host, no rescheduling
+                // needed.
                 state.hostId
             } else {
-                val availableHosts = eligibleHosts.filter(isHostAvailable)
-
-                log debug "Scheduling from available hosts: " +
-                          s"${availableHosts.keySet} using ${group.getPolicy} " +
-                          "policy"
+                log debug s"Scheduling using ${group.getPolicy} policy"
 
                 // Select a host from the available set based on the current
-                // selection policy (currently only weighted-random).
-                selectHost(availableHosts, group.getPolicy).orNull
+                // selection policy.
+                selectHost(group.getPolicy).orNull
             }
 
         if ((selectedHostId ne null) || (namespaceId ne null)){
@@ -857,15 +827,17 @@ class ContainerScheduler(containerId: UUID, context: Context,
     }
 
     /** Checks the bad hosts to clear the hosts whose bad lifetime has expired,
-      * and hosts that have been currently added to the hosts set.
+      * and hosts that have been currently added to the running hosts set.
       */
     private def checkBadHosts(hosts: HostsEvent): Unit = {
-        val addedHosts = hosts.keySet -- currentHosts.keySet
-        val expiryTime = currentTime
-        badHosts --= addedHosts
-        for ((hostId, badHost) <- badHosts.toList
-             if badHost.expires < expiryTime) {
-            badHosts -= hostId
+        if (badHosts.nonEmpty) {
+            val expiryTime = currentTime
+            for ((hostId, badHost) <- badHosts.toList
+                 if badHost.expires < expiryTime ||
+                    (isHostRunning(hosts, hostId) &&
+                     !isHostRunning(currentHosts, hostId))) {
+                badHosts -= hostId
+            }
         }
         currentHosts = hosts
     }
@@ -877,8 +849,14 @@ class ContainerScheduler(containerId: UUID, context: Context,
       */
     private def handleSchedulerEvent(event: SchedulerEvent): Unit = {
         event match {
-            case Schedule(_,_) => portReady = false
-            case Unschedule(_,_) => portReady = false
+            case Schedule(_, hostId) =>
+                portReady = false
+                capacityIndex.assign(containerId, hostId)
+            case Unschedule(_,_) =>
+                portReady = false
+                capacityIndex.release(containerId)
+            case Up(_,_) | Down(_,_) =>
+                capacityIndex.release(containerId)
             case _ =>
         }
     }
@@ -941,6 +919,7 @@ class ContainerScheduler(containerId: UUID, context: Context,
       */
     private def cleanup(subscriber: Subscriber[_ >: SchedulerEvent]): Unit = {
         statusSubscription.unsubscribe()
+        capacityIndex.release(containerId)
         state match {
             case ScheduledState(id, container, sub) =>
                 log info s"Cancel scheduling at host $id because the " +
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.containers.schedulers
+
+import java.util.{Comparator, UUID}
+
+import scala.collection.mutable
+import scala.util.Random
+
+import com.google.common.annotations.VisibleForTesting
+
+import org.midonet.cluster.services.containers.schedulers.HostCapacityIndex._
+
+object HostCapacityIndex {
+
+    /** An immutable entry in the least-loaded ordering, where the load of a
+      * host is the number of containers reported by the host plus the number
+      * of containers scheduled at the host that have not been reported as
+      * running yet.
+      */
+    private case class HostLoad(hostId: UUID, load: Long)
+
+    private val LoadComparator = new Comparator[HostLoad] {
+        override def compare(a: HostLoad, b: HostLoad): Int = {
+            val c = java.lang.Long.compare(a.load, b.load)
+            if (c != 0) c else a.hostId compareTo b.hostId
+        }
+    }
+
+    /** Determines whether a host may receive new containers: the host must be
+      * running the container service, it must report a positive container
+      * weight and a non-zero quota.
+      */
+    @inline
+    def isAvailable(host: HostEvent): Boolean = {
+        host.running && host.status.getWeight > 0 && host.status.getQuota != 0
+    }
+
+}
+
+/** A host capacity index shared by all [[ContainerScheduler]]s of a
+  * [[ServiceScheduler]]. The index is updated incrementally from the
+  * [[HostsEvent]] notifications emitted by the host selectors, such that when
+  * a host event triggers the rescheduling of many containers, the work
+  * proportional to the number of hosts is done once for the whole batch of
+  * containers, instead of once per container. Each placement decision made
+  * for the batch is then O(log hosts).
+  *
+  * The index also tracks the containers that have been placed at a host but
+  * have not been reported running yet. These pending placements are added to
+  * the container count reported by the host when using the least policy, such
+  * that a batch of containers scheduled in response to the same event are
+  * spread across hosts instead of all selecting the same least loaded host.
+  *
+  * The class is not thread-safe, and it must be accessed only from the
+  * scheduling thread.
+  */
+class HostCapacityIndex {
+
+    // The last hosts snapshot applied to the index.
+    private var hosts: HostsEvent = Map.empty
+
+    // The available hosts ordered by their current load.
+    private val leastLoaded = new java.util.TreeSet[HostLoad](LoadComparator)
+    private val loads = new mutable.HashMap[UUID, HostLoad]
+
+    // The cumulative weights of the available hosts, rebuilt lazily after
+    // the set of available hosts or their weights change.
+    private var weightsDirty = true
+    private var weightedHosts = new Array[UUID](0)
+    private var cumulativeWeights = new Array[Long](0)
+
+    // The pending placements: containers scheduled but not reported running.
+    private val pendingHosts = new mutable.HashMap[UUID, UUID]
+    private val pendingCounts = new mutable.HashMap[UUID, Int]
+
+    /** Applies the specified hosts snapshot to the index. Snapshots that
+      * have already been applied are ignored, otherwise only the hosts that
+      * changed since the previous snapshot are updated.
+      */
+    def update(snapshot: HostsEvent): Unit = {
+        if (snapshot eq hosts) {
+            return
+        }
+        for ((hostId, _) <- hosts if !snapshot.contains(hostId)) {
+            removeHost(hostId)
+        }
+        for ((hostId, host) <- snapshot) {
+            val previous = hosts.getOrElse(hostId, null)
+            if (previous != host) {
+                hostUpdated(hostId, previous, host)
+            }
+        }
+        hosts = snapshot
+    }
+
+    /** Selects an available host using the weighted policy, excluding the
+      * specified hosts. This is a random selection, where the probability of
+      * selecting a host is proportional to the host's weight.
+      */
+    def selectWeighted(excluded: collection.Set[UUID], random: Random)
+    : Option[UUID] = {
+        if (excluded.exists(loads.contains)) {
+            return selectWeightedExcluding(excluded, random)
+        }
+        rebuildWeights()
+        if (weightedHosts.length == 0) {
+            return None
+        }
+        val totalWeight = cumulativeWeights(cumulativeWeights.length - 1)
+        val randomWeight = Math.abs(random.nextLong()) % totalWeight
+
+        // Find the first host whose cumulative weight exceeds the random one.
+        var low = 0
+        var high = cumulativeWeights.length - 1
+        while (low < high) {
+            val mid = (low + high) >>> 1
+            if (cumulativeWeights(mid) <= randomWeight) low = mid + 1
+            else high = mid
+        }
+        Some(weightedHosts(low))
+    }
+
+    /** Selects the available host with the least number of containers,
+      * including the pending placements, excluding the specified hosts.
+      */
+    def selectLeast(excluded: collection.Set[UUID]): Option[UUID] = {
+        val iterator = leastLoaded.iterator()
+        while (iterator.hasNext) {
+            val entry = iterator.next()
+            if (!excluded.contains(entry.hostId)) {
+                return Some(entry.hostId)
+            }
+        }
+        None
+    }
+
+    /** Records the placement of the container at the specified host. The
+      * placement replaces any previous pending placement of the container.
+      */
+    def assign(containerId: UUID, hostId: UUID): Unit = {
+        release(containerId)
+        pendingHosts += containerId -> hostId
+        val count = pendingCounts.getOrElse(hostId, 0) + 1
+        pendingCounts += hostId -> count
+        updateLoad(hostId)
+    }
+
+    /** Releases the pending placement of the container, if any. This method
+      * is called when the host reports the container as running, and when
+      * the container is unscheduled.
+      */
+    def release(containerId: UUID): Unit = {
+        pendingHosts.remove(containerId) match {
+            case Some(hostId) =>
+                val count = pendingCounts.getOrElse(hostId, 1) - 1
+                if (count > 0) pendingCounts += hostId -> count
+                else pendingCounts -= hostId
+                updateLoad(hostId)
+            case None =>
+        }
+    }
+
+    /** Returns the number of pending placements at the specified host.
+      */
+    @VisibleForTesting
+    def pendingCount(hostId: UUID): Int = pendingCounts.getOrElse(hostId, 0)
+
+    /** Returns the number of available hosts in the index.
+      */
+    @VisibleForTesting
+    def availableCount: Int = loads.size
+
+    private def hostUpdated(hostId: UUID, previous: HostEvent,
+                            host: HostEvent): Unit = {
+        if ((previous eq null) ||
+            isAvailable(previous) != isAvailable(host) ||
+            previous.status.getWeight != host.status.getWeight) {
+            weightsDirty = true
+        }
+        if (isAvailable(host)) {
+            putLoad(hostId, host.status.getCount.toLong +
+                            pendingCounts.getOrElse(hostId, 0))
+        } else {
+            removeLoad(hostId)
+        }
+    }
+
+    private def removeHost(hostId: UUID): Unit = {
+        weightsDirty = true
+        removeLoad(hostId)
+    }
+
+    private def updateLoad(hostId: UUID): Unit = {
+        if (loads.contains(hostId)) {
+            val host = hosts(hostId)
+            putLoad(hostId, host.status.getCount.toLong +
+                            pendingCounts.getOrElse(hostId, 0))
+        }
+    }
+
+    private def putLoad(hostId: UUID, load: Long): Unit = {
+        removeLoad(hostId)
+        val entry = HostLoad(hostId, load)
+        loads += hostId -> entry
+        leastLoaded add entry
+    }
+
+    private def removeLoad(hostId: UUID): Unit = {
+        loads.remove(hostId) match {
+            case Some(entry) => leastLoaded remove entry
+            case None =>
+        }
+    }
+
+    private def rebuildWeights(): Unit = {
+        if (!weightsDirty) {
+            return
+        }
+        val ids = new Array[UUID](loads.size)
+        val weights = new Array[Long](loads.size)
+        var sum = 0L
+        var index = 0
+        for (hostId <- loads.keysIterator) {
+            sum += hosts(hostId).status.getWeight
+            ids(index) = hostId
+            weights(index) = sum
+            index += 1
+        }
+        weightedHosts = ids
+        cumulativeWeights = weights
+        weightsDirty = false
+    }
+
+    /** Selects a host with the weighted policy from the available hosts minus
+      * the excluded ones. This performs a linear pass, and it is only used
+      * for the containers that have bad hosts among the available ones.
+      */
+    private def selectWeightedExcluding(excluded: collection.Set[UUID],
+                                        random: Random): Option[UUID] = {
+        val candidates = loads.keysIterator.filterNot(excluded.contains).toArray
+        if (candidates.isEmpty) {
+            return None
+        }
+        val totalWeight = candidates.foldLeft(0L)((seed, hostId) =>
+            seed + hosts(hostId).status.getWeight)
+        val randomWeight = Math.abs(random.nextLong()) % totalWeight
+        var sumWeight = 0L
+        var selectedId: UUID = null
+        var index = 0
+        while (index < candidates.length && sumWeight <= randomWeight) {
+            selectedId = candidates(index)
+            sumWeight += hosts(selectedId).status.getWeight
+            index += 1
+        }
+        Option(selectedId)
+    }
+
+}
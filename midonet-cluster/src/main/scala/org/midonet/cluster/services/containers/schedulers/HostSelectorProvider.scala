@@ -16,16 +16,28 @@
 
 package org.midonet.cluster.services.containers.schedulers
 
+import scala.collection.mutable
+
 import org.midonet.cluster.models.Topology.ServiceContainerGroup
 import org.midonet.containers.Context
 
 /**
-  * Builds the correct type of [[HostSelector]] given a service container group.
+  * Builds the correct type of [[HostSelector]] given a service container group,
+  * and keeps one [[HostCapacityIndex]] for each selector. The index of a
+  * selector is only updated with the hosts emitted by that selector, such
+  * that the schedulers of containers using different selectors do not
+  * overwrite each other's hosts.
+  *
+  * The class is not thread-safe, and it must be accessed only from the
+  * scheduling thread.
   */
 class HostSelectorProvider(context: Context) {
 
     private lazy val anywhereHostSelector = new AnywhereHostSelector(context)
 
+    private val capacityIndices =
+        new mutable.HashMap[HostSelector, HostCapacityIndex]
+
     /**
       * Returns a host selector for the specified service container group.
       */
@@ -34,4 +46,12 @@ class HostSelectorProvider(context: Context) {
         anywhereHostSelector
     }
 
+    /**
+      * Returns the host capacity index shared by all container schedulers
+      * using the specified host selector.
+      */
+    def capacityIndexOf(selector: HostSelector): HostCapacityIndex = {
+        capacityIndices.getOrElseUpdate(selector, new HostCapacityIndex)
+    }
+
 }
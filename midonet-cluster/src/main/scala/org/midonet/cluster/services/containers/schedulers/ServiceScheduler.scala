@@ -44,6 +44,12 @@ import org.midonet.util.functors.{makeAction0, makeFunc1}
   * including tracking the scheduling timeout and the container state as
   * reported by the host where the container has been scheduled.
   *
+  * All container schedulers share the same [[HostSelectorProvider]], and the
+  * schedulers using the same host selector share its [[HostCapacityIndex]],
+  * such that the hosts are tracked once for all containers, and the
+  * containers affected by the same host notification are placed in a single
+  * pass using the incrementally updated host capacity.
+  *
   * This class does not apply the actual scheduling of the container and it
   * depends on a client to listen to scheduling changes and apply the
   * necessary changes in the topology to ensure that the container is spawned
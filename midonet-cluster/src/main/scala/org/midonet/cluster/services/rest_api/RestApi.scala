@@ -44,7 +44,7 @@ import org.reflections.Reflections
 import org.slf4j.LoggerFactory
 import org.slf4j.bridge.SLF4JBridgeHandler
 
-import org.midonet.cluster.auth.{AuthModule, AuthService}
+import org.midonet.cluster.auth.AuthService
 import org.midonet.cluster.rest_api.auth.{AdminOnlyAuthFilter, AuthFilter, LoginFilter}
 import org.midonet.cluster.rest_api.jaxrs.WildcardJacksonJaxbJsonProvider
 import org.midonet.cluster.rest_api.validation.ValidatorProvider
@@ -84,7 +84,7 @@ object RestApi {
             SLF4JBridgeHandler.removeHandlersForRootLogger()
             SLF4JBridgeHandler.install()
 
-            install(new AuthModule(config.auth, log))
+            bind(classOf[AuthService]).toInstance(authService)
 
             bind(classOf[WildcardJacksonJaxbJsonProvider]).asEagerSingleton()
             bind(classOf[CorsFilter])
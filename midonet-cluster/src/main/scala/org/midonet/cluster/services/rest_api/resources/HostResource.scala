@@ -26,11 +26,8 @@ import scala.collection.JavaConverters._
 
 import com.google.inject.Inject
 import com.google.inject.servlet.RequestScoped
-import com.google.protobuf.TextFormat
 
 import org.midonet.cluster.data.ZoomConvert
-import org.midonet.cluster.data.storage.SingleValueKey
-import org.midonet.cluster.models.State
 import org.midonet.cluster.rest_api.ResponseUtils._
 import org.midonet.cluster.rest_api.annotation.{AllowCreate, ApiResource, AllowGet, AllowList}
 import org.midonet.cluster.rest_api.models.{TunnelZone, Host, HostState, Interface}
@@ -38,6 +35,7 @@ import org.midonet.cluster.rest_api.validation.MessageProperty._
 import org.midonet.cluster.services.MidonetBackend
 import org.midonet.cluster.services.rest_api.MidonetMediaTypes._
 import org.midonet.cluster.services.rest_api.resources.MidonetResource._
+import org.midonet.cluster.util.HostStateUtil
 
 @ApiResource(version = 1, name = "hosts", template = "hostTemplate")
 @Path("hosts")
@@ -149,15 +147,15 @@ class HostResource @Inject()(resContext: ResourceContext)
     }
 
     private def getInterfaces(hostId: String): Seq[Interface] = {
-        getResourceState(hostId.toString,classOf[Host], hostId,
-                         MidonetBackend.HostKey) match {
-            case SingleValueKey(_, Some(value), _) =>
-                val builder = State.HostState.newBuilder()
-                TextFormat.merge(value, builder)
-                val hostState = ZoomConvert.fromProto(builder.build(),
-                                                      classOf[HostState])
+        val snapshot = getResourceState(hostId.toString, classOf[Host],
+                                        hostId, MidonetBackend.HostKey)
+        val delta = getResourceState(hostId.toString, classOf[Host], hostId,
+                                     MidonetBackend.HostDeltaKey)
+        HostStateUtil.fromKeys(snapshot, delta) match {
+            case Some(state) =>
+                val hostState = ZoomConvert.fromProto(state, classOf[HostState])
                 hostState.interfaces.asScala
-            case _ => List.empty
+            case None => List.empty
         }
     }
 
@@ -26,10 +26,12 @@ import com.google.inject.Inject
 import com.google.inject.servlet.RequestScoped
 
 import org.midonet.cluster.rest_api.annotation.{AllowCreate, AllowDelete, AllowGet, AllowList, ApiResource}
-import org.midonet.cluster.rest_api.models.{Chain, JumpRule, Rule}
+import org.midonet.cluster.rest_api.models.{Chain, Host, JumpRule, Rule, RuleCounters}
 import org.midonet.cluster.rest_api.{BadRequestHttpException, NotFoundHttpException}
 import org.midonet.cluster.services.rest_api.MidonetMediaTypes._
+import org.midonet.cluster.services.MidonetBackend.CountersKey
 import org.midonet.cluster.services.rest_api.resources.MidonetResource._
+import org.midonet.cluster.state.RuleCountersStorage
 
 @ApiResource(version = 1, template = "ruleTemplate")
 @Path("rules")
@@ -40,6 +42,26 @@ import org.midonet.cluster.services.rest_api.resources.MidonetResource._
 class RuleResource @Inject()(resContext: ResourceContext)
     extends MidonetResource[Rule](resContext) {
 
+    /**
+      * Returns the packet and byte counters of a rule, as the sum of the
+      * counters published by every agent.
+      */
+    @GET
+    @Path("{id}/counters")
+    @Produces(Array(APPLICATION_JSON))
+    def counters(@PathParam("id") id: UUID): RuleCounters = {
+        val rule = getResource(classOf[Rule], id)
+        val result = new RuleCounters(rule.id, 0L, 0L)
+        for (host <- listResources(classOf[Host])) {
+            val counters = RuleCountersStorage.countersOf(
+                getResourceState(host.id.toString, classOf[Rule], id,
+                                 CountersKey))
+            result.packets += counters.getPackets
+            result.bytes += counters.getBytes
+        }
+        result
+    }
+
     protected override def getFilter(rule: Rule): Rule = {
         val chain = getResource(classOf[Chain], rule.chainId)
         rule.position = chain.ruleIds.indexOf(rule.id) + 1
@@ -0,0 +1,542 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.state
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong, AtomicReference}
+
+import scala.concurrent.ExecutionContext
+import scala.util.control.NonFatal
+
+import com.google.protobuf.ByteString
+import com.typesafe.scalalogging.Logger
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.api.{BackgroundCallback, CuratorEvent}
+import org.apache.curator.framework.state.{ConnectionState, ConnectionStateListener}
+import org.apache.zookeeper.KeeperException.Code
+import org.apache.zookeeper.data.Stat
+import org.apache.zookeeper.{KeeperException, WatchedEvent, Watcher}
+import org.slf4j.LoggerFactory
+
+import org.midonet.cluster.StateProxyCacheLog
+import org.midonet.cluster.rpc.State.ProxyResponse.Notify
+import org.midonet.cluster.rpc.State.ProxyResponse.Notify.Update
+import org.midonet.cluster.services.state.ObjectCache._
+import org.midonet.util.functors.makeRunnable
+
+object ObjectCache {
+
+    final val Log = Logger(LoggerFactory.getLogger(StateProxyCacheLog))
+
+    /**
+      * An internal implementation for a [[StateTableSubscription]] to an
+      * object cache. Since every object notification contains the whole
+      * object, the subscription only keeps the latest notification that is
+      * pending while the observer has not acknowledged the previous one.
+      */
+    private class Subscription(override val id: Long,
+                               cache: ObjectCache,
+                               observer: StateTableObserver)
+        extends StateTableSubscription {
+
+        private val unsubscribed = new AtomicBoolean()
+        // The version of the object known by the observer, or -1L if none.
+        // All the following fields are only accessed on the cache dispatcher
+        // thread.
+        private var version = -1L
+        private var sending = false
+        private var pending: Notify = null
+        private var terminal: Notify = null
+
+        /**
+          * @see [[StateTableSubscription.unsubscribe()]]
+          */
+        override def unsubscribe(): Unit = {
+            if (unsubscribed.compareAndSet(false, true)) {
+                cache.removeSubscription(this)
+            }
+        }
+
+        /**
+          * @see [[StateTableSubscription.isUnsubscribed()]]
+          */
+        override def isUnsubscribed: Boolean = unsubscribed.get
+
+        /**
+          * @see [[StateTableSubscription.refresh()]]
+          */
+        override def refresh(lastVersion: Option[Long]): Unit = {
+            if (!unsubscribed.get) {
+                cache.requestRefresh(this, lastVersion)
+            }
+        }
+
+        /**
+          * Sets the object version known by the observer. This method is
+          * always called on the cache dispatcher thread.
+          */
+        def reset(lastVersion: Option[Long]): Unit = {
+            version = lastVersion.getOrElse(-1L)
+        }
+
+        /**
+          * Emits to the underlying observer an object update, unless the
+          * observer already has the same version of the object. A deletion is
+          * always emitted. This method is always called on the cache
+          * dispatcher thread.
+          */
+        def update(update: Update): Unit = {
+            if (unsubscribed.get ||
+                (!update.getObjectDeleted &&
+                 update.getCurrentVersion == version)) {
+                return
+            }
+            version = update.getCurrentVersion
+            enqueue(Notify.newBuilder()
+                          .setSubscriptionId(id)
+                          .setUpdate(update)
+                          .build())
+        }
+
+        /**
+          * Indicates that the object was deleted or that an error has
+          * occurred while watching the object. This will send a completion
+          * [[Notify]] message to the observer after any pending update and
+          * terminate the subscription. This method is always called on the
+          * cache dispatcher thread.
+          */
+        def error(e: Throwable): Unit = {
+            if (unsubscribed.compareAndSet(false, true)) {
+                enqueueTerminal(Notify.newBuilder()
+                                      .setCompleted(buildError(e))
+                                      .setSubscriptionId(id)
+                                      .build())
+            }
+        }
+
+        /**
+          * Enqueues an update to send to the observer, replacing any update
+          * that has not been sent yet.
+          */
+        private def enqueue(notify: Notify): Unit = {
+            if (sending) {
+                pending = notify
+            } else {
+                sending = true
+                send(notify)
+            }
+        }
+
+        private def enqueueTerminal(notify: Notify): Unit = {
+            if (sending) {
+                terminal = notify
+            } else {
+                sending = true
+                send(notify)
+            }
+        }
+
+        /**
+          * Sends the next pending notification, if any.
+          */
+        private def sendNext(): Unit = {
+            if (pending ne null) {
+                val notify = pending
+                pending = null
+                send(notify)
+            } else if (terminal ne null) {
+                val notify = terminal
+                terminal = null
+                send(notify)
+            } else {
+                sending = false
+            }
+        }
+
+        /**
+          * Sends a notification message to the observer immediately.
+          */
+        private def send(notify: Notify): Unit = {
+            try {
+                observer.next(notify).onComplete { _ =>
+                    sendNext()
+                }(cache.dispatcher)
+            } catch {
+                case NonFatal(e) =>
+                    Log.warn(s"(${cache.logId}) Unhandled exception during " +
+                             s"notification for subscription $id", e)
+                    cache.dispatcher.execute(makeRunnable { sendNext() })
+            }
+        }
+
+        /**
+          * Builds a [[Notify.Completed]] message for the specified exception.
+          */
+        private def buildError(t: Throwable): Notify.Completed = {
+            val builder = Notify.Completed.newBuilder()
+            t match {
+                case e: KeeperException =>
+                    builder.setCode(Notify.Completed.Code.NSDB_ERROR)
+                    builder.setNsdbCode(e.code().intValue())
+                    builder.setDescription(e.getMessage)
+                case NonFatal(e) =>
+                    builder.setCode(Notify.Completed.Code.UNHANDLED_ERROR)
+                    if (e.getMessage ne null) {
+                        builder.setDescription(e.getMessage)
+                    }
+            }
+            builder.build()
+        }
+
+    }
+
+    /**
+      * State machine representing the current subscriptions to the object
+      * cache, such that changes to the subscription list are atomic.
+      */
+    private class State(final val closed: Boolean,
+                        final val subscriptions: Array[Subscription]) {
+
+        def add(subscription: Subscription): State = {
+            val newSubscriptions = new Array[Subscription](subscriptions.length + 1)
+            System.arraycopy(subscriptions, 0, newSubscriptions, 0,
+                             subscriptions.length)
+            newSubscriptions(subscriptions.length) = subscription
+            new State(closed = false, newSubscriptions)
+        }
+
+        def remove(subscription: Subscription): State = {
+            val index = subscriptions.indexOf(subscription)
+            if (index < 0) {
+                this
+            } else if (subscriptions.length == 1) {
+                State.Closed
+            } else {
+                val newSubscriptions =
+                    new Array[Subscription](subscriptions.length - 1)
+                System.arraycopy(subscriptions, 0, newSubscriptions, 0, index)
+                System.arraycopy(subscriptions, index + 1, newSubscriptions,
+                                 index, subscriptions.length - index - 1)
+                new State(closed = false, newSubscriptions)
+            }
+        }
+    }
+
+    private object State {
+        val Stopped = new State(closed = false, Array.empty)
+        val Closed = new State(closed = true, Array.empty)
+    }
+
+}
+
+/**
+  * A cache for a NSDB object, which allows any number of state proxy clients
+  * to subscribe to the object while watching the object node only once.
+  * Every change of the object is notified to the subscribers as a snapshot
+  * [[Update]] containing the serialized object data, where the version is
+  * the MZXID of the object node.
+  *
+  * A subscriber that provides the last version it received is not notified
+  * the object again if the object did not change, such that the clients can
+  * resume their subscriptions after a reconnection without transferring the
+  * unchanged objects. When the object is deleted or does not exist, the
+  * subscribers receive an update with the `object_deleted` flag, followed by
+  * a completion notification.
+  *
+  * Like the [[StateTableCache]], the cache starts watching the object with the
+  * first subscription, closes when the last subscription unsubscribes, and
+  * processes all changes on a single-threaded executor.
+  */
+class ObjectCache(objectClass: Class[_], objectId: Any, path: String,
+                  curator: CuratorFramework,
+                  subscriptionCounter: AtomicLong,
+                  executor: ExecutorService,
+                  onClose: (ObjectCache) => Unit)
+    extends StateProxyCache {
+
+    private val state = new AtomicReference[State](State.Stopped)
+    private val connected = new AtomicBoolean(true)
+
+    private[state] val dispatcher = ExecutionContext.fromExecutor(executor)
+
+    // The last object update, accessed only on the dispatcher thread.
+    private var current: Update = null
+
+    protected[state] val logId = s"${objectClass.getSimpleName}/$objectId"
+
+    @volatile
+    private var callback = new BackgroundCallback {
+        override def processResult(client: CuratorFramework,
+                                   event: CuratorEvent): Unit =
+            executor.execute(makeRunnable { processCallback(event) })
+    }
+
+    @volatile
+    private var watcher = new Watcher {
+        override def process(event: WatchedEvent): Unit =
+            processWatcher(event)
+    }
+
+    @volatile
+    private var connectionListener = new ConnectionStateListener {
+        override def stateChanged(client: CuratorFramework,
+                                  state: ConnectionState): Unit =
+            processStateChanged(state)
+    }
+
+    /**
+      * Subscribes to this object cache for notifications. Upon subscription,
+      * the observer will receive the current object, unless `lastVersion` is
+      * the current version of the object.
+      */
+    @throws[StateTableCacheClosedException]
+    override def subscribe(observer: StateTableObserver,
+                           lastVersion: Option[Long]): StateTableSubscription = {
+        val subscriptionId = subscriptionCounter.incrementAndGet()
+        val subscription = new Subscription(subscriptionId, this, observer)
+
+        do {
+            val oldState = state.get()
+            if (oldState.closed) {
+                throw new StateTableCacheClosedException(logId)
+            }
+            if (state.compareAndSet(oldState, oldState.add(subscription))) {
+                if (oldState eq State.Stopped) {
+                    curator.getConnectionStateListenable
+                           .addListener(connectionListener)
+                    refresh()
+                }
+                subscription.refresh(lastVersion)
+                return subscription
+            }
+        } while (true)
+        null
+    }
+
+    /**
+      * Gracefully closes the object cache and notifies all subscribers.
+      */
+    override def close(): Unit = {
+        executor.execute(makeRunnable {
+            close(new StateTableCacheClosedException(logId))
+        })
+    }
+
+    /**
+      * @return True if the cache is stopped.
+      */
+    def isStopped: Boolean = state.get eq State.Stopped
+
+    /**
+      * @return True if the cache is closed.
+      */
+    override def isClosed: Boolean = state.get.closed
+
+    /**
+      * @return True if the cache has subscribers.
+      */
+    def hasSubscribers: Boolean = state.get.subscriptions.length > 0
+
+    /**
+      * Removes the specified subscription from this object cache, and closes
+      * the cache when this is the last subscription.
+      */
+    private def removeSubscription(subscription: Subscription): Unit = {
+        do {
+            val oldState = state.get()
+            if (oldState.closed) {
+                return
+            }
+            val newState = oldState.remove(subscription)
+            if ((newState eq oldState) ||
+                state.compareAndSet(oldState, newState)) {
+                if (newState.closed) {
+                    stop()
+                }
+                return
+            }
+        } while (true)
+    }
+
+    /**
+      * Sends the current object to a new or refreshed subscription, on the
+      * dispatcher thread. If the object has not been read yet, the
+      * subscription receives the object when the read completes.
+      */
+    private def requestRefresh(subscription: Subscription,
+                               lastVersion: Option[Long]): Unit = {
+        executor.execute(makeRunnable {
+            subscription.reset(lastVersion)
+            if (current ne null) {
+                subscription.update(current)
+            }
+        })
+    }
+
+    /**
+      * Releases the storage watchers and calls the close handler.
+      */
+    private def stop(): Unit = {
+        curator.getConnectionStateListenable.removeListener(connectionListener)
+        curator.clearWatcherReferences(watcher)
+
+        onClose(this)
+
+        connectionListener = null
+        watcher = null
+        callback = null
+        current = null
+    }
+
+    /**
+      * Closes the object cache with the specified error, which is notified
+      * to all subscribers.
+      */
+    private def close(e: Throwable): Unit = {
+        if (!state.get.closed) {
+            val subscriptions = state.getAndSet(State.Closed).subscriptions
+            var index = 0
+            while (index < subscriptions.length) {
+                subscriptions(index) error e
+                index += 1
+            }
+            stop()
+        }
+    }
+
+    /**
+      * Reads the object node and installs a watcher for its changes.
+      */
+    private def refresh(): Unit = {
+        if (!connected.get || state.get.closed) {
+            return
+        }
+        try {
+            curator.getData
+                   .usingWatcher(watcher)
+                   .inBackground(callback)
+                   .forPath(path)
+        } catch {
+            case NonFatal(e) =>
+                Log.debug(s"($logId) Refreshing object cache failed", e)
+                executor.execute(makeRunnable { close(e) })
+        }
+    }
+
+    /**
+      * Processes the result of reading the object node. This method is
+      * always called on the dispatcher thread.
+      */
+    private def processCallback(event: CuratorEvent): Unit = {
+        if (state.get.closed) {
+            return
+        }
+
+        if (event.getResultCode == Code.OK.intValue()) {
+            processData(event.getData, event.getStat)
+        } else if (event.getResultCode == Code.NONODE.intValue()) {
+            Log debug s"($logId) Object does not exist or deleted"
+            processDeleted()
+            close(KeeperException.create(Code.NONODE, event.getPath))
+        } else if (event.getResultCode == Code.CONNECTIONLOSS.intValue()) {
+            Log warn s"($logId) Cache connection lost"
+            close(KeeperException.create(Code.CONNECTIONLOSS, event.getPath))
+        } else {
+            Log warn s"($logId) Refreshing cache failed ${event.getResultCode}"
+            close(KeeperException.create(Code.get(event.getResultCode),
+                                         event.getPath))
+        }
+    }
+
+    private def processData(data: Array[Byte], stat: Stat): Unit = {
+        val version = stat.getMzxid
+        if ((current ne null) && current.getCurrentVersion == version) {
+            return
+        }
+        Log trace s"($logId) Object updated to version $version"
+        current = Update.newBuilder()
+            .setType(Update.Type.SNAPSHOT)
+            .setCurrentVersion(version)
+            .setBegin(true)
+            .setEnd(true)
+            .setObjectData(if (data ne null) ByteString.copyFrom(data)
+                           else ByteString.EMPTY)
+            .build()
+
+        val subscriptions = state.get.subscriptions
+        var index = 0
+        while (index < subscriptions.length) {
+            subscriptions(index) update current
+            index += 1
+        }
+    }
+
+    private def processDeleted(): Unit = {
+        val deleted = Update.newBuilder()
+            .setType(Update.Type.SNAPSHOT)
+            .setCurrentVersion(
+                if (current ne null) current.getCurrentVersion else 0L)
+            .setBegin(true)
+            .setEnd(true)
+            .setObjectDeleted(true)
+            .build()
+
+        val subscriptions = state.get.subscriptions
+        var index = 0
+        while (index < subscriptions.length) {
+            subscriptions(index) update deleted
+            index += 1
+        }
+    }
+
+    /**
+      * Processes watcher notifications for the object node by triggering a
+      * refresh.
+      */
+    private def processWatcher(event: WatchedEvent): Unit = {
+        if (!state.get.closed) {
+            Log trace s"($logId) Object changed: refreshing"
+            refresh()
+        }
+    }
+
+    /**
+      * Processes changes to the underlying storage connection. If the
+      * connection is lost, the method closes the cache, such that the clients
+      * can subscribe again to a new cache.
+      */
+    private def processStateChanged(state: ConnectionState): Unit = state match {
+        case ConnectionState.CONNECTED =>
+            connected set true
+        case ConnectionState.SUSPENDED =>
+            Log debug s"($logId) Cache connection suspended"
+            connected set false
+        case ConnectionState.RECONNECTED | ConnectionState.READ_ONLY =>
+            Log debug s"($logId) Cache reconnected"
+            if (connected.compareAndSet(false, true)) {
+                refresh()
+            }
+        case ConnectionState.LOST =>
+            Log warn s"($logId) Cache connection lost"
+            connected set false
+            executor.execute(makeRunnable {
+                close(KeeperException.create(Code.CONNECTIONLOSS))
+            })
+    }
+
+}
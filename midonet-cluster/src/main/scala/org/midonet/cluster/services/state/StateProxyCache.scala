@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.state
+
+import scala.concurrent.ExecutionContext
+
+/**
+  * A cache of the state proxy, which watches a NSDB resource once for all its
+  * subscribers: either a [[StateTableCache]] for a state table or an
+  * [[ObjectCache]] for an object.
+  */
+trait StateProxyCache {
+
+    /**
+      * Subscribes to this cache for notifications. If `lastVersion` is
+      * specified and supported by the cache, the observer will only receive
+      * the changes since that version.
+      */
+    @throws[StateTableCacheClosedException]
+    def subscribe(observer: StateTableObserver,
+                  lastVersion: Option[Long]): StateTableSubscription
+
+    /**
+      * Gracefully closes the cache and notifies all subscribers.
+      */
+    def close(): Unit
+
+    /**
+      * @return True if the cache is closed.
+      */
+    def isClosed: Boolean
+
+    /**
+      * The dispatcher on which all notifications of this cache are sent.
+      */
+    private[state] def dispatcher: ExecutionContext
+
+}
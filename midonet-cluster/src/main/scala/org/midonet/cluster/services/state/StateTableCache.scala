@@ -352,7 +352,8 @@ class StateTableCache(val config: StateProxyConfig,
                       tableKey: Class[_], tableValue: Class[_],
                       name: String, args: Seq[Any],
                       executor: ExecutorService,
-                      onClose: (StateTableCache) => Unit) {
+                      onClose: (StateTableCache) => Unit)
+    extends StateProxyCache {
 
     // Atomic variable with the current state and subscription list.
     private val state = new AtomicReference[State](State.Stopped)
@@ -420,7 +421,7 @@ class StateTableCache(val config: StateProxyConfig,
       * - Otherwise, the observer will receive a snapshot with all the entries
       */
     @throws[StateTableCacheClosedException]
-    def subscribe(observer: StateTableObserver,
+    override def subscribe(observer: StateTableObserver,
                   lastVersion: Option[Long]): StateTableSubscription = {
         // If the state table is closed throw an exception.
         if (state.get.closed) {
@@ -440,7 +441,7 @@ class StateTableCache(val config: StateProxyConfig,
       * Gracefully closes the current state table cache and notifies all
       * subscribers.
       */
-    def close(): Unit = {
+    override def close(): Unit = {
         close(new StateTableCacheClosedException(logId))
     }
 
@@ -452,7 +453,7 @@ class StateTableCache(val config: StateProxyConfig,
     /**
       * @return True if the cache is closed.
       */
-    def isClosed: Boolean = state.get.closed
+    override def isClosed: Boolean = state.get.closed
 
     /**
       * @return True if the cache has subscribers.
@@ -20,13 +20,19 @@ import java.util.UUID
 
 import com.google.common.base.MoreObjects
 
+/**
+  * Represents the index key for a cache of the state proxy.
+  */
+sealed trait StateProxyKey
+
 /**
   * Represents the index key for a state table. Each table is uniquely
   * identified by such a key.
   */
 case class StateTableKey(objectClass: Class[_], objectId: UUID,
                          keyClass: Class[_], valueClass: Class[_],
-                         tableName: String, tableArgs: Seq[String]) {
+                         tableName: String, tableArgs: Seq[String])
+    extends StateProxyKey {
 
     override def toString: String = {
         MoreObjects.toStringHelper(getClass).omitNullValues()
@@ -39,3 +45,18 @@ case class StateTableKey(objectClass: Class[_], objectId: UUID,
             .toString
     }
 }
+
+/**
+  * Represents the index key for a NSDB object. Each object is uniquely
+  * identified by such a key.
+  */
+case class ObjectKey(objectClass: Class[_], objectId: UUID)
+    extends StateProxyKey {
+
+    override def toString: String = {
+        MoreObjects.toStringHelper(getClass).omitNullValues()
+            .add("objectClass", objectClass)
+            .add("objectId", objectId)
+            .toString
+    }
+}
@@ -25,12 +25,14 @@ import java.util.concurrent.{Executors, ScheduledExecutorService, ThreadFactory}
 import scala.collection.breakOut
 import scala.collection.JavaConverters._
 import scala.concurrent.{Await, Future, TimeoutException}
+import scala.util.control.NonFatal
 
 import com.typesafe.scalalogging.Logger
 
 import org.slf4j.LoggerFactory
 
 import org.midonet.cluster.{StateProxyConfig, _}
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper
 import org.midonet.cluster.rpc.State.ProxyRequest.{Subscribe, Unsubscribe}
 import org.midonet.cluster.rpc.State.ProxyResponse.Error.Code
 import org.midonet.cluster.services.MidonetBackend
@@ -95,7 +97,7 @@ class StateTableManager(config: StateProxyConfig, backend: MidonetBackend) {
 
     protected[state] val log = Logger(LoggerFactory.getLogger(StateProxyLog))
 
-    private val caches = new util.HashMap[StateTableKey, StateTableCache]()
+    private val caches = new util.HashMap[StateProxyKey, StateProxyCache]()
     private val state = new AtomicReference[State](Init)
     private val subscriptionCounter = new AtomicLong()
 
@@ -190,8 +192,9 @@ class StateTableManager(config: StateProxyConfig, backend: MidonetBackend) {
     }
 
     /**
-      * Subscribes a client to a state table. The client must be registered
-      * for this operation to succeed.
+      * Subscribes a client to a state table or, if the request has the object
+      * flag set, to a NSDB object. The client must be registered for this
+      * operation to succeed.
       */
     @throws[StateTableException]
     @throws[ClientUnregisteredException]
@@ -209,14 +212,19 @@ class StateTableManager(config: StateProxyConfig, backend: MidonetBackend) {
             throw new ClientUnregisteredException(clientAddress)
         }
 
-        // Compute the table key.
-        val tableKey = try {
-            StateTableKey(Class.forName(request.getObjectClass),
-                          request.getObjectId,
-                          Class.forName(request.getKeyClass),
-                          Class.forName(request.getValueClass),
-                          request.getTableName,
-                          request.getTableArgumentsList.asScala)
+        // Compute the table or object key.
+        val key = try {
+            if (request.getObject) {
+                ObjectKey(Class.forName(request.getObjectClass),
+                          request.getObjectId)
+            } else {
+                StateTableKey(Class.forName(request.getObjectClass),
+                              request.getObjectId,
+                              Class.forName(request.getKeyClass),
+                              Class.forName(request.getValueClass),
+                              request.getTableName,
+                              request.getTableArgumentsList.asScala)
+            }
         } catch {
             case e @ (_: LinkageError | _: ExceptionInInitializerError |
                       _: ClassNotFoundException) =>
@@ -227,13 +235,13 @@ class StateTableManager(config: StateProxyConfig, backend: MidonetBackend) {
         val lastVersion =
             if (request.hasLastVersion) Some(request.getLastVersion)
             else None
-        log debug s"Client $clientAddress subscribing to table $tableKey for " +
+        log debug s"Client $clientAddress subscribing to $key for " +
                   s"version $lastVersion (request ID: $requestId)"
 
         var subscriptionId = -1L
         do {
             subscriptionId = try {
-                context.subscribeTo(tableKey, getOrCreateTableCache(tableKey),
+                context.subscribeTo(key, getOrCreateCache(key),
                                     requestId, lastVersion)
             } catch {
                 case e: StateTableCacheClosedException => -1L
@@ -266,36 +274,65 @@ class StateTableManager(config: StateProxyConfig, backend: MidonetBackend) {
     }
 
     /**
-      * Gets or creates a [[StateTableCache]] for the specified [[StateTableKey]].
-      * If the table cache already exists and is not closed, the method reuses
-      * the same. Otherwise, it creates a new cache and adds it to the caches
-      * map.
+      * Gets or creates a [[StateTableCache]] for the specified [[StateTableKey]]
+      * or an [[ObjectCache]] for the specified [[ObjectKey]]. If the cache
+      * already exists and is not closed, the method reuses the same.
+      * Otherwise, it creates a new cache and adds it to the caches map.
       */
-    private def getOrCreateTableCache(key: StateTableKey): StateTableCache = {
+    @throws[StateTableException]
+    private def getOrCreateCache(key: StateProxyKey): StateProxyCache = {
         caches synchronized {
             var cache = caches.get(key)
             if ((cache eq null) || cache.isClosed) {
                 val executor = executors.get
 
-                def closeCallback(cache: StateTableCache): Unit = {
+                def closeCallback(cache: StateProxyCache): Unit = {
                     caches synchronized {
                         caches.remove(key, cache)
                         executors.release(executor)
                     }
                 }
 
-                cache = new StateTableCache(
-                    config, backend.stateTableStore, backend.curator,
-                    subscriptionCounter, key.objectClass, key.objectId,
-                    key.keyClass, key.valueClass, key.tableName, key.tableArgs,
-                    executor,
-                    closeCallback)
+                cache = try key match {
+                    case k: StateTableKey =>
+                        new StateTableCache(
+                            config, backend.stateTableStore, backend.curator,
+                            subscriptionCounter, k.objectClass, k.objectId,
+                            k.keyClass, k.valueClass, k.tableName, k.tableArgs,
+                            executor,
+                            closeCallback)
+                    case k: ObjectKey =>
+                        new ObjectCache(
+                            k.objectClass, k.objectId, objectPath(k),
+                            backend.curator, subscriptionCounter, executor,
+                            closeCallback)
+                } catch {
+                    case NonFatal(e) =>
+                        executors.release(executor)
+                        throw e
+                }
                 caches.put(key, cache)
             }
             cache
         }
     }
 
+    /**
+      * Returns the storage path of the specified object, which is only
+      * available when the backend uses the ZOOM object mapper.
+      */
+    @throws[StateTableException]
+    private def objectPath(key: ObjectKey): String = {
+        backend.store match {
+            case zoom: ZookeeperObjectMapper =>
+                zoom.objectPath(key.objectClass, key.objectId)
+            case _ =>
+                throw new StateTableException(
+                    Code.INVALID_ARGUMENT,
+                    "SUBSCRIBE request for objects not supported by storage")
+        }
+    }
+
     @throws[StateTableException]
     private def validateSubscribe(request: Subscribe): Unit = {
         if (!request.hasObjectClass)
@@ -304,6 +341,8 @@ class StateTableManager(config: StateProxyConfig, backend: MidonetBackend) {
         if (!request.hasObjectId)
             throw new StateTableException(
                 Code.INVALID_ARGUMENT, "SUBSCRIBE request missing object identifier")
+        if (request.getObject)
+            return
         if (!request.hasKeyClass)
             throw new StateTableException(
                 Code.INVALID_ARGUMENT, "SUBSCRIBE request missing table key class")
@@ -23,13 +23,13 @@ import org.midonet.cluster.rpc.State.ProxyResponse.{Acknowledge, Notify}
 import org.midonet.cluster.services.state.server.ClientHandler
 
 /**
-  * Wraps a subscription to a state table and acts as a [[StateTableObserver]]
-  * relaying notifications to the corresponding [[ClientHandler]]. The class
-  * also ensures that the ACKNOWLEDGE response for a SUBSCRIBE request
-  * is always sent before subsequent state table updates.
+  * Wraps a subscription to a state table or object cache and acts as a
+  * [[StateTableObserver]] relaying notifications to the corresponding
+  * [[ClientHandler]]. The class also ensures that the ACKNOWLEDGE response for
+  * a SUBSCRIBE request is always sent before subsequent updates.
   */
-class StateTableSubscriber(val key: StateTableKey, handler: ClientHandler,
-                           cache: StateTableCache, requestId: Long,
+class StateTableSubscriber(val key: StateProxyKey, handler: ClientHandler,
+                           cache: StateProxyCache, requestId: Long,
                            lastVersion: Option[Long],
                            onComplete: (StateTableSubscriber) => Unit)
     extends StateTableObserver {
@@ -24,10 +24,10 @@ import org.midonet.cluster.services.state.StateTableSubscriberList.State
 
 object StateTableSubscriberList {
 
-    private type KeyMap = util.Map[StateTableKey, StateTableSubscriber]
+    private type KeyMap = util.Map[StateProxyKey, StateTableSubscriber]
     private type IdMap = util.Map[Long, StateTableSubscriber]
 
-    private type KeyHashMap = util.HashMap[StateTableKey, StateTableSubscriber]
+    private type KeyHashMap = util.HashMap[StateProxyKey, StateTableSubscriber]
     private type IdHashMap = util.HashMap[Long, StateTableSubscriber]
 
     /**
@@ -71,7 +71,7 @@ object StateTableSubscriberList {
         /**
           * @return The subscriber for the specified key.
           */
-        def get(key: StateTableKey): StateTableSubscriber = {
+        def get(key: StateProxyKey): StateTableSubscriber = {
             keys.get(key)
         }
 
@@ -110,7 +110,7 @@ class StateTableSubscriberList {
     private final val state = new AtomicReference[State](State.Init)
 
     /**
-      * Gets the state table subscriber for the given [[StateTableKey]] or if
+      * Gets the subscriber for the given [[StateProxyKey]] or if
       * the subscriber does not exist, it calls the specified `creator` method
       * and atomically adds it to the subscriber list. Since the `creator`
       * function may have side-effects and/or it may be called several times,
@@ -119,7 +119,8 @@ class StateTableSubscriberList {
       * The method throws an [[IllegalStateException]] if the subscriber list
       * was closed and no further modifications are allowed.
       *
-      * @param key The [[StateTableKey]] that identifier the state table.
+      * @param key The [[StateProxyKey]] that identifies the state table or
+      *            object.
       * @param creator The creator function that returns a new subscriber
       *                instance, if the key is not found in the subscriber list.
       *                The method may be called several times, if there are
@@ -136,7 +137,7 @@ class StateTableSubscriberList {
       * @return The subscriber.
       */
     @throws[IllegalStateException]
-    def getOrElseUpdate(key: StateTableKey,
+    def getOrElseUpdate(key: StateProxyKey,
                         creator: => StateTableSubscriber,
                         deleter: (StateTableSubscriber) => Unit,
                         onNew: (StateTableSubscriber) => Unit,
@@ -62,10 +62,10 @@ class ClientContext(handler: ClientHandler) {
 
     /**
       * Subscribes the client corresponding to this context to the
-      * specified table cache.
+      * specified state table or object cache.
       */
     @throws[StateTableException]
-    def subscribeTo(key: StateTableKey, cache: StateTableCache,
+    def subscribeTo(key: StateProxyKey, cache: StateProxyCache,
                     requestId: Long, lastVersion: Option[Long]): Long = {
         if (subscriberList.isClosed) {
             throw serverShutdownException
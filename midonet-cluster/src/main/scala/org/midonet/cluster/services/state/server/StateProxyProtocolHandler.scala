@@ -134,6 +134,7 @@ class StateProxyProtocolHandler(manager: StateTableManager)
                   s"reqId=$requestId : SUBSCRIBE " +
                   s"objectClass=${subscribe.getObjectClass} " +
                   s"objectId=${subscribe.getObjectId.asJava} " +
+                  s"object=${subscribe.getObject} " +
                   s"keyClass=${subscribe.getKeyClass} " +
                   s"valueClass=${subscribe.getValueClass} " +
                   s"tableName=${subscribe.getTableName} " +
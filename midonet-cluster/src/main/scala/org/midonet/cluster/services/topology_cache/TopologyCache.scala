@@ -94,11 +94,20 @@ class TopologyCache @Inject()(context: Context,
         Future {
             try {
                 curator.start()
-                objectCache = new ObjectCache(curator, paths, metrics)
+                val loader =
+                    if (config.topologyCache.loadMaxInFlight > 0)
+                        new TopologyLoader(curator, paths,
+                                           config.topologyCache.loadMaxInFlight,
+                                           Math.max(config.topologyCache.loadThreads, 1))
+                    else null
+                objectCache = new ObjectCache(curator, paths, metrics, loader)
                 stateCache = new StateCache(curator, paths, metrics,
                                             objectCache.observable())
 
                 objectCache.startAsync().awaitRunning()
+                if (loader ne null) {
+                    logLoad(loader)
+                }
                 stateCache.startAsync().awaitRunning()
 
                 val elapsed = (System.nanoTime() - timestamp) / 1000000
@@ -127,6 +136,13 @@ class TopologyCache @Inject()(context: Context,
         }
     }
 
+    private def logLoad(loader: TopologyLoader): Unit = {
+        val millis = Math.max(loader.loadNanos / 1000000, 1)
+        log.info(s"Loaded ${loader.loadedObjects} NSDB objects " +
+                 s"(${loader.loadedBytes} bytes) in $millis milliseconds: " +
+                 s"${loader.loadedObjects * 1000 / millis} objects/second")
+    }
+
     override def doStop(): Unit = {
         log.info("Stopping NSDB topology cache")
         val timestamp = System.nanoTime()
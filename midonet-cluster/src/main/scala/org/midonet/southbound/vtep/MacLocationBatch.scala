@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.southbound.vtep
+
+import scala.collection.mutable
+
+import org.midonet.cluster.data.vtep.model.{MacLocation, VtepMAC}
+
+/**
+ * Accumulates a batch of [[MacLocation]] updates that must be written to the
+ * MAC tables of a VTEP, grouped by logical switch, cancelling the updates
+ * superseded by a later update for the same MAC.
+ *
+ * Writing a MAC location replaces all previous entries for the same MAC and
+ * logical switch, therefore it cancels any earlier pending update for that
+ * MAC. Removing a MAC location only removes the entry with the same IP
+ * address, therefore removals are kept in order after the last write, and
+ * only duplicate removals are cancelled. The resulting updates have the same
+ * effect as applying the original ones in sequence.
+ *
+ * This class is not thread-safe.
+ */
+class MacLocationBatch {
+
+    private val switches =
+        new mutable.LinkedHashMap[String,
+                                  mutable.LinkedHashMap[VtepMAC,
+                                                        mutable.ArrayBuffer[MacLocation]]]
+    private var pending = 0
+    private var count = 0
+
+    /** Adds a MAC location update to the batch. */
+    def add(ml: MacLocation): Unit = {
+        count += 1
+        val macs = switches.getOrElseUpdate(
+            ml.logicalSwitchName,
+            new mutable.LinkedHashMap[VtepMAC, mutable.ArrayBuffer[MacLocation]])
+        macs.get(ml.mac) match {
+            case Some(updates) if ml.vxlanTunnelEndpoint ne null =>
+                pending += 1 - updates.size
+                updates.clear()
+                updates += ml
+            case Some(updates) if !updates.contains(ml) =>
+                pending += 1
+                updates += ml
+            case Some(_) => // Duplicate removal.
+            case None =>
+                pending += 1
+                macs.put(ml.mac, mutable.ArrayBuffer(ml))
+        }
+    }
+
+    /** The number of updates added to the batch. */
+    def received: Int = count
+
+    /** The number of updates remaining after cancelling the superseded
+      * ones. */
+    def size: Int = pending
+
+    def isEmpty: Boolean = pending == 0
+
+    /** Returns the remaining updates for each logical switch. */
+    def logicalSwitches: Seq[(String, Seq[MacLocation])] = {
+        switches.toSeq.map { case (name, macs) =>
+            (name, macs.values.flatten.toSeq)
+        }
+    }
+
+}
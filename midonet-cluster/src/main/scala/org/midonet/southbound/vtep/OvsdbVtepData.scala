@@ -17,13 +17,15 @@
 package org.midonet.southbound.vtep
 
 import java.util.UUID
-import java.util.concurrent.Executor
+import java.util.concurrent.{Executor, TimeUnit}
 
 import scala.collection.Iterable
 import scala.collection.JavaConversions._
 import scala.collection.JavaConverters._
+import scala.collection.mutable
 import scala.collection.mutable.ArrayBuffer
 import scala.concurrent.{ExecutionContext, Future}
+import scala.util.control.NonFatal
 import scala.util.{Failure, Success}
 
 import org.opendaylight.ovsdb.lib.OvsdbClient
@@ -40,7 +42,7 @@ import org.midonet.cluster.data.vtep.{VtepConfigException, VtepStateException}
 import org.midonet.packets.IPv4Addr
 import org.midonet.southbound.vtep.OvsdbOperations._
 import org.midonet.southbound.vtep.OvsdbUtil.panicAlert
-import org.midonet.southbound.vtep.OvsdbVtepData.{NamedLocatorId, NamedLocatorSetId}
+import org.midonet.southbound.vtep.OvsdbVtepData._
 import org.midonet.southbound.vtep.schema.Table.OvsdbOperation
 import org.midonet.southbound.vtep.schema._
 import org.midonet.util.concurrent._
@@ -52,6 +54,16 @@ object OvsdbVtepData {
     private[vtep] final val NamedLocatorId = "locator_id"
     private[vtep] final val NamedLocatorSetId = "locator_set_id"
     private val MaxBackpressureBuffer = 100000
+    private[vtep] val MacBatchSize = 256
+    private[vtep] val MacBatchWindowMillis = 50L
+
+    /** The named identifiers of the locators and locator sets inserted by
+      * the same transaction, indexed by tunnel IP and locator identifier
+      * respectively. */
+    private class NamedIds {
+        val locators = new mutable.HashMap[IPv4Addr, String]
+        val locatorSets = new mutable.HashMap[String, String]
+    }
 
 }
 
@@ -280,10 +292,16 @@ class OvsdbVtepData(val client: OvsdbClient, val dbSchema: DatabaseSchema,
         currentMac(uRemoteTable, mRemoteTable)
     }
 
+    /** Writes batches of MAC location updates to the unicast and multicast
+      * MAC tables. The updates of each batch are coalesced with a
+      * [[MacLocationBatch]], and the remaining updates for each logical switch
+      * are written in a single OVSDB transaction. If the transaction fails,
+      * the updates are retried one at a time, such that a single invalid
+      * update does not prevent the others from being written. */
     private class MacUpdater(`type`: String,
                              ucastTable: OvsdbCachedTable[UcastMac],
                              mcastTable: OvsdbCachedTable[McastMac])
-        extends Subscriber[MacLocation] {
+        extends Subscriber[java.util.List[MacLocation]] {
 
         override def onStart(): Unit = request(1)
         override def onCompleted(): Unit = {
@@ -294,50 +312,107 @@ class OvsdbVtepData(val client: OvsdbClient, val dbSchema: DatabaseSchema,
             log.warn("Error on stream of {} MAC updates", `type`, err)
             unsubscribe()
         }
-        override def onNext(ml: MacLocation): Unit = {
-            log.debug("Publishing {} MAC to VTEP: {}", `type`, ml)
-            if (ml != null) {
-                applyMac(ml) onComplete { result =>
-                    result match {
-                        case Success(s) =>
-                            log.trace("MAC {} tables updated successfully: {}",
-                                      `type`, s)
-                        case Failure(e) =>
-                            log.warn("Updating {} MAC tables failed", `type`, e)
-                    }
-                    request(1)
+        override def onNext(mls: java.util.List[MacLocation]): Unit = {
+            val batch = new MacLocationBatch
+            for (ml <- mls.asScala if ml ne null) {
+                batch.add(ml)
+            }
+            if (batch.isEmpty) {
+                request(1)
+                return
+            }
+
+            log.debug("Publishing {} {} MAC updates to VTEP coalesced into {}",
+                      Int.box(batch.received), `type`, Int.box(batch.size))
+            applyBatch(batch) onComplete { result =>
+                result match {
+                    case Success(count) =>
+                        log.trace("MAC {} tables updated successfully: {} " +
+                                  "operations", `type`, Int.box(count))
+                    case Failure(e) =>
+                        log.warn("Updating {} MAC tables failed", `type`, e)
                 }
-            } else {
                 request(1)
             }
         }
 
-        private def applyMac(ml: MacLocation): Future[Seq[OperationResult]] = {
-            logicalSwitch(ml.logicalSwitchName) map {
-                case None =>
-                    log.warn("Unknown logical switch for {} MAC update: {}",
-                             `type`, ml.logicalSwitchName)
-                    Seq.empty
+        /** Applies the updates of the batch one logical switch at a time,
+          * and returns the number of operations executed. */
+        private def applyBatch(batch: MacLocationBatch): Future[Int] = {
+            batch.logicalSwitches.foldLeft(Future.successful(0)) {
+                case (future, (lsName, mls)) =>
+                    future flatMap { count =>
+                        applyMacs(lsName, mls) map { count + _ }
+                    }
+            }
+        }
 
-                case Some(ls) if ml.vxlanTunnelEndpoint == null =>
-                    deleteMac(ml, ls)
+        private def applyMacs(lsName: String, mls: Seq[MacLocation])
+        : Future[Int] = {
+            logicalSwitch(lsName) flatMap {
+                case None =>
+                    log.warn("Unknown logical switch for {} MAC updates: {}",
+                             `type`, lsName)
+                    Future.successful(0)
 
-                case Some(ls) if ml.mac.isUcast =>
-                    addUcastMac(ml, ls)
+                case Some(ls) if mls.size == 1 =>
+                    applyOps(macOps(mls, ls))
 
                 case Some(ls) =>
-                    addMcastMac(ml, ls)
-            } flatMap {
-                OvsdbOperations.multiOp(client, dbSchema, _)
+                    applyOps(macOps(mls, ls)) recoverWith { case NonFatal(e) =>
+                        log.warn("Writing {} {} MAC updates for logical switch " +
+                                 "{} failed: retrying one at a time",
+                                 Int.box(mls.size), `type`, lsName, e)
+                        applyOneByOne(mls)
+                    }
             }
         }
 
+        private def applyOneByOne(mls: Seq[MacLocation]): Future[Int] = {
+            mls.foldLeft(Future.successful(0)) { (future, ml) =>
+                future flatMap { count =>
+                    applyMacs(ml.logicalSwitchName, Seq(ml)) map {
+                        count + _
+                    } recover { case NonFatal(e) =>
+                        log.warn("Updating {} MAC tables failed for {}",
+                                 `type`, ml, e)
+                        count
+                    }
+                }
+            }
+        }
+
+        private def applyOps(ops: Seq[OvsdbOperation]): Future[Int] = {
+            if (ops.isEmpty) Future.successful(0)
+            else OvsdbOperations.multiOp(client, dbSchema, ops) map { _.size }
+        }
+
+        /** Returns the OVSDB operations for a sequence of MAC location updates
+          * of the same logical switch, to be executed in one transaction. */
+        private def macOps(mls: Seq[MacLocation], ls: LogicalSwitch)
+        : Seq[OvsdbOperation] = {
+            val ids = new NamedIds
+            val ops = new ArrayBuffer[OvsdbOperation](mls.size)
+            val updater = (op: OvsdbOperation) => { ops += op; () }
+            for (ml <- mls) {
+                if (ml.vxlanTunnelEndpoint == null) {
+                    ops ++= deleteMac(ml, ls)
+                } else if (ml.mac.isUcast) {
+                    ops ++= addUcastMac(ml, ls, ids, updater)
+                } else {
+                    ops ++= addMcastMac(ml, ls, ids, updater)
+                }
+            }
+            ops
+        }
+
         /** Returns the OVSDB operations to add a unicast MAC entry. If a
           * locator already exist for the tunnel IP address, the method will use
           * that locator to INSERT the MAC entry. Otherwise, the method will
           * INSERT a new locator with a named-UUID, and INSERT the MAC
           * referencing the new locator (both operations are executed in the
-          * same transaction).
+          * same transaction). The locator operations are passed to the
+          * updater, such that they precede the MAC operations.
           *
           * If an entry for the same MAC address already exists, the method
           * removes the previous one and replaces it with the new one.
@@ -345,13 +420,13 @@ class OvsdbVtepData(val client: OvsdbClient, val dbSchema: DatabaseSchema,
           * Note: It is important that the locator and MAC entry are created
           * in the same transaction. Otherwise, the locator is automatically
           * deleted because there is no MAC entry referencing it. */
-        private def addUcastMac(ml: MacLocation, ls: LogicalSwitch)
+        private def addUcastMac(ml: MacLocation, ls: LogicalSwitch,
+                                ids: NamedIds,
+                                updater: (OvsdbOperation) => Unit)
         : Seq[Table.OvsdbOperation] = {
-            var ops = Seq.empty[OvsdbOperation]
-
             // Get or create the locator ID for the VXLAN tunnel end-point.
-            val locatorId = getOrCreateLocator(ml.vxlanTunnelEndpoint,
-                                               op => ops = ops :+ op)
+            val locatorId = getOrCreateLocator(ml.vxlanTunnelEndpoint, ids,
+                                               updater)
             // If the MAC entry for the same location already exists,
             // return no ops.
             if (ucastTable.getAll.exists(e => e.ls == ls.uuid &&
@@ -364,17 +439,15 @@ class OvsdbVtepData(val client: OvsdbClient, val dbSchema: DatabaseSchema,
             // Remove all other MAC entries for the same logical switch and MAC.
             // Note: Disable this to allow multiple MAC entries for the same
             // logical switch.
-            ops = ops ++: ucastTable.getAll
+            val ops = ucastTable.getAll
                 .filter(e => e.ls == ls.uuid && e.macAddr == ml.mac)
                 .map(e => ucastTable.table.delete(
                     UcastMac(ls.uuid, ml.mac, e.ipAddr, loc = null)))
                 .toSeq
 
             // Insert the new MAC entry.
-            ops = ops :+ ucastTable.table.insert(
+            ops :+ ucastTable.table.insert(
                 UcastMac(ls.uuid, ml.mac, ml.ipAddr, locatorId), null /* ID */)
-
-            ops
         }
 
         /** Returns the OVSDB operations to add a multicast MAC entry. If a
@@ -386,17 +459,16 @@ class OvsdbVtepData(val client: OvsdbClient, val dbSchema: DatabaseSchema,
           * If an entry for the same MAC address already exists, the method
           * removes the previous one and replaces it with the new one.
           */
-        private def addMcastMac(ml: MacLocation, ls: LogicalSwitch)
+        private def addMcastMac(ml: MacLocation, ls: LogicalSwitch,
+                                ids: NamedIds,
+                                updater: (OvsdbOperation) => Unit)
         : Seq[Table.OvsdbOperation] = {
-            var ops = Seq.empty[OvsdbOperation]
-
             // Get or create the locator ID for the VXLAN tunnel end-point.
-            val locatorId = getOrCreateLocator(ml.vxlanTunnelEndpoint,
-                                               op => ops = ops :+ op)
+            val locatorId = getOrCreateLocator(ml.vxlanTunnelEndpoint, ids,
+                                               updater)
 
             // Get or create the locator set ID for the previous locator.
-            val locatorSetId = getOrCreateLocatorSet(locatorId,
-                                                     op => ops = ops :+ op)
+            val locatorSetId = getOrCreateLocatorSet(locatorId, ids, updater)
 
             // If the MAC entry for the same location already exists,
             // return no ops.
@@ -410,17 +482,15 @@ class OvsdbVtepData(val client: OvsdbClient, val dbSchema: DatabaseSchema,
             // Remove all other MAC entries for the same logical switch and MAC.
             // Note: Disable this to allow multiple MAC entries for the same
             // logical switch.
-            ops = ops ++: mcastTable.getAll
+            val ops = mcastTable.getAll
                 .filter(e => e.ls == ls.uuid && e.macAddr == ml.mac)
                 .map(e => mcastTable.table.delete(
                     McastMac(ls.uuid, ml.mac, e.ipAddr, loc = null)))
                 .toSeq
 
             // Insert the new MAC entry.
-            ops = ops :+ mcastTable.table.insert(
+            ops :+ mcastTable.table.insert(
                 McastMac(ls.uuid, ml.mac, ml.ipAddr, locatorSetId), null /* ID */)
-
-            ops
         }
 
         /** Returns the OVSDB operations to delete a unicast or multicast MAC
@@ -438,32 +508,40 @@ class OvsdbVtepData(val client: OvsdbClient, val dbSchema: DatabaseSchema,
 
         /** Gets the locator identifier for the specified tunnel IP address. If
           * the locator does not exist, the method creates a new OVSDB insert
-          * operation for the new locator, and returns its named identifier. */
-        private def getOrCreateLocator(tunnelIp: IPv4Addr,
+          * operation for the new locator, and returns its named identifier.
+          * The named identifier is reused by the other updates of the same
+          * transaction. */
+        private def getOrCreateLocator(tunnelIp: IPv4Addr, ids: NamedIds,
                                        updater: (OvsdbOperation) => Unit)
         : String = {
             locTable.getAll.find(_.dstIp == tunnelIp) match {
                 case Some(locator) => locator.uuid.toString
-                case None =>
+                case None => ids.locators.getOrElseUpdate(tunnelIp, {
+                    val namedId = s"${NamedLocatorId}_${ids.locators.size}"
                     updater(locTable.table.insert(
-                        PhysicalLocator(tunnelIp), NamedLocatorId))
-                    NamedLocatorId
+                        PhysicalLocator(tunnelIp), namedId))
+                    namedId
+                })
             }
         }
 
         /** Gets the locator set identifier that contains the given locator
           * identifier. If the locator set does not exist, the method creates
           * a new OVSDB insert operation for the new locator set, and returns
-          * its named identifier. */
-        private def getOrCreateLocatorSet(locatorId: String,
+          * its named identifier. The named identifier is reused by the other
+          * updates of the same transaction. */
+        private def getOrCreateLocatorSet(locatorId: String, ids: NamedIds,
                                           updater: (OvsdbOperation) => Unit)
         : String = {
             locSetTable.getAll.find(_.locatorIds.contains(locatorId)) match {
                 case Some(locatorSet) => locatorSet.uuid.toString
-                case None =>
+                case None => ids.locatorSets.getOrElseUpdate(locatorId, {
+                    val namedId =
+                        s"${NamedLocatorSetId}_${ids.locatorSets.size}"
                     updater(locSetTable.table.insert(
-                        PhysicalLocatorSet(locatorId), NamedLocatorSetId))
-                    NamedLocatorSetId
+                        PhysicalLocatorSet(locatorId), namedId))
+                    namedId
+                })
             }
         }
     }
@@ -571,12 +649,16 @@ class OvsdbVtepData(val client: OvsdbClient, val dbSchema: DatabaseSchema,
             val pipe = PublishSubject.create[MacLocation]()
             // We use the backpressure buffer to prevent overlapping mac
             // updates, which can lead to order alterations if some initial
-            // update fails but the following ones succeed...
-            // TODO: we may add a buffer operator with a closingSelector
-            // to increase the efficiency, though it may add complexity
-            // to error processing (e.g. if the accumulated update is too
-            // big, we may run into trouble with ovsdb request max sizes...
+            // update fails but the following ones succeed. The updates are
+            // buffered into batches bounded in size and latency, and the
+            // updater processes one batch at a time. The batch size also
+            // bounds the size of the OVSDB requests. The buffer emits a batch
+            // at every window, so the empty batches are dropped.
             pipe.onBackpressureBuffer(MaxBackpressureBuffer, panicAlert(log))
+                .buffer(MacBatchWindowMillis, TimeUnit.MILLISECONDS,
+                        MacBatchSize, vtepScheduler)
+                .filter(makeFunc1((macs: java.util.List[MacLocation]) =>
+                                      !macs.isEmpty))
                 .observeOn(vtepScheduler)
                 .onBackpressureBuffer(MaxBackpressureBuffer, panicAlert(log))
                 .subscribe(updater)
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.containers.schedulers
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.cluster.models.State.ContainerServiceStatus
+
+/**
+  * Simulates the rescheduling of the service containers after a number of
+  * hosts fail, where every container scheduler receives the new hosts
+  * notification. The `perContainer` benchmark reproduces the previous
+  * behavior, where each scheduler filters the hosts and selects a new host
+  * independently, while the `batch` benchmark uses the shared
+  * [[HostCapacityIndex]].
+  */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+@org.openjdk.jmh.annotations.Threads(1)
+class HostCapacityIndexBenchmark {
+
+    @Param(Array("500"))
+    var hostCount: Int = _
+
+    @Param(Array("10000"))
+    var containerCount: Int = _
+
+    @Param(Array("1", "50"))
+    var failedHostCount: Int = _
+
+    @Param(Array("LEAST", "WEIGHTED"))
+    var policy: String = _
+
+    private val random = new Random(0L)
+
+    private var containerIds: Array[UUID] = _
+    private var placements: Array[UUID] = _
+    private var healthyHosts: HostsEvent = _
+    private var failedHosts: HostsEvent = _
+    private var index: HostCapacityIndex = _
+
+    private def hostEvent(running: Boolean, count: Int): HostEvent = {
+        HostEvent(running, ContainerServiceStatus.newBuilder()
+                                                 .setWeight(1 + random.nextInt(4))
+                                                 .setCount(count)
+                                                 .setQuota(-1)
+                                                 .build())
+    }
+
+    @JmhSetup(Level.Trial)
+    def setupTopology(): Unit = {
+        val hostIds = Array.fill(hostCount)(UUID.randomUUID())
+        containerIds = Array.fill(containerCount)(UUID.randomUUID())
+        placements = Array.tabulate(containerCount)(i => hostIds(i % hostCount))
+
+        val perHost = containerCount / hostCount
+        healthyHosts = hostIds.map(_ -> hostEvent(running = true, perHost)).toMap
+        failedHosts = healthyHosts ++ hostIds.take(failedHostCount).map(
+            _ -> hostEvent(running = false, 0))
+    }
+
+    @JmhSetup(Level.Invocation)
+    def setupIndex(): Unit = {
+        index = new HostCapacityIndex
+        index update healthyHosts
+    }
+
+    @Benchmark
+    def perContainer(bh: Blackhole): Unit = {
+        var i = 0
+        while (i < containerCount) {
+            val runningHosts = failedHosts.filter(e =>
+                e._2.running && e._2.status.getWeight > 0)
+            if (!runningHosts.contains(placements(i))) {
+                val availableHosts = runningHosts.filter(
+                    _._2.status.getQuota != 0)
+                if (policy == "LEAST") {
+                    bh.consume(availableHosts.minBy(_._2.status.getCount)._1)
+                } else {
+                    val totalWeight = availableHosts.foldLeft(0L)(
+                        (seed, host) => seed + host._2.status.getWeight)
+                    val randomWeight = Math.abs(random.nextLong()) % totalWeight
+                    var sumWeight = 0L
+                    var selectedId: UUID = null
+                    val iterator = availableHosts.iterator
+                    while (iterator.hasNext && sumWeight <= randomWeight) {
+                        val host = iterator.next()
+                        selectedId = host._1
+                        sumWeight += host._2.status.getWeight
+                    }
+                    bh.consume(selectedId)
+                }
+            }
+            i += 1
+        }
+    }
+
+    @Benchmark
+    def batch(bh: Blackhole): Unit = {
+        var i = 0
+        while (i < containerCount) {
+            index update failedHosts
+            val host = failedHosts(placements(i))
+            if (!host.running) {
+                val selected =
+                    if (policy == "LEAST") index.selectLeast(Set.empty)
+                    else index.selectWeighted(Set.empty, random)
+                index.assign(containerIds(i), selected.get)
+                bh.consume(selected)
+            }
+            i += 1
+        }
+    }
+}
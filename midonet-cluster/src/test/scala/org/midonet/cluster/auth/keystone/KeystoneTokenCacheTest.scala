@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.auth.keystone
+
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
+import scala.concurrent.duration._
+import scala.concurrent.{Await, ExecutionContext, Future}
+
+import com.codahale.metrics.MetricRegistry
+import com.typesafe.config.ConfigFactory
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{GivenWhenThen, Matchers}
+
+import org.midonet.cluster.auth.UserIdentity
+import org.midonet.conf.MidoTestConfigurator
+
+@RunWith(classOf[JUnitRunner])
+class KeystoneTokenCacheTest extends KeystoneTest with Matchers
+                             with GivenWhenThen {
+
+    private val ttl = 5.minutes.toMillis
+    private val negativeTtl = 10.seconds.toMillis
+    private var now = System.currentTimeMillis()
+
+    private def client(): KeystoneClient = {
+        val configStr =
+            s"""
+               |cluster.auth.keystone.version : 2
+               |cluster.auth.keystone.protocol : $keystoneProtocol
+               |cluster.auth.keystone.host : $keystoneHost
+               |cluster.auth.keystone.port : $keystonePort
+               |cluster.auth.keystone.admin_token : $keystoneToken
+            """.stripMargin
+        val config = ConfigFactory.parseString(configStr)
+            .withFallback(MidoTestConfigurator.forClusters())
+        new KeystoneClient(new KeystoneConfig(config))
+    }
+
+    private def cache(registry: MetricRegistry = new MetricRegistry,
+                      maxSize: Int = 100): KeystoneTokenCache = {
+        new KeystoneTokenCache(maxSize, ttl, negativeTtl, registry, () => now)
+    }
+
+    private def validator(client: KeystoneClient, count: AtomicInteger)
+    : String => (UserIdentity, Long) = { token =>
+        count.incrementAndGet()
+        val response = client.validate(token)
+        (new UserIdentity(response.project.id, response.project.name,
+                          response.user.id, response.tokenId),
+            KeystoneClient.parseExpiresAt(response.token.expiresAt))
+    }
+
+    private def counter(registry: MetricRegistry, metric: String): Long = {
+        registry.getCounters
+                .get(MetricRegistry.name(classOf[KeystoneTokenCache], metric))
+                .getCount
+    }
+
+    "Token cache" should "validate a token only once" in {
+        Given("A valid token")
+        val c = client()
+        val token = c.authenticate(keystoneTenant, keystoneUser,
+                                   keystonePassword).token.id
+        val registry = new MetricRegistry
+        val tokenCache = cache(registry)
+        val count = new AtomicInteger
+
+        When("Authorizing the token twice")
+        val identity1 = tokenCache.get(token)(validator(c, count))
+        val identity2 = tokenCache.get(token)(validator(c, count))
+
+        Then("The token is validated once")
+        identity1.token shouldBe token
+        identity2 shouldBe identity1
+        count.get shouldBe 1
+        counter(registry, "misses") shouldBe 1
+        counter(registry, "hits") shouldBe 1
+        tokenCache.size shouldBe 1
+    }
+
+    "Token cache" should "cache invalid tokens" in {
+        Given("An invalid token")
+        val c = client()
+        val token = UUID.randomUUID().toString
+        val registry = new MetricRegistry
+        val tokenCache = cache(registry)
+        val count = new AtomicInteger
+
+        Then("Authorizing the token twice fails")
+        intercept[KeystoneException] {
+            tokenCache.get(token)(validator(c, count))
+        }
+        intercept[KeystoneException] {
+            tokenCache.get(token)(validator(c, count))
+        }
+
+        And("The token is validated once")
+        count.get shouldBe 1
+        counter(registry, "negativeHits") shouldBe 1
+
+        When("The negative time-to-live expires")
+        now += negativeTtl
+
+        Then("The token is validated again")
+        intercept[KeystoneException] {
+            tokenCache.get(token)(validator(c, count))
+        }
+        count.get shouldBe 2
+    }
+
+    "Token cache" should "expire tokens after the time-to-live" in {
+        Given("A valid token")
+        val c = client()
+        val token = c.authenticate(keystoneTenant, keystoneUser,
+                                   keystonePassword).token.id
+        val tokenCache = cache()
+        val count = new AtomicInteger
+        tokenCache.get(token)(validator(c, count))
+
+        When("The time-to-live expires")
+        now += ttl
+
+        Then("The token is validated again")
+        tokenCache.get(token)(validator(c, count))
+        count.get shouldBe 2
+    }
+
+    "Token cache" should "not cache tokens beyond their expiration" in {
+        Given("A cache with a long time-to-live")
+        val tokenCache = new KeystoneTokenCache(100, 1.hour.toMillis,
+                                                negativeTtl,
+                                                new MetricRegistry, () => now)
+        val count = new AtomicInteger
+        val validate: String => (UserIdentity, Long) = { token =>
+            count.incrementAndGet()
+            (new UserIdentity("tenant", "tenant", "user", token),
+                now + 1.minute.toMillis)
+        }
+
+        When("Authorizing a token that expires in a minute")
+        tokenCache.get("token")(validate)
+        tokenCache.get("token")(validate)
+        count.get shouldBe 1
+
+        Then("The token is validated again after its expiration")
+        now += 1.minute.toMillis
+        tokenCache.get("token")(validate)
+        count.get shouldBe 2
+    }
+
+    "Token cache" should "evict the least recently used tokens" in {
+        val tokenCache = cache(maxSize = 2)
+        val count = new AtomicInteger
+        val validate: String => (UserIdentity, Long) = { token =>
+            count.incrementAndGet()
+            (new UserIdentity("tenant", "tenant", "user", token),
+                Long.MaxValue)
+        }
+
+        tokenCache.get("token1")(validate)
+        tokenCache.get("token2")(validate)
+        tokenCache.get("token1")(validate)
+        tokenCache.get("token3")(validate)
+        tokenCache.size shouldBe 2
+        count.get shouldBe 3
+
+        tokenCache.get("token1")(validate)
+        count.get shouldBe 3
+        tokenCache.get("token2")(validate)
+        count.get shouldBe 4
+    }
+
+    "Token cache" should "not cache connection failures" in {
+        val tokenCache = cache()
+        val count = new AtomicInteger
+        val validate: String => (UserIdentity, Long) = { token =>
+            count.incrementAndGet()
+            throw new KeystoneConnectionException("url", null)
+        }
+
+        intercept[KeystoneConnectionException] {
+            tokenCache.get("token")(validate)
+        }
+        intercept[KeystoneConnectionException] {
+            tokenCache.get("token")(validate)
+        }
+        count.get shouldBe 2
+        tokenCache.size shouldBe 0
+    }
+
+    "Token cache" should "coalesce concurrent validations" in {
+        import ExecutionContext.Implicits.global
+
+        Given("A validation that blocks")
+        val registry = new MetricRegistry
+        val tokenCache = cache(registry)
+        val count = new AtomicInteger
+        val started = new CountDownLatch(1)
+        val latch = new CountDownLatch(1)
+        val validate: String => (UserIdentity, Long) = { token =>
+            count.incrementAndGet()
+            started.countDown()
+            latch.await(10, TimeUnit.SECONDS)
+            (new UserIdentity("tenant", "tenant", "user", token),
+                Long.MaxValue)
+        }
+
+        When("Several threads authorize the same token")
+        val first = Future { tokenCache.get("token")(validate) }
+        started.await(10, TimeUnit.SECONDS) shouldBe true
+        val others = for (i <- 1 to 4) yield
+            Future { tokenCache.get("token")(validate) }
+        // Let the other threads wait for the pending validation.
+        Thread.sleep(500)
+        latch.countDown()
+
+        Then("All threads receive the same identity")
+        val identity = Await.result(first, 10.seconds)
+        for (other <- others) {
+            Await.result(other, 10.seconds) shouldBe identity
+        }
+
+        And("The token is validated once")
+        count.get shouldBe 1
+
+        And("The waiting threads are not counted as cache hits")
+        counter(registry, "misses") shouldBe 1
+        counter(registry, "coalesced") shouldBe 4
+        counter(registry, "hits") shouldBe 0
+    }
+
+    "Token cache" should "validate every request when disabled" in {
+        val tokenCache = cache(maxSize = 0)
+        val count = new AtomicInteger
+        val validate: String => (UserIdentity, Long) = { token =>
+            count.incrementAndGet()
+            (new UserIdentity("tenant", "tenant", "user", token),
+                Long.MaxValue)
+        }
+
+        tokenCache.get("token")(validate)
+        tokenCache.get("token")(validate)
+        count.get shouldBe 2
+    }
+}
@@ -3458,4 +3458,23 @@ class ContainerSchedulerTest extends FeatureSpec with SchedulersTest
         }
     }
 
+    feature("Scheduler shares the capacity index of the host selector") {
+        scenario("The provider returns one capacity index per selector") {
+            Given("A host selector from the provider")
+            val group = createGroup()
+            val selector = provider.selectorOf(group)
+
+            And("Another host selector")
+            val other = new AnywhereHostSelector(context)
+
+            Then("The selector has a single capacity index")
+            provider.capacityIndexOf(selector) should be theSameInstanceAs (
+                provider.capacityIndexOf(provider.selectorOf(group)))
+
+            And("The other selector has a different capacity index")
+            provider.capacityIndexOf(other) should not be theSameInstanceAs (
+                provider.capacityIndexOf(selector))
+        }
+    }
+
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.containers.schedulers
+
+import java.util.UUID
+
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.{FlatSpec, GivenWhenThen, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.cluster.models.State.ContainerServiceStatus
+
+@RunWith(classOf[JUnitRunner])
+class HostCapacityIndexTest extends FlatSpec with Matchers with GivenWhenThen {
+
+    private val random = new Random()
+
+    private def host(running: Boolean = true, weight: Int = 1,
+                     count: Int = 0, quota: Int = -1): HostEvent = {
+        HostEvent(running, ContainerServiceStatus.newBuilder()
+                                                 .setWeight(weight)
+                                                 .setCount(count)
+                                                 .setQuota(quota)
+                                                 .build())
+    }
+
+    "Index" should "select nothing when there are no hosts" in {
+        Given("An empty index")
+        val index = new HostCapacityIndex
+
+        Then("The index should not select any host")
+        index.selectLeast(Set.empty) shouldBe None
+        index.selectWeighted(Set.empty, random) shouldBe None
+    }
+
+    "Index" should "only select available hosts" in {
+        Given("An index with several hosts")
+        val index = new HostCapacityIndex
+        val id1 = UUID.randomUUID()
+        val id2 = UUID.randomUUID()
+        val id3 = UUID.randomUUID()
+        val id4 = UUID.randomUUID()
+        index update Map(id1 -> host(running = false),
+                         id2 -> host(weight = 0),
+                         id3 -> host(quota = 0),
+                         id4 -> host())
+
+        Then("The index should have one available host")
+        index.availableCount shouldBe 1
+
+        And("The index should select the available host")
+        index.selectLeast(Set.empty) shouldBe Some(id4)
+        index.selectWeighted(Set.empty, random) shouldBe Some(id4)
+
+        And("The index should not select an excluded host")
+        index.selectLeast(Set(id4)) shouldBe None
+        index.selectWeighted(Set(id4), random) shouldBe None
+    }
+
+    "Index" should "select the least loaded host including pending" in {
+        Given("An index with two hosts")
+        val index = new HostCapacityIndex
+        val id1 = UUID.randomUUID()
+        val id2 = UUID.randomUUID()
+        index update Map(id1 -> host(count = 1), id2 -> host(count = 3))
+
+        Then("The index should select the first host")
+        index.selectLeast(Set.empty) shouldBe Some(id1)
+
+        When("Assigning three containers to the first host")
+        val containers = (0 until 3).map(_ => UUID.randomUUID())
+        containers.foreach(index.assign(_, id1))
+
+        Then("The index should select the second host")
+        index.pendingCount(id1) shouldBe 3
+        index.selectLeast(Set.empty) shouldBe Some(id2)
+
+        When("Releasing two containers")
+        index.release(containers(0))
+        index.release(containers(1))
+
+        Then("The index should select the first host")
+        index.pendingCount(id1) shouldBe 1
+        index.selectLeast(Set.empty) shouldBe Some(id1)
+
+        When("Reassigning a container to the second host")
+        index.assign(containers(2), id2)
+
+        Then("The pending count should move to the second host")
+        index.pendingCount(id1) shouldBe 0
+        index.pendingCount(id2) shouldBe 1
+    }
+
+    "Index" should "spread a batch of containers across hosts" in {
+        Given("An index with several idle hosts")
+        val index = new HostCapacityIndex
+        val ids = (0 until 10).map(_ => UUID.randomUUID())
+        index update ids.map(_ -> host()).toMap
+
+        When("Placing 100 containers with the least policy")
+        for (_ <- 0 until 100) {
+            val hostId = index.selectLeast(Set.empty).get
+            index.assign(UUID.randomUUID(), hostId)
+        }
+
+        Then("Every host should have 10 containers")
+        for (id <- ids) {
+            index.pendingCount(id) shouldBe 10
+        }
+    }
+
+    "Index" should "apply incremental host updates" in {
+        Given("An index with two hosts")
+        val index = new HostCapacityIndex
+        val id1 = UUID.randomUUID()
+        val id2 = UUID.randomUUID()
+        val hosts = Map(id1 -> host(count = 1), id2 -> host(count = 2))
+        index update hosts
+        index.selectLeast(Set.empty) shouldBe Some(id1)
+
+        When("The first host stops")
+        index update hosts + (id1 -> host(running = false))
+
+        Then("The index should select the second host")
+        index.availableCount shouldBe 1
+        index.selectLeast(Set.empty) shouldBe Some(id2)
+        index.selectWeighted(Set.empty, random) shouldBe Some(id2)
+
+        When("The second host is removed")
+        index update Map(id1 -> host(running = false))
+
+        Then("The index should not select any host")
+        index.availableCount shouldBe 0
+        index.selectLeast(Set.empty) shouldBe None
+        index.selectWeighted(Set.empty, random) shouldBe None
+    }
+
+    "Index" should "select hosts proportionally to their weight" in {
+        Given("An index with a light host and a heavy host")
+        val index = new HostCapacityIndex
+        val id1 = UUID.randomUUID()
+        val id2 = UUID.randomUUID()
+        index update Map(id1 -> host(weight = 1),
+                         id2 -> host(weight = Int.MaxValue))
+
+        Then("The heavy host should be selected almost always")
+        val selected = (0 until 100).map(_ => index.selectWeighted(Set.empty,
+                                                                   random))
+        selected.count(_ == Some(id2)) should be > 90
+
+        And("Excluding the heavy host should select the other host")
+        index.selectWeighted(Set(id2), random) shouldBe Some(id1)
+    }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.state
+
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.concurrent.duration._
+import scala.concurrent.{Future, Promise}
+
+import org.apache.zookeeper.KeeperException
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.cluster.models.Topology.Network
+import org.midonet.cluster.rpc.State.ProxyResponse.Notify
+import org.midonet.cluster.rpc.State.ProxyResponse.Notify.Completed.Code
+import org.midonet.cluster.test.util.ZookeeperTestSuite
+import org.midonet.util.concurrent.SameThreadButAfterExecutorService
+import org.midonet.util.reactivex.TestAwaitableObserver
+
+@RunWith(classOf[JUnitRunner])
+class ObjectCacheTest extends FeatureSpec with Matchers with GivenWhenThen
+                      with ZookeeperTestSuite {
+
+    private class TestObserver(auto: Boolean = true)
+        extends TestAwaitableObserver[Notify] with StateTableObserver {
+        var promise = Promise[AnyRef]()
+        override def next(notify: Notify): Future[AnyRef] = {
+            onNext(notify)
+            if (auto) Future.successful(null) else promise.future
+        }
+    }
+
+    private val timeout = 5 seconds
+    private val counter = new AtomicLong()
+
+    private def objectPath(id: UUID): String = s"$ZK_ROOT/objects/$id"
+
+    private def newCache(id: UUID = UUID.randomUUID(), data: String = "0")
+                        (onClose: => Unit): ObjectCache = {
+        if (data ne null) {
+            zkClient.create().creatingParentsIfNeeded()
+                    .forPath(objectPath(id), data.getBytes)
+        }
+        new ObjectCache(classOf[Network], id, objectPath(id), zkClient, counter,
+                        new SameThreadButAfterExecutorService, _ => onClose)
+    }
+
+    private def version(id: UUID): Long = {
+        zkClient.checkExists().forPath(objectPath(id)).getMzxid
+    }
+
+    private def dataOf(notify: Notify): String = {
+        notify.hasUpdate shouldBe true
+        notify.getUpdate.getObjectDeleted shouldBe false
+        notify.getUpdate.getObjectData.toStringUtf8
+    }
+
+    feature("Cache handles subscriptions") {
+        scenario("Observer receives the object and its changes") {
+            Given("An object cache")
+            val id = UUID.randomUUID()
+            var closed = false
+            val cache = newCache(id) { closed = true }
+            cache.isStopped shouldBe true
+
+            When("An observer subscribes")
+            val observer = new TestObserver
+            val subscription = cache.subscribe(observer, lastVersion = None)
+
+            Then("The observer receives the object with its version")
+            observer.awaitOnNext(1, timeout) shouldBe true
+            dataOf(observer.getOnNextEvents.get(0)) shouldBe "0"
+            observer.getOnNextEvents.get(0).getUpdate.getCurrentVersion shouldBe
+                version(id)
+
+            When("The object changes")
+            zkClient.setData().forPath(objectPath(id), "1".getBytes)
+
+            Then("The observer receives the new object")
+            observer.awaitOnNext(2, timeout) shouldBe true
+            dataOf(observer.getOnNextEvents.get(1)) shouldBe "1"
+            observer.getOnNextEvents.get(1).getUpdate.getCurrentVersion shouldBe
+                version(id)
+
+            When("The observer unsubscribes")
+            subscription.unsubscribe()
+
+            Then("The cache is closed")
+            cache.isClosed shouldBe true
+            closed shouldBe true
+        }
+
+        scenario("Observers share the cache") {
+            Given("An object cache with a subscriber")
+            val id = UUID.randomUUID()
+            val cache = newCache(id) { }
+            val observer1 = new TestObserver
+            val sub1 = cache.subscribe(observer1, lastVersion = None)
+            observer1.awaitOnNext(1, timeout) shouldBe true
+
+            When("A second observer subscribes")
+            val observer2 = new TestObserver
+            val sub2 = cache.subscribe(observer2, lastVersion = None)
+
+            Then("The observer receives the cached object")
+            observer2.awaitOnNext(1, timeout) shouldBe true
+            dataOf(observer2.getOnNextEvents.get(0)) shouldBe "0"
+
+            When("The first observer unsubscribes")
+            sub1.unsubscribe()
+
+            Then("The cache is not closed")
+            cache.isClosed shouldBe false
+
+            When("The object changes")
+            zkClient.setData().forPath(objectPath(id), "1".getBytes)
+
+            Then("Only the second observer receives the change")
+            observer2.awaitOnNext(2, timeout) shouldBe true
+            observer1.getOnNextEvents should have size 1
+
+            sub2.unsubscribe()
+            cache.isClosed shouldBe true
+        }
+
+        scenario("Cache does not allow subscriptions after close") {
+            Given("A closed object cache")
+            val cache = newCache() { }
+            cache.close()
+
+            Then("Subscribing throws an exception")
+            intercept[StateTableCacheClosedException] {
+                cache.subscribe(new TestObserver, lastVersion = None)
+            }
+        }
+    }
+
+    feature("Cache handles versions") {
+        scenario("Observer with the current version does not receive the object") {
+            Given("An object cache")
+            val id = UUID.randomUUID()
+            val cache = newCache(id) { }
+
+            When("An observer subscribes with the current version")
+            val observer = new TestObserver
+            val subscription =
+                cache.subscribe(observer, lastVersion = Some(version(id)))
+
+            And("The object changes")
+            zkClient.setData().forPath(objectPath(id), "1".getBytes)
+
+            Then("The observer only receives the change")
+            observer.awaitOnNext(1, timeout) shouldBe true
+            dataOf(observer.getOnNextEvents.get(0)) shouldBe "1"
+
+            When("The observer refreshes with the current version")
+            subscription.refresh(Some(version(id)))
+
+            Then("The observer does not receive the object")
+            observer.getOnNextEvents should have size 1
+
+            When("The observer refreshes with an older version")
+            subscription.refresh(Some(0L))
+
+            Then("The observer receives the object")
+            observer.awaitOnNext(2, timeout) shouldBe true
+            dataOf(observer.getOnNextEvents.get(1)) shouldBe "1"
+
+            subscription.unsubscribe()
+        }
+
+        scenario("Pending changes are coalesced") {
+            Given("An object cache with an observer that does not acknowledge")
+            val id = UUID.randomUUID()
+            val cache = newCache(id) { }
+            val observer = new TestObserver(auto = false)
+            val subscription = cache.subscribe(observer, lastVersion = None)
+            observer.awaitOnNext(1, timeout) shouldBe true
+
+            When("The object changes twice")
+            zkClient.setData().forPath(objectPath(id), "1".getBytes)
+            zkClient.setData().forPath(objectPath(id), "2".getBytes)
+            Thread.sleep(500)
+
+            And("The observer acknowledges the first notification")
+            observer.promise.success(null)
+
+            Then("The observer receives the latest object")
+            observer.awaitOnNext(2, timeout) shouldBe true
+            dataOf(observer.getOnNextEvents.get(1)) shouldBe "2"
+            observer.getOnNextEvents should have size 2
+
+            subscription.unsubscribe()
+        }
+    }
+
+    feature("Cache handles deletion") {
+        scenario("Observers are notified when the object is deleted") {
+            Given("An object cache with a subscriber")
+            val id = UUID.randomUUID()
+            var closed = false
+            val cache = newCache(id) { closed = true }
+            val observer = new TestObserver
+            cache.subscribe(observer, lastVersion = None)
+            observer.awaitOnNext(1, timeout) shouldBe true
+
+            When("The object is deleted")
+            zkClient.delete().forPath(objectPath(id))
+
+            Then("The observer receives the deletion and a completion")
+            observer.awaitOnNext(3, timeout) shouldBe true
+            observer.getOnNextEvents.get(1).getUpdate.getObjectDeleted shouldBe true
+            val completed = observer.getOnNextEvents.get(2)
+            completed.hasCompleted shouldBe true
+            completed.getCompleted.getCode shouldBe Code.NSDB_ERROR
+            completed.getCompleted.getNsdbCode shouldBe
+                KeeperException.Code.NONODE.intValue()
+
+            And("The cache is closed")
+            cache.isClosed shouldBe true
+            closed shouldBe true
+        }
+
+        scenario("Observers are notified when the object does not exist") {
+            Given("An object cache for a non-existing object")
+            val cache = newCache(data = null) { }
+
+            When("An observer subscribes")
+            val observer = new TestObserver
+            cache.subscribe(observer, lastVersion = None)
+
+            Then("The observer receives the deletion and a completion")
+            observer.awaitOnNext(2, timeout) shouldBe true
+            observer.getOnNextEvents.get(0).getUpdate.getObjectDeleted shouldBe true
+            observer.getOnNextEvents.get(1).hasCompleted shouldBe true
+        }
+    }
+}
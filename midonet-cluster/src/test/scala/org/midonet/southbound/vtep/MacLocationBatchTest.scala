@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.southbound.vtep
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.cluster.data.vtep.model.{MacLocation, VtepMAC}
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.southbound.vtep.OvsdbVtepBuilder._
+import org.midonet.southbound.vtep.mock.{InMemoryOvsdbVtep, MockOvsdbVtep}
+import org.midonet.southbound.vtep.schema.UcastMacsRemoteTable
+import org.midonet.util.MidonetEventually
+import org.midonet.util.concurrent.toFutureOps
+import org.midonet.util.reactivex.TestAwaitableObserver
+
+@RunWith(classOf[JUnitRunner])
+class MacLocationBatchTest extends FeatureSpec with BeforeAndAfter
+                                   with Matchers with GivenWhenThen
+                                   with MidonetEventually {
+
+    private val timeout = 5 seconds
+    private var vtep: InMemoryOvsdbVtep = _
+
+    before {
+        vtep = new InMemoryOvsdbVtep
+    }
+
+    private def remoteMacs: Map[MAC, String] = {
+        val table = new UcastMacsRemoteTable(
+            vtep.getDbSchema(MockOvsdbVtep.DB_HARDWARE_VTEP))
+        vtep.getTable(table).values
+            .map(e => (e.macAddr.IEEE802, e.locatorId)).toMap
+    }
+
+    feature("MAC location batch") {
+        scenario("Updates are grouped by logical switch") {
+            Given("A batch")
+            val batch = new MacLocationBatch
+            val ip = IPv4Addr.random
+            val ml1 = MacLocation(MAC.random(), "ls1", ip)
+            val ml2 = MacLocation(MAC.random(), "ls2", ip)
+            val ml3 = MacLocation(MAC.random(), "ls1", ip)
+
+            When("Adding updates for two logical switches")
+            batch.add(ml1)
+            batch.add(ml2)
+            batch.add(ml3)
+
+            Then("The updates are grouped in order")
+            batch.size shouldBe 3
+            batch.received shouldBe 3
+            batch.logicalSwitches shouldBe Seq(("ls1", Seq(ml1, ml3)),
+                                               ("ls2", Seq(ml2)))
+        }
+
+        scenario("A write supersedes previous updates for the same MAC") {
+            Given("A batch")
+            val batch = new MacLocationBatch
+            val mac = MAC.random()
+            val ip = IPv4Addr.random
+
+            When("Adding several updates for the same MAC")
+            batch.add(MacLocation(mac, "ls", IPv4Addr.random))
+            batch.add(MacLocation(mac, ip, "ls", null))
+            batch.add(MacLocation(mac, "ls", IPv4Addr.random))
+            val last = MacLocation(mac, ip, "ls", IPv4Addr.random)
+            batch.add(last)
+
+            Then("Only the last write remains")
+            batch.size shouldBe 1
+            batch.received shouldBe 4
+            batch.logicalSwitches shouldBe Seq(("ls", Seq(last)))
+        }
+
+        scenario("Removals are kept after the last write") {
+            Given("A batch")
+            val batch = new MacLocationBatch
+            val mac = MAC.random()
+            val ip = IPv4Addr.random
+
+            When("Adding a write followed by removals")
+            val write = MacLocation(mac, ip, "ls", IPv4Addr.random)
+            val removal1 = MacLocation(mac, ip, "ls", null)
+            val removal2 = MacLocation(mac, "ls", null)
+            batch.add(write)
+            batch.add(removal1)
+            batch.add(removal2)
+            batch.add(removal1)
+
+            Then("The duplicate removal is cancelled")
+            batch.size shouldBe 3
+            batch.logicalSwitches shouldBe
+                Seq(("ls", Seq(write, removal1, removal2)))
+        }
+
+        scenario("Flooding proxy updates are coalesced") {
+            Given("A batch")
+            val batch = new MacLocationBatch
+
+            When("The flooding proxy moves several times")
+            batch.add(MacLocation.unknownAt(IPv4Addr.random, "ls"))
+            batch.add(MacLocation.unknownAt(IPv4Addr.random, "ls"))
+            val last = MacLocation.unknownAt(IPv4Addr.random, "ls")
+            batch.add(last)
+
+            Then("Only the last flooding proxy remains")
+            batch.logicalSwitches shouldBe Seq(("ls", Seq(last)))
+            last.mac shouldBe VtepMAC.UNKNOWN_DST
+        }
+    }
+
+    feature("Remote MAC updater writes batches") {
+        scenario("Many MAC updates use few transactions") {
+            Given("A VTEP with a logical switch and a locator")
+            vtep.createPhysicalSwitch()
+            val ls = vtep.createLogicalSwitch()
+            val locator = vtep.createPhysicalLocator()
+
+            And("A connected VTEP client")
+            val client = OvsdbVtepDataClient(vtep)
+            client.connect().await(timeout)
+            val updater = client.macRemoteUpdater.await(timeout)
+
+            And("An observer for the VTEP transactions")
+            val transactions = new TestAwaitableObserver[Int]
+            vtep.transactionRequests.subscribe(transactions)
+
+            When("Writing many MAC locations")
+            val macs = for (index <- 0 until 100) yield MAC.random()
+            for (mac <- macs) {
+                updater.onNext(MacLocation(mac, ls.name, locator.dstIp))
+            }
+
+            Then("The VTEP eventually contains all MACs")
+            eventually {
+                remoteMacs.keySet shouldBe macs.toSet
+            }
+
+            And("The MACs were written with fewer transactions")
+            transactions.getOnNextEvents.size should be < macs.size
+            transactions.getOnNextEvents.asScala.map(_.toInt).sum should be >=
+                macs.size
+        }
+
+        scenario("Only the last location of a MAC is written") {
+            Given("A VTEP with a logical switch and two locators")
+            vtep.createPhysicalSwitch()
+            val ls = vtep.createLogicalSwitch()
+            val locator1 = vtep.createPhysicalLocator()
+            val locator2 = vtep.createPhysicalLocator()
+
+            And("A connected VTEP client")
+            val client = OvsdbVtepDataClient(vtep)
+            client.connect().await(timeout)
+            val updater = client.macRemoteUpdater.await(timeout)
+
+            When("A MAC moves several times between the locators")
+            val mac = MAC.random()
+            for (index <- 0 until 10) {
+                updater.onNext(MacLocation(mac, ls.name, locator1.dstIp))
+                updater.onNext(MacLocation(mac, ls.name, locator2.dstIp))
+            }
+
+            And("Another MAC is added and removed")
+            val removed = MAC.random()
+            updater.onNext(MacLocation(removed, ls.name, locator1.dstIp))
+            updater.onNext(MacLocation(removed, ls.name, null))
+
+            And("A last MAC is added")
+            val last = MAC.random()
+            updater.onNext(MacLocation(last, ls.name, locator1.dstIp))
+
+            Then("The VTEP contains the last location of each MAC")
+            eventually {
+                remoteMacs shouldBe Map(mac -> locator2.uuid.toString,
+                                        last -> locator1.uuid.toString)
+            }
+        }
+    }
+
+}
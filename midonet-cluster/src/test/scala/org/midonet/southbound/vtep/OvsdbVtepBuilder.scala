@@ -105,6 +105,14 @@ class OvsdbVtepBuilder(val vtep: InMemoryOvsdbVtep) extends AnyVal {
         ls
     }
 
+    def createPhysicalLocator(ip: IPv4Addr = IPv4Addr.random)
+    : PhysicalLocator = {
+        val locTable = new PhysicalLocatorTable(schema)
+        val locator = PhysicalLocator(UUID.randomUUID, ip)
+        vtep.putEntry(locTable, locator)
+        locator
+    }
+
     def createLocalUcastMac(ls: UUID,
                             mac: String = MAC.random().toString,
                             ip: IPv4Addr = IPv4Addr.random,
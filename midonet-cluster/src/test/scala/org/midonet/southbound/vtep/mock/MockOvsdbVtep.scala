@@ -82,6 +82,10 @@ class InMemoryOvsdbVtep(mgmtIp: IPv4Addr = IPv4Addr.random,
     // transaction information is not reported.
     private val operationSubject = PublishSubject.create[Operation[_]]()
 
+    // A subject to publish the number of operations of each transaction
+    // requested on the vtep.
+    private val transactionSubject = PublishSubject.create[Int]()
+
     private val lsSchema = Map[String, MockColumnSchema](
         ("_uuid", mkColumnSchema("_uuid", classOf[OvsdbUUID])),
         ("_version", mkColumnSchema("_version", classOf[OvsdbUUID])),
@@ -244,6 +248,9 @@ class InMemoryOvsdbVtep(mgmtIp: IPv4Addr = IPv4Addr.random,
     /** publish the requested operations */
     def operationRequests = operationSubject.asObservable()
 
+    /** publish the number of operations of the requested transactions */
+    def transactionRequests = transactionSubject.asObservable()
+
     /** Retrieve a supported database schema */
     def getDbSchema(name: String): DatabaseSchema =
         if (name != MockOvsdbVtep.DB_HARDWARE_VTEP) null else databaseSchema
@@ -323,6 +330,7 @@ class InMemoryOvsdbVtep(mgmtIp: IPv4Addr = IPv4Addr.random,
         : ListenableFuture[util.List[OperationResult]] =
             tables.synchronized[ListenableFuture[util.List[OperationResult]]] {
                 val results = new util.ArrayList[OperationResult]()
+                transactionSubject.onNext(trans.getRequests.size())
                 for (op <- trans.getRequests.toIterable) {
                     operationSubject.onNext(op)
                     results.add(doOperation(op))
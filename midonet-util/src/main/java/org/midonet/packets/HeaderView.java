@@ -0,0 +1,366 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.packets;
+
+/**
+ * A reusable flyweight over the headers of a serialized Ethernet frame.
+ *
+ * Unlike {@link Ethernet#deserialize(java.nio.ByteBuffer)}, wrapping a frame
+ * does not allocate: the Ethernet header is validated eagerly, with the same
+ * checks used by the deserializer, while the network and transport headers
+ * are located on first access. The view supports a small number of in-place
+ * rewrites, which update the affected checksums incrementally (RFC 1624), such
+ * that a frame can be modified without materializing the object tree.
+ *
+ * The getters for a given layer are only meaningful when the corresponding
+ * predicate, such as {@link #isIPv4()} or {@link #isTcp()}, returns true. The
+ * class is not thread-safe, and it is meant to be reused by the same thread
+ * for many frames.
+ */
+public final class HeaderView {
+
+    private static final int UNPARSED = -2;
+    private static final int ABSENT = -1;
+
+    private static final int VXLAN_HEADER_LEN = 8;
+    private static final int GRE_HEADER_LEN = 4;
+    private static final int GRE_CKSUM_PRESENT = 0x80;
+    private static final int GRE_KEY_PRESENT = 0x20;
+    private static final int GRE_SEQNUM_PRESENT = 0x10;
+
+    private static final int TCP_FLAG_SYN = 0x02;
+
+    private byte[] data;
+    private int start;
+    private int end;
+
+    private boolean valid;
+    private short etherType;
+    private int vlanCount;
+    private int networkOffset;
+    private int transportOffset = UNPARSED;
+    private int transportEnd;
+
+    /**
+     * Wraps the specified frame, and returns this view.
+     */
+    public HeaderView wrap(byte[] data) {
+        return wrap(data, 0, data.length);
+    }
+
+    /**
+     * Wraps the frame found in the specified array region, and returns this
+     * view.
+     */
+    public HeaderView wrap(byte[] data, int offset, int length) {
+        this.data = data;
+        this.start = offset;
+        this.end = offset + length;
+        this.transportOffset = UNPARSED;
+        this.vlanCount = 0;
+        parseEthernet();
+        return this;
+    }
+
+    /**
+     * Indicates whether the wrapped frame has a well formed Ethernet header.
+     * The object tree of a frame for which this method returns true can be
+     * deserialized without errors.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * The offset of the wrapped frame in the underlying array.
+     */
+    public int offset() {
+        return start;
+    }
+
+    /**
+     * The length of the wrapped frame.
+     */
+    public int length() {
+        return end - start;
+    }
+
+    public short etherType() {
+        return etherType;
+    }
+
+    public int vlanCount() {
+        return vlanCount;
+    }
+
+    /**
+     * Returns the VLAN ID of the tag at the specified index, where the index
+     * zero corresponds to the outermost tag.
+     */
+    public short vlanId(int index) {
+        return (short) (getShort(start + 14 + index * 4) & 0x0fff);
+    }
+
+    public boolean isIPv4() {
+        return transportOffset() >= 0;
+    }
+
+    public byte ipProtocol() {
+        return data[networkOffset + 9];
+    }
+
+    public byte ipTtl() {
+        return data[networkOffset + 8];
+    }
+
+    public int ipSource() {
+        return getInt(networkOffset + 12);
+    }
+
+    public int ipDestination() {
+        return getInt(networkOffset + 16);
+    }
+
+    public int ipHeaderLength() {
+        return (data[networkOffset] & 0x0f) * 4;
+    }
+
+    public boolean isTcp() {
+        return isIPv4() && ipProtocol() == TCP.PROTOCOL_NUMBER &&
+               transportEnd - transportOffset >= TCP.MIN_HEADER_LEN;
+    }
+
+    public boolean isUdp() {
+        return isIPv4() && ipProtocol() == UDP.PROTOCOL_NUMBER &&
+               transportEnd - transportOffset >= UDP.HEADER_LEN;
+    }
+
+    public boolean isIcmp() {
+        return isIPv4() && ipProtocol() == ICMP.PROTOCOL_NUMBER;
+    }
+
+    public int sourcePort() {
+        return getShort(transportOffset) & 0xffff;
+    }
+
+    public int destinationPort() {
+        return getShort(transportOffset + 2) & 0xffff;
+    }
+
+    public short tcpFlags() {
+        return (short) (getShort(transportOffset + 12) & 0x01ff);
+    }
+
+    public short tcpChecksum() {
+        return getShort(transportOffset + 16);
+    }
+
+    public short udpChecksum() {
+        return getShort(transportOffset + 6);
+    }
+
+    public boolean isTcpSyn() {
+        return isTcp() && (tcpFlags() & TCP_FLAG_SYN) != 0;
+    }
+
+    /**
+     * Returns the offset of the Ethernet frame encapsulated in the wrapped
+     * frame, or -1 if the frame is neither a VXLAN nor a GRE packet. The
+     * offset can be used to wrap the inner frame with another view.
+     */
+    public int encapsulatedFrameOffset() {
+        if (isUdp() && isVxlanPort()) {
+            int offset = transportOffset + UDP.HEADER_LEN + VXLAN_HEADER_LEN;
+            return offset <= transportEnd ? offset : ABSENT;
+        }
+        if (isIPv4() && ipProtocol() == GRE.PROTOCOL_NUMBER &&
+            transportEnd - transportOffset >= GRE_HEADER_LEN) {
+            int flags = data[transportOffset];
+            int offset = transportOffset + GRE_HEADER_LEN;
+            if ((flags & GRE_CKSUM_PRESENT) != 0) offset += 4;
+            if ((flags & GRE_KEY_PRESENT) != 0) offset += 4;
+            if ((flags & GRE_SEQNUM_PRESENT) != 0) offset += 4;
+            return offset <= transportEnd ? offset : ABSENT;
+        }
+        return ABSENT;
+    }
+
+    /**
+     * Indicates whether the wrapped frame is a GRE packet carrying the
+     * optional GRE checksum, which covers the encapsulated frame.
+     */
+    public boolean hasGreChecksum() {
+        return isIPv4() && ipProtocol() == GRE.PROTOCOL_NUMBER &&
+               transportEnd > transportOffset &&
+               (data[transportOffset] & GRE_CKSUM_PRESENT) != 0;
+    }
+
+    /**
+     * Sets the UDP checksum to zero, which for IPv4 indicates that the
+     * checksum was not computed.
+     */
+    public void clearUdpChecksum() {
+        data[transportOffset + 6] = 0;
+        data[transportOffset + 7] = 0;
+    }
+
+    /**
+     * Returns the offset of the value of the TCP maximum segment size option,
+     * or -1 if the wrapped frame is not a TCP packet with such option.
+     */
+    public int tcpMssOffset() {
+        if (!isTcp()) {
+            return ABSENT;
+        }
+        int dataOffset = (data[transportOffset + 12] >> 4) & 0x0f;
+        int optionsEnd = transportOffset + dataOffset * 4;
+        if (dataOffset <= TCP.MIN_DATA_OFFSET || optionsEnd > transportEnd) {
+            return ABSENT;
+        }
+        int i = transportOffset + TCP.MIN_HEADER_LEN;
+        while (i < optionsEnd) {
+            byte code = data[i++];
+            if (code == TCP.OptionKind.END_OPTS.code) {
+                return ABSENT;
+            } else if (code <= TCP.OptionKind.NOP.code) {
+                // NOP has no arguments.
+            } else if (i >= optionsEnd) {
+                return ABSENT;
+            } else if (code == TCP.OptionKind.MSS.code) {
+                return data[i] == 4 && i + 3 <= optionsEnd ? i + 1 : ABSENT;
+            } else if (data[i] < 2) {
+                // Invalid option length, the packet is probably corrupt.
+                return ABSENT;
+            } else {
+                i += data[i] - 1;
+            }
+        }
+        return ABSENT;
+    }
+
+    public int tcpMss() {
+        return getShort(tcpMssOffset()) & 0xffff;
+    }
+
+    /**
+     * Rewrites the TCP maximum segment size option in place, and updates the
+     * TCP checksum. Returns false if the frame does not have the option.
+     */
+    public boolean setTcpMss(int mss) {
+        int offset = tcpMssOffset();
+        if (offset < 0) {
+            return false;
+        }
+        int oldMss = getShort(offset) & 0xffff;
+        putShort(offset, mss);
+        updateChecksum(transportOffset + 16, transportOffset, offset,
+                       oldMss, mss & 0xffff);
+        return true;
+    }
+
+    private boolean isVxlanPort() {
+        int dstPort = destinationPort();
+        return dstPort == UDP.VXLAN ||
+               (!UDP.decodeMap.containsKey(dstPort) &&
+                sourcePort() == UDP.VXLAN);
+    }
+
+    private void parseEthernet() {
+        valid = false;
+        etherType = 0;
+        if (end - start < Ethernet.MIN_HEADER_LEN) {
+            return;
+        }
+        int pos = start + 12;
+        short type = getShort(pos);
+        pos += 2;
+        while (type == Ethernet.VLAN_TAGGED_FRAME ||
+               type == Ethernet.PROVIDER_BRIDGING_TAG) {
+            if (end - pos < Ethernet.HEADER_TPID_LEN) {
+                return;
+            }
+            vlanCount++;
+            type = getShort(pos + 2);
+            pos += 4;
+        }
+        etherType = type;
+        networkOffset = pos;
+        valid = true;
+    }
+
+    private int transportOffset() {
+        if (transportOffset == UNPARSED) {
+            transportOffset = parseIPv4();
+        }
+        return transportOffset;
+    }
+
+    private int parseIPv4() {
+        if (!valid || etherType != IPv4.ETHERTYPE ||
+            end - networkOffset < IPv4.MIN_HEADER_LEN) {
+            return ABSENT;
+        }
+        int headerLength = (data[networkOffset] & 0x0f) * 4;
+        int totalLength = getShort(networkOffset + 2) & 0xffff;
+        if (headerLength < IPv4.MIN_HEADER_LEN || totalLength < headerLength ||
+            networkOffset + headerLength > end) {
+            return ABSENT;
+        }
+        // Packets may be truncated by the datapath, therefore the transport
+        // headers end at the earliest of the frame and the IP datagram end.
+        transportEnd = Math.min(end, networkOffset + totalLength);
+        return networkOffset + headerLength;
+    }
+
+    /**
+     * Incrementally updates the one's complement checksum at the specified
+     * offset, for a 16-bit field of a region starting at the given offset,
+     * per RFC 1624: HC' = ~(~HC + ~m + m').
+     */
+    private void updateChecksum(int checksumOffset, int regionStart,
+                                int fieldOffset, int oldValue, int newValue) {
+        if (((fieldOffset - regionStart) & 1) != 0) {
+            // A field at an odd offset straddles two words, which adds its
+            // bytes swapped to the sum.
+            oldValue = Integer.reverseBytes(oldValue) >>> 16;
+            newValue = Integer.reverseBytes(newValue) >>> 16;
+        }
+        int sum = ~getShort(checksumOffset) & 0xffff;
+        sum += ~oldValue & 0xffff;
+        sum += newValue;
+        sum = (sum & 0xffff) + (sum >>> 16);
+        sum = (sum & 0xffff) + (sum >>> 16);
+        putShort(checksumOffset, ~sum);
+    }
+
+    private short getShort(int offset) {
+        return (short) (((data[offset] & 0xff) << 8) |
+                        (data[offset + 1] & 0xff));
+    }
+
+    private int getInt(int offset) {
+        return ((data[offset] & 0xff) << 24) |
+               ((data[offset + 1] & 0xff) << 16) |
+               ((data[offset + 2] & 0xff) << 8) |
+               (data[offset + 3] & 0xff);
+    }
+
+    private void putShort(int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.util.Arrays
+
+object HierarchicalTimingWheel {
+
+    /** Receives the entries that expire in [[HierarchicalTimingWheel.expire]]. */
+    trait Handler[T] {
+        def expired(value: Long, ref: T): Unit
+    }
+
+    private final val SlotBits = 8
+    private final val SlotCount = 1 << SlotBits
+    private final val SlotMask = SlotCount - 1
+
+    private final val NoNode = -1
+    private final val Free = -1
+
+}
+
+/**
+ * A hierarchical timing wheel that expires entries scheduled with an absolute
+ * deadline. Every entry carries a primitive `value` and a reference, such
+ * that the callers can index either flow identifiers or objects.
+ *
+ * The wheel has `levels` levels of 256 slots, where a slot of level `n` spans
+ * 256 to the power of `n` ticks of `resolution` time units. An entry is placed in the lowest
+ * level whose current period contains its deadline, and it cascades to the
+ * lower levels as time advances, such that inserting, cancelling and
+ * expiring an entry take constant time. Entries beyond the span of the wheel
+ * wait in an overflow list until the top level wraps around.
+ *
+ * The entries are stored in preallocated primitive arrays, linked by their
+ * index, and the wheel only allocates when it has to grow beyond its current
+ * capacity. An entry expires on the first [[advance]] to a time at or after
+ * its deadline rounded up to the resolution, and the expired entries are
+ * returned in order of expiration.
+ *
+ * The wheel starts at the time of the first call to [[advance]]. This class
+ * is not thread-safe.
+ */
+class HierarchicalTimingWheel[T](initialCapacity: Int, resolution: Long,
+                                 levels: Int = 4) {
+
+    import HierarchicalTimingWheel._
+
+    require(resolution > 0, "The resolution must be positive")
+    require(levels > 0 && levels * SlotBits < 63,
+            s"The number of levels must be between 1 and ${62 / SlotBits}")
+
+    private val span = 1L << (SlotBits * levels)
+    private val wheelSlots = levels * SlotCount
+    private val Ready = wheelSlots
+    private val Overflow = wheelSlots + 1
+
+    // The heads and tails of the slot lists, followed by the lists of the
+    // expired and the overflow entries.
+    private val heads = new Array[Int](wheelSlots + 2)
+    private val tails = new Array[Int](wheelSlots + 2)
+    private val levelSizes = new Array[Int](levels)
+    private var overflowSize = 0
+    private var readySize = 0
+
+    private var nexts: Array[Int] = _
+    private var prevs: Array[Int] = _
+    private var lists: Array[Int] = _
+    private var generations: Array[Int] = _
+    private var deadlines: Array[Long] = _
+    private var values: Array[Long] = _
+    private var refs: Array[AnyRef] = _
+    private var freeHead = NoNode
+
+    private var entries = 0
+    private var current = 0L
+    private var started = false
+
+    {
+        Arrays.fill(heads, NoNode)
+        Arrays.fill(tails, NoNode)
+        grow(Math.max(initialCapacity, 1))
+    }
+
+    /** The number of scheduled entries, including the expired ones. */
+    def size: Int = entries
+
+    def isEmpty: Boolean = entries == 0
+
+    /** The number of expired entries that have not been removed. */
+    def expiredSize: Int = readySize
+
+    def hasExpired: Boolean = readySize > 0
+
+    /**
+     * Schedules an entry that expires at the given deadline, and returns a
+     * handle that can be used to cancel it.
+     */
+    def schedule(deadline: Long, value: Long, ref: T): Long = {
+        if (freeHead == NoNode) {
+            grow(nexts.length * 2)
+        }
+        val node = freeHead
+        freeHead = nexts(node)
+        deadlines(node) = deadline
+        values(node) = value
+        refs(node) = ref.asInstanceOf[AnyRef]
+        entries += 1
+        place(node)
+        (generations(node).toLong << 32) | node
+    }
+
+    /**
+     * Cancels the entry with the given handle, if it has not been removed,
+     * and returns whether the entry was cancelled.
+     */
+    def cancel(handle: Long): Boolean = {
+        val node = handle.toInt
+        if (handle < 0 || node >= lists.length || lists(node) == Free ||
+            generations(node) != (handle >>> 32).toInt) {
+            false
+        } else {
+            unlink(node)
+            release(node)
+            true
+        }
+    }
+
+    /**
+     * Advances the wheel to the given time, moving the entries whose
+     * deadline has elapsed to the expired list. The work is proportional to
+     * the number of entries that expire or cascade, and to the number of
+     * occupied slots crossed.
+     */
+    def advance(now: Long): Unit = {
+        val target = Math.floorDiv(now, resolution)
+        if (!started) {
+            started = true
+            current = target
+            reinsert(Overflow)
+            return
+        }
+        if (target <= current) {
+            return
+        }
+        if (target - current >= span || target - current < 0) {
+            current = target
+            var list = 0
+            while (list < wheelSlots) {
+                reinsert(list)
+                list += 1
+            }
+            reinsert(Overflow)
+            return
+        }
+        while (current < target) {
+            if (entries == readySize) {
+                current = target
+                return
+            }
+            // No entries are due before the next boundary of the lowest
+            // occupied level.
+            val level = lowestOccupiedLevel()
+            if (level > 0) {
+                val shift = SlotBits * level
+                val boundary = ((current >> shift) + 1) << shift
+                if (boundary - 1 >= target) {
+                    current = target
+                    return
+                }
+                current = boundary - 1
+            }
+            current += 1
+            cascade()
+            reinsert((current & SlotMask).toInt)
+        }
+    }
+
+    /** The value of the first expired entry. */
+    def expiredValue: Long = values(heads(Ready))
+
+    /** The reference of the first expired entry. */
+    def expiredRef: T = refs(heads(Ready)).asInstanceOf[T]
+
+    /** Removes the first expired entry. */
+    def removeExpired(): Unit = {
+        val node = heads(Ready)
+        if (node != NoNode) {
+            unlink(node)
+            release(node)
+        }
+    }
+
+    /**
+     * Advances the wheel to the given time, and removes up to
+     * `maxExpirations` expired entries, passing them to the handler. The
+     * remaining expired entries are returned by the following calls.
+     * Returns the number of entries passed to the handler.
+     */
+    def expire(now: Long, maxExpirations: Int, handler: Handler[T]): Int = {
+        advance(now)
+        var count = 0
+        while (count < maxExpirations && readySize > 0) {
+            val node = heads(Ready)
+            val value = values(node)
+            val ref = refs(node).asInstanceOf[T]
+            unlink(node)
+            release(node)
+            handler.expired(value, ref)
+            count += 1
+        }
+        count
+    }
+
+    /**
+     * Expires the entry with the earliest deadline that has not expired yet,
+     * with the precision of the slot that contains it, and returns whether
+     * there was such an entry. This allows evicting entries before their
+     * deadline.
+     */
+    def expireEarliest(): Boolean = {
+        if (entries == readySize) {
+            return false
+        }
+        var level = 0
+        while (level < levels) {
+            if (levelSizes(level) > 0) {
+                val shift = SlotBits * level
+                var index = ((current >> shift) & SlotMask).toInt + 1
+                while (index < SlotCount) {
+                    val node = heads(level * SlotCount + index)
+                    if (node != NoNode) {
+                        unlink(node)
+                        append(Ready, node)
+                        return true
+                    }
+                    index += 1
+                }
+            }
+            level += 1
+        }
+        val node = heads(Overflow)
+        unlink(node)
+        append(Ready, node)
+        true
+    }
+
+    private def lowestOccupiedLevel(): Int = {
+        var level = 0
+        while (level < levels && levelSizes(level) == 0) {
+            level += 1
+        }
+        level
+    }
+
+    /**
+     * Moves the entries of the higher levels whose period starts at the
+     * current tick to the lower levels, starting with the overflow list.
+     */
+    private def cascade(): Unit = {
+        if ((current & (span - 1)) == 0) {
+            reinsert(Overflow)
+        }
+        var level = levels - 1
+        while (level > 0) {
+            val shift = SlotBits * level
+            if ((current & ((1L << shift) - 1)) == 0) {
+                reinsert(level * SlotCount + ((current >> shift) & SlotMask).toInt)
+            }
+            level -= 1
+        }
+    }
+
+    private def tickOf(deadline: Long): Long = {
+        val tick = Math.floorDiv(deadline, resolution)
+        if (Math.floorMod(deadline, resolution) == 0) tick else tick + 1
+    }
+
+    private def place(node: Int): Unit = {
+        if (!started) {
+            append(Overflow, node)
+            return
+        }
+        val tick = tickOf(deadlines(node))
+        if (tick <= current) {
+            append(Ready, node)
+            return
+        }
+        var level = 0
+        var shift = SlotBits
+        while (level < levels && (tick >> shift) != (current >> shift)) {
+            level += 1
+            shift += SlotBits
+        }
+        if (level == levels) {
+            append(Overflow, node)
+        } else {
+            val index = ((tick >> (shift - SlotBits)) & SlotMask).toInt
+            append(level * SlotCount + index, node)
+        }
+    }
+
+    private def reinsert(list: Int): Unit = {
+        var node = heads(list)
+        if (node == NoNode) {
+            return
+        }
+        heads(list) = NoNode
+        tails(list) = NoNode
+        while (node != NoNode) {
+            val next = nexts(node)
+            resize(list, -1)
+            place(node)
+            node = next
+        }
+    }
+
+    private def append(list: Int, node: Int): Unit = {
+        val tail = tails(list)
+        lists(node) = list
+        prevs(node) = tail
+        nexts(node) = NoNode
+        if (tail == NoNode) heads(list) = node
+        else nexts(tail) = node
+        tails(list) = node
+        resize(list, 1)
+    }
+
+    private def unlink(node: Int): Unit = {
+        val list = lists(node)
+        val prev = prevs(node)
+        val next = nexts(node)
+        if (prev == NoNode) heads(list) = next
+        else nexts(prev) = next
+        if (next == NoNode) tails(list) = prev
+        else prevs(next) = prev
+        resize(list, -1)
+    }
+
+    private def resize(list: Int, delta: Int): Unit = {
+        if (list == Ready) readySize += delta
+        else if (list == Overflow) overflowSize += delta
+        else levelSizes(list / SlotCount) += delta
+    }
+
+    private def release(node: Int): Unit = {
+        lists(node) = Free
+        refs(node) = null
+        generations(node) = (generations(node) + 1) & Int.MaxValue
+        nexts(node) = freeHead
+        freeHead = node
+        entries -= 1
+    }
+
+    private def grow(capacity: Int): Unit = {
+        val from = if (nexts eq null) 0 else nexts.length
+        if (nexts eq null) {
+            nexts = new Array[Int](capacity)
+            prevs = new Array[Int](capacity)
+            lists = new Array[Int](capacity)
+            generations = new Array[Int](capacity)
+            deadlines = new Array[Long](capacity)
+            values = new Array[Long](capacity)
+            refs = new Array[AnyRef](capacity)
+        } else {
+            nexts = Arrays.copyOf(nexts, capacity)
+            prevs = Arrays.copyOf(prevs, capacity)
+            lists = Arrays.copyOf(lists, capacity)
+            generations = Arrays.copyOf(generations, capacity)
+            deadlines = Arrays.copyOf(deadlines, capacity)
+            values = Arrays.copyOf(values, capacity)
+            refs = Arrays.copyOf(refs, capacity)
+        }
+        var node = capacity - 1
+        while (node >= from) {
+            lists(node) = Free
+            nexts(node) = freeHead
+            freeHead = node
+            node -= 1
+        }
+    }
+
+}
@@ -98,8 +98,21 @@ trait TimedExpirationMap[K <: AnyRef, V >: Null] {
     }
 }
 
+object OnHeapTimedExpirationMap {
+    private final val InitialCapacity = 1024
+}
+
+/**
+ * An on-heap [[TimedExpirationMap]]. The idle entries are indexed in a timing
+ * wheel with a resolution of one millisecond, and every call to
+ * obliterateIdleEntries() expires at most `maxExpirations` entries, leaving
+ * the rest for the following calls.
+ */
 final class OnHeapTimedExpirationMap[K <: AnyRef, V >: Null]
-    (log: Logger, expirationFor: K => Duration) extends TimedExpirationMap[K, V] {
+    (log: Logger, expirationFor: K => Duration,
+     maxExpirations: Int = Int.MaxValue) extends TimedExpirationMap[K, V] {
+
+    import OnHeapTimedExpirationMap._
 
     case class Metadata(var value: V, refCount: AtomicInteger, var expiration: Long)
 
@@ -110,16 +123,20 @@ final class OnHeapTimedExpirationMap[K <: AnyRef, V >: Null]
      * Track entries that need to be deleted and the time at which they
      * should be deleted.
      *
-     * A queue provides traversal using insertion order. Expiring entries means
-     * iterating the queue until an non-expired time is found. When an entry is
-     * taken from the queue, the canonical up-to-date expiration time is found
-     * in the ref count map. The queue is just a flag to say "check this entry,
-     * it's probably expired".
+     * The unref() callers offer the entries to the scheduled queue, and the
+     * callers of obliterateIdleEntries() move them to the expiring timing
+     * wheel, which is not thread-safe and is guarded by the lock of the
+     * wheel. Expiring entries means
+     * advancing the wheel and taking the expired entries. When an entry is
+     * expired by the wheel, the canonical up-to-date expiration time is found
+     * in the ref count map. The wheel is just a flag to say "check this
+     * entry, it's probably expired".
      *
-     * An entry will only be present in this queue if it is also present
-     * in the refCountMap.
+     * An entry will only be present in the queue or the wheel if it is also
+     * present in the refCountMap.
      */
-    private val expiring = new ConcurrentHashMap[Long, ConcurrentLinkedQueue[(K, Long)]]()
+    private val scheduled = new ConcurrentLinkedQueue[(K, Long)]()
+    private val expiring = new HierarchicalTimingWheel[K](InitialCapacity, 1L)
 
     private def tryIncIfGreaterThan(atomic: AtomicInteger, threshold: Int): Int = {
         do {
@@ -247,7 +264,7 @@ final class OnHeapTimedExpirationMap[K <: AnyRef, V >: Null]
                     logger.debug(log.marker, s"Scheduling removal of $key")
                     val expirationPeriod = expirationFor(key).toMillis
                     m.expiration = currentTimeMillis + expirationPeriod
-                    getExpirationQueueFor(expirationPeriod).offer((key, m.expiration))
+                    scheduled.offer((key, m.expiration))
                 } else if (newVal < 0) {
                     logger.warn(log.marker,
                                 s"Decrement a ref count past 0 for $key")
@@ -257,62 +274,49 @@ final class OnHeapTimedExpirationMap[K <: AnyRef, V >: Null]
                 value
         }
 
-    private def getExpirationQueueFor(expirationPeriod: Long) = {
-        var expirationQ = expiring.get(expirationPeriod)
-        if (expirationQ eq null) {
-            expirationQ = new ConcurrentLinkedQueue[(K, Long)]()
-            val oldQ = expiring.putIfAbsent(expirationPeriod, expirationQ)
-            if (oldQ ne null)
-                expirationQ = oldQ
-        }
-        expirationQ
-    }
-
-
     /**
      * Cleans up resources that have had their reference count at 0 for longer
-     * than the configured expiration.
-     *
-     * WARNING: This method is not thread-safe for multiple callers.
+     * than the configured expiration. Concurrent callers are serialized.
      */
     override def obliterateIdleEntries[U](currentTimeMillis: Long): Unit =
         obliterateIdleEntries(currentTimeMillis, (), identityReducer)
 
     override def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
-                                          reducer: Reducer[K, V, U]): U = {
-        var acc = seed
-        val it = expiring.elements()
-        while (it.hasMoreElements) {
-            acc = obliterateIdleEntries(
-                it.nextElement(), currentTimeMillis, acc, reducer)
+                                          reducer: Reducer[K, V, U]): U =
+        expiring.synchronized { expire(currentTimeMillis, seed, reducer) }
+
+    private def expire[U](currentTimeMillis: Long, seed: U,
+                          reducer: Reducer[K, V, U]): U = {
+        var pair = scheduled.poll()
+        while (pair ne null) {
+            expiring.schedule(pair._2, 0L, pair._1)
+            pair = scheduled.poll()
         }
-        acc
-    }
+        expiring.advance(currentTimeMillis)
 
-    private def obliterateIdleEntries[U](
-            expirationQ: ConcurrentLinkedQueue[(K, Long)],
-            currentTimeMillis: Long,
-            seed: U,
-            reducer: Reducer[K, V, U]): U = {
         var acc = seed
-        while (true) {
-            val pair = expirationQ.peek()
-            if ((pair eq null) || (pair._2 > currentTimeMillis))
-                return acc
-
-            val metadata = refCountMap.get(pair._1)
+        var expired = 0
+        while (expired < maxExpirations && expiring.hasExpired) {
+            val key = expiring.expiredRef
+            expiring.removeExpired()
+            val metadata = refCountMap.get(key)
 
             if (metadata != null &&
                 metadata.expiration <= currentTimeMillis &&
                 metadata.refCount.compareAndSet(0, -1)) {
 
-                logger.debug(log.marker, s"Forgetting entry ${pair._1}")
+                logger.debug(log.marker, s"Forgetting entry $key")
                 /* The following operations are precisely ordered as explained
                  * in the header. */
-                acc = reducer(acc, pair._1, metadata.value)
-                refCountMap.remove(pair._1)
+                acc = reducer(acc, key, metadata.value)
+                refCountMap.remove(key)
+            } else if (metadata != null &&
+                       metadata.expiration > currentTimeMillis &&
+                       metadata.refCount.get == 0) {
+                // The wheel was advanced by a caller with a later time.
+                expiring.schedule(metadata.expiration, 0L, key)
             }
-            expirationQ.poll()
+            expired += 1
         }
         acc
     }
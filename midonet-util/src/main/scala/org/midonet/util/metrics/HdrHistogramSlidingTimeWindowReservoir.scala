@@ -33,10 +33,16 @@ import org.midonet.Util
  * HdrHistogram recorder. When reading the latency stats, the values from
  * the last N buckets are returned, where N is the number of buckets needed
  * to cover the time window.
+ * The memory used by each bucket grows with the highest trackable value and
+ * exponentially with the number of significant digits, such that reservoirs
+ * created in large numbers should lower their precision. Values above the
+ * highest trackable value are recorded as the highest trackable value.
  */
 class HdrHistogramSlidingTimeWindowReservoir(window: Long, unit: TimeUnit,
                                              stepLength: Long, stepUnit: TimeUnit,
-                                             clock: Clock)
+                                             clock: Clock,
+                                             highestTrackableValue: Long = 3600000000L,
+                                             significantDigits: Int = 3)
         extends Reservoir {
     val stepNanos = Util.findPreviousPositivePowerOfTwo(
         TimeUnit.NANOSECONDS.convert(stepLength, stepUnit))
@@ -48,14 +54,14 @@ class HdrHistogramSlidingTimeWindowReservoir(window: Long, unit: TimeUnit,
 
     val bucketsMask = buckets - 1
     val measurements = new Array[Histogram](buckets.toInt)
-    val recorder = new Recorder(3600000000L, 3)
+    val recorder = new Recorder(highestTrackableValue, significantDigits)
     var lastTimeSlot = 0L
     val snapshotLock = new ReentrantLock()
 
     resetBuckets
 
-    val snapshotHistogram = new Histogram(3600000000L, 3)
-    val tmpHistogram = new Histogram(3600000000L, 3)
+    val snapshotHistogram = new Histogram(highestTrackableValue, significantDigits)
+    val tmpHistogram = new Histogram(highestTrackableValue, significantDigits)
     val snapshot = new Snapshot() {
         def getValue(quantile: Double): Double =
             snapshotHistogram.getValueAtPercentile(quantile)
@@ -92,7 +98,8 @@ class HdrHistogramSlidingTimeWindowReservoir(window: Long, unit: TimeUnit,
 
     override def update(value: Long): Unit = {
         val currentTimeSlot = clock.getTick() >> stepShift
-        getCurrentRecorder(currentTimeSlot).recordValue(value)
+        getCurrentRecorder(currentTimeSlot).recordValue(
+            Math.min(value, highestTrackableValue))
     }
 
     override def getSnapshot: Snapshot = {
@@ -156,7 +163,7 @@ class HdrHistogramSlidingTimeWindowReservoir(window: Long, unit: TimeUnit,
         var i = 0
         while (i < buckets) {
             if (measurements(i) == null) {
-                measurements(i) = new Histogram(3600000000L, 3)
+                measurements(i) = new Histogram(highestTrackableValue, significantDigits)
             }
             measurements(i).reset()
             i += 1
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.packets;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares reading the headers of an upcall frame by deserializing the
+ * Ethernet object tree and by wrapping the frame with a {@link HeaderView}.
+ * Run with the GC profiler (-prof gc) to compare the allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderViewBenchmark {
+
+    @Param({"64", "1500"})
+    public int frameSize;
+
+    private byte[] frame;
+    private final HeaderView view = new HeaderView();
+
+    @Setup
+    public void setup() {
+        TCP tcp = new TCP();
+        tcp.setSourcePort(10001);
+        tcp.setDestinationPort(80);
+        tcp.setPayload(new Data(new byte[frameSize - 54]));
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress(0x0a000001);
+        ip.setDestinationAddress(0x0a000002);
+        ip.setProtocol(TCP.PROTOCOL_NUMBER);
+        ip.setPayload(tcp);
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(MAC.random());
+        eth.setDestinationMACAddress(MAC.random());
+        eth.setEtherType(IPv4.ETHERTYPE);
+        eth.setPayload(ip);
+        frame = eth.serialize();
+    }
+
+    @Benchmark
+    public void deserialize(Blackhole bh) throws MalformedPacketException {
+        Ethernet eth = new Ethernet();
+        eth.deserialize(ByteBuffer.wrap(frame));
+        IPv4 ip = (IPv4) eth.getPayload();
+        TCP tcp = (TCP) ip.getPayload();
+        bh.consume(ip.getSourceAddress());
+        bh.consume(ip.getDestinationAddress());
+        bh.consume(tcp.getSourcePort());
+        bh.consume(tcp.getDestinationPort());
+    }
+
+    @Benchmark
+    public void view(Blackhole bh) {
+        view.wrap(frame);
+        if (view.isTcp()) {
+            bh.consume(view.ipSource());
+            bh.consume(view.ipDestination());
+            bh.consume(view.sourcePort());
+            bh.consume(view.destinationPort());
+        }
+    }
+}
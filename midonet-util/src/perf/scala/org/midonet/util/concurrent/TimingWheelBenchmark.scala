@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.util.ArrayDeque
+import java.util.concurrent.{ConcurrentLinkedQueue, TimeUnit}
+
+import scala.collection.mutable
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+object TimingWheelBenchmark {
+
+    final val Types = 4
+    final val Step = TimeUnit.MICROSECONDS.toNanos(1)
+
+    /** The flow expiration queue replaced by the timing wheel. */
+    class DequeExpirationQueue(size: Int) {
+        private val expiries = new ArrayDeque[Long](size)
+        private val ids = new ArrayDeque[Long](size)
+
+        def empty(): Boolean = expiries.size() == 0
+        def peekExpiry(): Long = expiries.peek()
+        def removeId(): Long = {
+            expiries.removeFirst()
+            ids.removeFirst()
+        }
+        def add(id: Long, expiry: Long): Unit = {
+            expiries.add(expiry)
+            ids.add(id)
+        }
+    }
+}
+
+/**
+ * Compares the [[HierarchicalTimingWheel]] with the queues it replaces: the
+ * flow expiration queues, the concurrent queues of the timed expiration map
+ * and the list of the waiting room. Every operation adds an entry with one
+ * of four expiration times, advances the time and expires the elapsed
+ * entries, keeping about `entries` entries in the structure.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class TimingWheelBenchmark {
+
+    import TimingWheelBenchmark._
+
+    @Param(Array("10000", "1000000"))
+    var entries: Int = _
+
+    private val durations = new Array[Long](Types)
+    private var now = 0L
+    private var counter = 0L
+
+    private var dequeQueues: Array[DequeExpirationQueue] = _
+    private var linkedQueues: Array[ConcurrentLinkedQueue[(Long, Long)]] = _
+    private var listBuffer: mutable.ListBuffer[(Long, Long)] = _
+    private var wheel: HierarchicalTimingWheel[AnyRef] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        for (i <- 0 until Types) {
+            durations(i) = entries * Step * 2 * (i + 1) / (Types + 1)
+        }
+        dequeQueues = Array.fill(Types)(new DequeExpirationQueue(entries))
+        linkedQueues =
+            Array.fill(Types)(new ConcurrentLinkedQueue[(Long, Long)]())
+        listBuffer = new mutable.ListBuffer[(Long, Long)]
+        wheel = new HierarchicalTimingWheel[AnyRef](entries, Step)
+
+        // Prefills the structures with entries expiring over the next
+        // expiration period of their type.
+        while (counter < entries) {
+            val t = (counter % Types).toInt
+            val deadline = now + durations(t) * counter / entries
+            dequeQueues(t).add(counter, deadline)
+            linkedQueues(t).offer((counter, deadline))
+            listBuffer += ((counter, now + durations(0) * counter / entries))
+            wheel.schedule(deadline, counter, null)
+            counter += 1
+        }
+    }
+
+    private def next(): Int = {
+        now += Step
+        counter += 1
+        (counter % Types).toInt
+    }
+
+    @Benchmark
+    def expirationQueues(bh: Blackhole): Unit = {
+        val t = next()
+        dequeQueues(t).add(counter, now + durations(t))
+        var i = 0
+        while (i < Types) {
+            val queue = dequeQueues(i)
+            while (!queue.empty() && queue.peekExpiry() <= now) {
+                bh.consume(queue.removeId())
+            }
+            i += 1
+        }
+    }
+
+    @Benchmark
+    def concurrentQueues(bh: Blackhole): Unit = {
+        val t = next()
+        linkedQueues(t).offer((counter, now + durations(t)))
+        var i = 0
+        while (i < Types) {
+            val queue = linkedQueues(i)
+            var pair = queue.peek()
+            while ((pair ne null) && pair._2 <= now) {
+                bh.consume(queue.poll()._1)
+                pair = queue.peek()
+            }
+            i += 1
+        }
+    }
+
+    @Benchmark
+    def waitingRoomList(bh: Blackhole): Unit = {
+        next()
+        listBuffer += ((counter, now + durations(0)))
+        while (listBuffer.nonEmpty && listBuffer.head._2 <= now) {
+            bh.consume(listBuffer.remove(0)._1)
+        }
+    }
+
+    @Benchmark
+    def timingWheel(bh: Blackhole): Unit = {
+        val t = next()
+        wheel.schedule(now + durations(t), counter, null)
+        wheel.advance(now)
+        while (wheel.hasExpired) {
+            bh.consume(wheel.expiredValue)
+            wheel.removeExpired()
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.packets;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class TestHeaderView {
+
+    private static final MAC SRC_MAC = MAC.fromString("02:00:00:00:00:01");
+    private static final MAC DST_MAC = MAC.fromString("02:00:00:00:00:02");
+    private static final int SRC_IP = 0x0a000001;
+    private static final int DST_IP = 0x0a000002;
+
+    private static TCP tcp(byte[] options) {
+        TCP tcp = new TCP();
+        tcp.setSourcePort(10001);
+        tcp.setDestinationPort(80);
+        tcp.setFlags(Arrays.asList(TCP.Flag.Syn));
+        tcp.setOptions(options);
+        tcp.setPayload(new Data(new byte[] { 1, 2, 3 }));
+        return tcp;
+    }
+
+    private static Ethernet frame(IPacket transport, byte protocol) {
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress(SRC_IP);
+        ip.setDestinationAddress(DST_IP);
+        ip.setTtl((byte) 64);
+        ip.setProtocol(protocol);
+        ip.setPayload(transport);
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(SRC_MAC);
+        eth.setDestinationMACAddress(DST_MAC);
+        eth.setEtherType(IPv4.ETHERTYPE);
+        eth.setPayload(ip);
+        return eth;
+    }
+
+    @Test
+    public void testTcpHeaders() {
+        byte[] data = frame(tcp(null), TCP.PROTOCOL_NUMBER).serialize();
+        HeaderView view = new HeaderView().wrap(data);
+
+        assertThat(view.isValid(), is(true));
+        assertThat(view.etherType(), is(IPv4.ETHERTYPE));
+        assertThat(view.vlanCount(), is(0));
+        assertThat(view.isIPv4(), is(true));
+        assertThat(view.isTcp(), is(true));
+        assertThat(view.isUdp(), is(false));
+        assertThat(view.ipSource(), is(SRC_IP));
+        assertThat(view.ipDestination(), is(DST_IP));
+        assertThat(view.ipTtl(), is((byte) 64));
+        assertThat(view.sourcePort(), is(10001));
+        assertThat(view.destinationPort(), is(80));
+        assertThat(view.isTcpSyn(), is(true));
+        assertThat(view.tcpMssOffset(), is(-1));
+        assertThat(view.encapsulatedFrameOffset(), is(-1));
+    }
+
+    @Test
+    public void testVlanTags() {
+        Ethernet eth = frame(tcp(null), TCP.PROTOCOL_NUMBER);
+        eth.appendVlanID((short) 10);
+        eth.appendVlanID((short) 20);
+        HeaderView view = new HeaderView().wrap(eth.serialize());
+
+        assertThat(view.vlanCount(), is(2));
+        assertThat(view.vlanId(0), is((short) 10));
+        assertThat(view.vlanId(1), is((short) 20));
+        assertThat(view.etherType(), is(IPv4.ETHERTYPE));
+        assertThat(view.isTcp(), is(true));
+    }
+
+    @Test
+    public void testMalformedFrames() throws Exception {
+        HeaderView view = new HeaderView();
+        assertThat(view.wrap(new byte[10]).isValid(), is(false));
+
+        Ethernet eth = frame(tcp(null), TCP.PROTOCOL_NUMBER);
+        eth.appendVlanID((short) 10);
+        byte[] data = eth.serialize();
+        assertThat(view.wrap(data, 0, 16).isValid(), is(false));
+
+        // A frame with a valid Ethernet header and a truncated IPv4 header.
+        assertThat(view.wrap(data, 0, 24).isValid(), is(true));
+        assertThat(view.isIPv4(), is(false));
+        new Ethernet().deserialize(ByteBuffer.wrap(data, 0, 24));
+    }
+
+    @Test
+    public void testVxlanEncapsulation() {
+        Ethernet inner = frame(tcp(null), TCP.PROTOCOL_NUMBER);
+        VXLAN vxlan = new VXLAN();
+        vxlan.setVni(5);
+        vxlan.setPayload(inner);
+        UDP udp = new UDP();
+        udp.setSourcePort(30000);
+        udp.setDestinationPort(UDP.VXLAN);
+        udp.setPayload(vxlan);
+        byte[] data = frame(udp, UDP.PROTOCOL_NUMBER).serialize();
+
+        HeaderView view = new HeaderView().wrap(data);
+        assertThat(view.isUdp(), is(true));
+        int offset = view.encapsulatedFrameOffset();
+        assertThat(offset, is(14 + 20 + 8 + 8));
+
+        view.wrap(data, offset, data.length - offset);
+        assertThat(view.isTcp(), is(true));
+        assertThat(view.destinationPort(), is(80));
+    }
+
+    @Test
+    public void testSetTcpMss() {
+        // The NOP aligns the MSS value at an odd offset.
+        byte[] options = { 1, 2, 4, 0x05, (byte) 0xb4, 1, 1, 0 };
+        byte[] data = frame(tcp(options), TCP.PROTOCOL_NUMBER).serialize();
+        HeaderView view = new HeaderView().wrap(data);
+        int tcpOffset = 14 + 20;
+        setChecksum(data, tcpOffset);
+
+        assertThat(view.tcpMss(), is(1460));
+        assertThat(view.setTcpMss(1400), is(true));
+        assertThat(view.tcpMss(), is(1400));
+        assertThat(checksum(data, tcpOffset), is(0));
+
+        view.setTcpMss(0xfff0);
+        assertThat(view.tcpMss(), is(0xfff0));
+        assertThat(checksum(data, tcpOffset), is(0));
+    }
+
+    @Test
+    public void testSetTcpMssWithoutOption() {
+        byte[] options = { 1, 1, 1, 0 };
+        byte[] data = frame(tcp(options), TCP.PROTOCOL_NUMBER).serialize();
+        byte[] copy = data.clone();
+
+        assertThat(new HeaderView().wrap(data).setTcpMss(1400), is(false));
+        assertThat(data, is(copy));
+    }
+
+    /** Computes the checksum of the TCP segment, including the pseudo
+     * header, which is zero for a segment with a correct checksum. */
+    private static int checksum(byte[] data, int offset) {
+        int length = data.length - offset;
+        int sum = ((SRC_IP >>> 16) + (SRC_IP & 0xffff) +
+                   (DST_IP >>> 16) + (DST_IP & 0xffff) +
+                   TCP.PROTOCOL_NUMBER + length);
+        for (int i = 0; i < length; i += 2) {
+            int hi = data[offset + i] & 0xff;
+            int lo = (i + 1 < length) ? data[offset + i + 1] & 0xff : 0;
+            sum += (hi << 8) | lo;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return ~sum & 0xffff;
+    }
+
+    private static void setChecksum(byte[] data, int offset) {
+        data[offset + 16] = 0;
+        data[offset + 17] = 0;
+        int checksum = checksum(data, offset);
+        data[offset + 16] = (byte) (checksum >> 8);
+        data[offset + 17] = (byte) checksum;
+    }
+}
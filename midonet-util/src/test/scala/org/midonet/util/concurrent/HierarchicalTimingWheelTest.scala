@@ -0,0 +1,230 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.util.Random
+
+import scala.collection.mutable
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+@RunWith(classOf[JUnitRunner])
+class HierarchicalTimingWheelTest extends FeatureSpec with Matchers
+                                  with GivenWhenThen {
+
+    private def drain(wheel: HierarchicalTimingWheel[String]): Seq[Long] = {
+        val values = new mutable.ArrayBuffer[Long]
+        while (wheel.hasExpired) {
+            values += wheel.expiredValue
+            wheel.removeExpired()
+        }
+        values
+    }
+
+    feature("Wheel expires the entries") {
+        scenario("An entry expires at its deadline") {
+            Given("A wheel with an entry")
+            val wheel = new HierarchicalTimingWheel[String](4, 1L)
+            wheel.advance(0L)
+            wheel.schedule(1000L, 1L, "a")
+
+            When("Advancing before the deadline")
+            wheel.advance(999L)
+
+            Then("The entry does not expire")
+            wheel.hasExpired shouldBe false
+            wheel.size shouldBe 1
+
+            When("Advancing to the deadline")
+            wheel.advance(1000L)
+
+            Then("The entry expires")
+            wheel.expiredSize shouldBe 1
+            wheel.expiredValue shouldBe 1L
+            wheel.expiredRef shouldBe "a"
+            wheel.removeExpired()
+            wheel.isEmpty shouldBe true
+        }
+
+        scenario("The deadline is rounded up to the resolution") {
+            Given("A wheel with a resolution of 10")
+            val wheel = new HierarchicalTimingWheel[String](4, 10L)
+            wheel.advance(0L)
+            wheel.schedule(15L, 1L, null)
+
+            Then("The entry expires at the next tick after the deadline")
+            wheel.advance(19L)
+            wheel.hasExpired shouldBe false
+            wheel.advance(20L)
+            drain(wheel) shouldBe Seq(1L)
+        }
+
+        scenario("Entries scheduled before the wheel starts") {
+            Given("A wheel with entries scheduled before starting")
+            val wheel = new HierarchicalTimingWheel[String](4, 1L)
+            wheel.schedule(100L, 1L, null)
+            wheel.schedule(200L, 2L, null)
+
+            When("Starting the wheel")
+            wheel.advance(150L)
+
+            Then("The elapsed entry expires")
+            drain(wheel) shouldBe Seq(1L)
+
+            And("The other entry expires later")
+            wheel.advance(200L)
+            drain(wheel) shouldBe Seq(2L)
+        }
+
+        scenario("Entries expire in order across all levels") {
+            Given("A wheel with two levels and random deadlines")
+            val wheel = new HierarchicalTimingWheel[String](16, 1L, levels = 2)
+            val random = new Random(0)
+            wheel.advance(0L)
+            val deadlines = for (value <- 0L until 5000L) yield {
+                val deadline = random.nextInt(1 << 20).toLong
+                wheel.schedule(deadline, value, null)
+                deadline
+            }
+
+            When("Advancing the wheel in random steps")
+            var now = 0L
+            val expired = new mutable.ArrayBuffer[Long]
+            while (now < (1 << 20)) {
+                now += random.nextInt(2000)
+                wheel.advance(now)
+                for (value <- drain(wheel)) {
+                    deadlines(value.toInt) should be <= now
+                    expired += value
+                }
+                expired.size shouldBe deadlines.count(_ <= now)
+            }
+
+            Then("The entries expired by deadline")
+            expired.map(deadlines(_)) shouldBe deadlines.sorted
+            wheel.isEmpty shouldBe true
+        }
+
+        scenario("Advancing beyond the span of the wheel") {
+            Given("A wheel with entries")
+            val wheel = new HierarchicalTimingWheel[String](4, 1L, levels = 1)
+            wheel.advance(0L)
+            wheel.schedule(10L, 1L, null)
+            wheel.schedule(1000L, 2L, null)
+            wheel.schedule(Long.MaxValue, 3L, null)
+
+            When("Advancing far in the future")
+            wheel.advance(Long.MaxValue - 1)
+
+            Then("The elapsed entries expire")
+            drain(wheel) shouldBe Seq(1L, 2L)
+            wheel.size shouldBe 1
+        }
+
+        scenario("Expirations are bounded") {
+            Given("A wheel with several elapsed entries")
+            val wheel = new HierarchicalTimingWheel[String](4, 1L)
+            wheel.advance(0L)
+            for (value <- 0L until 10L) {
+                wheel.schedule(value, value, value.toString)
+            }
+
+            When("Expiring with a bound")
+            val refs = new mutable.ArrayBuffer[String]
+            val handler = new HierarchicalTimingWheel.Handler[String] {
+                override def expired(value: Long, ref: String): Unit =
+                    refs += ref
+            }
+
+            Then("Only the bounded number of entries are expired")
+            wheel.expire(100L, 4, handler) shouldBe 4
+            refs shouldBe Seq("0", "1", "2", "3")
+
+            And("The remaining entries expire with the following calls")
+            wheel.expire(100L, 100, handler) shouldBe 6
+            wheel.isEmpty shouldBe true
+        }
+
+        scenario("The wheel grows beyond its capacity") {
+            Given("A wheel with a capacity of one entry")
+            val wheel = new HierarchicalTimingWheel[String](1, 1L)
+            wheel.advance(0L)
+
+            When("Scheduling more entries")
+            for (value <- 0L until 100L) {
+                wheel.schedule(value + 1, value, null)
+            }
+
+            Then("All entries expire")
+            wheel.size shouldBe 100
+            wheel.advance(100L)
+            drain(wheel) shouldBe (0L until 100L)
+        }
+    }
+
+    feature("Wheel cancels the entries") {
+        scenario("A cancelled entry does not expire") {
+            Given("A wheel with two entries")
+            val wheel = new HierarchicalTimingWheel[String](4, 1L)
+            wheel.advance(0L)
+            val handle = wheel.schedule(10L, 1L, null)
+            wheel.schedule(10L, 2L, null)
+
+            When("Cancelling an entry")
+            wheel.cancel(handle) shouldBe true
+
+            Then("Only the other entry expires")
+            wheel.size shouldBe 1
+            wheel.advance(10L)
+            drain(wheel) shouldBe Seq(2L)
+        }
+
+        scenario("A stale handle does not cancel a reused entry") {
+            Given("A wheel with an expired entry")
+            val wheel = new HierarchicalTimingWheel[String](1, 1L)
+            wheel.advance(0L)
+            val handle = wheel.schedule(0L, 1L, null)
+            wheel.removeExpired()
+
+            When("Scheduling an entry that reuses the storage")
+            wheel.schedule(10L, 2L, null)
+
+            Then("The stale handle does not cancel it")
+            wheel.cancel(handle) shouldBe false
+            wheel.cancel(-1L) shouldBe false
+            wheel.size shouldBe 1
+        }
+
+        scenario("The earliest entry is evicted") {
+            Given("A wheel with entries at several levels")
+            val wheel = new HierarchicalTimingWheel[String](4, 1L)
+            wheel.advance(0L)
+            wheel.schedule(100000L, 1L, null)
+            wheel.schedule(1000L, 2L, null)
+            wheel.schedule(10L, 3L, null)
+
+            Then("The entries are evicted by deadline")
+            wheel.expireEarliest() shouldBe true
+            wheel.expireEarliest() shouldBe true
+            wheel.expireEarliest() shouldBe true
+            wheel.expireEarliest() shouldBe false
+            drain(wheel) shouldBe Seq(3L, 2L, 1L)
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package org.midonet.util.concurrent
 
 import java.nio.charset.StandardCharsets.UTF_8
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.{CountDownLatch, ThreadLocalRandom}
 
 import scala.concurrent.duration._
@@ -220,6 +221,40 @@ class OnHeapTimedExpirationMapTest extends TimedExpirationMapTest {
     override val map = new OnHeapTimedExpirationMap[String, String](
         Logger(NOPLogger.NOP_LOGGER), expirationFor)
 
+    feature("Concurrent expirations") {
+        scenario("Several threads obliterate idle entries at once") {
+            val keys = 0 until 10000
+            val obliterated = new AtomicInteger
+            val reducer = new Reducer[String, String, Unit] {
+                override def apply(acc: Unit, key: String,
+                                   value: String): Unit = {
+                    obliterated.incrementAndGet()
+                }
+            }
+            keys foreach { i =>
+                map.putAndRef(i.toString, i.toString)
+                map.unref(i.toString, i % 100)
+            }
+
+            val latch = new CountDownLatch(1)
+            val threads = (0 until 4) map { t =>
+                new Thread() {
+                    override def run(): Unit = {
+                        latch.await()
+                        for (now <- 0L to 100L) {
+                            map.obliterateIdleEntries(now + t, (), reducer)
+                        }
+                    }
+                }
+            }
+            threads foreach (_.start())
+            latch.countDown()
+            threads foreach (_.join())
+
+            obliterated.get shouldBe keys.size
+            keys foreach { i => map.get(i.toString) shouldBe null }
+        }
+    }
 }
 
 class OffHeapTimedExpirationMapTest extends TimedExpirationMapTest {
@@ -96,5 +96,21 @@ class HdrHistogramSlidingTimeWindowReservoirTest extends FeatureSpec with Matche
             snap.getMax shouldBe 0
             snap.getMin shouldBe 0
         }
+
+        scenario("Low precision with clamped values") {
+            val clock = new TestClock()
+            val reservoir = new HdrHistogramSlidingTimeWindowReservoir(
+                1, TimeUnit.MINUTES, 1, TimeUnit.MINUTES, clock,
+                highestTrackableValue = 1000, significantDigits = 1)
+
+            clock.nanoTime = 1
+            reservoir.update(100)
+            reservoir.update(100000)
+
+            val snap = reservoir.getSnapshot()
+            snap.size shouldBe 2
+            snap.getMin shouldBe 100
+            snap.getMax should (be >= 1000L and be < 1100L)
+        }
     }
 }
@@ -15,18 +15,26 @@
  */
 package org.midonet.odp;
 
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.MalformedPacketException;
 
 /**
  * An abstraction over the Ovs kernel datapath Packet entity. Contains an
  * {@link FlowMatch} object and a <code>byte[] data</code> member when triggered
  * via a kernel notification.
  *
+ * A packet received from the datapath keeps the serialized frame, and the
+ * {@link Ethernet} object tree is only materialized the first time it is
+ * requested via {@link #getEthernet()}. Once materialized, the object tree
+ * becomes the authoritative copy of the packet, such that any changes made to
+ * it are reflected in the data sent back to the datapath.
+ *
  * @see FlowMatch
  */
 public class Packet {
@@ -42,6 +50,7 @@ public class Packet {
     private Long userData;
     private Reason reason;
     private Ethernet eth;
+    private byte[] data;
     public final int packetLen;
 
     // user field used by midolman packet pipeline to track time statistics,
@@ -58,16 +67,46 @@ public class Packet {
         this(eth, match, (eth != null) ? eth.length() : 0);
     }
 
+    /**
+     * Creates a packet from a serialized frame, whose Ethernet header must
+     * have already been validated, for instance with a
+     * {@link org.midonet.packets.HeaderView}.
+     */
+    public Packet(byte[] data, FlowMatch match) {
+        this.data = data;
+        this.match = match;
+        this.packetLen = data.length;
+    }
+
     public Ethernet getEthernet() {
+        if (eth == null && data != null) {
+            eth = deserialize(data);
+            data = null;
+        }
         return eth;
     }
 
     public void setEthernet(Ethernet eth) {
         this.eth = eth;
+        this.data = null;
     }
 
+    /**
+     * Indicates whether the packet data is held by an {@link Ethernet}
+     * object tree, rather than as the serialized frame received from the
+     * datapath.
+     */
+    public boolean isMaterialized() {
+        return data == null;
+    }
+
+    /**
+     * Returns the serialized frame. If the packet has not been materialized,
+     * this returns the frame received from the datapath without copying it,
+     * and therefore changes to the returned array modify the packet.
+     */
     public byte[] getData() {
-        return eth.serialize();
+        return (data != null) ? data : eth.serialize();
     }
 
     public FlowMatch getMatch() {
@@ -99,7 +138,7 @@ public class Packet {
         @SuppressWarnings("unchecked")
         Packet that = (Packet) o;
 
-        return Objects.equals(this.eth, that.eth)
+        return Objects.equals(this.getEthernet(), that.getEthernet())
             && Objects.equals(this.match, that.match)
             && Objects.equals(this.userData, that.userData)
             && (this.reason == that.reason);
@@ -107,7 +146,7 @@ public class Packet {
 
     @Override
     public int hashCode() {
-        int result = Objects.hashCode(eth);
+        int result = Objects.hashCode(getEthernet());
         result = 31 * result + Objects.hashCode(match);
         result = 31 * result + Objects.hashCode(userData);
         result = 31 * result + Objects.hashCode(reason);
@@ -117,10 +156,20 @@ public class Packet {
     @Override
     public String toString() {
         return "Packet{" +
-            "data=" + eth +
+            "data=" + ((data != null) ? deserialize(data) : eth) +
             ", match=" + match +
             ", userData=" + userData +
             ", reason=" + reason +
             '}';
     }
+
+    private static Ethernet deserialize(byte[] data) {
+        try {
+            Ethernet eth = new Ethernet();
+            eth.deserialize(ByteBuffer.wrap(data));
+            return eth;
+        } catch (MalformedPacketException e) {
+            throw new IllegalStateException("Malformed packet data", e);
+        }
+    }
 }
@@ -16,7 +16,6 @@
 package org.midonet.odp.protos;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -49,6 +48,8 @@ import org.midonet.odp.flows.FlowAction;
 import org.midonet.odp.flows.FlowKey;
 import org.midonet.odp.flows.FlowKeys;
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.HeaderView;
+import org.midonet.packets.MalformedPacketException;
 import org.midonet.util.BatchCollector;
 
 /**
@@ -76,21 +77,38 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
 
     static class PacketBuilder implements AttributeHandler {
         private ArrayList<FlowKey> keys = new ArrayList<>(16);
-        private Ethernet eth;
+        private final HeaderView view = new HeaderView();
+        private byte[] data;
         private Long userData;
-        private int packetLen = 0;
 
         public Packet buildFrom(ByteBuffer buf) {
             int datapathIndex = buf.getInt(); // ignored
             NetlinkMessage.scanAttributes(buf, this);
-            if (eth == null) {
+            if (data == null) {
                 keys.clear();
                 return null;
             }
-            FlowKeys.addUserspaceKeys(eth, keys);
-            Packet p = new Packet(eth, new FlowMatch(keys), packetLen);
+            // The Ethernet object tree is only materialized when it is needed
+            // to compute the userspace keys, that is for ICMP packets.
+            Packet p;
+            if (FlowKeys.needsUserspaceKeys(keys)) {
+                Ethernet eth = new Ethernet();
+                try {
+                    eth.deserialize(ByteBuffer.wrap(data));
+                } catch (MalformedPacketException e) {
+                    log.warn("Dropping malformed packet", e);
+                    data = null;
+                    keys.clear();
+                    userData = null;
+                    return null;
+                }
+                FlowKeys.addUserspaceKeys(eth, keys);
+                p = new Packet(eth, new FlowMatch(keys), data.length);
+            } else {
+                p = new Packet(data, new FlowMatch(keys));
+            }
             p.setUserData(userData);
-            eth = null;
+            data = null;
             keys.clear();
             userData = null;
             return p;
@@ -100,16 +118,12 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         public void use(ByteBuffer buffer, short id) {
             switch(NetlinkMessage.unnest(id)) {
                 case OpenVSwitch.Packet.Attr.Packet:
-                    ByteOrder originalOrder = buffer.order();
-                    try {
-                        eth = new Ethernet();
-                        packetLen = buffer.remaining();
-                        eth.deserialize(buffer);
-                    } catch (Exception e) {
-                        log.warn("Dropping malformed packet", e);
-                        this.eth = null;
-                    } finally {
-                        buffer.order(originalOrder);
+                    data = new byte[buffer.remaining()];
+                    buffer.get(data);
+                    if (!view.wrap(data).isValid()) {
+                        log.warn("Dropping malformed packet of {} bytes",
+                                 data.length);
+                        data = null;
                     }
                     break;
 
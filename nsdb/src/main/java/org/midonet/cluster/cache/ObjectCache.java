@@ -38,6 +38,7 @@ import com.google.protobuf.Message;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.zookeeper.KeeperException.NoNodeException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -136,6 +137,7 @@ public final class ObjectCache extends AbstractService {
 
         private final Map<String, ObjCache> objects;
         private boolean closing = false;
+        private boolean started = false;
 
         private final Subscriber<Set<String>> subscriber = new Subscriber<Set<String>>() {
             @Override
@@ -173,10 +175,31 @@ public final class ObjectCache extends AbstractService {
         }
 
         /**
-         * Starts the cache for this class.
+         * Starts the cache for this class. If the class was loaded in bulk,
+         * the cache is started when loaded, and calling this method again
+         * does not have any effect.
          */
-        void start() {
-            observable.subscribe(subscriber);
+        synchronized void start() {
+            if (!started) {
+                started = true;
+                observable.subscribe(subscriber);
+            }
+        }
+
+        /**
+         * Adds the objects loaded in bulk to the cache, such that they are
+         * included in the snapshots while their watchers are installed, and
+         * starts the cache for this class.
+         * @param loaded The loaded objects by identifier.
+         */
+        synchronized void preload(Map<String, TopologyLoader.LoadedObject> loaded) {
+            for (Map.Entry<String, TopologyLoader.LoadedObject> entry :
+                    loaded.entrySet()) {
+                if (!objects.containsKey(entry.getKey())) {
+                    add(entry.getKey(), entry.getValue());
+                }
+            }
+            start();
         }
 
         /**
@@ -233,7 +256,7 @@ public final class ObjectCache extends AbstractService {
             while (iterator.hasNext()) {
                 String id = iterator.next();
                 if (!objects.containsKey(id)) {
-                    add(id);
+                    add(id, null);
                 }
             }
         }
@@ -242,15 +265,16 @@ public final class ObjectCache extends AbstractService {
          * Adds a new object to the data. This method requires
          * synchronization.
          * @param id The object identifier.
+         * @param loaded The object loaded in bulk, if any.
          */
-        private void add(String id) {
+        private void add(String id, TopologyLoader.LoadedObject loaded) {
             try {
                 UUID uuid = UUID.fromString(id);
                 LOG.debug("Class {} object cache added object: {}",
                           clazz.getSimpleName(), uuid);
                 ObjCache cache =
                     new ObjCache(clazz, id, paths.objectPath(path, id),
-                                 uuid, serializer, this::remove);
+                                 uuid, serializer, loaded, this::remove);
                 // Do not add the cache to the map if already closed.
                 if (!cache.isClosed())
                     objects.put(id, cache);
@@ -306,7 +330,17 @@ public final class ObjectCache extends AbstractService {
 
             @Override
             public void onError(Throwable e) {
-                LOG.info("Error for object {}:{}", clazz.getSimpleName(), id, e);
+                if (e instanceof NoNodeException && data != null) {
+                    // The object loaded in bulk was deleted before installing
+                    // the watcher.
+                    LOG.debug("Object {}:{} deleted", clazz.getSimpleName(), id);
+                    deleted = true;
+                    data = null;
+                    notifyUpdate(ObjCache.this);
+                } else {
+                    LOG.info("Error for object {}:{}", clazz.getSimpleName(),
+                             id, e);
+                }
                 close();
             }
 
@@ -319,13 +353,20 @@ public final class ObjectCache extends AbstractService {
         };
 
         ObjCache(Class<?> clazz, String id, String path, UUID uuid,
-                 ObjectSerializer serializer, Action2<String, ObjCache> onClose) {
+                 ObjectSerializer serializer,
+                 @Nullable TopologyLoader.LoadedObject loaded,
+                 Action2<String, ObjCache> onClose) {
             this.clazz = clazz;
             this.id = id;
             this.uuid = uuid;
             this.serializer = serializer;
             this.onClose = onClose;
 
+            if (loaded != null) {
+                data = loaded.childData();
+                message = loaded.message();
+            }
+
             observable = NodeObservable.create(curator, path, metrics, true,
                                                asFunction(this::closeInternal));
             observable.subscribe(subscriber);
@@ -440,6 +481,10 @@ public final class ObjectCache extends AbstractService {
          * @param data The object data.
          */
         synchronized private void refresh(ChildData data) {
+            if (isSameVersion(this.data, data)) {
+                // The object was loaded in bulk and has not changed.
+                return;
+            }
             if (serializer != null && data.getData() != null) {
                 try {
                     message = serializer.convertTextToMessage(data.getData());
@@ -457,6 +502,7 @@ public final class ObjectCache extends AbstractService {
     private final CuratorFramework curator;
     private final ZoomPaths paths;
     private final StorageMetrics metrics;
+    private final TopologyLoader loader;
     private final Map<Class<?>, ClassCache> classes;
 
     private final SubscriptionList<ObjectNotification> subscribers =
@@ -481,13 +527,26 @@ public final class ObjectCache extends AbstractService {
     private final Observable<ObjectNotification> observable =
         Observable.create(subscribers);
 
-    @SuppressWarnings("unchecked")
     public ObjectCache(CuratorFramework curator,
                        ZoomPaths paths,
                        MetricRegistry metricRegistry) {
+        this(curator, paths, metricRegistry, null);
+    }
+
+    /**
+     * Creates an object cache that, when a loader is specified, loads all
+     * objects in bulk when started, before installing the watchers for each
+     * object.
+     */
+    @SuppressWarnings("unchecked")
+    public ObjectCache(CuratorFramework curator,
+                       ZoomPaths paths,
+                       MetricRegistry metricRegistry,
+                       @Nullable TopologyLoader loader) {
         this.curator = curator;
         this.paths = paths;
         this.metrics = new StorageMetrics(metricRegistry);
+        this.loader = loader;
 
         Map<Class<?>, ClassCache> classes = new HashMap<>(CLASSES.length);
         for (Class<?> clazz : CLASSES) {
@@ -518,6 +577,19 @@ public final class ObjectCache extends AbstractService {
     protected void doStart() {
         LOG.debug("Initializing NSDB object cache...");
 
+        if (loader != null) {
+            try {
+                loader.load(CLASSES, (clazz, objects) ->
+                    classes.get(clazz).preload(objects));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Interrupted while loading the NSDB objects");
+            } catch (Exception e) {
+                LOG.warn("Failed to load the NSDB objects in bulk: loading "
+                         + "the objects individually", e);
+            }
+        }
+
         for (Map.Entry<Class<?>, ClassCache> entry : classes.entrySet()) {
             LOG.debug("Subscribing to class {}", entry.getKey().getSimpleName());
             entry.getValue().start();
@@ -599,6 +671,16 @@ public final class ObjectCache extends AbstractService {
         child.onNext(snapshot);
     }
 
+    /**
+     * @return True if both node data have the same version.
+     */
+    private static boolean isSameVersion(@Nullable ChildData current,
+                                         ChildData data) {
+        return current != null && current.getStat() != null &&
+               data.getStat() != null &&
+               current.getStat().getMzxid() == data.getStat().getMzxid();
+    }
+
     /**
      * Converts an action to a Scala function.
      * @param action The action.
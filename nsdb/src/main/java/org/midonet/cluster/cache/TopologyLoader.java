@@ -0,0 +1,348 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.cache;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.Message;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads all objects of a set of NSDB classes in bulk. The loader pipelines
+ * asynchronous {@code getChildren} and {@code getData} requests across all
+ * classes, with a bounded number of requests in flight, and decodes the
+ * objects on a pool of worker threads instead of the Curator event thread,
+ * which would otherwise decode every object in sequence. Each class is handed
+ * to the {@link Listener} as soon as all its objects are decoded, such that
+ * the caller becomes ready incrementally per class.
+ *
+ * The loader does not install watchers: the object cache uses the loaded
+ * objects to serve snapshots while it installs its watchers.
+ */
+public final class TopologyLoader {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(TopologyLoader.class);
+
+    private static final long POLL_INTERVAL_MILLIS = 10;
+
+    /**
+     * Receives the objects of a class when the class is loaded. This method
+     * is called from the Curator event thread or from a loader thread.
+     */
+    public interface Listener {
+        void classLoaded(Class<?> clazz, Map<String, LoadedObject> objects);
+    }
+
+    /**
+     * An object loaded from NSDB: the node data and the decoded message,
+     * which is null if the object could not be decoded.
+     */
+    public static final class LoadedObject {
+
+        private final ChildData childData;
+        private final Message message;
+
+        LoadedObject(ChildData childData, @Nullable Message message) {
+            this.childData = childData;
+            this.message = message;
+        }
+
+        public ChildData childData() {
+            return childData;
+        }
+
+        @Nullable
+        public Message message() {
+            return message;
+        }
+    }
+
+    private final CuratorFramework curator;
+    private final ZoomPaths paths;
+    private final int maxInFlight;
+    private final int threads;
+
+    private volatile long loadedObjects = 0L;
+    private volatile long loadedBytes = 0L;
+    private volatile long loadNanos = 0L;
+
+    public TopologyLoader(CuratorFramework curator, ZoomPaths paths,
+                          int maxInFlight, int threads) {
+        if (maxInFlight <= 0 || threads <= 0) {
+            throw new IllegalArgumentException(
+                "The number of requests and threads must be positive");
+        }
+        this.curator = curator;
+        this.paths = paths;
+        this.maxInFlight = maxInFlight;
+        this.threads = threads;
+    }
+
+    /**
+     * @return The number of objects loaded by the last load.
+     */
+    public long loadedObjects() {
+        return loadedObjects;
+    }
+
+    /**
+     * @return The number of bytes loaded by the last load.
+     */
+    public long loadedBytes() {
+        return loadedBytes;
+    }
+
+    /**
+     * @return The duration of the last load in nanoseconds.
+     */
+    public long loadNanos() {
+        return loadNanos;
+    }
+
+    /**
+     * Loads all objects of the specified classes, and returns when all
+     * classes have been passed to the listener. The requests are issued from
+     * the calling thread.
+     * @throws IOException If a request fails.
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public void load(Class<?>[] classes, Listener listener)
+        throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Load load = new Load(classes, listener);
+        try {
+            load.run();
+        } finally {
+            load.decoders.shutdownNow();
+        }
+        loadNanos = System.nanoTime() - start;
+        loadedObjects = load.objects.get();
+        loadedBytes = load.bytes.get();
+        LOG.debug("Loaded {} objects with {} bytes in {} milliseconds",
+                  loadedObjects, loadedBytes,
+                  TimeUnit.NANOSECONDS.toMillis(loadNanos));
+    }
+
+    /**
+     * The state of a load: the requests waiting for a slot in the window of
+     * requests in flight, and the classes not yet loaded.
+     */
+    private final class Load {
+
+        private final Listener listener;
+        private final ClassLoad[] classes;
+        private final ExecutorService decoders;
+
+        private final Semaphore window = new Semaphore(maxInFlight);
+        private final BlockingQueue<Runnable> requests =
+            new LinkedBlockingQueue<>();
+        private final CountDownLatch pending;
+        private final AtomicReference<Throwable> failure =
+            new AtomicReference<>();
+
+        private final AtomicLong objects = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        Load(Class<?>[] classes, Listener listener) {
+            this.listener = listener;
+            this.classes = new ClassLoad[classes.length];
+            for (int index = 0; index < classes.length; index++) {
+                this.classes[index] = new ClassLoad(this, classes[index]);
+            }
+            pending = new CountDownLatch(classes.length);
+            decoders = Executors.newFixedThreadPool(
+                threads, new ThreadFactoryBuilder()
+                    .setNameFormat("topology-loader-%d")
+                    .setDaemon(true)
+                    .build());
+        }
+
+        /**
+         * Issues the requests while there are classes not yet loaded. A
+         * request is issued only when there is a slot in the window, and
+         * the slot is released by the request callback.
+         */
+        void run() throws IOException, InterruptedException {
+            for (ClassLoad load : classes) {
+                requests.add(load::listChildren);
+            }
+            while (pending.getCount() > 0 && failure.get() == null) {
+                Runnable request =
+                    requests.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (request != null) {
+                    window.acquire();
+                    try {
+                        request.run();
+                    } catch (Exception e) {
+                        window.release();
+                        fail(e);
+                    }
+                }
+            }
+            Throwable e = failure.get();
+            if (e != null) {
+                throw new IOException("Failed to load the NSDB objects", e);
+            }
+        }
+
+        void fail(Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    /**
+     * The load of an object class, which completes when all objects listed
+     * for the class are decoded or no longer exist.
+     */
+    private final class ClassLoad {
+
+        private final Load load;
+        private final Class<?> clazz;
+        private final String path;
+        private final ObjectSerializer serializer;
+
+        private final Map<String, LoadedObject> objects =
+            new ConcurrentHashMap<>();
+        private final AtomicInteger remaining = new AtomicInteger();
+
+        ClassLoad(Load load, Class<?> clazz) {
+            this.load = load;
+            this.clazz = clazz;
+            this.path = paths.objectClassPath(clazz);
+            this.serializer = ObjectMessaging.serializerOf(clazz);
+        }
+
+        void listChildren() {
+            try {
+                curator.getChildren()
+                       .inBackground((client, event) -> childrenListed(event))
+                       .forPath(path);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void getData(String id) {
+            String objectPath = paths.objectPath(path, id);
+            try {
+                curator.getData()
+                       .inBackground((client, event) -> dataLoaded(id, event))
+                       .forPath(objectPath);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void childrenListed(CuratorEvent event) {
+            load.window.release();
+            int code = event.getResultCode();
+            if (code == Code.NONODE.intValue()) {
+                complete();
+            } else if (code != Code.OK.intValue()) {
+                load.fail(KeeperException.create(Code.get(code), path));
+            } else {
+                List<String> children = event.getChildren();
+                remaining.set(children.size());
+                if (children.isEmpty()) {
+                    complete();
+                }
+                for (String id : children) {
+                    load.requests.add(() -> getData(id));
+                }
+            }
+        }
+
+        private void dataLoaded(String id, CuratorEvent event) {
+            load.window.release();
+            int code = event.getResultCode();
+            if (code == Code.NONODE.intValue()) {
+                // The object was deleted after listing the class.
+                objectDone();
+            } else if (code != Code.OK.intValue()) {
+                load.fail(KeeperException.create(Code.get(code),
+                                                 event.getPath()));
+            } else {
+                ChildData data = new ChildData(event.getPath(), event.getStat(),
+                                               event.getData());
+                try {
+                    load.decoders.execute(() -> decode(id, data));
+                } catch (RejectedExecutionException e) {
+                    // The load has failed or was interrupted.
+                }
+            }
+        }
+
+        private void decode(String id, ChildData data) {
+            Message message = null;
+            if (serializer != null && data.getData() != null) {
+                try {
+                    message = serializer.convertTextToMessage(data.getData());
+                } catch (IOException e) {
+                    LOG.warn("Failed to convert object {}:{} with data {}",
+                             clazz, id, new String(data.getData()), e);
+                }
+                load.bytes.addAndGet(data.getData().length);
+            }
+            objects.put(id, new LoadedObject(data, message));
+            load.objects.incrementAndGet();
+            objectDone();
+        }
+
+        private void objectDone() {
+            if (remaining.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            LOG.debug("Loaded {} objects of class {}", objects.size(),
+                      clazz.getSimpleName());
+            try {
+                load.listener.classLoaded(clazz, objects);
+            } catch (Throwable e) {
+                load.fail(e);
+            }
+            load.pending.countDown();
+        }
+    }
+
+}
@@ -22,4 +22,16 @@ public interface MeteringMXBean {
     FlowMeters[] getMeters();
     FlowMeters getConsolidatedMeters();
     String[] listMeters();
+
+    /**
+     * Returns the packet and byte counters of the flows matching the given
+     * rule, or zero if the rule has not been hit.
+     */
+    FlowStats getRuleCounter(String ruleId);
+
+    /**
+     * Returns the packet and byte counters of all rules hit by the flows of
+     * this agent, keyed by the rule identifier.
+     */
+    FlowMeters getRuleCounters();
 }
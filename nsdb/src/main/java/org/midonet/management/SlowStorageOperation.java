@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.management;
+
+import java.beans.ConstructorProperties;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A storage operation whose latency exceeded the slow operation threshold.
+ * The ZooKeeper transaction identifier is the modification zxid of the node,
+ * or -1 when not known.
+ */
+public final class SlowStorageOperation implements Serializable {
+
+    private final long timestamp;
+    private final String className;
+    private final String operation;
+    private final String path;
+    private final long zxid;
+    private final long latencyMicros;
+    private final int sizeBytes;
+
+    @ConstructorProperties({"timestamp", "className", "operation", "path",
+                            "zxid", "latencyMicros", "sizeBytes"})
+    public SlowStorageOperation(long timestamp, String className,
+                                String operation, String path, long zxid,
+                                long latencyMicros, int sizeBytes) {
+        this.timestamp = timestamp;
+        this.className = className;
+        this.operation = operation;
+        this.path = path;
+        this.zxid = zxid;
+        this.latencyMicros = latencyMicros;
+        this.sizeBytes = sizeBytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null) return false;
+        if (o == this) return true;
+        if (!(o instanceof SlowStorageOperation)) return false;
+        SlowStorageOperation that = (SlowStorageOperation)o;
+        return timestamp == that.timestamp &&
+               Objects.equals(className, that.className) &&
+               Objects.equals(operation, that.operation) &&
+               Objects.equals(path, that.path) &&
+               zxid == that.zxid &&
+               latencyMicros == that.latencyMicros &&
+               sizeBytes == that.sizeBytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(timestamp, className, operation, path, zxid,
+                            latencyMicros, sizeBytes);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getZxid() {
+        return zxid;
+    }
+
+    public long getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    public int getSizeBytes() {
+        return sizeBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SlowStorageOperation{" +
+            "timestamp=" + timestamp +
+            ", className=" + className +
+            ", operation=" + operation +
+            ", path=" + path +
+            ", zxid=" + zxid +
+            ", latencyMicros=" + latencyMicros +
+            ", sizeBytes=" + sizeBytes +
+            '}';
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.management;
+
+import java.beans.ConstructorProperties;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * The statistics of a storage operation for an object class. The latency
+ * and size percentiles are computed over the sliding time window of the
+ * storage metrics, while the count and total time are cumulative.
+ */
+public final class StorageOperationStats implements Serializable {
+
+    private final String className;
+    private final String operation;
+    private final long count;
+    private final long totalTimeMicros;
+    private final double meanLatencyMicros;
+    private final double p99LatencyMicros;
+    private final long maxLatencyMicros;
+    private final double meanSizeBytes;
+    private final long maxSizeBytes;
+
+    @ConstructorProperties({"className", "operation", "count",
+                            "totalTimeMicros", "meanLatencyMicros",
+                            "p99LatencyMicros", "maxLatencyMicros",
+                            "meanSizeBytes", "maxSizeBytes"})
+    public StorageOperationStats(String className, String operation,
+                                 long count, long totalTimeMicros,
+                                 double meanLatencyMicros,
+                                 double p99LatencyMicros,
+                                 long maxLatencyMicros,
+                                 double meanSizeBytes, long maxSizeBytes) {
+        this.className = className;
+        this.operation = operation;
+        this.count = count;
+        this.totalTimeMicros = totalTimeMicros;
+        this.meanLatencyMicros = meanLatencyMicros;
+        this.p99LatencyMicros = p99LatencyMicros;
+        this.maxLatencyMicros = maxLatencyMicros;
+        this.meanSizeBytes = meanSizeBytes;
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null) return false;
+        if (o == this) return true;
+        if (!(o instanceof StorageOperationStats)) return false;
+        StorageOperationStats that = (StorageOperationStats)o;
+        return Objects.equals(className, that.className) &&
+               Objects.equals(operation, that.operation) &&
+               count == that.count &&
+               totalTimeMicros == that.totalTimeMicros &&
+               meanLatencyMicros == that.meanLatencyMicros &&
+               p99LatencyMicros == that.p99LatencyMicros &&
+               maxLatencyMicros == that.maxLatencyMicros &&
+               meanSizeBytes == that.meanSizeBytes &&
+               maxSizeBytes == that.maxSizeBytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(className, operation, count, totalTimeMicros,
+                            meanLatencyMicros, p99LatencyMicros,
+                            maxLatencyMicros, meanSizeBytes, maxSizeBytes);
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalTimeMicros() {
+        return totalTimeMicros;
+    }
+
+    public double getMeanLatencyMicros() {
+        return meanLatencyMicros;
+    }
+
+    public double getP99LatencyMicros() {
+        return p99LatencyMicros;
+    }
+
+    public long getMaxLatencyMicros() {
+        return maxLatencyMicros;
+    }
+
+    public double getMeanSizeBytes() {
+        return meanSizeBytes;
+    }
+
+    public long getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "StorageOperationStats{" +
+            "className=" + className +
+            ", operation=" + operation +
+            ", count=" + count +
+            ", totalTimeMicros=" + totalTimeMicros +
+            ", meanLatencyMicros=" + meanLatencyMicros +
+            ", p99LatencyMicros=" + p99LatencyMicros +
+            ", maxLatencyMicros=" + maxLatencyMicros +
+            ", meanSizeBytes=" + meanSizeBytes +
+            ", maxSizeBytes=" + maxSizeBytes +
+            '}';
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.management;
+
+/**
+ * Exposes the latency and payload size of the NSDB storage operations per
+ * object class and operation type, measured over a sliding time window.
+ */
+public interface StorageOperationsMXBean {
+    String NAME = "org.midonet.nsdb:type=StorageOperations";
+
+    /**
+     * Returns the statistics of all storage operations, sorted by the total
+     * time spent in each operation, in descending order.
+     */
+    StorageOperationStats[] getOperations();
+
+    /**
+     * Returns the statistics of the given number of storage operations with
+     * the largest total time.
+     */
+    StorageOperationStats[] getTopOperations(int count);
+
+    /**
+     * Returns the most recent storage operations whose latency exceeded the
+     * slow operation threshold.
+     */
+    SlowStorageOperation[] getSlowOperations();
+}
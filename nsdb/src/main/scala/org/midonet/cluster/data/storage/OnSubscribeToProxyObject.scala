@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import java.util.UUID
+
+import scala.util.control.NonFatal
+
+import org.slf4j.LoggerFactory
+
+import rx.Observable.OnSubscribe
+import rx.{Observable, Subscriber}
+
+import org.midonet.cluster.data.ObjId
+import org.midonet.cluster.data.storage.metrics.StorageMetrics
+import org.midonet.cluster.rpc.State.ProxyResponse.Notify.Update
+import org.midonet.cluster.services.state.client.{ObjectSubscriptionKey, StateTableClient}
+
+object OnSubscribeToProxyObject {
+
+    private val Log = LoggerFactory.getLogger("org.midonet.nsdb.object-proxy")
+
+}
+
+/**
+  * Subscribes to an object through the state proxy, which watches the object
+  * node in the cluster on behalf of all agents. The subscriber receives the
+  * deserialized object for every change, completes when the object is deleted
+  * and receives a [[NotFoundException]] if the object does not exist.
+  *
+  * If the object subscription is not available or terminates without the
+  * object being deleted, for instance because the state proxy is unreachable
+  * or disabled, the subscriber continues with the `fallback` observable that
+  * reads the object directly from storage.
+  */
+private[storage] class OnSubscribeToProxyObject[T](clazz: Class[T], id: ObjId,
+                                                   objectId: UUID,
+                                                   stateTables: StateTableClient,
+                                                   fallback: => Observable[T],
+                                                   metrics: StorageMetrics)
+    extends OnSubscribe[T] {
+
+    import OnSubscribeToProxyObject._
+
+    override def call(child: Subscriber[_ >: T]): Unit = {
+        val key = ObjectSubscriptionKey(clazz, objectId, lastVersion = None)
+        val subscriber = new Subscriber[Update] {
+            // All notifications are received on the state proxy client
+            // thread.
+            private var emitted = false
+            private var done = false
+
+            override def onNext(update: Update): Unit = {
+                if (done) {
+                    return
+                }
+                if (update.getObjectDeleted) {
+                    done = true
+                    unsubscribe()
+                    if (emitted) {
+                        child.onCompleted()
+                    } else {
+                        metrics.error.objectNotFoundExceptionCounter.inc()
+                        child.onError(new NotFoundException(clazz, id))
+                    }
+                } else {
+                    val obj = try {
+                        ZoomSerializer.deserialize(
+                            update.getObjectData.toByteArray, clazz)
+                    } catch {
+                        case NonFatal(e) =>
+                            done = true
+                            unsubscribe()
+                            metrics.error.objectObservableErrorCounter.inc()
+                            child.onError(e)
+                            return
+                    }
+                    emitted = true
+                    child.onNext(obj)
+                }
+            }
+
+            override def onCompleted(): Unit = {
+                fallbackTo("completed")
+            }
+
+            override def onError(e: Throwable): Unit = {
+                fallbackTo(e.getMessage)
+            }
+
+            private def fallbackTo(reason: String): Unit = {
+                if (!done && !child.isUnsubscribed) {
+                    done = true
+                    Log.debug(s"Subscription to ${clazz.getSimpleName} " +
+                              s"$objectId through the state proxy " +
+                              s"terminated ($reason): reading the object " +
+                              "from storage")
+                    metrics.error.objectProxyFallbackCounter.inc()
+                    unsubscribe()
+                    fallback.subscribe(child)
+                }
+            }
+        }
+
+        child.add(subscriber)
+        stateTables.objectObservable(key).subscribe(subscriber)
+    }
+
+}
@@ -15,7 +15,7 @@
  */
 package org.midonet.cluster.data.storage
 
-import java.util.ConcurrentModificationException
+import java.util.{ConcurrentModificationException, UUID}
 import java.util.concurrent.Executors._
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicLong
@@ -49,6 +49,7 @@ import org.midonet.cluster.data.ZoomMetadata.ZoomOwner
 import org.midonet.cluster.data.storage.TransactionManager._
 import org.midonet.cluster.data.storage.ZoomSerializer._
 import org.midonet.cluster.data.storage.metrics.StorageMetrics
+import org.midonet.cluster.data.storage.metrics.StorageOperationMetrics.{Read, ReadChildren, Write}
 import org.midonet.cluster.data.{Obj, ObjId, getIdString}
 import org.midonet.cluster.services.state.client.StateTableClient
 import org.midonet.cluster.storage.MidonetBackendConfig
@@ -131,6 +132,7 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
         new NamedThreadFactory("zoom", isDaemon = true))
 
     private val objectObservableRef = new AtomicLong()
+    private val objectSubscriptions = config.stateClient.objectSubscriptions
 
     private val objectObservables = new TrieMap[Key, ObjectObservable]
     private val classObservables = new TrieMap[Class[_], ClassObservable]
@@ -166,6 +168,8 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
     metrics.connectionStateListeners.foreach {
         curator.getConnectionStateListenable.addListener
     }
+    metrics.operations.setSlowOperationLog(config.slowOperationThreshold,
+                                           config.slowOperationLogInterval)
 
     private[storage] def objectObservableCount: Int =
         objectObservables.size
@@ -228,6 +232,7 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
             val objPath = objectPath(clazz, id)
             val rawPath = altObjectPath(clazz, id)
 
+            val start = System.nanoTime()
             val objectFuture = asyncGet(objPath)
             val rawFuture = asyncGet(rawPath)
 
@@ -235,6 +240,10 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
             val rawEvent = rawFuture.get()
 
             if (objectEvent.getResultCode == Code.OK.intValue()) {
+                metrics.operations.record(clazz, Read, objPath,
+                                          objectEvent.getStat.getMzxid,
+                                          System.nanoTime() - start,
+                                          objectEvent.getData.length)
                 if (objectEvent.getStat.getMzxid > zxid ||
                     (rawEvent.getResultCode == Code.OK.intValue() &&
                      rawEvent.getStat.getMzxid > zxid)) {
@@ -305,11 +314,24 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
             val txn =
                 curator.inTransaction().asInstanceOf[CuratorTransactionFinal]
 
+            // The first object path and the serialized size of the objects
+            // written for each class.
+            val writes = new mutable.HashMap[Class[_], (String, Int)]
+            def addWrite(clazz: Class[_], path: String, size: Int): Unit = {
+                writes.get(clazz) match {
+                    case Some((first, total)) =>
+                        writes(clazz) = (first, total + size)
+                    case None => writes(clazz) = (path, size)
+                }
+            }
+
             for ((key, txOp) <- ops) txOp match {
                 case TxCreate(obj, change) =>
                     var path = objectPath(key.clazz, key.id)
                     Log.debug(s"Create: $path")
-                    txn.create.forPath(path, serialize(obj))
+                    val data = serialize(obj)
+                    txn.create.forPath(path, data)
+                    addWrite(key.clazz, path, data.length)
 
                     path = altObjectPath(key.clazz, key.id)
                     Log.debug(s"Create: $path")
@@ -318,7 +340,9 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
                 case TxUpdate(obj, ver, change) =>
                     var path = objectPath(key.clazz, key.id)
                     Log.debug(s"Update ($ver): $path")
-                    txn.setData().withVersion(ver).forPath(path, serialize(obj))
+                    val data = serialize(obj)
+                    txn.setData().withVersion(ver).forPath(path, data)
+                    addWrite(key.clazz, path, data.length)
 
                     path = altObjectPath(key.clazz, key.id)
                     raw.get(key) match {
@@ -341,6 +365,7 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
                     var path = objectPath(key.clazz, key.id)
                     Log.debug(s"Delete ($ver): $path")
                     txn.delete.withVersion(ver).forPath(path)
+                    addWrite(key.clazz, path, 0)
 
                     path = altObjectPath(key.clazz, key.id)
                     raw.get(key) match {
@@ -364,8 +389,14 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
             }
 
             val startTime = System.nanoTime()
+            var commitZxid = -1L
             try {
-                txn.commit()
+                // All operations of the transaction share the same zxid, which
+                // is only returned for the updated nodes.
+                for (result <- txn.commit().asScala
+                     if (commitZxid < 0) && (result.getResultStat ne null)) {
+                    commitZxid = result.getResultStat.getMzxid
+                }
             } catch {
                 case bve: BadVersionException =>
                     throw new ConcurrentModificationException(bve)
@@ -376,7 +407,12 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
                 case NonFatal(ex) =>
                     throw new InternalObjectMapperException(ex)
             } finally {
-                metrics.performance.addMultiLatency(System.nanoTime() - startTime)
+                val latency = System.nanoTime() - startTime
+                metrics.performance.addMultiLatency(latency)
+                for ((clazz, (path, size)) <- writes) {
+                    metrics.operations.record(clazz, Write, path, commitZxid,
+                                              latency, size)
+                }
             }
 
             deleteStateTables()
@@ -660,7 +696,13 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
         val cb = new BackgroundCallback {
             override def processResult(client: CuratorFramework,
                                        event: CuratorEvent): Unit = {
-                metrics.performance.addLatency(event.getType, System.nanoTime() - start)
+                val latency = System.nanoTime() - start
+                metrics.performance.addLatency(event.getType, latency)
+                if (event.getResultCode == Code.OK.intValue()) {
+                    metrics.operations.record(clazz, Read, path,
+                                              event.getStat.getMzxid, latency,
+                                              event.getData.length)
+                }
                 try {
                     p.trySuccess(tryDeserialize(clazz, id, event))
                 } catch {
@@ -695,6 +737,8 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
                                        evt: CuratorEvent): Unit = {
                 val end = System.nanoTime()
                 metrics.performance.addReadChildrenLatency(end - start)
+                metrics.operations.record(clazz, ReadChildren, evt.getPath, -1L,
+                                          end - start, -1)
                 assert(CuratorEventType.CHILDREN == evt.getType)
                 getAll(clazz, evt.getChildren.asScala).onComplete {
                     case Success(l) => all trySuccess l
@@ -794,12 +838,28 @@ class ZookeeperObjectMapper(config: MidonetBackendConfig,
 
     /**
       * @see [[Storage.observable()]]
+      *
+      * When the object subscriptions are enabled for the state proxy client,
+      * the observable subscribes to the object through the state proxy, and
+      * falls back to watching the object in storage if the state proxy is not
+      * available.
       */
     @throws[ServiceUnavailableException]
     override def observable[T](clazz: Class[T], id: ObjId): Observable[T] = {
         assertBuilt()
         assertRegistered(clazz)
 
+        if (objectSubscriptions) {
+            val objectId = try UUID.fromString(getIdString(id)) catch {
+                case e: IllegalArgumentException => null
+            }
+            if (objectId ne null) {
+                return Observable.create(new OnSubscribeToProxyObject[T](
+                    clazz, id, objectId, stateTables,
+                    internalObservable[T](clazz, id, OnCloseDefault), metrics))
+            }
+        }
+
         Observable.create(new OnSubscribe[T] {
             override def call(child: Subscriber[_ >: T]): Unit = {
                 // Only request and subscribe to the internal, cache-able
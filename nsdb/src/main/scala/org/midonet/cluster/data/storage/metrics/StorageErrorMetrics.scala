@@ -54,6 +54,8 @@ class StorageErrorMetrics(registry: MetricRegistry) {
         registry.counter(name(classOf[StorageCounter], "classObservableError"))
     val stateObservableErrorCounter =
         registry.counter(name(classOf[StorageCounter], "stateObservableError"))
+    val objectProxyFallbackCounter =
+        registry.counter(name(classOf[StorageCounter], "objectProxyFallback"))
 
     /**
       * Examines the given Throwable, and updates the appropriate counters if
@@ -16,18 +16,34 @@
 
 package org.midonet.cluster.data.storage.metrics
 
+import java.lang.management.ManagementFactory
+
+import javax.management.ObjectName
+
+import scala.util.control.NonFatal
+
 import com.codahale.metrics._
 import com.codahale.metrics.MetricRegistry.name
+import com.typesafe.scalalogging.Logger
+import org.slf4j.LoggerFactory
 
 import org.midonet.cluster.data.storage.ZookeeperObjectMapper
 import org.midonet.cluster.monitoring.metrics.StorageGauge
+import org.midonet.management.StorageOperationsMXBean
+
+object StorageMetrics {
+    private val Log = Logger(LoggerFactory.getLogger("org.midonet.nsdb"))
+}
 
 class StorageMetrics(registry: MetricRegistry) {
 
+    import StorageMetrics._
+
     val error = new StorageErrorMetrics(registry)
     val performance = new StoragePerformanceMetrics(registry)
     val session = new StorageSessionMetrics(registry)
     val watchers = new StorageWatcherMetrics(registry)
+    val operations = new StorageOperationMetrics(registry)
 
     val connectionStateListeners = Seq(session.connectionStateListener(),
                                        performance.connectionStateListener())
@@ -52,6 +68,23 @@ class StorageMetrics(registry: MetricRegistry) {
                 zoom.objectObservableCount(clazz)
             })
         }
+        registerOperationsMXBean()
+    }
+
+    /* Registers the storage operations as a JMX bean, replacing the bean of
+       a previous storage instance in the same JVM. */
+    private def registerOperationsMXBean(): Unit = {
+        try {
+            val server = ManagementFactory.getPlatformMBeanServer
+            val name = new ObjectName(StorageOperationsMXBean.NAME)
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name)
+            }
+            server.registerMBean(operations, name)
+        } catch {
+            case NonFatal(e) =>
+                Log.warn("Failed to register storage operations JMX bean", e)
+        }
     }
 
     private def gauge[T](f: => T): Gauge[T] = {
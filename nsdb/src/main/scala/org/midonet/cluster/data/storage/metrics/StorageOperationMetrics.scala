@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage.metrics
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit.{MILLISECONDS, MINUTES, NANOSECONDS, SECONDS}
+import java.util.concurrent.atomic.AtomicLong
+import java.util.{ArrayList, Arrays, Comparator}
+
+import com.codahale.metrics.MetricRegistry.name
+import com.codahale.metrics.{Clock, Histogram, MetricRegistry, Timer}
+import com.typesafe.scalalogging.Logger
+import org.slf4j.LoggerFactory
+
+import org.midonet.cluster.monitoring.metrics.{StorageHistogram, StorageTimer}
+import org.midonet.management.{SlowStorageOperation, StorageOperationStats, StorageOperationsMXBean}
+import org.midonet.util.metrics.HdrHistogramSlidingTimeWindowReservoir
+
+object StorageOperationMetrics {
+
+    final val Read = 0
+    final val ReadChildren = 1
+    final val Write = 2
+
+    private final val OperationNames = Array("read", "readChildren", "write")
+
+    // The reservoirs are created for every object class and operation, such
+    // that they use a single significant digit: the latency and size
+    // percentiles are reported within 10% of their value.
+    private final val SignificantDigits = 1
+    private final val MaxLatencyNanos = NANOSECONDS.convert(60, SECONDS)
+    private final val MaxSizeBytes = 1L << 24
+
+    private final val SlowOperationCount = 32
+
+    private val Log = Logger(LoggerFactory.getLogger(
+        "org.midonet.nsdb.slow-operations"))
+
+    private def reservoir(highestTrackableValue: Long) =
+        new HdrHistogramSlidingTimeWindowReservoir(
+            1, MINUTES, 15, SECONDS, Clock.defaultClock,
+            highestTrackableValue, SignificantDigits)
+
+    private val TotalTimeComparator = new Comparator[StorageOperationStats] {
+        override def compare(a: StorageOperationStats,
+                             b: StorageOperationStats): Int =
+            java.lang.Long.compare(b.getTotalTimeMicros, a.getTotalTimeMicros)
+    }
+
+    /**
+     * The metrics of an operation for an object class: the latency timer,
+     * the payload size histogram and the cumulative time spent in the
+     * operation.
+     */
+    private final class OperationMetrics(val className: String,
+                                         val operation: String,
+                                         val timer: Timer,
+                                         val size: Histogram) {
+        val totalNanos = new AtomicLong()
+    }
+}
+
+/**
+ * Records the latency and the serialized payload size of the storage
+ * operations per object class and operation, using sliding time window
+ * histograms. The metrics are created lazily on the first operation of each
+ * class, and are registered as the timer `StorageTimer.<class>.<operation>`
+ * and the histogram `StorageHistogram.<class>.<operation>.size`.
+ *
+ * The operations slower than the slow operation threshold are logged to the
+ * `org.midonet.nsdb.slow-operations` logger, at most once per log interval,
+ * and the most recent of them are kept for the [[StorageOperationsMXBean]].
+ */
+class StorageOperationMetrics(registry: MetricRegistry)
+    extends StorageOperationsMXBean {
+
+    import StorageOperationMetrics._
+
+    private val operations =
+        new ConcurrentHashMap[Class[_], Array[OperationMetrics]]()
+
+    @volatile private var slowThresholdNanos =
+        NANOSECONDS.convert(500, MILLISECONDS)
+    @volatile private var logIntervalNanos = NANOSECONDS.convert(1, SECONDS)
+    private val lastLogNanos = new AtomicLong(System.nanoTime() - logIntervalNanos)
+    private val suppressed = new AtomicLong()
+
+    private val slowOperations = new Array[SlowStorageOperation](SlowOperationCount)
+    private var slowOperationIndex = 0L
+
+    /**
+     * Sets the latency above which an operation is slow and the minimum
+     * interval between two slow operation log messages, in nanoseconds.
+     */
+    def setSlowOperationLog(thresholdNanos: Long, intervalNanos: Long): Unit = {
+        slowThresholdNanos = thresholdNanos
+        logIntervalNanos = intervalNanos
+    }
+
+    /**
+     * Records an operation for the given object class. The `zxid` is the
+     * modification transaction of the node, or -1 if not known, and the
+     * `size` is the size of the serialized payload, or -1 if the operation
+     * has no payload.
+     */
+    def record(clazz: Class[_], operation: Int, path: String, zxid: Long,
+               latencyNanos: Long, size: Int): Unit = {
+        val metrics = metricsOf(clazz, operation)
+        metrics.timer.update(latencyNanos, NANOSECONDS)
+        metrics.totalNanos.addAndGet(latencyNanos)
+        if (size >= 0) {
+            metrics.size.update(size)
+        }
+        if (latencyNanos >= slowThresholdNanos) {
+            slowOperation(metrics, path, zxid, latencyNanos, size)
+        }
+    }
+
+    override def getOperations: Array[StorageOperationStats] = {
+        val stats = new ArrayList[StorageOperationStats]()
+        val iterator = operations.values().iterator()
+        while (iterator.hasNext) {
+            for (metrics <- iterator.next() if metrics ne null) {
+                stats.add(statsOf(metrics))
+            }
+        }
+        val result = stats.toArray(new Array[StorageOperationStats](stats.size()))
+        Arrays.sort(result, TotalTimeComparator)
+        result
+    }
+
+    override def getTopOperations(count: Int): Array[StorageOperationStats] = {
+        val stats = getOperations
+        if (stats.length > count) Arrays.copyOf(stats, Math.max(count, 0))
+        else stats
+    }
+
+    override def getSlowOperations: Array[SlowStorageOperation] =
+        slowOperations.synchronized {
+            val count = Math.min(slowOperationIndex, SlowOperationCount).toInt
+            val result = new Array[SlowStorageOperation](count)
+            var index = 0
+            while (index < count) {
+                result(index) = slowOperations(
+                    ((slowOperationIndex - 1 - index) % SlowOperationCount).toInt)
+                index += 1
+            }
+            result
+        }
+
+    private def metricsOf(clazz: Class[_], operation: Int): OperationMetrics = {
+        var array = operations.get(clazz)
+        if (array eq null) {
+            operations.putIfAbsent(clazz,
+                                   new Array[OperationMetrics](OperationNames.length))
+            array = operations.get(clazz)
+        }
+        var metrics = array(operation)
+        if (metrics eq null) array.synchronized {
+            metrics = array(operation)
+            if (metrics eq null) {
+                metrics = createMetrics(clazz.getSimpleName,
+                                        OperationNames(operation))
+                array(operation) = metrics
+            }
+        }
+        metrics
+    }
+
+    private def createMetrics(className: String, operation: String)
+    : OperationMetrics = {
+        val timerName = name(classOf[StorageTimer], className, operation)
+        val sizeName = name(classOf[StorageHistogram], className, operation,
+                            "size")
+        // The metrics may have been registered by another instance sharing
+        // the same registry.
+        val timer = try {
+            registry.register(timerName,
+                              new Timer(reservoir(MaxLatencyNanos)))
+        } catch {
+            case e: IllegalArgumentException => registry.getTimers.get(timerName)
+        }
+        val size = try {
+            registry.register(sizeName,
+                              new Histogram(reservoir(MaxSizeBytes)))
+        } catch {
+            case e: IllegalArgumentException =>
+                registry.getHistograms.get(sizeName)
+        }
+        new OperationMetrics(className, operation, timer, size)
+    }
+
+    private def statsOf(metrics: OperationMetrics): StorageOperationStats = {
+        // The sliding window snapshot takes percentiles in the 0 to 100 range.
+        val latency = metrics.timer.getSnapshot
+        val size = metrics.size.getSnapshot
+        new StorageOperationStats(
+            metrics.className, metrics.operation, metrics.timer.getCount,
+            NANOSECONDS.toMicros(metrics.totalNanos.get),
+            latency.getMean / 1000, latency.getValue(99) / 1000,
+            NANOSECONDS.toMicros(latency.getMax), size.getMean, size.getMax)
+    }
+
+    private def slowOperation(metrics: OperationMetrics, path: String,
+                              zxid: Long, latencyNanos: Long, size: Int)
+    : Unit = {
+        val operation = new SlowStorageOperation(
+            System.currentTimeMillis(), metrics.className, metrics.operation,
+            path, zxid, NANOSECONDS.toMicros(latencyNanos), size)
+        slowOperations.synchronized {
+            slowOperations((slowOperationIndex % SlowOperationCount).toInt) =
+                operation
+            slowOperationIndex += 1
+        }
+
+        val now = System.nanoTime()
+        val last = lastLogNanos.get
+        if (now - last >= logIntervalNanos &&
+            lastLogNanos.compareAndSet(last, now)) {
+            val skipped = suppressed.getAndSet(0)
+            Log.warn(s"Slow ${metrics.operation} of ${metrics.className} at " +
+                     s"$path zxid $zxid: ${NANOSECONDS.toMillis(latencyNanos)} " +
+                     s"ms $size bytes" +
+                     (if (skipped > 0) s" ($skipped slow operations not " +
+                                       "logged)" else ""))
+        } else {
+            suppressed.incrementAndGet()
+        }
+    }
+}
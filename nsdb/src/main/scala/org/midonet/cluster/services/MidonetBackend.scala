@@ -48,8 +48,10 @@ object MidonetBackend {
     final val AliveKey = "alive"
     final val BgpKey = "bgp"
     final val ContainerKey = "container"
+    final val CountersKey = "counters"
     final val FloodingProxyKey = "flooding_proxy"
     final val HostKey = "host"
+    final val HostDeltaKey = "host_delta"
     final val RoutesKey = "routes"
     final val StatusKey = "status"
     final val VtepConfig = "config"
@@ -272,10 +274,12 @@ object MidonetBackend {
         stateStore.registerKey(classOf[Host], AliveKey, SingleLastWriteWins)
         stateStore.registerKey(classOf[Host], ContainerKey, FailFast)
         stateStore.registerKey(classOf[Host], HostKey, SingleLastWriteWins)
+        stateStore.registerKey(classOf[Host], HostDeltaKey, SingleLastWriteWins)
         stateStore.registerKey(classOf[PoolMember], StatusKey, SingleLastWriteWins)
         stateStore.registerKey(classOf[Port], ActiveKey, SingleLastWriteWins)
         stateStore.registerKey(classOf[Port], BgpKey, SingleLastWriteWins)
         stateStore.registerKey(classOf[Port], RoutesKey, Multiple)
+        stateStore.registerKey(classOf[Rule], CountersKey, SingleLastWriteWins)
         stateStore.registerKey(classOf[TunnelZone], FloodingProxyKey, SingleLastWriteWins)
         stateStore.registerKey(classOf[Vtep], VtepConfig, SingleLastWriteWins)
         stateStore.registerKey(classOf[Vtep], VtepConnState, SingleLastWriteWins)
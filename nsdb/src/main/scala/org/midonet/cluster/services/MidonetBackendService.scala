@@ -42,7 +42,7 @@ import org.midonet.cluster.rpc.State.ProxyResponse.Notify
 import org.midonet.cluster.services.discovery._
 import org.midonet.cluster.services.state.StateProxyService
 import org.midonet.cluster.services.state.client.StateTableClient.ConnectionState.{ConnectionState => StateClientConnectionState}
-import org.midonet.cluster.services.state.client.{StateProxyClient, StateSubscriptionKey, StateTableClient}
+import org.midonet.cluster.services.state.client.{ObjectSubscriptionKey, StateProxyClient, StateSubscriptionKey, StateTableClient}
 import org.midonet.cluster.storage.MidonetBackendConfig
 import org.midonet.cluster.util.ConnectionObservable
 import org.midonet.conf.HostIdGenerator
@@ -124,6 +124,13 @@ class MidonetBackendService(config: MidonetBackendConfig,
             else Observable.never()
         }
 
+        override def objectObservable(key: ObjectSubscriptionKey)
+        : Observable[Notify.Update] = {
+            val client = stateProxyClient
+            if (client ne null) client.objectObservable(key)
+            else Observable.empty()
+        }
+
         override def connection: Observable[StateClientConnectionState] = {
             val client = stateProxyClient
             if (client ne null) client.connection
@@ -157,19 +157,37 @@ class StateProxyClient(conf: StateProxyClientConfig,
       * @return an observable to a state table.
       */
     override def observable(table: StateSubscriptionKey): Observable[Update] = {
+        subscription(table)
+    }
+
+    /**
+      * Gives an observable to the passed NSDB object on the server. The
+      * object subscriptions share the connection with the state table
+      * subscriptions, and after a reconnection they resume from the last
+      * version received.
+      *
+      * @param key the [[ObjectSubscriptionKey]] description.
+      * @return an observable to an object.
+      */
+    override def objectObservable(key: ObjectSubscriptionKey)
+    : Observable[Update] = {
+        subscription(key)
+    }
+
+    private def subscription(table: ProxySubscriptionKey): Observable[Update] = {
 
         def subscribe(subscriber: StateSubscriber,
-                      table: StateSubscriptionKey): Boolean = {
+                      table: ProxySubscriptionKey): Boolean = {
             val result = state.addSubscriber(subscriber, table)
             if (result) {
-                log debug s"$this Subscribing to ${table.key.name}"
+                log debug s"$this Subscribing to ${table.name}"
                 sendSubscribeRequest(subscriber, table, flush = true)
             }
             result
         }
 
         def unsubscribe(subscriber: StateSubscriber,
-                        table: StateSubscriptionKey): Unit = {
+                        table: ProxySubscriptionKey): Unit = {
 
             state.removeSubscriber(subscriber) foreach {
                 sid => sendUnsubscribeRequest(sid, subscriber, flush = true)
@@ -444,7 +462,12 @@ class StateProxyClient(conf: StateProxyClientConfig,
                         subscriber.onCompleted()
 
                     case ProxyResponse.Notify.NotificationCase.UPDATE =>
-                        subscriber.onNext(msg.getUpdate)
+                        val update = msg.getUpdate
+                        if (update.hasObjectData) {
+                            state.updateVersion(subscriber,
+                                                update.getCurrentVersion)
+                        }
+                        subscriber.onNext(update)
 
                     case ProxyResponse.Notify.NotificationCase.NOTIFICATION_NOT_SET =>
                         state.removeSubscription(sid, subscriber)
@@ -485,10 +508,10 @@ class StateProxyClient(conf: StateProxyClientConfig,
     }
 
     private def sendSubscribeRequest(subscriber: StateSubscriber,
-                                     table: StateSubscriptionKey,
+                                     table: ProxySubscriptionKey,
                                      flush: Boolean): Boolean = {
 
-        val msg = RequestBuilder subscribe table
+        val msg = RequestBuilder subscribe table.toSubscribeMessage
         sendRequest(msg, subscriber, isSubscribe = true,
                                         flush)
     }
@@ -47,4 +47,10 @@ class StateProxyClientConfig(val conf: Config) {
     } catch {
         case _: ConfigException => Connection.DefaultReadTimeout
     }
+
+    def objectSubscriptions = try {
+        conf.getBoolean("state_proxy.object_subscriptions")
+    } catch {
+        case _: ConfigException => false
+    }
 }
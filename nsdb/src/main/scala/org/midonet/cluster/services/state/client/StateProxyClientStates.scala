@@ -38,7 +38,7 @@ private[client] class StateProxyClientStates {
       * be accepted at the moment (pre-start or post-stop)
       */
     def addSubscriber(subscriber: StateSubscriber,
-                      table: StateSubscriptionKey): Boolean = {
+                      table: ProxySubscriptionKey): Boolean = {
 
         def add(subscriberMap: SubscriberMap) = {
             val doInsert = ! subscriberMap.contains(subscriber)
@@ -69,6 +69,22 @@ private[client] class StateProxyClientStates {
         }
     }
 
+    /** Updates the last version of an object subscriber, such that it
+      * resubscribes from that version after a reconnection.
+      */
+    def updateVersion(subscriber: StateSubscriber, version: Long): Unit = {
+        state.get match {
+            case s: Connected =>
+                s.subscribers.get(subscriber) match {
+                    case Some(key: ObjectSubscriptionKey) =>
+                        s.subscribers.update(
+                            subscriber, key.copy(lastVersion = Some(version)))
+                    case _ =>
+                }
+            case _ =>
+        }
+    }
+
     /** Given a subscription id from the remote server, returns the associated
       * subscriber, if any
       */
@@ -133,10 +149,10 @@ private[client] object StateProxyClientStates {
     case class TransactionRecord(isSubscribe: Boolean,
                                  subscriber: StateSubscriber)
 
-    type SubscriberMap = MutableHashMap[StateSubscriber, StateSubscriptionKey]
+    type SubscriberMap = MutableHashMap[StateSubscriber, ProxySubscriptionKey]
 
     def emptySubscriberMap: SubscriberMap = MutableHashMap
-        .empty[StateSubscriber, StateSubscriptionKey]
+        .empty[StateSubscriber, ProxySubscriptionKey]
 
     type TransactionMap = MutableHashMap[RequestId, TransactionRecord]
 
@@ -16,14 +16,32 @@
 
 package org.midonet.cluster.services.state.client
 
+import java.util.UUID
+
 import org.midonet.cluster.data.storage.StateTable
 import org.midonet.cluster.rpc.State.ProxyRequest
 import org.midonet.cluster.models.Commons
 
+/**
+  * The key of a subscription to the state proxy, which is either a state table
+  * or a NSDB object.
+  */
+sealed trait ProxySubscriptionKey {
+
+    def lastVersion: Option[Long]
+
+    private[client] def name: String
+
+    private[client] def toSubscribeMessage: ProxyRequest.Subscribe
+}
+
 case class StateSubscriptionKey(key: StateTable.Key,
-                                lastVersion: Option[Long]) {
+                                lastVersion: Option[Long])
+    extends ProxySubscriptionKey {
 
-    private[client] def toSubscribeMessage
+    private[client] override def name: String = key.name
+
+    private[client] override def toSubscribeMessage
         : ProxyRequest.Subscribe = {
 
         val msg = ProxyRequest.Subscribe.newBuilder()
@@ -43,7 +61,36 @@ case class StateSubscriptionKey(key: StateTable.Key,
     }
 }
 
+/**
+  * The key of a subscription to a NSDB object. The `lastVersion` is the
+  * version of the object already known by the client, which the proxy
+  * client updates with every notification, such that it resubscribes with
+  * the latest version after a reconnection.
+  */
+case class ObjectSubscriptionKey(objectClass: Class[_], objectId: UUID,
+                                 lastVersion: Option[Long])
+    extends ProxySubscriptionKey {
+
+    private[client] override def name: String =
+        s"${objectClass.getSimpleName}/$objectId"
+
+    private[client] override def toSubscribeMessage
+        : ProxyRequest.Subscribe = {
+
+        val msg = ProxyRequest.Subscribe.newBuilder()
+
+        if (lastVersion.isDefined) msg.setLastVersion(lastVersion.get)
+
+        msg.setObjectId(Commons.UUID.newBuilder()
+                            .setMsb(objectId.getMostSignificantBits)
+                            .setLsb(objectId.getLeastSignificantBits))
+            .setObjectClass(objectClass.getName)
+            .setObject(true)
+            .build()
+    }
+}
+
 object StateSubscriptionKey {
-    private[client] implicit def toSubscribeMessage(key: StateSubscriptionKey)
+    private[client] implicit def toSubscribeMessage(key: ProxySubscriptionKey)
         : ProxyRequest.Subscribe = key.toSubscribeMessage
-}
\ No newline at end of file
+}
@@ -32,6 +32,17 @@ trait StateTableClient {
 
     def observable(table: StateSubscriptionKey): Observable[Update]
 
+    /**
+      * Returns an observable for a NSDB object, which emits an [[Update]]
+      * with the serialized object data for every change of the object. The
+      * default implementation does not support object subscriptions and
+      * returns an empty observable, such that the callers read the object
+      * from storage instead.
+      */
+    def objectObservable(key: ObjectSubscriptionKey): Observable[Update] = {
+        Observable.empty()
+    }
+
     def connection: Observable[ConnectionState]
 }
 
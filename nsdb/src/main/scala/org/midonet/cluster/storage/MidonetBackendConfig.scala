@@ -67,6 +67,8 @@ class MidonetBackendConfig(val conf: Config,
     def stateClient = new StateProxyClientConfig(conf)
     def lockTimeoutMs = conf.getDuration("zookeeper.lock_timeout", TimeUnit.MILLISECONDS)
     def transactionAttempts = conf.getInt("zookeeper.transaction_attempts")
+    def slowOperationThreshold = conf.getDuration("zookeeper.slow_operation_threshold", TimeUnit.NANOSECONDS)
+    def slowOperationLogInterval = conf.getDuration("zookeeper.slow_operation_log_interval", TimeUnit.NANOSECONDS)
 }
 
 class CassandraConfig(val conf: Config) {
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.util
+
+import scala.collection.JavaConverters._
+
+import com.google.protobuf.TextFormat
+
+import org.midonet.cluster.data.storage.{SingleValueKey, StateKey}
+import org.midonet.cluster.models.State.HostState
+
+/**
+  * Utility methods for the delta encoding of the host interfaces. The agent
+  * stores a snapshot with all interfaces under the host key, and the changes
+  * since that snapshot under the host delta key, such that an interface
+  * change does not rewrite the state of all interfaces of the host.
+  */
+object HostStateUtil {
+
+    /** Parses a [[HostState]] stored as a text-format message. */
+    def parse(value: String): HostState = {
+        val builder = HostState.newBuilder()
+        TextFormat.merge(value, builder)
+        builder.build()
+    }
+
+    /**
+      * Computes the delta between the `snapshot` and the `current` host state,
+      * with the given version. The delta contains the interfaces that were
+      * added or changed, and the names of the interfaces that were removed.
+      */
+    def delta(snapshot: HostState, current: HostState, version: Long)
+    : HostState = {
+        val previous = snapshot.getInterfacesList.asScala
+            .map(i => i.getName -> i).toMap
+        val builder = HostState.newBuilder()
+            .setHostId(current.getHostId)
+            .setVersion(version)
+            .setBaseVersion(snapshot.getVersion)
+        val names = for (interface <- current.getInterfacesList.asScala) yield {
+            if (!previous.get(interface.getName).contains(interface)) {
+                builder.addInterfaces(interface)
+            }
+            interface.getName
+        }
+        for (name <- previous.keySet -- names) {
+            builder.addRemovedInterfaces(name)
+        }
+        builder.build()
+    }
+
+    /**
+      * Applies the `delta` to the `snapshot`. The delta is ignored if it is
+      * `null` or if it was not computed for the snapshot version, which may
+      * happen if a reader observes the keys while the agent writes a new
+      * snapshot.
+      */
+    def merge(snapshot: HostState, delta: HostState): HostState = {
+        if ((delta eq null) || !delta.hasBaseVersion ||
+            delta.getBaseVersion != snapshot.getVersion) {
+            return snapshot
+        }
+        val changed = delta.getInterfacesList.asScala
+            .map(i => i.getName -> i).toMap
+        val removed = delta.getRemovedInterfacesList.asScala.toSet
+        val builder = snapshot.toBuilder
+            .clearInterfaces()
+            .setVersion(delta.getVersion)
+        for (interface <- snapshot.getInterfacesList.asScala
+             if !removed.contains(interface.getName)) {
+            builder.addInterfaces(changed.getOrElse(interface.getName,
+                                                    interface))
+        }
+        val names = snapshot.getInterfacesList.asScala.map(_.getName).toSet
+        for (interface <- delta.getInterfacesList.asScala
+             if !names.contains(interface.getName)) {
+            builder.addInterfaces(interface)
+        }
+        builder.build()
+    }
+
+    /**
+      * Returns the host state from the values of the host and host delta
+      * state keys, or [[None]] if the host state does not exist.
+      */
+    def fromKeys(snapshot: StateKey, delta: StateKey): Option[HostState] = {
+        snapshot match {
+            case SingleValueKey(_, Some(snapshotValue), _) =>
+                val deltaState = delta match {
+                    case SingleValueKey(_, Some(deltaValue), _) =>
+                        parse(deltaValue)
+                    case _ => null
+                }
+                Some(merge(parse(snapshotValue), deltaState))
+            case _ => None
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.cache
+
+import java.util
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{CountDownLatch, Semaphore, TimeUnit}
+
+import scala.collection.JavaConverters._
+
+import com.typesafe.config.ConfigFactory
+
+import org.apache.curator.framework.api.{BackgroundCallback, CuratorEvent}
+import org.apache.curator.framework.{CuratorFramework, CuratorFrameworkFactory}
+import org.apache.curator.retry.RetryNTimes
+import org.apache.curator.test.TestingServer
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.cluster.models.Topology
+import org.midonet.cluster.storage.MidonetBackendConfig
+import org.midonet.cluster.util.UUIDUtil
+
+object TopologyLoaderBenchmark {
+
+    final val Classes: Array[Class[_]] = Array(classOf[Topology.Network],
+                                               classOf[Topology.Router],
+                                               classOf[Topology.Port],
+                                               classOf[Topology.Chain])
+
+    final val WriteWindow = 1024
+
+    def objectData(clazz: Class[_], id: UUID): Array[Byte] = {
+        val message = clazz match {
+            case c if c == classOf[Topology.Network] =>
+                Topology.Network.newBuilder().setId(UUIDUtil.toProto(id))
+                    .setName(s"network-$id").setAdminStateUp(true).build()
+            case c if c == classOf[Topology.Router] =>
+                Topology.Router.newBuilder().setId(UUIDUtil.toProto(id))
+                    .setName(s"router-$id").setAdminStateUp(true).build()
+            case c if c == classOf[Topology.Port] =>
+                Topology.Port.newBuilder().setId(UUIDUtil.toProto(id))
+                    .setNetworkId(UUIDUtil.toProto(UUID.randomUUID()))
+                    .setAdminStateUp(true).build()
+            case _ =>
+                Topology.Chain.newBuilder().setId(UUIDUtil.toProto(id))
+                    .setName(s"chain-$id").build()
+        }
+        message.toString.getBytes
+    }
+}
+
+/**
+  * Measures the time to load all NSDB objects from an in-process ZooKeeper
+  * server. The `eventThread` benchmark loads the objects like the object
+  * cache watchers: it lists every class, requests all objects at once and
+  * decodes them on the Curator event thread. The `pipelined` benchmark uses
+  * the [[TopologyLoader]] with the given window of requests in flight.
+  *
+  * Example command:
+  *   ./gradlew :nsdb:benchmarks '-Pjmh=.*TopologyLoaderBenchmark.*'
+  */
+@BenchmarkMode(Array(Mode.SingleShotTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = Array("-Xmx8g"))
+@State(Scope.Benchmark)
+class TopologyLoaderBenchmark {
+
+    import TopologyLoaderBenchmark._
+
+    @Param(Array("100000", "1000000"))
+    var objects: Int = _
+
+    @Param(Array("256", "4096"))
+    var window: Int = _
+
+    @Param(Array("4"))
+    var threads: Int = _
+
+    private var server: TestingServer = _
+    private var curator: CuratorFramework = _
+    private var paths: ZoomPaths = _
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        server = new TestingServer(true)
+        curator = CuratorFrameworkFactory.newClient(server.getConnectString,
+                                                    60000, 60000,
+                                                    new RetryNTimes(2, 1000))
+        curator.start()
+        curator.blockUntilConnected()
+
+        val config = new MidonetBackendConfig(
+            ConfigFactory.parseString("zookeeper.root_key : /benchmark"),
+            false, false, false)
+        paths = new ZoomPaths(config)
+
+        val writes = new Semaphore(WriteWindow)
+        val created = new CountDownLatch(objects)
+        val callback = new BackgroundCallback {
+            override def processResult(client: CuratorFramework,
+                                       event: CuratorEvent): Unit = {
+                writes.release()
+                created.countDown()
+            }
+        }
+        for (clazz <- Classes) {
+            curator.create().creatingParentsIfNeeded()
+                .forPath(paths.objectClassPath(clazz))
+        }
+        for (index <- 0 until objects) {
+            val clazz = Classes(index % Classes.length)
+            val id = UUID.randomUUID()
+            writes.acquire()
+            curator.create().inBackground(callback).forPath(
+                paths.objectPath(paths.objectClassPath(clazz), id.toString),
+                objectData(clazz, id))
+        }
+        created.await()
+    }
+
+    @TearDown(Level.Trial)
+    def teardown(): Unit = {
+        curator.close()
+        server.close()
+    }
+
+    @Benchmark
+    def eventThread(): Long = {
+        val loaded = new AtomicLong()
+        val classPaths = Classes.map(paths.objectClassPath)
+        val children = classPaths.map(path => curator.getChildren.forPath(path))
+        val remaining = new CountDownLatch(children.map(_.size).sum)
+        for (index <- Classes.indices) {
+            val serializer = ObjectMessaging.serializerOf(Classes(index))
+            val callback = new BackgroundCallback {
+                override def processResult(client: CuratorFramework,
+                                           event: CuratorEvent): Unit = {
+                    serializer.convertTextToMessage(event.getData)
+                    loaded.incrementAndGet()
+                    remaining.countDown()
+                }
+            }
+            for (id <- children(index).asScala) {
+                curator.getData.inBackground(callback)
+                    .forPath(paths.objectPath(classPaths(index), id))
+            }
+        }
+        remaining.await()
+        loaded.get
+    }
+
+    @Benchmark
+    def pipelined(): Long = {
+        val loader = new TopologyLoader(curator, paths, window, threads)
+        loader.load(Classes, new TopologyLoader.Listener {
+            override def classLoaded(clazz: Class[_],
+                                     objects: util.Map[String, TopologyLoader.LoadedObject])
+            : Unit = { }
+        })
+        loader.loadedObjects()
+    }
+
+}
@@ -30,7 +30,6 @@ import scala.runtime.BoxedUnit;
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.Sets;
 import com.google.protobuf.Message;
-import com.typesafe.config.ConfigFactory;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -49,6 +48,7 @@ import org.midonet.cluster.services.MidonetBackend$;
 import org.midonet.cluster.storage.MidonetBackendConfig;
 import org.midonet.cluster.util.UUIDUtil$;
 import org.midonet.cluster.ZooKeeperTest;
+import org.midonet.conf.MidoTestConfigurator;
 import org.midonet.util.MidonetEventually;
 import org.midonet.util.reactivex.TestAwaitableObserver;
 
@@ -86,7 +86,7 @@ public class ObjectCacheTest extends ZooKeeperTest {
         super.before();
 
         config = new MidonetBackendConfig(
-            ConfigFactory.parseString("zookeeper.root_key : " + ROOT),
+            MidoTestConfigurator.forClusters("zookeeper.root_key : " + ROOT),
             false, false, false);
         paths = new ZoomPaths(config);
         metricRegistry = new MetricRegistry();
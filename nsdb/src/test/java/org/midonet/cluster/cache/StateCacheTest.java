@@ -27,7 +27,6 @@ import scala.runtime.AbstractFunction0;
 import scala.runtime.BoxedUnit;
 
 import com.codahale.metrics.MetricRegistry;
-import com.typesafe.config.ConfigFactory;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.zookeeper.CreateMode;
@@ -51,6 +50,7 @@ import org.midonet.cluster.services.MidonetBackend$;
 import org.midonet.cluster.storage.MidonetBackendConfig;
 import org.midonet.cluster.util.UUIDUtil$;
 import org.midonet.cluster.ZooKeeperTest;
+import org.midonet.conf.MidoTestConfigurator;
 import org.midonet.util.reactivex.TestAwaitableObserver;
 
 public class StateCacheTest extends ZooKeeperTest {
@@ -87,7 +87,7 @@ public class StateCacheTest extends ZooKeeperTest {
         super.before();
 
         config = new MidonetBackendConfig(
-            ConfigFactory.parseString("zookeeper.root_key : " + ROOT),
+            MidoTestConfigurator.forClusters("zookeeper.root_key : " + ROOT),
             false, false, false);
         paths = new ZoomPaths(config);
         metricRegistry = new MetricRegistry();
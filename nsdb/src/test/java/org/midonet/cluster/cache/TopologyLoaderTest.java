@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import scala.Function0;
+import scala.runtime.AbstractFunction0;
+import scala.runtime.BoxedUnit;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.protobuf.Message;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.midonet.cluster.ZooKeeperTest;
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper;
+import org.midonet.cluster.data.storage.metrics.StorageMetrics;
+import org.midonet.cluster.models.Topology;
+import org.midonet.cluster.services.MidonetBackend$;
+import org.midonet.cluster.storage.MidonetBackendConfig;
+import org.midonet.cluster.util.UUIDUtil$;
+import org.midonet.conf.MidoTestConfigurator;
+
+public class TopologyLoaderTest extends ZooKeeperTest {
+
+    private static final Function0<BoxedUnit> NO_SETUP =
+        new AbstractFunction0<BoxedUnit>() {
+            @Override
+            public BoxedUnit apply() {
+                return BoxedUnit.UNIT;
+            }
+        };
+
+    private static final String NAMESPACE = new UUID(0L, 0L).toString();
+
+    private ZookeeperObjectMapper storage;
+    private ZoomPaths paths;
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        ZooKeeperTest.beforeAll(TopologyLoaderTest.class);
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        ZooKeeperTest.afterAll(TopologyLoaderTest.class);
+    }
+
+    @Before
+    @Override
+    public void before() throws Exception {
+        super.before();
+
+        MidonetBackendConfig config = new MidonetBackendConfig(
+            MidoTestConfigurator.forClusters("zookeeper.root_key : " + ROOT),
+            false, false, false);
+        paths = new ZoomPaths(config);
+        StorageMetrics metrics = new StorageMetrics(new MetricRegistry());
+
+        storage = new ZookeeperObjectMapper(config, NAMESPACE, curator, curator,
+                                            null, null, metrics);
+
+        MidonetBackend$.MODULE$.setupBindings(storage, storage, NO_SETUP, true);
+    }
+
+    private Topology.Network createNetwork() {
+        Topology.Network network = Topology.Network.newBuilder()
+            .setId(UUIDUtil$.MODULE$.toProto(UUID.randomUUID()))
+            .setName("network")
+            .build();
+        storage.create(network);
+        return network;
+    }
+
+    private Topology.Router createRouter() {
+        Topology.Router router = Topology.Router.newBuilder()
+            .setId(UUIDUtil$.MODULE$.toProto(UUID.randomUUID()))
+            .build();
+        storage.create(router);
+        return router;
+    }
+
+    @Test
+    public void testLoadClasses() throws Exception {
+        // Given several objects in two classes.
+        Map<String, Message> expected = new HashMap<>();
+        for (int index = 0; index < 20; index++) {
+            Topology.Network network = createNetwork();
+            expected.put(UUIDUtil$.MODULE$.fromProto(network.getId()).toString(),
+                         network);
+        }
+        Topology.Router router = createRouter();
+
+        // And a loader with a small window of requests.
+        TopologyLoader loader = new TopologyLoader(curator, paths, 4, 2);
+
+        // When loading the classes and a class without objects.
+        Map<Class<?>, Map<String, TopologyLoader.LoadedObject>> loaded =
+            new ConcurrentHashMap<>();
+        loader.load(new Class<?>[] { Topology.Network.class,
+                                     Topology.Router.class,
+                                     Topology.Chain.class },
+                    loaded::put);
+
+        // Then every class is loaded.
+        Assert.assertEquals(3, loaded.size());
+        Assert.assertTrue(loaded.get(Topology.Chain.class).isEmpty());
+        Assert.assertEquals(1, loaded.get(Topology.Router.class).size());
+
+        // And the objects are decoded.
+        Map<String, TopologyLoader.LoadedObject> networks =
+            loaded.get(Topology.Network.class);
+        Assert.assertEquals(expected.size(), networks.size());
+        for (Map.Entry<String, Message> entry : expected.entrySet()) {
+            TopologyLoader.LoadedObject object = networks.get(entry.getKey());
+            Assert.assertEquals(entry.getValue(), object.message());
+            Assert.assertEquals(0, object.childData().getStat().getVersion());
+        }
+        Assert.assertEquals(router, loaded.get(Topology.Router.class)
+            .values().iterator().next().message());
+
+        // And the loader reports the loaded objects.
+        Assert.assertEquals(21, loader.loadedObjects());
+        Assert.assertTrue(loader.loadedBytes() > 0);
+    }
+
+    @Test
+    public void testObjectCacheServesLoadedObjects() throws Exception {
+        // Given several objects.
+        for (int index = 0; index < 10; index++) {
+            createNetwork();
+        }
+
+        // And a cache with a loader.
+        ObjectCache cache = new ObjectCache(
+            curator, paths, new MetricRegistry(),
+            new TopologyLoader(curator, paths, 16, 2));
+
+        // When the cache is started.
+        cache.startAsync().awaitRunning();
+
+        // Then the snapshot contains all objects.
+        ObjectNotification.MappedSnapshot snapshot = cache.snapshot();
+        Assert.assertEquals(10, snapshot.get(Topology.Network.class).size());
+
+        cache.stopAsync().awaitTerminated();
+    }
+
+}
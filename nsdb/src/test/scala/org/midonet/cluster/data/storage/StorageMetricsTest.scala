@@ -23,6 +23,7 @@ import scala.concurrent.Await
 import scala.concurrent.duration._
 
 import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
 
 import org.apache.zookeeper.ZooKeeper.States
 import org.junit.runner.RunWith
@@ -35,6 +36,7 @@ import org.midonet.cluster.data.storage.KeyType._
 import org.midonet.cluster.data.storage.StorageTest._
 import org.midonet.cluster.data.storage.StorageTestClasses._
 import org.midonet.cluster.data.storage.metrics.StorageMetrics
+import org.midonet.cluster.monitoring.metrics.{StorageHistogram, StorageTimer}
 import org.midonet.cluster.util.MidonetBackendTest
 import org.midonet.util.reactivex.{TestAwaitableObserver, richObservable}
 
@@ -47,13 +49,15 @@ class StorageMetricsTest extends FeatureSpec
 
     private val timeout = 5 seconds
     private var registry: MetricRegistry = _
+    private var metrics: StorageMetrics = _
     private var zoom: ZookeeperObjectMapper = _
 
     protected override def setup(): Unit = {
         registry = new MetricRegistry()
+        metrics = new StorageMetrics(registry)
         zoom = new ZookeeperObjectMapper(config, UUID.randomUUID().toString,
                                          curator, curator, stateTables, reactor,
-                                         new StorageMetrics(registry))
+                                         metrics)
         initAndBuildStorage(zoom)
     }
 
@@ -435,6 +439,65 @@ class StorageMetricsTest extends FeatureSpec
             And("There was a write for each object")
             getCountForTimer("write") shouldBe objects.length
         }
+
+        scenario("Per class operation metrics") {
+            Given("A bridge and a router")
+            val bridge = createPojoBridge()
+            val router = createPojoRouter()
+            zoom.create(bridge)
+            zoom.create(router)
+
+            When("Reading the bridge twice and all routers")
+            Await.ready(zoom.get(classOf[PojoBridge], bridge.id), timeout)
+            Await.ready(zoom.get(classOf[PojoBridge], bridge.id), timeout)
+            Await.ready(zoom.getAll(classOf[PojoRouter]), timeout)
+
+            Then("The latency is recorded per class and operation")
+            def timer(clazz: String, op: String) =
+                registry.getTimers.get(name(classOf[StorageTimer], clazz, op))
+            timer("PojoBridge", "write").getCount shouldBe 1
+            timer("PojoBridge", "read").getCount shouldBe 2
+            timer("PojoRouter", "write").getCount shouldBe 1
+            timer("PojoRouter", "readChildren").getCount shouldBe 1
+            timer("PojoRouter", "read").getCount shouldBe 1
+
+            And("The payload size is recorded for reads and writes")
+            val size = registry.getHistograms.get(
+                name(classOf[StorageHistogram], "PojoBridge", "read", "size"))
+            size.getCount shouldBe 2
+            size.getSnapshot.getMax should be > 0L
+            registry.getHistograms.containsKey(
+                name(classOf[StorageHistogram], "PojoRouter", "readChildren",
+                     "size")) shouldBe true
+
+            And("The operations are sorted by their total time")
+            val operations = metrics.operations.getOperations
+            operations.map(op => (op.getClassName, op.getOperation)).toSet shouldBe
+                Set(("PojoBridge", "write"), ("PojoBridge", "read"),
+                    ("PojoRouter", "write"), ("PojoRouter", "read"),
+                    ("PojoRouter", "readChildren"))
+            operations.map(_.getTotalTimeMicros) shouldBe
+                operations.map(_.getTotalTimeMicros).sortBy(-_)
+            metrics.operations.getTopOperations(2) shouldBe operations.take(2)
+        }
+
+        scenario("Slow operations") {
+            Given("A storage logging all operations as slow")
+            metrics.operations.setSlowOperationLog(0L, 1000000000L)
+
+            When("Creating and reading a bridge")
+            val bridge = createPojoBridge()
+            zoom.create(bridge)
+            Await.ready(zoom.get(classOf[PojoBridge], bridge.id), timeout)
+
+            Then("The operations are reported as slow, most recent first")
+            val slow = metrics.operations.getSlowOperations
+            slow.map(_.getOperation) shouldBe Array("read", "write")
+            slow(0).getClassName shouldBe "PojoBridge"
+            slow(0).getPath should endWith (bridge.id.toString)
+            slow(0).getZxid should be > 0L
+            slow(0).getSizeBytes should be > 0
+        }
     }
 
     feature("Zoom state storage metrics") {
@@ -549,9 +612,7 @@ class StorageMetricsTest extends FeatureSpec
     }
 
     private def getCountForTimer(suffix: String): Long =
-        registry.getTimers
-            .filterKeys(_ contains suffix)
-            .head._2.getCount
+        registry.getTimers.get(name(classOf[StorageTimer], suffix)).getCount
 
     private def getCountForCounter(suffix: String): Long =
         registry.getCounters
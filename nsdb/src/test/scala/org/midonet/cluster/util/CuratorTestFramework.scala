@@ -19,8 +19,6 @@ import java.util.concurrent.TimeUnit
 
 import scala.collection.concurrent.TrieMap
 
-import com.typesafe.config.ConfigFactory
-
 import org.apache.curator.RetryPolicy
 import org.apache.curator.framework.{CuratorFramework, CuratorFrameworkFactory}
 import org.apache.curator.retry.RetryNTimes
@@ -28,6 +26,7 @@ import org.apache.curator.test.TestingServer
 import org.scalatest.{BeforeAndAfterAll, BeforeAndAfterEach, Suite}
 
 import org.midonet.cluster.storage.MidonetBackendConfig
+import org.midonet.conf.MidoTestConfigurator
 
 /**
  * Provides boilerplate for:
@@ -52,7 +51,7 @@ trait CuratorTestFramework extends BeforeAndAfterEach
     import org.midonet.cluster.util.CuratorTestFramework.testServers
 
     protected val zkRoot = "/test"
-    protected val config = new MidonetBackendConfig(ConfigFactory.parseString(
+    protected val config = new MidonetBackendConfig(MidoTestConfigurator.forClusters(
         s"""
             |zookeeper.root_key=$zkRoot
             |$configParams
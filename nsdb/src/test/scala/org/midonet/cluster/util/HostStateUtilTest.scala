@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.util
+
+import java.util.UUID
+
+import scala.collection.JavaConverters._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.cluster.data.storage.SingleValueKey
+import org.midonet.cluster.models.State.HostState
+import org.midonet.cluster.util.UUIDUtil._
+
+@RunWith(classOf[JUnitRunner])
+class HostStateUtilTest extends FeatureSpec with Matchers with GivenWhenThen {
+
+    private val hostId = UUID.randomUUID()
+
+    private def interface(name: String, mtu: Int = 1500) =
+        HostState.Interface.newBuilder().setName(name).setMtu(mtu).build()
+
+    private def hostState(version: Long, interfaces: HostState.Interface*) =
+        HostState.newBuilder()
+            .setHostId(hostId.asProto)
+            .setVersion(version)
+            .addAllInterfaces(interfaces.asJava)
+            .build()
+
+    private def names(state: HostState): Seq[String] =
+        state.getInterfacesList.asScala.map(_.getName)
+
+    feature("Host state deltas") {
+        scenario("Delta contains the changed and removed interfaces") {
+            Given("A snapshot and the current host state")
+            val snapshot = hostState(1L, interface("eth0"), interface("eth1"),
+                                     interface("eth2"))
+            val current = hostState(2L, interface("eth0"),
+                                    interface("eth1", mtu = 9000),
+                                    interface("tap0"))
+
+            When("Computing the delta")
+            val delta = HostStateUtil.delta(snapshot, current, 2L)
+
+            Then("The delta references the snapshot")
+            delta.getHostId.asJava shouldBe hostId
+            delta.getVersion shouldBe 2L
+            delta.getBaseVersion shouldBe 1L
+
+            And("The delta contains the changed interfaces")
+            delta.getInterfacesList.asScala shouldBe Seq(
+                interface("eth1", mtu = 9000), interface("tap0"))
+            delta.getRemovedInterfacesList.asScala shouldBe Seq("eth2")
+
+            And("Merging the delta returns the current interfaces")
+            val merged = HostStateUtil.merge(snapshot, delta)
+            merged.getVersion shouldBe 2L
+            merged.getInterfacesList.asScala.toSet shouldBe
+                current.getInterfacesList.asScala.toSet
+        }
+
+        scenario("Delta for a different snapshot is ignored") {
+            Given("A snapshot and a delta for another snapshot")
+            val snapshot = hostState(3L, interface("eth0"))
+            val delta = HostStateUtil.delta(
+                hostState(1L), hostState(2L, interface("tap0")), 2L)
+
+            Then("Merging returns the snapshot")
+            HostStateUtil.merge(snapshot, delta) shouldBe snapshot
+            HostStateUtil.merge(snapshot, null) shouldBe snapshot
+        }
+
+        scenario("Host state from the state keys") {
+            Given("A snapshot and a delta")
+            val snapshot = hostState(1L, interface("eth0"))
+            val delta = HostStateUtil.delta(
+                snapshot, hostState(2L, interface("eth0"), interface("tap0")),
+                2L)
+
+            Then("The host state merges the delta")
+            val state = HostStateUtil.fromKeys(
+                SingleValueKey("host", Some(snapshot.toString), 0L),
+                SingleValueKey("host_delta", Some(delta.toString), 0L))
+            state.map(names) shouldBe Some(Seq("eth0", "tap0"))
+
+            And("A missing delta returns the snapshot")
+            HostStateUtil.fromKeys(
+                SingleValueKey("host", Some(snapshot.toString), 0L),
+                SingleValueKey("host_delta", None, 0L)) shouldBe Some(snapshot)
+
+            And("A missing snapshot returns nothing")
+            HostStateUtil.fromKeys(
+                SingleValueKey("host", None, 0L),
+                SingleValueKey("host_delta", Some(delta.toString), 0L)) shouldBe None
+        }
+    }
+
+}